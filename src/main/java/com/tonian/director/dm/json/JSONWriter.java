@@ -8,7 +8,9 @@ import java.io.StringWriter;
  * @author Elad Tabak
  * @since 28-Nov-2011
  * @version 0.1
+ * @deprecated Looks at every single character, including those within strings. Use de.jaide.courier.json.JsonPrettyWriter instead.
  */
+@Deprecated
 public class JSONWriter extends StringWriter {
 
   private int indent = 0;
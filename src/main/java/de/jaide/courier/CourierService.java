@@ -15,9 +15,15 @@
  */
 package de.jaide.courier;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import de.jaide.courier.email.EMailWarmUp;
 import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.WarmUpReport;
+import de.jaide.courier.file.MessageHandlerFile;
 
 /**
  * Instantiates the Singleton and provides static methods for returning handler services.
@@ -25,6 +31,12 @@ import de.jaide.courier.email.MessageHandlerEMail;
  * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
  */
 public class CourierService {
+  /**
+   * The names of the journal files the handlers write their unsent messages to on shutdown.
+   */
+  public static final String JOURNAL_EMAIL = "email.journal";
+  public static final String JOURNAL_FILE = "file.journal";
+
   /**
    * Singleton pattern...
    */
@@ -35,6 +47,16 @@ public class CourierService {
    */
   MessageHandlerEMail email = null;
 
+  /**
+   * The message handler for writing messages into a local directory
+   */
+  MessageHandlerFile file = null;
+
+  /**
+   * Released once the service is warmed up and ready to take traffic. Replaced when the service is shut down.
+   */
+  private volatile CountDownLatch ready = new CountDownLatch(1);
+
   /**
    * Singleton pattern...
    */
@@ -66,4 +88,88 @@ public class CourierService {
 
     return email;
   }
+
+  /**
+   * Returns the message handler that writes messages into a local directory.
+   * 
+   * @param outputDirectory The directory to write the messages to. May be null if called more than once.
+   * @return The message handler for files
+   */
+  public MessageHandlerFile getMessageHandlerFile(File outputDirectory) {
+    /*
+     * Lazily initialized
+     */
+    if (file == null)
+      file = new MessageHandlerFile(outputDirectory);
+
+    return file;
+  }
+
+  /**
+   * Warms up the e-mail handler, see EMailWarmUp, and marks the service as ready afterwards, e.g. before a readiness probe lets traffic
+   * in. The service is marked as ready even if parts of the warm-up failed, since the e-mails can be sent anyway, just slower at first.
+   * 
+   * @param warmUp The warm-up of the handler returned by getMessageHandlerEMail().
+   * @return What was warmed up, and what failed.
+   */
+  public WarmUpReport warmUp(EMailWarmUp warmUp) {
+    WarmUpReport report = warmUp.run();
+    setReady();
+    return report;
+  }
+
+  /**
+   * Marks the service as ready to take traffic, without warming it up.
+   */
+  public void setReady() {
+    ready.countDown();
+  }
+
+  /**
+   * Tells if the service is warmed up and ready to take traffic, e.g. for a readiness probe.
+   * 
+   * @return True, if the service is ready.
+   */
+  public boolean isReady() {
+    return ready.getCount() == 0;
+  }
+
+  /**
+   * Waits until the service is warmed up and ready to take traffic.
+   * 
+   * @param timeout How long to wait at most.
+   * @param unit The unit of the timeout.
+   * @return True, if the service is ready, false if the timeout passed first.
+   * @throws InterruptedException Thrown if interrupted while waiting.
+   */
+  public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+    return ready.await(timeout, unit);
+  }
+
+  /**
+   * Shuts down the message handlers created so far, see PipelineMessageHandler.shutdown(), e.g. before a deploy. The handlers share the
+   * deadline, and the service isn't ready anymore from now on. The getters create new handlers afterwards, which send the journaled
+   * messages with resume(), e.g. getMessageHandlerEMail(...).resume(new File(journalDirectory, CourierService.JOURNAL_EMAIL)).
+   * 
+   * @param timeout How long to wait for the queued and in-flight messages to be sent.
+   * @param unit The unit of the timeout.
+   * @param journalDirectory The directory to write the unsent messages to, or null.
+   * @throws InterruptedException Thrown if interrupted while waiting for the messages.
+   * @throws IOException Thrown if a journal couldn't be written or a handler's resources couldn't be released.
+   */
+  public synchronized void shutdown(long timeout, TimeUnit unit, File journalDirectory) throws InterruptedException, IOException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    ready = new CountDownLatch(1);
+
+    if (email != null) {
+      email.shutdown(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS, journalDirectory != null ? new File(journalDirectory,
+          JOURNAL_EMAIL) : null);
+      email = null;
+    }
+    if (file != null) {
+      file.shutdown(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS, journalDirectory != null ? new File(journalDirectory,
+          JOURNAL_FILE) : null);
+      file = null;
+    }
+  }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.archive;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A message in the MessageArchive: when it was archived, to whom it went and where it is stored. Read the message itself with
+ * MessageArchive.read().
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class ArchiveEntry {
+  private final long timestamp;
+  private final List<String> recipients;
+  private final String messageId;
+  private final int length;
+
+  /**
+   * Where the message record is: the number of the segment, the offset of its block in the segment and its offset in the block.
+   */
+  final int segment;
+  final long blockOffset;
+  final int offset;
+
+  ArchiveEntry(long timestamp, List<String> recipients, String messageId, int length, int segment, long blockOffset, int offset) {
+    this.timestamp = timestamp;
+    this.recipients = recipients;
+    this.messageId = messageId;
+    this.length = length;
+    this.segment = segment;
+    this.blockOffset = blockOffset;
+    this.offset = offset;
+  }
+
+  /**
+   * When the message was archived.
+   * 
+   * @return The time in milliseconds since the epoch.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * The recipients of the message, e.g. the addresses of To, Cc and Bcc of an e-mail.
+   * 
+   * @return The recipients.
+   */
+  public List<String> getRecipients() {
+    return recipients;
+  }
+
+  /**
+   * The ID of the message, e.g. the Message-ID header of an e-mail.
+   * 
+   * @return The message ID or null, if the message didn't have one.
+   */
+  public String getMessageId() {
+    return messageId;
+  }
+
+  /**
+   * The length of the message as it was archived, before deduplication and compression.
+   * 
+   * @return The length in bytes.
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return new Date(timestamp) + " " + recipients + " " + messageId + " (" + length + " bytes)";
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.util.CRLFOutputStream;
+
+import de.jaide.courier.delivery.DeliveryEvent;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageStage;
+import de.jaide.courier.pipeline.NamedThreadFactory;
+
+/**
+ * Keeps a copy of every e-mail that was sent in a MessageArchive. Installed after the transport stage, so only e-mails the server accepted
+ * are archived.<br/>
+ * The stage only queues the message, a daemon thread of its own serializes it and appends it to the archive, and writes the current block
+ * whenever the queue runs empty. Unlike the sinks of the DeliveryTracker nothing is dropped: if the archive can't keep up, sending waits
+ * until there is room in the queue again. Messages that couldn't be archived are counted, they don't fail the message, which was already
+ * sent.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class ArchivingStage implements MessageStage {
+  /**
+   * The name of this stage.
+   */
+  public static final String STAGE_ARCHIVE = "archive";
+
+  /**
+   * The number of messages waiting for the archive, at most.
+   */
+  public static final int QUEUE_CAPACITY = 1000;
+
+  /**
+   * Tells the archiver to stop.
+   */
+  private static final Item CLOSE = new Item(0, null);
+
+  private final MessageArchive archive;
+  private final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+  private final Thread archiver;
+
+  private final AtomicLong archived = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private volatile Exception lastFailure;
+
+  /**
+   * The messages queued and those the archiver is done with, guarded by the queue, to wait for in flush().
+   */
+  private long queued;
+  private long done;
+  private volatile boolean closed;
+
+  /**
+   * Creates a new stage and starts its archiver.
+   * 
+   * @param archive The archive to append the messages to.
+   */
+  public ArchivingStage(MessageArchive archive) {
+    this.archive = archive;
+    this.archiver = new NamedThreadFactory("courier-archive").newThread(new Runnable() {
+      public void run() {
+        archive();
+      }
+    });
+    archiver.start();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#getName()
+   */
+  public String getName() {
+    return STAGE_ARCHIVE;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  public void process(MessageContext context) throws CourierException {
+    if (closed)
+      throw new CourierException("The archive in '" + archive.getDirectory() + "' is closed.");
+
+    Item item = new Item(System.currentTimeMillis(), (MimeMessage) context.getEncodedMessage());
+    item.messageId = (String) context.getAttribute(DeliveryEvent.ATTRIBUTE_MESSAGE_ID);
+    synchronized (queue) {
+      queued++;
+    }
+    try {
+      queue.put(item);
+    } catch (InterruptedException ie) {
+      synchronized (queue) {
+        queued--;
+        queue.notifyAll();
+      }
+      Thread.currentThread().interrupt();
+      throw new CourierException(ie);
+    }
+  }
+
+  private void archive() {
+    MessageBuffer buffer = new MessageBuffer();
+    while (true) {
+      Item item = queue.poll();
+      try {
+        if (item == null) {
+          flushArchive();
+          item = queue.take();
+        }
+      } catch (InterruptedException ie) {
+        return;
+      }
+      if (item == CLOSE)
+        return;
+
+      try {
+        buffer.reset();
+        item.message.writeTo(new CRLFOutputStream(buffer));
+        String messageId = item.messageId != null ? item.messageId : item.message.getMessageID();
+        archive.append(item.timestamp, getRecipients(item.message), messageId, buffer.getBuffer(), buffer.size());
+        archived.incrementAndGet();
+      } catch (Exception e) {
+        failures.incrementAndGet();
+        lastFailure = e;
+      } finally {
+        synchronized (queue) {
+          done++;
+          queue.notifyAll();
+        }
+      }
+    }
+  }
+
+  private void flushArchive() {
+    try {
+      archive.flush();
+    } catch (IOException ioe) {
+      failures.incrementAndGet();
+      lastFailure = ioe;
+    }
+  }
+
+  private static List<String> getRecipients(MimeMessage message) throws Exception {
+    List<String> recipients = new ArrayList<String>();
+    Address[] addresses = message.getAllRecipients();
+    if (addresses != null) {
+      for (Address address : addresses)
+        recipients.add(address instanceof InternetAddress ? ((InternetAddress) address).getAddress() : address.toString());
+    }
+    return recipients;
+  }
+
+  /**
+   * Waits until all queued messages are in the archive and can be found there.
+   * 
+   * @throws InterruptedException Thrown if interrupted while waiting.
+   * @throws IOException Thrown if the current block couldn't be written.
+   */
+  public void flush() throws InterruptedException, IOException {
+    synchronized (queue) {
+      while (done < queued)
+        queue.wait();
+    }
+    archive.flush();
+  }
+
+  /**
+   * Archives the queued messages, stops the archiver and closes the archive.
+   * 
+   * @throws InterruptedException Thrown if interrupted while waiting for the archiver.
+   * @throws IOException Thrown if the archive couldn't be closed.
+   */
+  public void close() throws InterruptedException, IOException {
+    closed = true;
+    queue.put(CLOSE);
+    archiver.join();
+    archive.close();
+  }
+
+  /**
+   * The archive the messages go to.
+   * 
+   * @return The archive.
+   */
+  public MessageArchive getArchive() {
+    return archive;
+  }
+
+  /**
+   * The number of messages archived so far.
+   * 
+   * @return The number of messages.
+   */
+  public long getArchived() {
+    return archived.get();
+  }
+
+  /**
+   * The number of messages that couldn't be archived, and of blocks that couldn't be written.
+   * 
+   * @return The number of failures.
+   */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * The exception the last failure came with.
+   * 
+   * @return The exception or null, if nothing failed yet.
+   */
+  public Exception getLastFailure() {
+    return lastFailure;
+  }
+
+  /**
+   * A sent message waiting to be archived.
+   */
+  private static class Item {
+    final long timestamp;
+    final MimeMessage message;
+    String messageId;
+
+    Item(long timestamp, MimeMessage message) {
+      this.timestamp = timestamp;
+      this.message = message;
+    }
+  }
+
+  /**
+   * Hands out its buffer, so the message isn't copied before it is archived.
+   */
+  private static class MessageBuffer extends ByteArrayOutputStream {
+    MessageBuffer() {
+      super(64 * 1024);
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+}
@@ -0,0 +1,870 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.archive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * An append-only archive of sent messages, e.g. to keep a copy of every e-mail for compliance, that takes a fraction of the disk space and
+ * I/O of a file per message:
+ * <ul>
+ * <li>The messages are appended to segment files of about 64 MB, "segment-000001.log" and so on, in blocks of about 64 KB that are
+ * compressed as a whole, so similar messages sent one after the other compress well.</li>
+ * <li>Each message is cut into pieces at its MIME boundaries. Pieces of 1 KB and more, e.g. an attachment or a rendered body, are stored
+ * once under their SHA-1 digest and only referred to by the messages repeating them, even across segments and restarts.</li>
+ * <li>An index file next to each segment lists the messages with their recipients, time and Message-ID, and the shared pieces. Only the
+ * time range of each segment is kept in memory, besides the index of the current segment and of a few recently searched ones; the
+ * indexes of the segments within the time range searched are read as needed, so messages are found without touching the segments.</li>
+ * </ul>
+ * Messages are written in blocks, so they can only be found and read once their block was written, i.e. when it is full or on flush().
+ * Each start continues with a new segment, a segment cut short by a crash is still read up to its last complete block. Instances are
+ * thread-safe, but appending is meant for a single thread, e.g. the one of the ArchivingStage.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class MessageArchive {
+  /**
+   * The size segments are started anew at.
+   */
+  public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+  /**
+   * The size blocks are compressed and written at, before compression.
+   */
+  public static final int BLOCK_BYTES = 64 * 1024;
+
+  /**
+   * Pieces of a message at least this long are stored once and shared, shorter ones are stored with the message.
+   */
+  public static final int MINIMUM_SHARED_BYTES = 1024;
+
+  /**
+   * The number of shared pieces remembered for deduplication. Pieces that weren't seen for longer are stored anew when they come up again.
+   */
+  public static final int DEFAULT_SHARED_PIECES = 100000;
+
+  /**
+   * The first bytes of every segment and index file, "CARC".
+   */
+  private static final int MAGIC = 0x43415243;
+
+  /**
+   * The version of the file format. Version 1 wrote the number of recipients in the index as an unsigned short; both are read.
+   */
+  private static final int VERSION = 2;
+
+  private static final Pattern SEGMENT_FILENAME = Pattern.compile("segment-(\\d+)\\.(?:log|idx)");
+
+  /**
+   * The records in a block and the kinds of pieces of a message record.
+   */
+  private static final byte RECORD_PIECE = 1;
+  private static final byte RECORD_MESSAGE = 2;
+  private static final byte PIECE_INLINE = 0;
+  private static final byte PIECE_SHARED = 1;
+
+  /**
+   * The entries of an index file.
+   */
+  private static final byte INDEX_PIECE = 1;
+  private static final byte INDEX_MESSAGE = 2;
+
+  private static final int CACHED_BLOCKS = 16;
+  private static final int CACHED_SEGMENTS = 4;
+
+  private final File directory;
+  private final long segmentBytes;
+
+  /**
+   * The segments, oldest first, with the index of the current one and of the most recently searched ones.
+   */
+  private final List<Segment> segments = new ArrayList<Segment>();
+  private SegmentIndex currentIndex;
+  private final Map<Integer, SegmentIndex> segmentIndexes = new LinkedHashMap<Integer, SegmentIndex>(CACHED_SEGMENTS, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, SegmentIndex> eldest) {
+      return size() > CACHED_SEGMENTS;
+    }
+  };
+  private long deduplicatedBytes;
+
+  /**
+   * The most recently used shared pieces, by their digest.
+   */
+  private final Map<PieceKey, Location> pieces;
+
+  /**
+   * The segment appended to.
+   */
+  private int segment;
+  private FileOutputStream logFile;
+  private DataOutputStream log;
+  private long logLength;
+  private FileOutputStream indexFile;
+  private DataOutputStream index;
+
+  /**
+   * The block not written yet, and the index entries of its records.
+   */
+  private final BlockBuffer block = new BlockBuffer();
+  private final DataOutputStream blockOut = new DataOutputStream(block);
+  private final List<ArchiveEntry> pendingEntries = new ArrayList<ArchiveEntry>();
+  private final Map<PieceKey, Location> pendingPieces = new LinkedHashMap<PieceKey, Location>();
+
+  private final Deflater deflater = new Deflater();
+  private final MessageDigest digest;
+  private final Map<String, byte[]> blockCache = new LinkedHashMap<String, byte[]>(CACHED_BLOCKS, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+      return size() > CACHED_BLOCKS;
+    }
+  };
+
+  private boolean closed;
+
+  /**
+   * Opens the archive in the given directory with the default limits, creating it if needed.
+   * 
+   * @param directory The directory of the segments.
+   * @throws IOException Thrown if the directory couldn't be created or an index couldn't be read.
+   */
+  public MessageArchive(File directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_SHARED_PIECES);
+  }
+
+  /**
+   * Opens the archive in the given directory, creating it if needed. The indexes of the existing segments are read for their time ranges
+   * and shared pieces, new messages go to a new segment.
+   * 
+   * @param directory The directory of the segments.
+   * @param segmentBytes The size segments are started anew at.
+   * @param sharedPieces The number of shared pieces remembered for deduplication.
+   * @throws IOException Thrown if the directory couldn't be created or an index couldn't be read.
+   */
+  public MessageArchive(File directory, long segmentBytes, final int sharedPieces) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.pieces = new LinkedHashMap<PieceKey, Location>(1024, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<PieceKey, Location> eldest) {
+        return size() > sharedPieces;
+      }
+    };
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new IllegalStateException("SHA-1 isn't available.", nsae);
+    }
+
+    FileUtils.forceMkdir(directory);
+    int lastSegment = 0;
+    for (int number : listSegments()) {
+      File file = getFile(number, "idx");
+      if (file.isFile()) {
+        Segment summary = new Segment(number);
+        readIndex(number, file, summary, null);
+        segments.add(summary);
+      }
+      lastSegment = number;
+    }
+    openSegment(lastSegment + 1);
+  }
+
+  /**
+   * Appends a message. It can be found and read once its block was written, when the block is full or on flush().
+   * 
+   * @param timestamp When the message was sent, in milliseconds since the epoch.
+   * @param recipients The recipients of the message.
+   * @param messageId The ID of the message, e.g. the Message-ID header of an e-mail. May be null.
+   * @param message The message, e.g. an e-mail in the RFC 822 format.
+   * @param length The length of the message, which takes up the start of the message array.
+   * @throws IOException Thrown if the block couldn't be written.
+   */
+  public synchronized void append(long timestamp, List<String> recipients, String messageId, byte[] message, int length) throws IOException {
+    if (closed)
+      throw new IOException("The archive in '" + directory + "' is closed.");
+
+    /*
+     * Store the long pieces that weren't seen lately first, then the message, referring to them.
+     */
+    List<Object> parts = new ArrayList<Object>();
+    int inlineStart = -1;
+    for (int[] piece : split(message, length)) {
+      int pieceLength = piece[1] - piece[0];
+      if (pieceLength < MINIMUM_SHARED_BYTES) {
+        if (inlineStart < 0)
+          inlineStart = piece[0];
+        continue;
+      }
+
+      if (inlineStart >= 0)
+        parts.add(new int[] { inlineStart, piece[0] });
+      inlineStart = -1;
+      parts.add(share(message, piece[0], pieceLength));
+    }
+    if (inlineStart >= 0)
+      parts.add(new int[] { inlineStart, length });
+
+    int offset = block.size();
+    blockOut.writeByte(RECORD_MESSAGE);
+    blockOut.writeInt(parts.size());
+    for (Object part : parts) {
+      if (part instanceof Location) {
+        Location location = (Location) part;
+        blockOut.writeByte(PIECE_SHARED);
+        blockOut.writeInt(location.segment);
+        blockOut.writeLong(location.blockOffset);
+        blockOut.writeInt(location.offset);
+      } else {
+        int[] range = (int[]) part;
+        blockOut.writeByte(PIECE_INLINE);
+        blockOut.writeInt(range[1] - range[0]);
+        blockOut.write(message, range[0], range[1] - range[0]);
+      }
+    }
+
+    pendingEntries.add(new ArchiveEntry(timestamp, Collections.unmodifiableList(new ArrayList<String>(recipients)), messageId, length,
+        segment, logLength, offset));
+    if (block.size() >= BLOCK_BYTES)
+      writeBlock();
+  }
+
+  /**
+   * Returns where the given piece is stored, storing it in the current block if it wasn't seen lately.
+   */
+  private Location share(byte[] message, int start, int length) throws IOException {
+    digest.update(message, start, length);
+    PieceKey key = new PieceKey(digest.digest());
+    Location location = pieces.get(key);
+    if (location != null) {
+      deduplicatedBytes += length;
+      return location;
+    }
+
+    location = new Location(segment, logLength, block.size());
+    blockOut.writeByte(RECORD_PIECE);
+    blockOut.writeInt(length);
+    blockOut.write(message, start, length);
+    pieces.put(key, location);
+    pendingPieces.put(key, location);
+    return location;
+  }
+
+  /**
+   * Cuts a message into pieces at its MIME boundaries, i.e. at the lines starting with "--". Each such line is a piece of its own, since
+   * the boundaries differ from message to message while the parts between them may not.
+   */
+  private static List<int[]> split(byte[] message, int length) {
+    List<int[]> pieces = new ArrayList<int[]>();
+    int start = 0;
+    int lineStart = 0;
+    while (lineStart < length) {
+      int lineEnd = lineStart;
+      while ((lineEnd < length) && (message[lineEnd++] != '\n'))
+        ;
+
+      if ((lineEnd - lineStart >= 2) && (message[lineStart] == '-') && (message[lineStart + 1] == '-')) {
+        if (lineStart > start)
+          pieces.add(new int[] { start, lineStart });
+        pieces.add(new int[] { lineStart, lineEnd });
+        start = lineEnd;
+      }
+      lineStart = lineEnd;
+    }
+    if (start < length)
+      pieces.add(new int[] { start, length });
+    return pieces;
+  }
+
+  /**
+   * Writes the current block, even if it isn't full yet, so its messages can be found and read.
+   * 
+   * @throws IOException Thrown if the block couldn't be written.
+   */
+  public synchronized void flush() throws IOException {
+    if (!closed)
+      writeBlock();
+  }
+
+  private void writeBlock() throws IOException {
+    if (block.size() == 0)
+      return;
+
+    try {
+      CRC32 crc = new CRC32();
+      crc.update(block.getBuffer(), 0, block.size());
+      byte[] compressed = compress(block.getBuffer(), block.size());
+      log.writeInt(block.size());
+      log.writeInt(compressed.length);
+      log.writeInt((int) crc.getValue());
+      log.write(compressed);
+      log.flush();
+      logLength += 12 + compressed.length;
+
+      for (Map.Entry<PieceKey, Location> piece : pendingPieces.entrySet()) {
+        index.writeByte(INDEX_PIECE);
+        index.write(piece.getKey().digest);
+        index.writeLong(piece.getValue().blockOffset);
+        index.writeInt(piece.getValue().offset);
+      }
+      for (ArchiveEntry entry : pendingEntries) {
+        index.writeByte(INDEX_MESSAGE);
+        index.writeLong(entry.getTimestamp());
+        writeString(index, entry.getMessageId());
+        index.writeInt(entry.getRecipients().size());
+        for (String recipient : entry.getRecipients())
+          index.writeUTF(recipient);
+        index.writeInt(entry.getLength());
+        index.writeLong(entry.blockOffset);
+        index.writeInt(entry.offset);
+      }
+      index.flush();
+
+      Segment current = segments.get(segments.size() - 1);
+      for (ArchiveEntry entry : pendingEntries) {
+        current.add(entry);
+        currentIndex.add(entry);
+      }
+    } catch (IOException ioe) {
+      /*
+       * The block is lost, the segment may end with a part of it. Forget its pieces and go on with a new segment.
+       */
+      for (PieceKey key : pendingPieces.keySet())
+        pieces.remove(key);
+      pendingPieces.clear();
+      pendingEntries.clear();
+      block.reset();
+      closeSegment();
+      openSegment(segment + 1);
+      throw ioe;
+    }
+
+    pendingPieces.clear();
+    pendingEntries.clear();
+    block.reset();
+    if (logLength >= segmentBytes) {
+      closeSegment();
+      openSegment(segment + 1);
+    }
+  }
+
+  private byte[] compress(byte[] data, int length) {
+    deflater.reset();
+    deflater.setInput(data, 0, length);
+    deflater.finish();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+    byte[] buffer = new byte[8192];
+    while (!deflater.finished()) {
+      int count = deflater.deflate(buffer);
+      compressed.write(buffer, 0, count);
+    }
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Reads a message.
+   * 
+   * @param entry The entry of the message, as found by one of the find methods.
+   * @return The message, exactly as it was appended.
+   * @throws IOException Thrown if the message couldn't be read or its segment is damaged.
+   */
+  public synchronized byte[] read(ArchiveEntry entry) throws IOException {
+    byte[] data = readBlock(entry.segment, entry.blockOffset);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, entry.offset, data.length - entry.offset));
+    if (in.readByte() != RECORD_MESSAGE)
+      throw new IOException("The archive segment " + getFile(entry.segment, "log") + " is damaged.");
+
+    ByteArrayOutputStream message = new ByteArrayOutputStream(entry.getLength());
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      if (in.readByte() == PIECE_INLINE) {
+        byte[] piece = new byte[in.readInt()];
+        in.readFully(piece);
+        message.write(piece);
+      } else {
+        int pieceSegment = in.readInt();
+        long pieceBlockOffset = in.readLong();
+        int pieceOffset = in.readInt();
+        byte[] pieceData = readBlock(pieceSegment, pieceBlockOffset);
+        DataInputStream pieceIn = new DataInputStream(new ByteArrayInputStream(pieceData, pieceOffset, pieceData.length - pieceOffset));
+        if (pieceIn.readByte() != RECORD_PIECE)
+          throw new IOException("The archive segment " + getFile(pieceSegment, "log") + " is damaged.");
+        message.write(pieceData, pieceOffset + 5, pieceIn.readInt());
+      }
+    }
+    return message.toByteArray();
+  }
+
+  /**
+   * Reads an e-mail.
+   * 
+   * @param entry The entry of the e-mail, as found by one of the find methods.
+   * @return The e-mail.
+   * @throws IOException Thrown if the message couldn't be read or its segment is damaged.
+   * @throws MessagingException Thrown if the message isn't an e-mail.
+   */
+  public MimeMessage readMessage(ArchiveEntry entry) throws IOException, MessagingException {
+    return new MimeMessage((Session) null, new ByteArrayInputStream(read(entry)));
+  }
+
+  private byte[] readBlock(int segment, long blockOffset) throws IOException {
+    String key = segment + ":" + blockOffset;
+    byte[] data = blockCache.get(key);
+    if (data != null)
+      return data;
+
+    File file = getFile(segment, "log");
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    byte[] compressed;
+    int length;
+    int checksum;
+    try {
+      in.seek(blockOffset);
+      length = in.readInt();
+      compressed = new byte[in.readInt()];
+      checksum = in.readInt();
+      in.readFully(compressed);
+    } finally {
+      in.close();
+    }
+
+    data = new byte[length];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      if (inflater.inflate(data) != length)
+        throw new IOException("The archive segment " + file + " is damaged.");
+    } catch (DataFormatException dfe) {
+      throw new IOException("The archive segment " + file + " is damaged.", dfe);
+    } finally {
+      inflater.end();
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    if ((int) crc.getValue() != checksum)
+      throw new IOException("The archive segment " + file + " is damaged.");
+
+    blockCache.put(key, data);
+    return data;
+  }
+
+  /**
+   * Finds the messages sent to a recipient. The indexes of the segments within the time range are read as needed.
+   * 
+   * @param recipient The recipient, compared case-insensitively.
+   * @param from The earliest time, in milliseconds since the epoch.
+   * @param to The latest time, in milliseconds since the epoch.
+   * @return The messages, newest first.
+   * @throws IOException Thrown if the index of a segment couldn't be read.
+   */
+  public synchronized List<ArchiveEntry> findByRecipient(String recipient, long from, long to) throws IOException {
+    List<ArchiveEntry> found = new ArrayList<ArchiveEntry>();
+    String key = recipient.toLowerCase(Locale.ENGLISH);
+    for (int s = segments.size() - 1; s >= 0; s--) {
+      Segment summary = segments.get(s);
+      if (!summary.overlaps(from, to))
+        continue;
+
+      List<ArchiveEntry> candidates = getIndex(summary).entriesByRecipient.get(key);
+      if (candidates != null) {
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+          ArchiveEntry entry = candidates.get(i);
+          if ((entry.getTimestamp() >= from) && (entry.getTimestamp() <= to))
+            found.add(entry);
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Finds the messages sent within a time range. The indexes of the segments within the time range are read as needed.
+   * 
+   * @param from The earliest time, in milliseconds since the epoch.
+   * @param to The latest time, in milliseconds since the epoch.
+   * @param limit The number of messages to return at most.
+   * @return The messages, newest first.
+   * @throws IOException Thrown if the index of a segment couldn't be read.
+   */
+  public synchronized List<ArchiveEntry> findByTime(long from, long to, int limit) throws IOException {
+    List<ArchiveEntry> found = new ArrayList<ArchiveEntry>();
+    for (int s = segments.size() - 1; (s >= 0) && (found.size() < limit); s--) {
+      Segment summary = segments.get(s);
+      if (!summary.overlaps(from, to))
+        continue;
+
+      /*
+       * The entries are in the order they were archived, i.e. sorted by time, so the latest one to return is looked up by binary search.
+       */
+      List<ArchiveEntry> entries = getIndex(summary).entries;
+      int low = 0;
+      int high = entries.size();
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (entries.get(middle).getTimestamp() <= to)
+          low = middle + 1;
+        else
+          high = middle;
+      }
+
+      for (int i = low - 1; (i >= 0) && (found.size() < limit); i--) {
+        ArchiveEntry entry = entries.get(i);
+        if (entry.getTimestamp() < from)
+          break;
+        found.add(entry);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Returns the index of the given segment, reading it if it isn't in memory.
+   */
+  private SegmentIndex getIndex(Segment summary) throws IOException {
+    if (summary.number == segment)
+      return currentIndex;
+
+    SegmentIndex segmentIndex = segmentIndexes.get(Integer.valueOf(summary.number));
+    if (segmentIndex == null) {
+      segmentIndex = new SegmentIndex();
+      readIndex(summary.number, getFile(summary.number, "idx"), null, segmentIndex);
+      segmentIndexes.put(Integer.valueOf(summary.number), segmentIndex);
+    }
+    return segmentIndex;
+  }
+
+  /**
+   * Reads the index of a segment: into its summary, together with its shared pieces, when the archive is opened, or into its entries when
+   * it is searched. A crash may have cut off its last entry, which is ignored.
+   */
+  private void readIndex(int number, File file, Segment summary, SegmentIndex segmentIndex) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC)
+        throw new IOException("'" + file + "' is not an archive index.");
+      int version = in.readInt();
+      if ((version < 1) || (version > VERSION))
+        throw new IOException("The archive index '" + file + "' is of the unsupported version " + version + ".");
+
+      int type;
+      while ((type = in.read()) >= 0) {
+        if (type == INDEX_PIECE) {
+          byte[] pieceDigest = new byte[20];
+          in.readFully(pieceDigest);
+          long blockOffset = in.readLong();
+          int offset = in.readInt();
+          if (summary != null)
+            pieces.put(new PieceKey(pieceDigest), new Location(number, blockOffset, offset));
+        } else if (type == INDEX_MESSAGE) {
+          long timestamp = in.readLong();
+          String messageId = readString(in);
+          int count = version == 1 ? in.readUnsignedShort() : in.readInt();
+          if (count < 0)
+            throw new IOException("The archive index '" + file + "' is damaged.");
+          List<String> recipients = new ArrayList<String>(Math.min(count, 16));
+          for (int i = 0; i < count; i++)
+            recipients.add(in.readUTF());
+          int length = in.readInt();
+          long blockOffset = in.readLong();
+          ArchiveEntry entry = new ArchiveEntry(timestamp, Collections.unmodifiableList(recipients), messageId, length, number,
+              blockOffset, in.readInt());
+          if (summary != null)
+            summary.add(entry);
+          if (segmentIndex != null)
+            segmentIndex.add(entry);
+        } else {
+          throw new IOException("The archive index '" + file + "' is damaged.");
+        }
+      }
+    } catch (EOFException eofe) {
+      // The last entry was cut off.
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null)
+      out.writeUTF(value);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private void openSegment(int number) throws IOException {
+    segment = number;
+    segments.add(new Segment(number));
+    currentIndex = new SegmentIndex();
+    logFile = new FileOutputStream(getFile(number, "log"));
+    log = new DataOutputStream(new BufferedOutputStream(logFile, BLOCK_BYTES));
+    log.writeInt(MAGIC);
+    log.writeInt(VERSION);
+    log.flush();
+    logLength = 8;
+
+    indexFile = new FileOutputStream(getFile(number, "idx"));
+    index = new DataOutputStream(new BufferedOutputStream(indexFile));
+    index.writeInt(MAGIC);
+    index.writeInt(VERSION);
+    index.flush();
+  }
+
+  /**
+   * Closes the current segment and its index, making sure both are on disk.
+   */
+  private void closeSegment() {
+    try {
+      log.flush();
+      logFile.getFD().sync();
+      index.flush();
+      indexFile.getFD().sync();
+    } catch (IOException ioe) {
+      // Closed anyway, the index tolerates a cut off entry.
+    } finally {
+      IOUtils.closeQuietly(log);
+      IOUtils.closeQuietly(index);
+    }
+  }
+
+  private List<Integer> listSegments() {
+    List<Integer> numbers = new ArrayList<Integer>();
+    String[] filenames = directory.list();
+    if (filenames != null) {
+      for (String filename : filenames) {
+        Matcher matcher = SEGMENT_FILENAME.matcher(filename);
+        if (matcher.matches() && !numbers.contains(Integer.valueOf(matcher.group(1))))
+          numbers.add(Integer.valueOf(matcher.group(1)));
+      }
+    }
+    Collections.sort(numbers);
+    return numbers;
+  }
+
+  private File getFile(int number, String extension) {
+    return new File(directory, String.format("segment-%06d.%s", number, extension));
+  }
+
+  /**
+   * Writes the current block and closes the archive.
+   * 
+   * @throws IOException Thrown if the block couldn't be written.
+   */
+  public synchronized void close() throws IOException {
+    if (closed)
+      return;
+
+    try {
+      writeBlock();
+    } finally {
+      closed = true;
+      closeSegment();
+      deflater.end();
+    }
+  }
+
+  /**
+   * The number of messages in the archive, including those of earlier runs.
+   * 
+   * @return The number of messages.
+   */
+  public synchronized int getMessages() {
+    int messages = 0;
+    for (Segment summary : segments)
+      messages += summary.messages;
+    return messages;
+  }
+
+  /**
+   * The length of the messages in the archive, including those of earlier runs, before deduplication and compression.
+   * 
+   * @return The length in bytes.
+   */
+  public synchronized long getMessageBytes() {
+    long messageBytes = 0;
+    for (Segment summary : segments)
+      messageBytes += summary.messageBytes;
+    return messageBytes;
+  }
+
+  /**
+   * The length of the pieces that weren't stored again since they were shared with earlier messages, since the archive was opened.
+   * 
+   * @return The length in bytes.
+   */
+  public synchronized long getDeduplicatedBytes() {
+    return deduplicatedBytes;
+  }
+
+  /**
+   * The size of the segment files on disk.
+   * 
+   * @return The size in bytes.
+   */
+  public long getStoredBytes() {
+    long bytes = 0;
+    for (int number : listSegments())
+      bytes += getFile(number, "log").length();
+    return bytes;
+  }
+
+  /**
+   * The directory of the segments.
+   * 
+   * @return The directory.
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * What is kept in memory of every segment: the time range and size of its messages.
+   */
+  private static class Segment {
+    final int number;
+    long firstTimestamp = Long.MAX_VALUE;
+    long lastTimestamp = Long.MIN_VALUE;
+    int messages;
+    long messageBytes;
+
+    Segment(int number) {
+      this.number = number;
+    }
+
+    void add(ArchiveEntry entry) {
+      firstTimestamp = Math.min(firstTimestamp, entry.getTimestamp());
+      lastTimestamp = Math.max(lastTimestamp, entry.getTimestamp());
+      messages++;
+      messageBytes += entry.getLength();
+    }
+
+    boolean overlaps(long from, long to) {
+      return (messages > 0) && (firstTimestamp <= to) && (lastTimestamp >= from);
+    }
+  }
+
+  /**
+   * The messages of a segment, in the order they were archived, and by their lower case recipients.
+   */
+  private static class SegmentIndex {
+    final List<ArchiveEntry> entries = new ArrayList<ArchiveEntry>();
+    final Map<String, List<ArchiveEntry>> entriesByRecipient = new HashMap<String, List<ArchiveEntry>>();
+
+    void add(ArchiveEntry entry) {
+      entries.add(entry);
+      for (String recipient : entry.getRecipients()) {
+        String key = recipient.toLowerCase(Locale.ENGLISH);
+        List<ArchiveEntry> recipientEntries = entriesByRecipient.get(key);
+        if (recipientEntries == null) {
+          recipientEntries = new ArrayList<ArchiveEntry>(2);
+          entriesByRecipient.put(key, recipientEntries);
+        }
+        recipientEntries.add(entry);
+      }
+    }
+  }
+
+  /**
+   * Where a record is stored.
+   */
+  private static class Location {
+    final int segment;
+    final long blockOffset;
+    final int offset;
+
+    Location(int segment, long blockOffset, int offset) {
+      this.segment = segment;
+      this.blockOffset = blockOffset;
+      this.offset = offset;
+    }
+  }
+
+  /**
+   * The digest of a shared piece.
+   */
+  private static class PieceKey {
+    final byte[] digest;
+
+    PieceKey(byte[] digest) {
+      this.digest = digest;
+    }
+
+    @Override
+    public int hashCode() {
+      return ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16) | ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return (o instanceof PieceKey) && Arrays.equals(digest, ((PieceKey) o).digest);
+    }
+  }
+
+  /**
+   * Hands out its buffer, so the block isn't copied before it is compressed.
+   */
+  private static class BlockBuffer extends ByteArrayOutputStream {
+    BlockBuffer() {
+      super(2 * BLOCK_BYTES);
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.bulk;
+
+/**
+ * The outcome of a bulk send.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class BulkResult {
+  private final long read;
+  private final long sent;
+  private final long failed;
+  private final long elapsedMillis;
+  private final boolean cancelled;
+
+  BulkResult(long read, long sent, long failed, long elapsedMillis, boolean cancelled) {
+    this.read = read;
+    this.sent = sent;
+    this.failed = failed;
+    this.elapsedMillis = elapsedMillis;
+    this.cancelled = cancelled;
+  }
+
+  /**
+   * The number of recipients read.
+   * 
+   * @return The number of recipients.
+   */
+  public long getRead() {
+    return read;
+  }
+
+  /**
+   * The number of messages sent.
+   * 
+   * @return The number of messages sent.
+   */
+  public long getSent() {
+    return sent;
+  }
+
+  /**
+   * The number of messages that failed.
+   * 
+   * @return The number of failed messages.
+   */
+  public long getFailed() {
+    return failed;
+  }
+
+  /**
+   * How long the bulk send took.
+   * 
+   * @return The time in milliseconds.
+   */
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  /**
+   * True, if the bulk send was cancelled before all recipients were read.
+   * 
+   * @return True, if the bulk send was cancelled.
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return "read=" + read + ", sent=" + sent + ", failed=" + failed + ", elapsedMillis=" + elapsedMillis + (cancelled ? ", cancelled" : "");
+  }
+}
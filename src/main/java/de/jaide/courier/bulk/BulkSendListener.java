@@ -0,0 +1,46 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.bulk;
+
+import java.util.Map;
+
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.pipeline.MessageContext;
+
+/**
+ * Is told about each message of a bulk send. Called concurrently by the sending threads.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public interface BulkSendListener {
+
+  /**
+   * Called after a message was sent.
+   * 
+   * @param row The position of the recipient in the input.
+   * @param context The state of the message after the last stage.
+   */
+  void onSent(long row, MessageContext context);
+
+  /**
+   * Called after a message failed.
+   * 
+   * @param row The position of the recipient in the input.
+   * @param recipient The values read for the recipient.
+   * @param exception Why the message failed.
+   */
+  void onFailed(long row, Map<String, Object> recipient, CourierException exception);
+}
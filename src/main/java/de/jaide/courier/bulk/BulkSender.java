@@ -0,0 +1,188 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.bulk;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.NamedThreadFactory;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+
+/**
+ * Sends a message to every recipient of a RecipientReader, on a number of threads, with memory bounded by the number of messages in
+ * flight rather than by the number of recipients:
+ * 
+ * <pre>
+ * BulkSender sender = new BulkSender(handler, 8);
+ * BulkResult result = sender.send(new CsvRecipientReader(new InputStreamReader(in, &quot;UTF-8&quot;)), defaults);
+ * </pre>
+ * 
+ * The recipients are read on the calling thread, which blocks whenever the window of messages in flight is full, so a slow SMTP server
+ * slows down reading instead of piling up recipients in memory. Each recipient is turned into the mapped parameters of its message by the
+ * RecipientMapper right before it's sent; by default its values are added to the parameters shared by all messages.<br/>
+ * A failed message doesn't stop the bulk send, it's counted and reported to the BulkSendListener, if any.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class BulkSender {
+  /**
+   * Adds the values of the recipient to the shared parameters.
+   */
+  private static final RecipientMapper MERGING_MAPPER = new RecipientMapper() {
+    public Map<String, Object> map(Map<String, Object> recipient, Map<String, Object> defaults) {
+      Map<String, Object> parameters = new HashMap<String, Object>(defaults);
+      parameters.putAll(recipient);
+      return parameters;
+    }
+  };
+
+  private final PipelineMessageHandler handler;
+  private final int threads;
+  private final int window;
+  private volatile RecipientMapper recipientMapper = MERGING_MAPPER;
+  private volatile BulkSendListener listener;
+  private volatile boolean cancelled;
+
+  /**
+   * Creates a new bulk sender, allowing four messages in flight per thread.
+   * 
+   * @param handler The handler sending the messages.
+   * @param threads The number of threads sending messages.
+   */
+  public BulkSender(PipelineMessageHandler handler, int threads) {
+    this(handler, threads, threads * 4);
+  }
+
+  /**
+   * Creates a new bulk sender.
+   * 
+   * @param handler The handler sending the messages.
+   * @param threads The number of threads sending messages.
+   * @param window The maximum number of messages read but not yet sent, including those being sent. At least the number of threads.
+   */
+  public BulkSender(PipelineMessageHandler handler, int threads, int window) {
+    if ((threads < 1) || (window < threads))
+      throw new IllegalArgumentException("There needs to be at least one thread, and a window at least as big as the number of threads.");
+
+    this.handler = handler;
+    this.threads = threads;
+    this.window = window;
+  }
+
+  /**
+   * Sets how the recipients are turned into the mapped parameters of their messages.
+   * 
+   * @param recipientMapper The mapper. Adds the values of the recipient to the shared parameters, if null.
+   */
+  public void setRecipientMapper(RecipientMapper recipientMapper) {
+    this.recipientMapper = recipientMapper == null ? MERGING_MAPPER : recipientMapper;
+  }
+
+  /**
+   * Sets who is told about each message.
+   * 
+   * @param listener The listener or null.
+   */
+  public void setListener(BulkSendListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Stops reading recipients. The messages already read are still sent.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Sends a message to every recipient, waiting until all of them were sent. The reader is closed afterwards.
+   * 
+   * @param reader Where the recipients come from.
+   * @param defaults The parameters shared by all messages, e.g. the template name and the SMTP configuration.
+   * @return The outcome of the bulk send.
+   * @throws IOException Thrown if the recipients couldn't be read. The messages already read were sent by then.
+   * @throws InterruptedException Thrown if interrupted while waiting for the window to open up. The messages already read are still sent.
+   */
+  public BulkResult send(RecipientReader reader, Map<String, Object> defaults) throws IOException, InterruptedException {
+    final Map<String, Object> sharedDefaults = Collections.unmodifiableMap(new HashMap<String, Object>(defaults));
+    final Semaphore inFlight = new Semaphore(window);
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    long read = 0;
+    long start = System.currentTimeMillis();
+    cancelled = false;
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("courier-bulk"));
+    try {
+      Map<String, Object> recipient;
+      while (!cancelled && ((recipient = reader.next()) != null)) {
+        inFlight.acquire();
+        read++;
+        executor.execute(new Delivery(reader.getRow(), recipient, sharedDefaults, inFlight, sent, failed));
+      }
+    } finally {
+      executor.shutdown();
+      inFlight.acquireUninterruptibly(window);
+      reader.close();
+    }
+
+    return new BulkResult(read, sent.get(), failed.get(), System.currentTimeMillis() - start, cancelled);
+  }
+
+  /**
+   * Sends the message of a single recipient.
+   */
+  private class Delivery implements Runnable {
+    private final long row;
+    private final Map<String, Object> recipient;
+    private final Map<String, Object> defaults;
+    private final Semaphore inFlight;
+    private final AtomicLong sent;
+    private final AtomicLong failed;
+
+    Delivery(long row, Map<String, Object> recipient, Map<String, Object> defaults, Semaphore inFlight, AtomicLong sent, AtomicLong failed) {
+      this.row = row;
+      this.recipient = recipient;
+      this.defaults = defaults;
+      this.inFlight = inFlight;
+      this.sent = sent;
+      this.failed = failed;
+    }
+
+    public void run() {
+      try {
+        MessageContext context = handler.process(recipientMapper.map(recipient, defaults));
+        sent.incrementAndGet();
+        if (listener != null)
+          listener.onSent(row, context);
+      } catch (RuntimeException re) {
+        failed.incrementAndGet();
+        if (listener != null)
+          listener.onFailed(row, recipient, re instanceof CourierException ? (CourierException) re : new CourierException(re));
+      } finally {
+        inFlight.release();
+      }
+    }
+  }
+}
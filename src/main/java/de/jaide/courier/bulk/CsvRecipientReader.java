@@ -0,0 +1,210 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.bulk;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads recipients from CSV (RFC 4180), one recipient per record. The first record names the columns, and the values of each recipient
+ * are handed out by these names, e.g. "recipientEMail", as strings. Values may be quoted, quoted values may contain separators, line
+ * breaks and doubled quotes. Missing trailing values are empty strings, values without a column name are ignored.<br/>
+ * The input is read in blocks, so only the current record is held in memory.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class CsvRecipientReader implements RecipientReader {
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Reader reader;
+  private final char separator;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int position;
+  private int limit;
+  private boolean endOfInput;
+
+  private final StringBuilder value = new StringBuilder();
+  private final List<String> values = new ArrayList<String>();
+  private String[] columns;
+  private long row;
+  private long line = 1;
+
+  /**
+   * Creates a new reader for comma separated values.
+   * 
+   * @param reader The reader to read the CSV from. Needn't be buffered.
+   */
+  public CsvRecipientReader(Reader reader) {
+    this(reader, ',');
+  }
+
+  /**
+   * Creates a new reader.
+   * 
+   * @param reader The reader to read the CSV from. Needn't be buffered.
+   * @param separator The character separating the values, e.g. ',' or ';'.
+   */
+  public CsvRecipientReader(Reader reader, char separator) {
+    if ((separator == '"') || (separator == '\r') || (separator == '\n'))
+      throw new IllegalArgumentException("The separator may not be a quote or a line break.");
+
+    this.reader = reader;
+    this.separator = separator;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.bulk.RecipientReader#next()
+   */
+  public Map<String, Object> next() throws IOException {
+    if (columns == null) {
+      if (!readRecord())
+        return null;
+      columns = values.toArray(new String[values.size()]);
+    }
+
+    if (!readRecord())
+      return null;
+    row++;
+
+    Map<String, Object> recipient = new HashMap<String, Object>(columns.length * 2);
+    for (int i = 0; i < columns.length; i++)
+      recipient.put(columns[i], i < values.size() ? values.get(i) : "");
+    return recipient;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.bulk.RecipientReader#getRow()
+   */
+  public long getRow() {
+    return row;
+  }
+
+  /**
+   * The names of the columns, as given by the first record.
+   * 
+   * @return The column names or null, if no record was read yet.
+   */
+  public String[] getColumns() {
+    return columns == null ? null : columns.clone();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Closeable#close()
+   */
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  /**
+   * Reads the values of the next record that isn't empty.
+   * 
+   * @return False, if the end of the input was reached.
+   */
+  private boolean readRecord() throws IOException {
+    do {
+      values.clear();
+      if (!readValues())
+        return false;
+    } while ((values.size() == 1) && (values.get(0).length() == 0));
+    return true;
+  }
+
+  /**
+   * Reads the values up to the end of the record.
+   * 
+   * @return False, if there was nothing left to read.
+   */
+  private boolean readValues() throws IOException {
+    int c = read();
+    if (c == -1)
+      return false;
+
+    while (true) {
+      value.setLength(0);
+      if (c == '"') {
+        long startLine = line;
+        while (true) {
+          c = read();
+          if (c == -1)
+            throw new IOException("Unterminated quoted value starting at line " + startLine + ".");
+          if (c == '"') {
+            c = read();
+            if (c != '"')
+              break;
+          }
+          value.append((char) c);
+        }
+        if ((c != separator) && (c != '\r') && (c != '\n') && (c != -1))
+          throw new IOException("Unexpected character '" + (char) c + "' after a quoted value at line " + line + ".");
+      } else {
+        while ((c != separator) && (c != '\r') && (c != '\n') && (c != -1)) {
+          value.append((char) c);
+          c = read();
+        }
+      }
+      values.add(value.toString());
+
+      if (c == separator) {
+        c = read();
+        continue;
+      }
+      if (c == '\r') {
+        if (peek() == '\n')
+          read();
+      }
+      return true;
+    }
+  }
+
+  private int read() throws IOException {
+    if ((position == limit) && !fill())
+      return -1;
+    char c = buffer[position++];
+    if (c == '\n')
+      line++;
+    return c;
+  }
+
+  private int peek() throws IOException {
+    if ((position == limit) && !fill())
+      return -1;
+    return buffer[position];
+  }
+
+  private boolean fill() throws IOException {
+    if (endOfInput)
+      return false;
+
+    position = 0;
+    limit = reader.read(buffer, 0, buffer.length);
+    if (limit <= 0) {
+      limit = 0;
+      endOfInput = true;
+      return false;
+    }
+    return true;
+  }
+}
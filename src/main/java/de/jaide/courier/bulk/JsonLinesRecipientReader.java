@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.bulk;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.jaide.courier.json.JsonTokenizer;
+import de.jaide.courier.json.JsonTokenizer.Token;
+
+/**
+ * Reads recipients from JSON lines, one JSON object per recipient. Strings, booleans and nulls are handed out as they are, integers as
+ * Longs, other numbers as Doubles and nested objects and arrays as maps and lists, so the templates may e.g. list the recipient's orders.
+ * <br/>
+ * The input is tokenized as it is read, so only the current recipient is held in memory.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class JsonLinesRecipientReader implements RecipientReader {
+  private final JsonTokenizer tokenizer;
+  private long row;
+
+  /**
+   * Creates a new reader.
+   * 
+   * @param reader The reader to read the JSON lines from. Needn't be buffered.
+   */
+  public JsonLinesRecipientReader(Reader reader) {
+    this.tokenizer = new JsonTokenizer(reader);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.bulk.RecipientReader#next()
+   */
+  public Map<String, Object> next() throws IOException {
+    if (!tokenizer.nextDocument())
+      return null;
+    row++;
+
+    if (tokenizer.next() != Token.BEGIN_OBJECT)
+      throw tokenizer.syntaxError("Expected an object per recipient but found " + tokenizer.getToken());
+    Map<String, Object> recipient = new HashMap<String, Object>();
+    readObject(recipient);
+    return recipient;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.bulk.RecipientReader#getRow()
+   */
+  public long getRow() {
+    return row;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Closeable#close()
+   */
+  public void close() throws IOException {
+    tokenizer.close();
+  }
+
+  /**
+   * Reads the members of an object, the BEGIN_OBJECT token already consumed.
+   */
+  private void readObject(Map<String, Object> object) throws IOException {
+    while (tokenizer.next() == Token.NAME) {
+      String name = tokenizer.getString();
+      object.put(name, readValue(tokenizer.next()));
+    }
+  }
+
+  private Object readValue(Token token) throws IOException {
+    switch (token) {
+    case STRING:
+      return tokenizer.getString();
+    case NUMBER:
+      String number = tokenizer.getString();
+      if ((number.indexOf('.') == -1) && (number.indexOf('e') == -1) && (number.indexOf('E') == -1))
+        try {
+          return Long.valueOf(number);
+        } catch (NumberFormatException nfe) {
+          // Too big for a long.
+        }
+      return Double.valueOf(number);
+    case BOOLEAN:
+      return tokenizer.getBoolean();
+    case NULL:
+      return null;
+    case BEGIN_OBJECT:
+      Map<String, Object> object = new LinkedHashMap<String, Object>();
+      readObject(object);
+      return object;
+    case BEGIN_ARRAY:
+      List<Object> array = new ArrayList<Object>();
+      Token element;
+      while ((element = tokenizer.next()) != Token.END_ARRAY)
+        array.add(readValue(element));
+      return array;
+    default:
+      throw tokenizer.syntaxError("Unexpected " + token);
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.bulk;
+
+import java.util.Map;
+
+/**
+ * Turns a recipient read by a RecipientReader into the mapped parameters of its message. Called on the thread that sends the message,
+ * right before it's sent, so only the messages currently in flight are held in memory.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public interface RecipientMapper {
+
+  /**
+   * Creates the mapped parameters of a recipient's message.
+   * 
+   * @param recipient The values read for the recipient.
+   * @param defaults The parameters shared by all messages of the bulk send, e.g. the template name. Must not be modified.
+   * @return The mapped parameters of the message.
+   */
+  Map<String, Object> map(Map<String, Object> recipient, Map<String, Object> defaults);
+}
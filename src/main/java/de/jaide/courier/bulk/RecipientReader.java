@@ -0,0 +1,44 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.bulk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads the recipients of a bulk send one at a time, e.g. from a CSV or JSON lines file, so lists of any length can be sent without
+ * holding them in memory.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public interface RecipientReader extends Closeable {
+
+  /**
+   * Reads the next recipient.
+   * 
+   * @return The values of the recipient, by name, or null if there are no more recipients.
+   * @throws IOException Thrown if the recipients couldn't be read or aren't valid.
+   */
+  Map<String, Object> next() throws IOException;
+
+  /**
+   * The position of the recipient last read, for error messages.
+   * 
+   * @return The row or line number, starting at 1.
+   */
+  long getRow();
+}
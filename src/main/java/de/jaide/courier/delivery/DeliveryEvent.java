@@ -0,0 +1,190 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.delivery;
+
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What became of a single message: whether it was accepted, deferred or failed, to whom it went, which template it was rendered from, how
+ * long it took and what the server replied.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class DeliveryEvent {
+  /**
+   * The MessageContext attributes the transport stages store what the server replied in.
+   */
+  public static final String ATTRIBUTE_SERVER_REPLY = "delivery.serverReply";
+  public static final String ATTRIBUTE_QUEUE_ID = "delivery.queueId";
+  public static final String ATTRIBUTE_MESSAGE_ID = "delivery.messageId";
+
+  /**
+   * The queue ID in replies to DATA, e.g. "250 2.0.0 Ok: queued as 4F1A2B3C" (Postfix) or "250 OK id=1Xyz9A-0001Bc-7D" (Exim).
+   */
+  private static final Pattern QUEUE_ID = Pattern.compile("(?:queued as|id=)\\s*([A-Za-z0-9][A-Za-z0-9\\-.]*)", Pattern.CASE_INSENSITIVE);
+
+  private final long timestamp;
+  private final DeliveryStatus status;
+  private final String recipient;
+  private final String templateName;
+  private final String messageId;
+  private final String queueId;
+  private final String serverReply;
+  private final String error;
+  private final long elapsedNanos;
+  private final long transportNanos;
+
+  /**
+   * Creates a new event.
+   * 
+   * @param timestamp When the message was done with, in milliseconds since the epoch.
+   * @param status What became of the message.
+   * @param recipient The recipient, e.g. the e-mail address. May be null.
+   * @param templateName The name of the template. May be null.
+   * @param messageId The ID of the message, e.g. the Message-ID header of an e-mail. May be null.
+   * @param queueId The ID the server queued the message under, if it told. May be null.
+   * @param serverReply The last reply of the server, e.g. "250 2.0.0 Ok: queued as 4F1A2B3C". May be null.
+   * @param error The description of the error, if the message wasn't accepted.
+   * @param elapsedNanos The time the whole pipeline took.
+   * @param transportNanos The time the transport stage took, 0 if it wasn't reached.
+   */
+  public DeliveryEvent(long timestamp, DeliveryStatus status, String recipient, String templateName, String messageId, String queueId,
+      String serverReply, String error, long elapsedNanos, long transportNanos) {
+    this.timestamp = timestamp;
+    this.status = status;
+    this.recipient = recipient;
+    this.templateName = templateName;
+    this.messageId = messageId;
+    this.queueId = queueId;
+    this.serverReply = serverReply;
+    this.error = error;
+    this.elapsedNanos = elapsedNanos;
+    this.transportNanos = transportNanos;
+  }
+
+  /**
+   * When the message was done with.
+   * 
+   * @return The time in milliseconds since the epoch.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * What became of the message.
+   * 
+   * @return The status.
+   */
+  public DeliveryStatus getStatus() {
+    return status;
+  }
+
+  /**
+   * The recipient, e.g. the e-mail address.
+   * 
+   * @return The recipient or null, if the handler doesn't know one.
+   */
+  public String getRecipient() {
+    return recipient;
+  }
+
+  /**
+   * The name of the template the message was rendered from.
+   * 
+   * @return The template name or null, if the message failed before that was known.
+   */
+  public String getTemplateName() {
+    return templateName;
+  }
+
+  /**
+   * The ID of the message, e.g. the Message-ID header of an e-mail.
+   * 
+   * @return The message ID or null.
+   */
+  public String getMessageId() {
+    return messageId;
+  }
+
+  /**
+   * The ID the server queued the message under, for looking it up in the server's logs.
+   * 
+   * @return The queue ID or null, if the server didn't tell.
+   */
+  public String getQueueId() {
+    return queueId;
+  }
+
+  /**
+   * The last reply of the server.
+   * 
+   * @return The server reply or null, if there was no server or it wasn't reached.
+   */
+  public String getServerReply() {
+    return serverReply;
+  }
+
+  /**
+   * The description of the error.
+   * 
+   * @return The error or null, if the message was accepted.
+   */
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * The time the whole pipeline took, from validating the parameters to handing the message over.
+   * 
+   * @return The time in nanoseconds.
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * Returns the queue ID a server mentions in its reply to a message, e.g. "4F1A2B3C" of "250 2.0.0 Ok: queued as 4F1A2B3C".
+   * 
+   * @param serverReply The reply of the server. May be null.
+   * @return The queue ID or null, if the reply doesn't mention one.
+   */
+  public static String parseQueueId(String serverReply) {
+    if (serverReply == null)
+      return null;
+
+    Matcher matcher = QUEUE_ID.matcher(serverReply);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  /**
+   * The time the transport stage took, e.g. talking to the SMTP server.
+   * 
+   * @return The time in nanoseconds, 0 if the message failed before the transport stage.
+   */
+  public long getTransportNanos() {
+    return transportNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%tFT%<tT.%<tL %s recipient=%s, template=%s, queueId=%s, elapsedMicros=%d, transportMicros=%d, reply=%s%s",
+        new Date(timestamp), status, recipient, templateName, queueId, elapsedNanos / 1000, transportNanos / 1000, serverReply,
+        error == null ? "" : ", error=" + error);
+  }
+}
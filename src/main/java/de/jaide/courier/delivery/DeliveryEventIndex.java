@@ -0,0 +1,276 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.delivery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps the most recent delivery events in memory and finds them by recipient, template, status and time range.<br/>
+ * The events are kept in a ring buffer, so memory stays constant and adding an event is a matter of storing a reference. The ring is
+ * divided into buckets of BUCKET_SIZE consecutive events, each of which knows the time range of its events and has a small Bloom filter
+ * of their recipients and templates. Queries skip all buckets that can't contain a match and only look at the events of the others. Once
+ * the ring is full the oldest bucket is dropped as a whole, so between capacity - BUCKET_SIZE and capacity events can be found.<br/>
+ * Recipients are compared ignoring case, as e-mail addresses are.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class DeliveryEventIndex {
+  /**
+   * The number of events per bucket.
+   */
+  public static final int BUCKET_SIZE = 256;
+
+  /**
+   * The sizes of the Bloom filters per bucket, in longs. Recipients mostly differ from message to message, templates hardly ever.
+   */
+  private static final int RECIPIENT_FILTER_LONGS = 32;
+  private static final int TEMPLATE_FILTER_LONGS = 4;
+
+  private final DeliveryEvent[] events;
+  private final Bucket[] buckets;
+
+  /**
+   * The number of events added so far.
+   */
+  private long added;
+  private final long[] statusCounts = new long[DeliveryStatus.values().length];
+
+  /**
+   * Creates a new index.
+   * 
+   * @param capacity The number of events to keep at most, rounded up to a multiple of BUCKET_SIZE.
+   */
+  public DeliveryEventIndex(int capacity) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("The capacity needs to be positive.");
+
+    int bucketCount = Math.max(2, (capacity + BUCKET_SIZE - 1) / BUCKET_SIZE);
+    events = new DeliveryEvent[bucketCount * BUCKET_SIZE];
+    buckets = new Bucket[bucketCount];
+    for (int i = 0; i < bucketCount; i++)
+      buckets[i] = new Bucket();
+  }
+
+  /**
+   * Adds an event, dropping the oldest bucket of events if the index is full.
+   * 
+   * @param event The event to add.
+   */
+  public synchronized void add(DeliveryEvent event) {
+    int slot = (int) (added % events.length);
+    Bucket bucket = buckets[slot / BUCKET_SIZE];
+    if (slot % BUCKET_SIZE == 0)
+      bucket.clear();
+
+    events[slot] = event;
+    bucket.add(event);
+    statusCounts[event.getStatus().ordinal()]++;
+    added++;
+  }
+
+  /**
+   * Finds the events of the given recipient.
+   * 
+   * @param recipient The recipient, e.g. the e-mail address.
+   * @param fromMillis The earliest timestamp, inclusive.
+   * @param toMillis The latest timestamp, inclusive.
+   * @return The matching events, newest first.
+   */
+  public List<DeliveryEvent> findByRecipient(String recipient, long fromMillis, long toMillis) {
+    return find(recipient, null, null, fromMillis, toMillis, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Finds the events of messages rendered from the given template.
+   * 
+   * @param templateName The name of the template.
+   * @param fromMillis The earliest timestamp, inclusive.
+   * @param toMillis The latest timestamp, inclusive.
+   * @return The matching events, newest first.
+   */
+  public List<DeliveryEvent> findByTemplate(String templateName, long fromMillis, long toMillis) {
+    return find(null, templateName, null, fromMillis, toMillis, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Finds the events matching all of the given criteria.
+   * 
+   * @param recipient The recipient, e.g. the e-mail address, null for any.
+   * @param templateName The name of the template, null for any.
+   * @param status The status, null for any.
+   * @param fromMillis The earliest timestamp, inclusive.
+   * @param toMillis The latest timestamp, inclusive.
+   * @param limit The maximum number of events to return.
+   * @return The matching events, newest first.
+   */
+  public List<DeliveryEvent> find(String recipient, String templateName, DeliveryStatus status, long fromMillis, long toMillis, int limit) {
+    String normalizedRecipient = recipient == null ? null : normalize(recipient);
+    int recipientHash = recipient == null ? 0 : mix(normalizedRecipient.hashCode());
+    int templateHash = templateName == null ? 0 : mix(templateName.hashCode());
+
+    /*
+     * Only the candidate buckets are copied while holding the lock, the events themselves are compared afterwards, so queries hardly
+     * hold up the threads adding events.
+     */
+    List<DeliveryEvent[]> candidates = new ArrayList<DeliveryEvent[]>();
+    synchronized (this) {
+      if (added == 0)
+        return new ArrayList<DeliveryEvent>();
+
+      int newest = (int) ((added - 1) % events.length) / BUCKET_SIZE;
+      for (int i = 0; i < buckets.length; i++) {
+        int index = (newest - i + buckets.length) % buckets.length;
+        Bucket bucket = buckets[index];
+        if ((bucket.size == 0) || (bucket.maximumTimestamp < fromMillis) || (bucket.minimumTimestamp > toMillis))
+          continue;
+        if ((recipient != null) && !Bucket.mightContain(bucket.recipients, recipientHash))
+          continue;
+        if ((templateName != null) && !Bucket.mightContain(bucket.templates, templateHash))
+          continue;
+
+        candidates.add(Arrays.copyOfRange(events, index * BUCKET_SIZE, index * BUCKET_SIZE + bucket.size));
+      }
+    }
+
+    List<DeliveryEvent> result = new ArrayList<DeliveryEvent>();
+    for (DeliveryEvent[] bucketEvents : candidates) {
+      for (int i = bucketEvents.length - 1; i >= 0; i--) {
+        DeliveryEvent event = bucketEvents[i];
+        if ((event.getTimestamp() < fromMillis) || (event.getTimestamp() > toMillis))
+          continue;
+        if ((status != null) && (event.getStatus() != status))
+          continue;
+        if ((templateName != null) && !templateName.equals(event.getTemplateName()))
+          continue;
+        if ((recipient != null) && !recipient.equalsIgnoreCase(event.getRecipient()))
+          continue;
+
+        result.add(event);
+        if (result.size() >= limit)
+          return result;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * The number of events that can currently be found.
+   * 
+   * @return The number of events.
+   */
+  public synchronized int size() {
+    int size = 0;
+    for (Bucket bucket : buckets)
+      size += bucket.size;
+    return size;
+  }
+
+  /**
+   * The number of events the index keeps at most.
+   * 
+   * @return The capacity.
+   */
+  public int getCapacity() {
+    return events.length;
+  }
+
+  /**
+   * The number of events added so far, including those that were dropped since.
+   * 
+   * @return The total number of events.
+   */
+  public synchronized long getAdded() {
+    return added;
+  }
+
+  /**
+   * The number of events of the given status added so far, including those that were dropped since.
+   * 
+   * @param status The status.
+   * @return The number of events.
+   */
+  public synchronized long getCount(DeliveryStatus status) {
+    return statusCounts[status.ordinal()];
+  }
+
+  private static String normalize(String recipient) {
+    return recipient.toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+   * Spreads the bits of a hash code, so similar strings set different filter bits.
+   */
+  private static int mix(int hash) {
+    hash *= 0x9e3779b9;
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * The time range and the Bloom filters of a bucket of events.
+   */
+  private static class Bucket {
+    private int size;
+    private long minimumTimestamp;
+    private long maximumTimestamp;
+    private final long[] recipients = new long[RECIPIENT_FILTER_LONGS];
+    private final long[] templates = new long[TEMPLATE_FILTER_LONGS];
+
+    void clear() {
+      size = 0;
+      Arrays.fill(recipients, 0);
+      Arrays.fill(templates, 0);
+    }
+
+    void add(DeliveryEvent event) {
+      long timestamp = event.getTimestamp();
+      if (size == 0) {
+        minimumTimestamp = timestamp;
+        maximumTimestamp = timestamp;
+      } else {
+        minimumTimestamp = Math.min(minimumTimestamp, timestamp);
+        maximumTimestamp = Math.max(maximumTimestamp, timestamp);
+      }
+      size++;
+
+      if (event.getRecipient() != null)
+        set(recipients, mix(normalize(event.getRecipient()).hashCode()));
+      if (event.getTemplateName() != null)
+        set(templates, mix(event.getTemplateName().hashCode()));
+    }
+
+    /**
+     * Sets two bits per hash, one from the lower and one from the upper half of the hash.
+     */
+    static void set(long[] filter, int hash) {
+      int bits = filter.length * 64;
+      int first = (hash & 0xffff) % bits;
+      int second = (hash >>> 16) % bits;
+      filter[first >>> 6] |= 1L << first;
+      filter[second >>> 6] |= 1L << second;
+    }
+
+    static boolean mightContain(long[] filter, int hash) {
+      int bits = filter.length * 64;
+      int first = (hash & 0xffff) % bits;
+      int second = (hash >>> 16) % bits;
+      return ((filter[first >>> 6] & (1L << first)) != 0) && ((filter[second >>> 6] & (1L << second)) != 0);
+    }
+  }
+}
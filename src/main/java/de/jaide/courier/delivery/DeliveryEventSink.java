@@ -0,0 +1,32 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.delivery;
+
+/**
+ * Receives the delivery events of a handler, e.g. to write them to a database or a log file for good.<br/>
+ * Sinks are called on a background thread of the DeliveryTracker, one event after the other, never on the thread sending the message.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public interface DeliveryEventSink {
+
+  /**
+   * Called for each message the handler processed.
+   * 
+   * @param event What became of the message.
+   */
+  public void onEvent(DeliveryEvent event);
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.delivery;
+
+/**
+ * What became of a message.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public enum DeliveryStatus {
+  /**
+   * The message was handed over, e.g. the SMTP server accepted it for delivery.
+   */
+  ACCEPTED,
+
+  /**
+   * The message wasn't handed over for now, but may be retried later on, e.g. since the SMTP server answered with a 4xx reply or too many
+   * messages were already on their way.
+   */
+  DEFERRED,
+
+  /**
+   * The message couldn't be handed over and retrying it won't help, e.g. since a template is broken or the SMTP server rejected it.
+   */
+  FAILED
+}
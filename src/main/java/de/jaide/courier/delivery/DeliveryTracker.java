@@ -0,0 +1,195 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.delivery;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.jaide.courier.exception.AdmissionRejectedException;
+import de.jaide.courier.exception.MessageTimeoutException;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.NamedThreadFactory;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+
+/**
+ * Records a delivery event for each message a handler processed, in an in-memory index and, optionally, in sinks:
+ * 
+ * <pre>
+ * DeliveryTracker tracker = handler.enableDeliveryTracking(100000);
+ * List&lt;DeliveryEvent&gt; events = tracker.getIndex().findByRecipient(&quot;peter@some-domain.tld&quot;, 0, Long.MAX_VALUE);
+ * </pre>
+ * 
+ * Recording an event only adds it to the index and, if there are sinks, to a bounded queue. The sinks are called by a daemon thread of
+ * their own, so a slow sink never slows down sending. If the sinks can't keep up, events are dropped from the queue and counted; they
+ * are still in the index.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class DeliveryTracker {
+  /**
+   * The number of events waiting for the sinks, at most.
+   */
+  public static final int SINK_QUEUE_CAPACITY = 10000;
+
+  private final DeliveryEventIndex index;
+  private final List<DeliveryEventSink> sinks = new CopyOnWriteArrayList<DeliveryEventSink>();
+  private final BlockingQueue<DeliveryEvent> queue = new ArrayBlockingQueue<DeliveryEvent>(SINK_QUEUE_CAPACITY);
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong sinkFailures = new AtomicLong();
+
+  /**
+   * Calls the sinks, started along with the first sink.
+   */
+  private Thread dispatcher;
+
+  /**
+   * Creates a new tracker.
+   * 
+   * @param capacity The number of events to keep in the index at most.
+   */
+  public DeliveryTracker(int capacity) {
+    this.index = new DeliveryEventIndex(capacity);
+  }
+
+  /**
+   * Records the event of a message that ran through the pipeline, successfully or not.<br/>
+   * Messages whose transport stage failed with a 4xx server reply, messages rejected by admission control and messages that ran out of
+   * time are DEFERRED, all other failed ones FAILED.
+   * 
+   * @param context The state of the message.
+   * @param recipient The recipient, e.g. the e-mail address. May be null.
+   * @param transportNanos The time the transport stage took, 0 if it wasn't reached.
+   * @param failure The exception the message failed with, null if it was accepted.
+   * @return The recorded event.
+   */
+  public DeliveryEvent record(MessageContext context, String recipient, long transportNanos, RuntimeException failure) {
+    String serverReply = (String) context.getAttribute(DeliveryEvent.ATTRIBUTE_SERVER_REPLY);
+
+    DeliveryStatus status;
+    if (failure == null)
+      status = DeliveryStatus.ACCEPTED;
+    else if ((failure instanceof AdmissionRejectedException) || (failure instanceof MessageTimeoutException)
+        || ((serverReply != null) && serverReply.startsWith("4")))
+      status = DeliveryStatus.DEFERRED;
+    else
+      status = DeliveryStatus.FAILED;
+
+    String templateName = context.getTemplateName();
+    if (templateName == null)
+      templateName = (String) context.getParameter(PipelineMessageHandler.MAPPING_PARAM_TEMPLATE_NAME);
+
+    DeliveryEvent event = new DeliveryEvent(System.currentTimeMillis(), status, recipient, templateName, (String) context
+        .getAttribute(DeliveryEvent.ATTRIBUTE_MESSAGE_ID), (String) context.getAttribute(DeliveryEvent.ATTRIBUTE_QUEUE_ID), serverReply,
+        failure == null ? null : failure.getMessage(), System.nanoTime() - context.getStartNanos(), transportNanos);
+    record(event);
+    return event;
+  }
+
+  /**
+   * Records an event, e.g. one reported by the server later on.
+   * 
+   * @param event The event.
+   */
+  public void record(DeliveryEvent event) {
+    index.add(event);
+    if (!sinks.isEmpty() && !queue.offer(event))
+      dropped.incrementAndGet();
+  }
+
+  /**
+   * Adds a sink, which receives all events recorded from now on.
+   * 
+   * @param sink The sink.
+   */
+  public synchronized void addSink(DeliveryEventSink sink) {
+    sinks.add(sink);
+    if (dispatcher == null) {
+      dispatcher = new NamedThreadFactory("courier-delivery").newThread(new Runnable() {
+        public void run() {
+          dispatch();
+        }
+      });
+      dispatcher.start();
+    }
+  }
+
+  /**
+   * Removes a sink.
+   * 
+   * @param sink The sink.
+   */
+  public void removeSink(DeliveryEventSink sink) {
+    sinks.remove(sink);
+  }
+
+  /**
+   * The index of the recent events.
+   * 
+   * @return The index.
+   */
+  public DeliveryEventIndex getIndex() {
+    return index;
+  }
+
+  /**
+   * The number of events the sinks didn't get, since they couldn't keep up.
+   * 
+   * @return The number of dropped events.
+   */
+  public long getDroppedEvents() {
+    return dropped.get();
+  }
+
+  /**
+   * The number of times a sink threw an exception.
+   * 
+   * @return The number of sink failures.
+   */
+  public long getSinkFailures() {
+    return sinkFailures.get();
+  }
+
+  /**
+   * The number of events waiting for the sinks.
+   * 
+   * @return The number of queued events.
+   */
+  public int getQueuedEvents() {
+    return queue.size();
+  }
+
+  private void dispatch() {
+    while (true) {
+      DeliveryEvent event;
+      try {
+        event = queue.take();
+      } catch (InterruptedException ie) {
+        return;
+      }
+
+      for (DeliveryEventSink sink : sinks) {
+        try {
+          sink.onEvent(event);
+        } catch (RuntimeException re) {
+          sinkFailures.incrementAndGet();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.net.IDN;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.jaide.courier.exception.InvalidRecipientException;
+
+/**
+ * Checks e-mail addresses against the mailbox syntax of RFC 5321 and brings them into a normal form: surrounding white-space removed, the
+ * domain in lower case and internationalized domain names converted to their ASCII form (IDNA), e.g. "Peter@B&uuml;cher.DE" becomes
+ * "Peter@xn--bcher-kva.de". The local part is kept as it is, it may be case-sensitive.<br/>
+ * The local part is a dot-atom or a quoted string of ASCII characters, local parts with other characters would need SMTPUTF8. The domain
+ * is a host name with at least two labels or an IPv4 address literal, e.g. "[192.168.0.1]".<br/>
+ * The verdict about each domain is cached, so most addresses are checked by a single pass over the local part and a lookup. Override
+ * verifyDomain() to check domains beyond their syntax, e.g. by looking up their MX records; its verdicts are cached as well.<br/>
+ * Instances are thread-safe.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class AddressNormalizer {
+  /**
+   * The number of domains whose verdict is cached by default.
+   */
+  public static final int DEFAULT_DOMAIN_CACHE_SIZE = 10000;
+
+  private static final int MAX_LOCAL_PART_LENGTH = 64;
+  private static final int MAX_DOMAIN_LENGTH = 253;
+  private static final int MAX_LABEL_LENGTH = 63;
+  private static final int MAX_ADDRESS_LENGTH = 254;
+
+  /**
+   * The characters of a dot-atom besides letters and digits.
+   */
+  private static final String ATEXT = "!#$%&'*+-/=?^_`{|}~";
+
+  /**
+   * Marks invalid domains in the cache. Compared by identity.
+   */
+  private static final String INVALID_DOMAIN = new String("invalid");
+
+  private final int domainCacheSize;
+
+  /**
+   * The ASCII form of each domain seen, or INVALID_DOMAIN, by the domain as given.
+   */
+  private final ConcurrentMap<String, String> domains = new ConcurrentHashMap<String, String>();
+
+  /**
+   * Creates a new normalizer caching the verdicts about DEFAULT_DOMAIN_CACHE_SIZE domains.
+   */
+  public AddressNormalizer() {
+    this(DEFAULT_DOMAIN_CACHE_SIZE);
+  }
+
+  /**
+   * Creates a new normalizer.
+   * 
+   * @param domainCacheSize The number of domains whose verdict is cached. Once that many are cached, the cache starts over.
+   */
+  public AddressNormalizer(int domainCacheSize) {
+    this.domainCacheSize = domainCacheSize;
+  }
+
+  /**
+   * Checks an address and returns its normal form.
+   * 
+   * @param address The address, e.g. " peter.miller@Some-Domain.tld".
+   * @return The normal form of the address, e.g. "peter.miller@some-domain.tld". The given string itself, if it is in normal form
+   *         already.
+   * @throws InvalidRecipientException Thrown if the address is malformed or its domain is invalid.
+   */
+  public String normalize(String address) throws InvalidRecipientException {
+    if (address == null)
+      throw new InvalidRecipientException(null, "No address was given.", false);
+
+    int start = 0;
+    int end = address.length();
+    while ((start < end) && Character.isWhitespace(address.charAt(start)))
+      start++;
+    while ((end > start) && Character.isWhitespace(address.charAt(end - 1)))
+      end--;
+
+    int at = address.lastIndexOf('@', end - 1);
+    if (at < start)
+      throw new InvalidRecipientException(address, "The '@' is missing.", false);
+
+    String reason = checkLocalPart(address, start, at);
+    if (reason != null)
+      throw new InvalidRecipientException(address, reason, false);
+
+    String domain = address.substring(at + 1, end);
+    String asciiDomain = getDomain(domain);
+    if (asciiDomain == INVALID_DOMAIN)
+      throw new InvalidRecipientException(address, "The domain '" + domain + "' is invalid.", false);
+    if (at - start + 1 + asciiDomain.length() > MAX_ADDRESS_LENGTH)
+      throw new InvalidRecipientException(address, "The address is longer than " + MAX_ADDRESS_LENGTH + " characters.", false);
+
+    if ((start == 0) && (end == address.length()) && (asciiDomain.equals(domain)))
+      return address;
+    return new StringBuilder(at - start + 1 + asciiDomain.length()).append(address, start, at + 1).append(asciiDomain).toString();
+  }
+
+  /**
+   * Checks a domain that is syntactically valid beyond its syntax, e.g. by looking up its MX records. Called once per domain, as long as
+   * the verdict is cached.
+   * 
+   * @param domain The ASCII form of the domain in lower case, e.g. "xn--bcher-kva.de".
+   * @return True, if e-mails may be sent to the domain. Always true by default.
+   */
+  protected boolean verifyDomain(String domain) {
+    return true;
+  }
+
+  /**
+   * The number of domains whose verdict is currently cached.
+   * 
+   * @return The number of domains.
+   */
+  public int getCachedDomains() {
+    return domains.size();
+  }
+
+  /**
+   * Returns the ASCII form of the domain or INVALID_DOMAIN, from the cache if possible.
+   */
+  private String getDomain(String domain) {
+    String verdict = domains.get(domain);
+    if (verdict == null) {
+      verdict = checkDomain(domain);
+      if (verdict != INVALID_DOMAIN)
+        verdict = verifyDomain(verdict) ? verdict : INVALID_DOMAIN;
+
+      if (domains.size() >= domainCacheSize)
+        domains.clear();
+      domains.put(domain, verdict);
+    }
+    return verdict;
+  }
+
+  /**
+   * Returns the reason the local part between start and end is invalid, or null if it is valid.
+   */
+  private static String checkLocalPart(String address, int start, int end) {
+    if (start == end)
+      return "The local part is empty.";
+    if (end - start > MAX_LOCAL_PART_LENGTH)
+      return "The local part is longer than " + MAX_LOCAL_PART_LENGTH + " characters.";
+
+    if (address.charAt(start) == '"') {
+      if ((end - start < 2) || (address.charAt(end - 1) != '"'))
+        return "The quoted local part isn't closed.";
+      for (int i = start + 1; i < end - 1; i++) {
+        char c = address.charAt(i);
+        if (c == '\\')
+          c = ++i < end - 1 ? address.charAt(i) : 0;
+        else if (c == '"')
+          return "The quoted local part contains an unescaped '\"'.";
+        if ((c < 32) || (c > 126))
+          return "The local part contains characters other than printable ASCII.";
+      }
+      return null;
+    }
+
+    for (int i = start; i < end; i++) {
+      char c = address.charAt(i);
+      if (c == '.') {
+        if ((i == start) || (i == end - 1) || (address.charAt(i - 1) == '.'))
+          return "The local part contains a misplaced '.'.";
+      } else if (c > 127) {
+        return "The local part contains characters other than ASCII.";
+      } else if (!(((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9')) || (ATEXT.indexOf(c) >= 0))) {
+        return "The local part contains the character '" + c + "'.";
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the ASCII form of the domain in lower case, or INVALID_DOMAIN if it isn't a valid host name or address literal.
+   */
+  private static String checkDomain(String domain) {
+    if (domain.startsWith("["))
+      return isIpv4Literal(domain) ? domain : INVALID_DOMAIN;
+
+    String asciiDomain = domain.toLowerCase(Locale.ENGLISH);
+    for (int i = 0; i < asciiDomain.length(); i++) {
+      if (asciiDomain.charAt(i) > 127) {
+        try {
+          asciiDomain = IDN.toASCII(asciiDomain).toLowerCase(Locale.ENGLISH);
+        } catch (IllegalArgumentException iae) {
+          return INVALID_DOMAIN;
+        }
+        break;
+      }
+    }
+
+    if ((asciiDomain.length() == 0) || (asciiDomain.length() > MAX_DOMAIN_LENGTH))
+      return INVALID_DOMAIN;
+
+    int labels = 0;
+    boolean numericLabel = true;
+    int labelStart = 0;
+    for (int i = 0; i <= asciiDomain.length(); i++) {
+      char c = i < asciiDomain.length() ? asciiDomain.charAt(i) : '.';
+      if (c == '.') {
+        int length = i - labelStart;
+        if ((length == 0) || (length > MAX_LABEL_LENGTH) || (asciiDomain.charAt(labelStart) == '-') || (asciiDomain.charAt(i - 1) == '-'))
+          return INVALID_DOMAIN;
+        labels++;
+        labelStart = i + 1;
+        if (i < asciiDomain.length())
+          numericLabel = true;
+      } else if ((c >= '0') && (c <= '9')) {
+        continue;
+      } else if (((c >= 'a') && (c <= 'z')) || (c == '-')) {
+        numericLabel = false;
+      } else {
+        return INVALID_DOMAIN;
+      }
+    }
+
+    /*
+     * A single label isn't reachable from the internet, and an all-numeric top level domain is a mistyped IP address.
+     */
+    if ((labels < 2) || numericLabel)
+      return INVALID_DOMAIN;
+    return asciiDomain.equals(domain) ? domain : asciiDomain;
+  }
+
+  private static boolean isIpv4Literal(String domain) {
+    if (!domain.endsWith("]"))
+      return false;
+
+    String[] octets = domain.substring(1, domain.length() - 1).split("\\.", -1);
+    if (octets.length != 4)
+      return false;
+    for (String octet : octets) {
+      if ((octet.length() == 0) || (octet.length() > 3))
+        return false;
+      for (int i = 0; i < octet.length(); i++)
+        if ((octet.charAt(i) < '0') || (octet.charAt(i) > '9'))
+          return false;
+      if (Integer.parseInt(octet) > 255)
+        return false;
+    }
+    return true;
+  }
+}
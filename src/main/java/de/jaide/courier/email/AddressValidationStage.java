@@ -0,0 +1,187 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.exception.InvalidRecipientException;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageStage;
+
+/**
+ * Checks the recipient and CC addresses of each e-mail before its templates are rendered, and rejects malformed ones and those on the
+ * suppression list with an InvalidRecipientException. The normal forms of the addresses are stored as attributes of the context, which the
+ * MIME assembly stage sends to instead of the addresses as given.
+ * 
+ * @see MessageHandlerEMail#enableAddressValidation()
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class AddressValidationStage implements MessageStage {
+  /**
+   * The name of this stage, which runs right after the validate stage.
+   */
+  public static final String STAGE_ADDRESS = "address";
+
+  /**
+   * The names of the context attributes holding the normal forms of the recipient and CC addresses.
+   */
+  public static final String ATTRIBUTE_RECIPIENT = "email.recipient";
+  public static final String ATTRIBUTE_CC_RECIPIENT = "email.ccRecipient";
+
+  private final AddressNormalizer normalizer;
+  private final SuppressionList suppressionList;
+
+  private final AtomicLong invalid = new AtomicLong();
+  private final AtomicLong suppressed = new AtomicLong();
+
+  /**
+   * Creates a new address validation stage with a default normalizer and an empty suppression list.
+   */
+  public AddressValidationStage() {
+    this(new AddressNormalizer(), new SuppressionList());
+  }
+
+  /**
+   * Creates a new address validation stage.
+   * 
+   * @param normalizer Checks and normalizes the addresses, e.g. one verifying the domains.
+   * @param suppressionList The addresses no e-mails may be sent to.
+   */
+  public AddressValidationStage(AddressNormalizer normalizer, SuppressionList suppressionList) {
+    this.normalizer = normalizer;
+    this.suppressionList = suppressionList;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#getName()
+   */
+  public String getName() {
+    return STAGE_ADDRESS;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  public void process(MessageContext context) throws CourierException {
+    context.setAttribute(ATTRIBUTE_RECIPIENT, check((String) context.getParameter(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL)));
+
+    String ccRecipient = (String) context.getParameter(MessageHandlerEMail.MAPPING_PARAM_CC_RECIPIENT_EMAIL);
+    if (ccRecipient != null)
+      context.setAttribute(ATTRIBUTE_CC_RECIPIENT, check(ccRecipient));
+  }
+
+  private String check(String address) throws InvalidRecipientException {
+    String normalized;
+    try {
+      normalized = normalizer.normalize(address);
+    } catch (InvalidRecipientException ire) {
+      invalid.incrementAndGet();
+      throw ire;
+    }
+
+    if (suppressionList.contains(normalized)) {
+      suppressed.incrementAndGet();
+      throw new InvalidRecipientException(address, "The address is on the suppression list.", true);
+    }
+    return normalized;
+  }
+
+  /**
+   * Adds an address to the suppression list, in its normal form.
+   * 
+   * @param address The address.
+   * @return True, if the address wasn't on the list yet.
+   * @throws InvalidRecipientException Thrown if the address is malformed.
+   */
+  public boolean suppress(String address) throws InvalidRecipientException {
+    return suppressionList.add(normalizer.normalize(address));
+  }
+
+  /**
+   * Adds the addresses read from a text file with one address per line to the suppression list. Empty lines, lines starting with '#' and
+   * malformed addresses are skipped.
+   * 
+   * @param reader The reader of the file. Closed afterwards.
+   * @return The number of addresses added.
+   * @throws IOException Thrown if the file couldn't be read.
+   */
+  public int loadSuppressionList(Reader reader) throws IOException {
+    BufferedReader lines = new BufferedReader(reader);
+    int added = 0;
+    try {
+      String line;
+      while ((line = lines.readLine()) != null) {
+        line = line.trim();
+        if ((line.length() == 0) || line.startsWith("#"))
+          continue;
+
+        try {
+          if (suppress(line))
+            added++;
+        } catch (InvalidRecipientException ire) {
+          continue;
+        }
+      }
+    } finally {
+      lines.close();
+    }
+    return added;
+  }
+
+  /**
+   * Checks and normalizes the addresses.
+   * 
+   * @return The normalizer.
+   */
+  public AddressNormalizer getNormalizer() {
+    return normalizer;
+  }
+
+  /**
+   * The addresses no e-mails may be sent to.
+   * 
+   * @return The suppression list.
+   */
+  public SuppressionList getSuppressionList() {
+    return suppressionList;
+  }
+
+  /**
+   * The number of e-mails rejected since an address was malformed.
+   * 
+   * @return The number of e-mails.
+   */
+  public long getInvalid() {
+    return invalid.get();
+  }
+
+  /**
+   * The number of e-mails rejected since an address was on the suppression list.
+   * 
+   * @return The number of e-mails.
+   */
+  public long getSuppressed() {
+    return suppressed.get();
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recently used SMTP configurations of another source in memory, at most a given number of them.<br/>
+ * The cache is split into segments by the hash of the configuration name, each an LRU map guarded by its own lock, so concurrent lookups
+ * of different configurations rarely wait for each other. Configurations are loaded outside of the locks. Names the source doesn't know
+ * are cached as well, so messages for an unknown configuration don't hit the source every time.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class CachingSmtpConfigurationSource implements SmtpConfigurationSource {
+  private static final int SEGMENTS = 16;
+
+  /**
+   * Stands in for names the source doesn't know.
+   */
+  private static final SmtpConfiguration MISSING = new SmtpConfiguration();
+
+  private final SmtpConfigurationSource source;
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a new cache.
+   * 
+   * @param source The source to load the SMTP configurations from.
+   * @param maximumSize The maximum number of SMTP configurations to keep in memory.
+   */
+  public CachingSmtpConfigurationSource(SmtpConfigurationSource source, int maximumSize) {
+    if (maximumSize <= 0)
+      throw new IllegalArgumentException("The maximum size needs to be positive.");
+
+    this.source = source;
+    for (int i = 0; i < SEGMENTS; i++)
+      segments[i] = new Segment((maximumSize + SEGMENTS - 1 - i) / SEGMENTS);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.email.SmtpConfigurationSource#getSmtpConfiguration(java.lang.String)
+   */
+  public SmtpConfiguration getSmtpConfiguration(String configurationName) throws IOException {
+    Segment segment = segmentFor(configurationName);
+
+    SmtpConfiguration smtpConfiguration;
+    synchronized (segment) {
+      smtpConfiguration = segment.get(configurationName);
+    }
+    if (smtpConfiguration != null) {
+      hits.incrementAndGet();
+      return smtpConfiguration == MISSING ? null : smtpConfiguration;
+    }
+
+    misses.incrementAndGet();
+    smtpConfiguration = source.getSmtpConfiguration(configurationName);
+    synchronized (segment) {
+      segment.put(configurationName, smtpConfiguration == null ? MISSING : smtpConfiguration);
+    }
+    return smtpConfiguration;
+  }
+
+  /**
+   * Drops the given SMTP configuration from the cache, e.g. after it was changed in the source.
+   * 
+   * @param configurationName The name of the SMTP configuration.
+   */
+  public void invalidate(String configurationName) {
+    Segment segment = segmentFor(configurationName);
+    synchronized (segment) {
+      segment.remove(configurationName);
+    }
+  }
+
+  /**
+   * Drops all SMTP configurations from the cache.
+   */
+  public void invalidateAll() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /**
+   * The number of cached SMTP configurations, unknown names included.
+   * 
+   * @return The number of cached SMTP configurations.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * The number of lookups answered from the cache.
+   * 
+   * @return The number of cache hits.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * The number of lookups that went to the source.
+   * 
+   * @return The number of cache misses.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private Segment segmentFor(String configurationName) {
+    int h = configurationName.hashCode();
+    return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  /**
+   * An LRU map of limited size.
+   */
+  private static class Segment extends LinkedHashMap<String, SmtpConfiguration> {
+    private static final long serialVersionUID = 1L;
+
+    private final int maximumSize;
+
+    Segment(int maximumSize) {
+      super(16, 0.75f, true);
+      this.maximumSize = Math.max(1, maximumSize);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, SmtpConfiguration> eldest) {
+      return size() > maximumSize;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A MIME message that can be sealed once it is fully assembled.<br/>
+ * JavaMail updates the headers of a message (a new Message-ID, recomputed Content-Types and transfer encodings) every time it is sent.
+ * Stages that work on the final bytes of a message, such as DKIM signing, seal it after their last change so the message that goes over the
+ * wire is exactly the one they've seen.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class CourierMimeMessage extends MimeMessage {
+  private volatile boolean sealed;
+
+  /**
+   * Creates a new, empty MIME message.
+   * 
+   * @param session The mail session.
+   */
+  public CourierMimeMessage(Session session) {
+    super(session);
+  }
+
+  /**
+   * Updates the headers one last time. Any further call of saveChanges() does nothing.
+   * 
+   * @throws MessagingException Thrown if the headers couldn't be updated.
+   */
+  public void seal() throws MessagingException {
+    if (!sealed) {
+      super.saveChanges();
+      sealed = true;
+    }
+  }
+
+  /**
+   * The mail session the message was created with, which knows the SMTP server to send it to.
+   * 
+   * @return The mail session.
+   */
+  public Session getSession() {
+    return session;
+  }
+
+  /**
+   * True, if the message was sealed.
+   * 
+   * @return True, if the message was sealed.
+   */
+  public boolean isSealed() {
+    return sealed;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see javax.mail.internet.MimeMessage#saveChanges()
+   */
+  @Override
+  public void saveChanges() throws MessagingException {
+    if (!sealed)
+      super.saveChanges();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Loads each SMTP configuration from its own file in a directory, named after the configuration: "customer-4711" is loaded from
+ * "customer-4711.json". Each file holds a single configuration in the format written by SmtpConfiguration.toJSONString(), or a complete
+ * smtp.json of which the configuration of that name is taken.<br/>
+ * Nothing is loaded in advance; combine this source with a CachingSmtpConfigurationSource to avoid reading the file on every message.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class DirectorySmtpConfigurationSource implements SmtpConfigurationSource {
+  /**
+   * The suffix of the configuration files.
+   */
+  public static final String FILENAME_SUFFIX = ".json";
+
+  private final File directory;
+
+  /**
+   * Creates a new source.
+   * 
+   * @param directory The directory holding the configuration files.
+   */
+  public DirectorySmtpConfigurationSource(File directory) {
+    this.directory = directory;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.email.SmtpConfigurationSource#getSmtpConfiguration(java.lang.String)
+   */
+  public SmtpConfiguration getSmtpConfiguration(String configurationName) throws IOException {
+    if (!isValidName(configurationName))
+      return null;
+
+    File file = new File(directory, configurationName + FILENAME_SUFFIX);
+    SmtpConfigurationReader reader;
+    try {
+      reader = new SmtpConfigurationReader(new FileInputStream(file));
+    } catch (FileNotFoundException fnfe) {
+      return null;
+    }
+
+    try {
+      for (SmtpConfiguration smtpConfiguration = reader.next(); smtpConfiguration != null; smtpConfiguration = reader.next())
+        if (configurationName.equals(smtpConfiguration.getConfigurationName()))
+          return smtpConfiguration;
+      return null;
+    } catch (IOException ioe) {
+      throw new IOException("The SMTP configuration '" + file + "' couldn't be loaded: " + ioe.getMessage(), ioe);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Writes the given SMTP configuration into its file, replacing the previous one.
+   * 
+   * @param smtpConfiguration The SMTP configuration.
+   * @throws IOException Thrown if the file couldn't be written.
+   * @throws IllegalArgumentException Thrown if the name of the configuration isn't a valid file name in the directory.
+   */
+  public void putSmtpConfiguration(SmtpConfiguration smtpConfiguration) throws IOException {
+    String configurationName = smtpConfiguration.getConfigurationName();
+    if (!isValidName(configurationName))
+      throw new IllegalArgumentException("The SMTP configuration name '" + configurationName + "' isn't a valid file name.");
+
+    File file = new File(directory, configurationName + FILENAME_SUFFIX);
+    File temporaryFile = new File(directory, "." + configurationName + FILENAME_SUFFIX + ".tmp");
+    FileUtils.writeStringToFile(temporaryFile, smtpConfiguration.toJSONString(), "UTF-8");
+    if (!temporaryFile.renameTo(file)) {
+      file.delete();
+      if (!temporaryFile.renameTo(file))
+        throw new IOException("The SMTP configuration couldn't be moved to '" + file + "'.");
+    }
+  }
+
+  /**
+   * Names that could point outside of the directory, or at the temporary files, are never valid.
+   * 
+   * @param configurationName The name of the configuration.
+   * @return True if the configuration may be stored under this name.
+   */
+  private static boolean isValidName(String configurationName) {
+    return (configurationName != null) && (configurationName.length() > 0) && (configurationName.indexOf('/') < 0)
+        && (configurationName.indexOf('\\') < 0) && !configurationName.startsWith(".");
+  }
+}
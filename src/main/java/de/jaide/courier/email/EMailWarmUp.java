@@ -0,0 +1,287 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import de.jaide.courier.email.smtp.SmtpClientTransportStage;
+import de.jaide.courier.email.smtp.SmtpConnectionPool;
+import de.jaide.courier.pipeline.TemplateIndex;
+import de.jaide.courier.pipeline.TemplatePart;
+
+/**
+ * Gets an e-mail handler up to speed before it takes traffic, so the first e-mails after a start don't pay for loading classes, parsing
+ * templates and opening connections.<br/>
+ * Every template found in the given template locations is run through the stages before the transport stage a number of times, with a
+ * synthetic model: the template variables are all "warm-up", the recipient is warm-up@example.com. This loads and parses the templates,
+ * exercises the MIME assembly (and the DKIM signing, if enabled), and gets the code involved compiled by the JIT. Nothing is sent. If the
+ * SMTP client is enabled, a number of connections is opened to the server of each SMTP configuration and kept in its pool.<br/>
+ * <br/>
+ * A template that fails with the synthetic model, e.g. since it lists a variable, is reported but has been loaded and parsed anyway. The
+ * MIME assembly needs an SMTP configuration: by default the first of those loaded from the smtp.json is used, and all of them are
+ * connected to.
+ * 
+ * @see de.jaide.courier.CourierService#warmUp(EMailWarmUp)
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class EMailWarmUp {
+  /**
+   * The number of times each template is run through the stages by default.
+   */
+  public static final int DEFAULT_ITERATIONS = 100;
+
+  /**
+   * The number of connections opened to each SMTP server by default.
+   */
+  public static final int DEFAULT_CONNECTIONS = 2;
+
+  /**
+   * The recipient of the synthetic e-mails.
+   */
+  public static final String RECIPIENT_EMAIL = "warm-up@example.com";
+
+  /**
+   * The value of every template variable of the synthetic model.
+   */
+  public static final String PLACEHOLDER = "warm-up";
+
+  /**
+   * The parameters the handler itself looks at. They aren't given the placeholder, e.g. there is no CC recipient.
+   */
+  private static final Set<String> MAPPING_PARAMETERS = new HashSet<String>();
+
+  static {
+    for (Field field : MessageHandlerEMail.class.getFields()) {
+      if (field.getName().startsWith("MAPPING_PARAM_") && Modifier.isStatic(field.getModifiers()) && (field.getType() == String.class)) {
+        try {
+          MAPPING_PARAMETERS.add((String) field.get(null));
+        } catch (IllegalAccessException iae) {
+          throw new IllegalStateException(iae);
+        }
+      }
+    }
+  }
+
+  private final MessageHandlerEMail handler;
+  private final List<TemplateLocation> templateLocations = new ArrayList<TemplateLocation>();
+  private final List<String> configurationNames = new ArrayList<String>();
+  private int iterations = DEFAULT_ITERATIONS;
+  private int connections = DEFAULT_CONNECTIONS;
+
+  /**
+   * Creates a new warm-up.
+   * 
+   * @param handler The handler to warm up.
+   */
+  public EMailWarmUp(MessageHandlerEMail handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Adds a template location on the classpath, as given with MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH, e.g. once per language.
+   * 
+   * @param loaderClass The class the templates are loaded with, as given with MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS.
+   * @param templatePath The path of the templates, e.g. "/email_templates/en/".
+   */
+  public void addTemplatePath(Class<?> loaderClass, String templatePath) {
+    templateLocations.add(new TemplateLocation(loaderClass, templatePath, null));
+  }
+
+  /**
+   * Adds a template directory, as given with MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_FILE.
+   * 
+   * @param templateDirectory The template directory.
+   */
+  public void addTemplateDirectory(File templateDirectory) {
+    templateLocations.add(new TemplateLocation(null, null, templateDirectory));
+  }
+
+  /**
+   * Adds an SMTP configuration to connect to. The first one added is used for the synthetic e-mails. If none is added, all loaded from the
+   * smtp.json are.
+   * 
+   * @param configurationName The name of the SMTP configuration.
+   */
+  public void addConfiguration(String configurationName) {
+    configurationNames.add(configurationName);
+  }
+
+  /**
+   * Sets the number of times each template is run through the stages.
+   * 
+   * @param iterations The number of times, DEFAULT_ITERATIONS by default.
+   */
+  public void setIterations(int iterations) {
+    this.iterations = iterations;
+  }
+
+  /**
+   * Sets the number of connections opened to the server of each SMTP configuration, if the SMTP client is enabled. At most the maximum of
+   * idle connections of the pool are kept.
+   * 
+   * @param connections The number of connections, DEFAULT_CONNECTIONS by default.
+   */
+  public void setConnections(int connections) {
+    this.connections = connections;
+  }
+
+  /**
+   * Runs the warm-up.
+   * 
+   * @return What was warmed up, and what failed.
+   */
+  public WarmUpReport run() {
+    long start = System.nanoTime();
+    List<String> configurationNames = new ArrayList<String>(this.configurationNames);
+    if (configurationNames.isEmpty())
+      configurationNames.addAll(handler.getSmtpConfigurations().keySet());
+    String configurationName = configurationNames.isEmpty() ? null : configurationNames.get(0);
+
+    Map<String, String> failures = new LinkedHashMap<String, String>();
+    int templates = 0;
+    long renders = 0;
+    TemplateIndex templateIndex = handler.getTemplateEngine().getTemplateIndex();
+    for (TemplateLocation templateLocation : templateLocations) {
+      TemplateIndex.Entry entry;
+      String location;
+      if (templateLocation.directory != null) {
+        entry = templateIndex.lookup(templateLocation.directory);
+        location = TemplateIndex.fileLocation(templateLocation.directory);
+      } else {
+        entry = templateIndex.lookup(templateLocation.loaderClass, templateLocation.templatePath);
+        location = TemplateIndex.classpathLocation(templateLocation.loaderClass, templateLocation.templatePath);
+      }
+      if (entry == null) {
+        failures.put(location, "The templates couldn't be listed.");
+        continue;
+      }
+
+      for (String templateName : getTemplateNames(entry)) {
+        Map<String, Object> parameters = createParameters(templateLocation, templateName, configurationName);
+        templates++;
+        try {
+          for (int i = 0; i < iterations; i++) {
+            handler.dryRun(parameters);
+            renders++;
+          }
+        } catch (RuntimeException re) {
+          failures.put(location + templateName, String.valueOf(re.getMessage()));
+        }
+      }
+    }
+
+    SmtpClientTransportStage smtpClient = handler.getSmtpClientStage();
+    long opened = 0;
+    if ((smtpClient != null) && (connections > 0)) {
+      SmtpConnectionPool pool = smtpClient.getPool();
+      long created = pool.getCreatedConnections();
+      for (String name : configurationNames) {
+        try {
+          SmtpConfiguration smtpConfiguration = handler.getSmtpConfiguration(name);
+          if (smtpConfiguration == null)
+            failures.put("smtp:" + name, "There is no SMTP configuration of that name.");
+          else
+            pool.prime(smtpConfiguration, connections);
+        } catch (IOException ioe) {
+          failures.put("smtp:" + name, String.valueOf(ioe.getMessage()));
+        } catch (RuntimeException re) {
+          failures.put("smtp:" + name, String.valueOf(re.getMessage()));
+        }
+      }
+      opened = pool.getCreatedConnections() - created;
+    }
+
+    return new WarmUpReport(templates, renders, opened, failures, (System.nanoTime() - start) / 1000000);
+  }
+
+  /**
+   * The names of the templates with a body among the given files.
+   */
+  private static Set<String> getTemplateNames(TemplateIndex.Entry entry) {
+    Set<String> templateNames = new TreeSet<String>();
+    for (String filename : entry.getFilenames()) {
+      for (TemplatePart part : new TemplatePart[] { TemplatePart.BODY_TEXT, TemplatePart.BODY_HTML }) {
+        String suffix = part.getFilename("");
+        if (filename.endsWith(suffix) && (filename.length() > suffix.length()))
+          templateNames.add(filename.substring(0, filename.length() - suffix.length()));
+      }
+    }
+    return templateNames;
+  }
+
+  private static Map<String, Object> createParameters(TemplateLocation templateLocation, String templateName, String configurationName) {
+    Map<String, Object> parameters = new SyntheticParameters();
+    if (templateLocation.directory != null) {
+      parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_FILE, templateLocation.directory);
+    } else {
+      parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS, templateLocation.loaderClass);
+      parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH, templateLocation.templatePath);
+    }
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_NAME, templateName);
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.ANY);
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_CONFIGURATION_NAME, configurationName);
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME, "Warm");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_LASTNAME, "Up");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL, RECIPIENT_EMAIL);
+    return parameters;
+  }
+
+  /**
+   * The synthetic model: parameters that have the placeholder as the value of every template variable.
+   */
+  private static class SyntheticParameters extends HashMap<String, Object> {
+    private static final long serialVersionUID = -3165032879441823560L;
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.HashMap#get(java.lang.Object)
+     */
+    @Override
+    public Object get(Object key) {
+      Object value = super.get(key);
+      if ((value == null) && !containsKey(key) && !MAPPING_PARAMETERS.contains(key))
+        return PLACEHOLDER;
+      return value;
+    }
+  }
+
+  /**
+   * A template location on the classpath or a template directory.
+   */
+  private static class TemplateLocation {
+    private final Class<?> loaderClass;
+    private final String templatePath;
+    private final File directory;
+
+    TemplateLocation(Class<?> loaderClass, String templatePath, File directory) {
+      this.loaderClass = loaderClass;
+      this.templatePath = templatePath;
+      this.directory = directory;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Looks up SMTP configurations in a single indexed file, a small embedded key-value store: an open-addressing hash table of record offsets
+ * followed by the records in the binary format of the SmtpConfigurationSnapshot. A lookup reads one or a few table slots and one record,
+ * independent of the number of configurations, and nothing but the open file is kept in memory.<br/>
+ * <br/>
+ * The file is written in one go by write() or the main method of this class, e.g. from an export of the customer database, and is read-only
+ * afterwards. Combine this source with a CachingSmtpConfigurationSource to keep the configurations in use in memory.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class IndexedFileSmtpConfigurationSource implements SmtpConfigurationSource, Closeable {
+  /**
+   * The first bytes of every index file, "CIDX".
+   */
+  private static final int MAGIC = 0x43494458;
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 16;
+
+  /**
+   * Each slot holds the hash of the name and the offset of the record, 0 for empty slots.
+   */
+  private static final int SLOT_SIZE = 12;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final int slotMask;
+  private final int count;
+
+  /**
+   * Opens an index file.
+   * 
+   * @param indexFile The index file, written by write().
+   * @throws IOException Thrown if the file couldn't be opened or is no index file.
+   */
+  public IndexedFileSmtpConfigurationSource(File indexFile) throws IOException {
+    this.file = new RandomAccessFile(indexFile, "r");
+    this.channel = file.getChannel();
+
+    try {
+      ByteBuffer header = read(0, HEADER_SIZE);
+      if ((header.getInt() != MAGIC) || (header.getInt() != VERSION))
+        throw new IOException("'" + indexFile + "' is no SMTP configuration index of a supported version.");
+      int slotCount = header.getInt();
+      if ((slotCount <= 0) || (Integer.bitCount(slotCount) != 1))
+        throw new IOException("'" + indexFile + "' is damaged.");
+      this.slotMask = slotCount - 1;
+      this.count = header.getInt();
+    } catch (IOException ioe) {
+      file.close();
+      throw ioe;
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.email.SmtpConfigurationSource#getSmtpConfiguration(java.lang.String)
+   */
+  public SmtpConfiguration getSmtpConfiguration(String configurationName) throws IOException {
+    int hash = hash(configurationName);
+    for (int slot = hash & slotMask;; slot = (slot + 1) & slotMask) {
+      ByteBuffer entry = read(HEADER_SIZE + (long) slot * SLOT_SIZE, SLOT_SIZE);
+      int slotHash = entry.getInt();
+      long offset = entry.getLong();
+      if (offset == 0)
+        return null;
+      if (slotHash != hash)
+        continue;
+
+      int length = read(offset, 4).getInt();
+      ByteBuffer record = read(offset + 4, length);
+      SmtpConfiguration smtpConfiguration = SmtpConfigurationSnapshot.readConfiguration(new DataInputStream(new ByteArrayInputStream(record
+          .array(), 0, length)));
+      if (configurationName.equals(smtpConfiguration.getConfigurationName()))
+        return smtpConfiguration;
+    }
+  }
+
+  /**
+   * The number of SMTP configurations in the index file.
+   * 
+   * @return The number of SMTP configurations.
+   */
+  public int size() {
+    return count;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Closeable#close()
+   */
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /**
+   * Writes an index file. The file is written to a temporary file first and then renamed, so a source that opens it afterwards never sees
+   * a partial file.
+   * 
+   * @param indexFile The index file.
+   * @param smtpConfigurations The SMTP configurations. Their names need to be unique.
+   * @throws IOException Thrown if the file couldn't be written.
+   */
+  public static void write(File indexFile, Collection<SmtpConfiguration> smtpConfigurations) throws IOException {
+    /*
+     * At most half of the slots are used, so the probe sequences stay short.
+     */
+    int slotCount = Integer.highestOneBit(Math.max(8, smtpConfigurations.size()) * 2 - 1) << 1;
+    int slotMask = slotCount - 1;
+    int[] hashes = new int[slotCount];
+    long[] offsets = new long[slotCount];
+
+    File temporaryFile = new File(indexFile.getAbsoluteFile().getParentFile(), "." + indexFile.getName() + ".tmp");
+    RandomAccessFile out = new RandomAccessFile(temporaryFile, "rw");
+    try {
+      out.setLength(0);
+      long offset = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+      out.seek(offset);
+
+      ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+      DataOutputStream recordOut = new DataOutputStream(record);
+      for (SmtpConfiguration smtpConfiguration : smtpConfigurations) {
+        record.reset();
+        SmtpConfigurationSnapshot.writeConfiguration(recordOut, smtpConfiguration);
+        recordOut.flush();
+
+        int hash = hash(smtpConfiguration.getConfigurationName());
+        int slot = hash & slotMask;
+        while (offsets[slot] != 0)
+          slot = (slot + 1) & slotMask;
+        hashes[slot] = hash;
+        offsets[slot] = offset;
+
+        out.writeInt(record.size());
+        out.write(record.toByteArray());
+        offset += 4 + record.size();
+      }
+
+      ByteBuffer table = ByteBuffer.allocate(HEADER_SIZE + slotCount * SLOT_SIZE);
+      table.putInt(MAGIC).putInt(VERSION).putInt(slotCount).putInt(smtpConfigurations.size());
+      for (int slot = 0; slot < slotCount; slot++)
+        table.putInt(hashes[slot]).putLong(offsets[slot]);
+      out.seek(0);
+      out.write(table.array());
+    } finally {
+      out.close();
+    }
+
+    if (!temporaryFile.renameTo(indexFile)) {
+      FileUtils.deleteQuietly(indexFile);
+      if (!temporaryFile.renameTo(indexFile))
+        throw new IOException("The SMTP configuration index couldn't be moved to '" + indexFile + "'.");
+    }
+  }
+
+  /**
+   * Converts a smtp.json into an index file.<br/>
+   * Usage: IndexedFileSmtpConfigurationSource &lt;smtp.json&gt; &lt;index file&gt;
+   * 
+   * @param args The smtp.json and the index file.
+   * @throws Exception Thrown if the index file couldn't be written.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: IndexedFileSmtpConfigurationSource <smtp.json> <index file>");
+      System.exit(1);
+    }
+
+    SmtpConfigurationReader reader = new SmtpConfigurationReader(new FileInputStream(args[0]));
+    try {
+      write(new File(args[1]), reader.readAll().values());
+    } finally {
+      reader.close();
+    }
+  }
+
+  private ByteBuffer read(long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0)
+        throw new EOFException("The SMTP configuration index is truncated.");
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Spreads the bits of the String hash, so similar names like "customer-1" and "customer-2" don't end up in neighbouring slots.
+   */
+  private static int hash(String configurationName) {
+    int h = configurationName.hashCode() * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.PreencodedMimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.mail.EmailAttachment;
+
+import freemarker.template.Template;
+
+/**
+ * Keeps the images and other resources embedded into HTML e-mails base64-encoded, so embedding the same logo into every e-mail neither
+ * reads nor encodes it again. Each e-mail gets a body part of its own, but all of them share the encoded bytes.<br/>
+ * Resources are looked up once per location; resources read from files are read again once the file changes, those from the classpath
+ * are kept until invalidateAll() is called. Only a bounded number of locations that don't exist is remembered. Names leading out of the
+ * template path, e.g. "../logo.png", are never looked up.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class InlineResourceCache {
+  /**
+   * References of inline resources in the markup of an HTML template, e.g. &lt;img src="cid:logo.png"&gt; or background:
+   * url(cid:images/banner.jpg). Only complete names are references, "cid:${image}" isn't.
+   */
+  private static final Pattern CID_REFERENCE = Pattern.compile(
+      "(?:src\\s*=\\s*[\"']?|url\\(\\s*[\"']?)cid:([A-Za-z0-9_\\-./]+)(?=[\"')\\s>])", Pattern.CASE_INSENSITIVE);
+
+  /**
+   * The default number of locations remembered as missing.
+   */
+  public static final int DEFAULT_MAX_MISSING = 1024;
+
+  private final ConcurrentMap<String, EncodedResource> resources = new ConcurrentHashMap<String, EncodedResource>();
+  private final Map<String, Boolean> missing;
+  private final Map<Template, Set<String>> references = new WeakHashMap<Template, Set<String>>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+
+  /**
+   * Creates a new cache, remembering up to DEFAULT_MAX_MISSING locations that don't exist.
+   */
+  public InlineResourceCache() {
+    this(DEFAULT_MAX_MISSING);
+  }
+
+  /**
+   * Creates a new cache.
+   * 
+   * @param maxMissing The number of locations that don't exist to remember; the least recently looked up are forgotten first.
+   */
+  public InlineResourceCache(final int maxMissing) {
+    missing = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > maxMissing;
+      }
+    };
+  }
+
+  /**
+   * Finds the names of the inline resources the given HTML template refers to. Only the template itself is searched, never the HTML
+   * rendered from it, so the parameters of a message can't add references.
+   * 
+   * @param template The HTML template.
+   * @return The names of the referenced resources, in the order of their first reference.
+   */
+  public Set<String> findReferences(Template template) {
+    synchronized (references) {
+      Set<String> names = references.get(template);
+      if (names != null)
+        return names;
+    }
+
+    Set<String> names = Collections.unmodifiableSet(findReferences(template.toString()));
+    synchronized (references) {
+      references.put(template, names);
+    }
+    return names;
+  }
+
+  /**
+   * Finds the names of the inline resources the given HTML markup refers to. Names that could point outside of the template path are
+   * ignored.
+   * 
+   * @param html The HTML markup, i.e. the source of the HTML template.
+   * @return The names of the referenced resources, in the order of their first reference.
+   */
+  public Set<String> findReferences(String html) {
+    Set<String> names = new LinkedHashSet<String>();
+    if ((html == null) || (html.indexOf("cid:") == -1))
+      return names;
+
+    Matcher matcher = CID_REFERENCE.matcher(html);
+    while (matcher.find())
+      if (isValidName(matcher.group(1)))
+        names.add(matcher.group(1));
+    return names;
+  }
+
+  /**
+   * Returns the resource of the given name, relative to templates loaded from the classpath.
+   * 
+   * @param loaderClass The class whose classloader loads the templates.
+   * @param templatePath The path of the templates, e.g. "/email_templates/en/".
+   * @param name The name of the resource, relative to the template path, e.g. "logo.png".
+   * @return The encoded resource or null, if there is no such resource or the name could point outside of the template path.
+   * @throws IOException Thrown if the resource couldn't be read.
+   */
+  public EncodedResource getResource(Class<?> loaderClass, String templatePath, String name) throws IOException {
+    if (!isValidName(name))
+      return null;
+
+    String path = (templatePath.endsWith("/") ? templatePath : templatePath + "/") + name;
+    String key = "class:" + System.identityHashCode(loaderClass.getClassLoader()) + ":" + path;
+    EncodedResource resource = resources.get(key);
+    if (resource != null) {
+      hits.incrementAndGet();
+      return resource;
+    }
+    if (isMissing(key))
+      return null;
+
+    URL url = loaderClass.getResource(path);
+    if (url == null) {
+      setMissing(key);
+      return null;
+    }
+
+    resource = load(url, null);
+    resources.put(key, resource);
+    return resource;
+  }
+
+  /**
+   * Returns the resource of the given name, relative to templates loaded from a directory.
+   * 
+   * @param templatePathFile The directory of the templates.
+   * @param name The name of the resource, relative to the directory.
+   * @return The encoded resource or null, if there is no such resource or the file isn't within the directory.
+   * @throws IOException Thrown if the resource couldn't be read.
+   */
+  public EncodedResource getResource(File templatePathFile, String name) throws IOException {
+    if (!isValidName(name))
+      return null;
+
+    File file = new File(templatePathFile, name);
+    String key = "file:" + file.getAbsolutePath();
+    EncodedResource resource = resources.get(key);
+    if ((resource != null) && (resource.lastModified == file.lastModified())) {
+      hits.incrementAndGet();
+      return resource;
+    }
+
+    /*
+     * Files that are links leading out of the template directory aren't embedded either.
+     */
+    if (!file.isFile() || !file.getCanonicalPath().startsWith(templatePathFile.getCanonicalPath() + File.separator)) {
+      resources.remove(key);
+      setMissing(key);
+      return null;
+    }
+
+    resource = load(file.toURI().toURL(), file);
+    resources.put(key, resource);
+    synchronized (missing) {
+      missing.remove(key);
+    }
+    return resource;
+  }
+
+  /**
+   * Forgets all resources, e.g. after deploying new images to the classpath.
+   */
+  public void invalidateAll() {
+    resources.clear();
+    synchronized (missing) {
+      missing.clear();
+    }
+  }
+
+  /**
+   * The number of locations looked up so far, including those remembered as missing.
+   * 
+   * @return The number of cached locations.
+   */
+  public int size() {
+    synchronized (missing) {
+      return resources.size() + missing.size();
+    }
+  }
+
+  /**
+   * The number of resources taken from the cache.
+   * 
+   * @return The number of cache hits.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * The number of resources read and encoded.
+   * 
+   * @return The number of loads.
+   */
+  public long getLoads() {
+    return loads.get();
+  }
+
+  /**
+   * Names are relative to the template path, and none of their segments may be empty, "." or "..".
+   */
+  private static boolean isValidName(String name) {
+    if ((name.length() == 0) || (name.indexOf('\\') >= 0) || (name.indexOf(':') >= 0))
+      return false;
+
+    for (String segment : name.split("/", -1))
+      if ((segment.length() == 0) || segment.equals(".") || segment.equals(".."))
+        return false;
+    return true;
+  }
+
+  private boolean isMissing(String key) {
+    synchronized (missing) {
+      return missing.containsKey(key);
+    }
+  }
+
+  private void setMissing(String key) {
+    synchronized (missing) {
+      missing.put(key, Boolean.TRUE);
+    }
+  }
+
+  private EncodedResource load(URL url, File file) throws IOException {
+    loads.incrementAndGet();
+    long lastModified = file == null ? 0 : file.lastModified();
+
+    InputStream in = url.openStream();
+    byte[] content;
+    try {
+      content = IOUtils.toByteArray(in);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream(content.length * 4 / 3 + content.length / 38 + 16);
+    try {
+      OutputStream out = MimeUtility.encode(encoded, "base64");
+      out.write(content);
+      out.close();
+    } catch (MessagingException me) {
+      throw new IOException("The resource " + url + " couldn't be encoded: " + me);
+    }
+
+    String filename = url.getPath().substring(url.getPath().lastIndexOf('/') + 1);
+    String contentType = URLConnection.guessContentTypeFromName(filename);
+    return new EncodedResource(filename, contentType == null ? "application/octet-stream" : contentType, encoded.toByteArray(), file,
+        lastModified);
+  }
+
+  /**
+   * A resource, base64-encoded.
+   */
+  public static class EncodedResource {
+    private final String filename;
+    private final String contentType;
+    private final byte[] encoded;
+    private final File file;
+    private final long lastModified;
+
+    EncodedResource(String filename, String contentType, byte[] encoded, File file, long lastModified) {
+      this.filename = filename;
+      this.contentType = contentType;
+      this.encoded = encoded;
+      this.file = file;
+      this.lastModified = lastModified;
+    }
+
+    /**
+     * Creates a body part embedding the resource, without copying or encoding it again.
+     * 
+     * @param contentId The content ID the HTML refers to the resource by, without the angle brackets.
+     * @return The body part.
+     * @throws MessagingException Thrown if the body part couldn't be created.
+     */
+    public MimeBodyPart createBodyPart(String contentId) throws MessagingException {
+      MimeBodyPart part = new PreencodedMimeBodyPart("base64");
+      part.setDataHandler(new DataHandler(new ByteArrayDataSource(encoded, contentType)));
+      part.setFileName(filename);
+      part.setDisposition(EmailAttachment.INLINE);
+      part.setContentID("<" + contentId + ">");
+      return part;
+    }
+
+    /**
+     * The name of the file the resource was read from, without its directory.
+     * 
+     * @return The filename.
+     */
+    public String getFilename() {
+      return filename;
+    }
+
+    /**
+     * The content type, guessed from the filename.
+     * 
+     * @return The content type, e.g. "image/png".
+     */
+    public String getContentType() {
+      return contentType;
+    }
+
+    /**
+     * The size of the encoded resource.
+     * 
+     * @return The size in bytes.
+     */
+    public int getEncodedSize() {
+      return encoded.length;
+    }
+
+    /**
+     * The file the resource was read from.
+     * 
+     * @return The file or null, if it was read from the classpath.
+     */
+    public File getFile() {
+      return file;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The SMTP configurations of a single smtp.json, all of them loaded at once and kept in memory.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class JsonSmtpConfigurationSource implements SmtpConfigurationSource {
+  private final Map<String, SmtpConfiguration> smtpConfigurations;
+
+  /**
+   * Loads the smtp.json from the classpath.
+   * 
+   * @param location The absolute location of the smtp.json on the classpath, e.g. "/configs/smtp.json".
+   * @throws IOException Thrown if the smtp.json couldn't be found or read.
+   */
+  public JsonSmtpConfigurationSource(String location) throws IOException {
+    URL url = JsonSmtpConfigurationSource.class.getResource(location);
+    if (url == null)
+      throw new FileNotFoundException("SMTP configuration not found at '" + location + "'");
+
+    InputStream in = url.openStream();
+    try {
+      this.smtpConfigurations = Collections.unmodifiableMap(new SmtpConfigurationReader(in).readAll());
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Uses the given, already loaded SMTP configurations.
+   * 
+   * @param smtpConfigurations The SMTP configurations, by name.
+   */
+  public JsonSmtpConfigurationSource(Map<String, SmtpConfiguration> smtpConfigurations) {
+    this.smtpConfigurations = Collections.unmodifiableMap(new LinkedHashMap<String, SmtpConfiguration>(smtpConfigurations));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.email.SmtpConfigurationSource#getSmtpConfiguration(java.lang.String)
+   */
+  public SmtpConfiguration getSmtpConfiguration(String configurationName) {
+    return smtpConfigurations.get(configurationName);
+  }
+
+  /**
+   * Returns all SMTP configurations.
+   * 
+   * @return The SMTP configurations, by name.
+   */
+  public Map<String, SmtpConfiguration> getSmtpConfigurations() {
+    return smtpConfigurations;
+  }
+}
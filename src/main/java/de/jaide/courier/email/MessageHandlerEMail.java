@@ -15,42 +15,45 @@
  */
 package de.jaide.courier.email;
 
-import java.io.*;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.mail.DefaultAuthenticator;
-import org.apache.commons.mail.EmailAttachment;
-import org.apache.commons.mail.EmailException;
-import org.apache.commons.mail.HtmlEmail;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
-
-import de.jaide.courier.MessageHandler;
+
+import de.jaide.courier.archive.ArchivingStage;
+import de.jaide.courier.archive.MessageArchive;
+import de.jaide.courier.email.dkim.DkimSigningStage;
+import de.jaide.courier.email.smtp.SmtpClientTransportStage;
 import de.jaide.courier.exception.CourierException;
-import de.jaide.courier.exception.MissingParameterException;
-import freemarker.template.Configuration;
-import freemarker.template.DefaultObjectWrapper;
-import freemarker.template.Template;
-import freemarker.template.TemplateException;
+import de.jaide.courier.pipeline.ConcurrencyLimitingStage;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageStage;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+import de.jaide.courier.pipeline.TemplateEngine;
+import de.jaide.courier.pipeline.TemplateIndex;
+import de.jaide.courier.pipeline.TemplatePart;
 
 /**
- * A handler for e-mail messages, based on the Freemarker templating system.
+ * A handler for e-mail messages, based on the Freemarker templating system.<br/>
+ * Runs each e-mail through the shared pipeline stages and assembles and sends the MIME message in its own encode and transport stages.
  * 
  * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
  */
-public class MessageHandlerEMail implements MessageHandler {
+public class MessageHandlerEMail extends PipelineMessageHandler {
   /**
    * The suffixes for the Freemarker-templated files.
    */
-  private static final String TEMPLATENAME_SUFFIX_SUBJECT = "subject";
-  private static final String TEMPLATENAME_SUFFIX_HEADERS = "headers";
-  private static final String TEMPLATENAME_SUFFIX_BODY = "body";
+  private static final String TEMPLATENAME_SUFFIX_SUBJECT = TemplatePart.SUBJECT.getSuffix();
+  private static final String TEMPLATENAME_SUFFIX_HEADERS = TemplatePart.HEADERS.getSuffix();
+  private static final String TEMPLATENAME_SUFFIX_BODY = TemplatePart.BODY_TEXT.getSuffix();
 
   /**
    * Mapping parameters known to this handler.
@@ -61,6 +64,8 @@ public class MessageHandlerEMail implements MessageHandler {
   public static final String MAPPING_PARAM_TEMPLATE_PATH_FILE = "templatePathFile";
   public static final String MAPPING_PARAM_TEMPLATE_NAME = "templateName";
   public static final String MAPPING_PARAM_TEMPLATE_TYPE = "templatetype";
+  public static final String MAPPING_PARAM_LOCALE = "locale";
+  public static final String MAPPING_PARAM_TIMEOUT = "timeoutMillis";
   public static final String MAPPING_PARAM_RECIPIENT_FIRSTNAME = "recipientFirstname";
   public static final String MAPPING_PARAM_RECIPIENT_LASTNAME = "recipientLastname";
   public static final String MAPPING_PARAM_RECIPIENT_EMAIL = "recipientEMail";
@@ -85,102 +90,171 @@ public class MessageHandlerEMail implements MessageHandler {
   }
 
   /**
-   * The available SMTP configurations.
+   * Where the SMTP configurations come from.
    */
-  private Map<String, SmtpConfiguration> smtpConfigurations = new HashMap<String, SmtpConfiguration>();
+  private SmtpConfigurationSource smtpConfigurationSource;
 
   /**
-   * The Freemarker templating configuration.
+   * The snapshot file of the SMTP configurations and the template index, and the checksum of the smtp.json they were loaded from.
    */
-  private Configuration templatingConfiguration;
+  private final File snapshotFile;
+  private long smtpConfigurationChecksum;
 
   /**
-   * Caches Freemarker templates.
+   * The encoded images and other resources embedded into the HTML e-mails.
    */
-  private Map<String, Template> cachedTemplates = new HashMap<String, Template>();
+  private final InlineResourceCache inlineResourceCache = new InlineResourceCache();
 
   /**
-   * Creates an instance of this class, loads the SMTP configuration and sets the Freemarker templating configuration.
+   * The installed stages holding connections or files, released on shutdown. Null, unless enabled.
+   */
+  private volatile SmtpClientTransportStage smtpClientStage;
+  private volatile ArchivingStage archivingStage;
+
+  /**
+   * Creates an instance of this class, loads the SMTP configuration and sets up the stages every e-mail runs through.
    * 
    * @param smtpConfiguration The SMTP configuration to load. Needs to be an absolute URL, e.g. "/configs/smtp.json".
    * @throws IOException Thrown, if the SMTP configuration couldn't be read.
    */
   public MessageHandlerEMail(String smtpConfiguration) throws IOException {
+    this(smtpConfiguration, null);
+  }
+
+  /**
+   * Creates an instance of this class, loads the SMTP configuration and sets up the stages every e-mail runs through.<br/>
+   * The SMTP configurations and the template index are loaded from the given snapshot, as long as the smtp.json didn't change since it was
+   * written. Otherwise the smtp.json is parsed and the snapshot written anew. A snapshot that can't be written doesn't keep the handler
+   * from starting.
+   * 
+   * @param smtpConfiguration The SMTP configuration to load. Needs to be an absolute URL, e.g. "/configs/smtp.json".
+   * @param snapshotFile The snapshot of the SMTP configurations and the template index. If null no snapshot is used.
+   * @throws IOException Thrown, if the SMTP configuration couldn't be read.
+   */
+  public MessageHandlerEMail(String smtpConfiguration, File snapshotFile) throws IOException {
+    super(obligatoryMappingParameters, new TemplateEngine());
+    this.snapshotFile = snapshotFile;
+
     /*
      * Load the SMTP configurations.
      */
     loadSmtpConfigurations(smtpConfiguration);
+    addEMailStages();
+  }
 
-    /*
-     * Instantiate the Freemarker templating engine.
-     */
-    templatingConfiguration = new Configuration();
-    templatingConfiguration.setObjectWrapper(new DefaultObjectWrapper());
+  /**
+   * Creates an instance of this class that looks up the SMTP configurations in the given source, e.g. a CachingSmtpConfigurationSource on
+   * top of a directory with a configuration file per customer.
+   * 
+   * @param smtpConfigurationSource Where the SMTP configurations come from.
+   */
+  public MessageHandlerEMail(SmtpConfigurationSource smtpConfigurationSource) {
+    super(obligatoryMappingParameters, new TemplateEngine());
+    this.snapshotFile = null;
+    this.smtpConfigurationSource = smtpConfigurationSource;
+    addEMailStages();
   }
 
   /**
-   * Loads the SMTP configuration from a JSON file.
+   * Validating, resolving and rendering the templates is shared with all other channels, only assembling and sending the MIME message is
+   * e-mail specific.
+   */
+  private void addEMailStages() {
+    addStage(new MimeAssemblyStage(this));
+    addStage(new DkimSigningStage());
+    addStage(new SmtpTransportStage());
+  }
+
+  /**
+   * Loads the SMTP configuration from a JSON file, or from the snapshot if it is still up to date.
    * 
    * @param smtpConfigurationJsonLocation The SMTP configuration to load. Needs to be an absolute URL, e.g. "/configs/smtp.json" that is
    *          loaded from the
    *          classpath.
    * @throws IOException Thrown, if the SMTP configuration couldn't be read.
    */
-  private void loadSmtpConfigurations(String smtpConfigurationJsonLocation) {
-    /*
-     * Now load the SMTP configuration JSON file and try to parse it.
-     */
+  private void loadSmtpConfigurations(String smtpConfigurationJsonLocation) throws IOException {
+    URL url = MessageHandlerEMail.class.getResource(smtpConfigurationJsonLocation);
+    InputStream in;
     try {
-      /*
-       * Load the JSON-based SMTP configuration file.
-       */
-      JSONArray keyArray = (JSONArray) new JSONParser().parse(IOUtils.toString((InputStream) MessageHandlerEMail.class.getResource(
-          smtpConfigurationJsonLocation).getContent()));
+      if (url == null)
+        throw new FileNotFoundException(smtpConfigurationJsonLocation);
 
       /*
-       * Iterate through the outer array
+       * Without a snapshot the smtp.json is parsed while it is read. With a snapshot it needs to be checksummed first, so it is read as a
+       * whole.
        */
-      for (int i = 0; i < keyArray.size(); i++) {
-
-        /*
-         * Iterate through the inner array of configuration keys.
-         */
-        JSONObject keysArray = (JSONObject) keyArray.get(i);
-        for (Object keyObject : keysArray.keySet()) {
-
-          /*
-           * Get the name of the key...
-           */
-          String key = (String) keyObject;
-          JSONObject configArray = (JSONObject) keysArray.get(key);
-
-          /*
-           * ... and load the associated configuration values.
-           */
-          String smtpHostname = (String) configArray.get("smtpHostname");
-          Long smtpPort = (Long) (configArray.get("smtpPort"));
-          Boolean tls = (Boolean) configArray.get("tls");
-          Boolean ssl = (Boolean) configArray.get("ssl");
-          String username = (String) configArray.get("username");
-          String password = (String) configArray.get("password");
-          String fromEMail = (String) configArray.get("fromEMail");
-          String fromSenderName = (String) configArray.get("fromSenderName");
-
-          /*
-           * Use the obtained values and create a new SMTP configuration.
-           */
-          SmtpConfiguration smtpConfiguration = new SmtpConfiguration(key, smtpHostname, smtpPort.intValue(), tls, ssl, username, password,
-              fromEMail, fromSenderName);
-          smtpConfigurations.put(key, smtpConfiguration);
-        }
+      if (snapshotFile == null) {
+        in = url.openStream();
+      } else {
+        byte[] source = IOUtils.toByteArray(url);
+        smtpConfigurationChecksum = SmtpConfigurationSnapshot.checksum(source);
+        if (loadSnapshot())
+          return;
+        in = new ByteArrayInputStream(source);
       }
     } catch (IOException ioe) {
       throw new RuntimeException("SMTP configuration not found at '" + smtpConfigurationJsonLocation + "'", ioe);
-    } catch (ParseException pe) {
-      throw new RuntimeException("SMTP configuration couldn't be loaded from '" + smtpConfigurationJsonLocation + "'", pe);
+    }
+
+    SmtpConfigurationReader reader = new SmtpConfigurationReader(in);
+    try {
+      smtpConfigurationSource = new JsonSmtpConfigurationSource(reader.readAll());
+    } catch (IOException ioe) {
+      throw new RuntimeException("SMTP configuration couldn't be loaded from '" + smtpConfigurationJsonLocation + "'", ioe);
+    } finally {
+      IOUtils.closeQuietly(reader);
+    }
+
+    /*
+     * The snapshot only speeds up the next start, so the handler starts without one if it can't be written, e.g. to a read-only directory.
+     */
+    if (snapshotFile != null) {
+      try {
+        writeSnapshot();
+      } catch (IOException ioe) {
+        // Parsed again on the next start
+      }
+    }
+  }
+
+  /**
+   * Loads the SMTP configurations and the template index from the snapshot, as long as it was made from the very same smtp.json.
+   * 
+   * @return True, if the snapshot was loaded. A missing, damaged or outdated snapshot is simply replaced.
+   */
+  private boolean loadSnapshot() {
+    if (!snapshotFile.isFile())
+      return false;
+
+    try {
+      SmtpConfigurationSnapshot snapshot = SmtpConfigurationSnapshot.read(snapshotFile);
+      if (snapshot.getSourceChecksum() != smtpConfigurationChecksum)
+        return false;
+
+      smtpConfigurationSource = new JsonSmtpConfigurationSource(snapshot.getSmtpConfigurations());
+      for (Map.Entry<String, TemplateIndex.Entry> entry : snapshot.getTemplateIndexEntries().entrySet())
+        getTemplateEngine().getTemplateIndex().put(entry.getKey(), entry.getValue());
+      return true;
+    } catch (IOException ioe) {
+      return false;
     }
   }
 
+  /**
+   * Writes the SMTP configurations and the template index, including all template locations used so far, to the snapshot file. Call this
+   * e.g. after the templates were used once, so the next start doesn't need to scan the template locations.
+   * 
+   * @throws IOException Thrown if the snapshot couldn't be written.
+   */
+  public void writeSnapshot() throws IOException {
+    if (snapshotFile == null)
+      throw new IllegalStateException("This handler was created without a snapshot file.");
+
+    new SmtpConfigurationSnapshot(smtpConfigurationChecksum, getSmtpConfigurations(), getTemplateEngine().getTemplateIndex().getEntries())
+        .write(snapshotFile);
+  }
+
   /**
    * Returns the filename, excluding the path, of the given template name.<br/>
    * If "activate" is given as the <code>templateName</code> and "TEMPLATENAME_SUFFIX_SUBJECT" as the <code>templatePart</code> then
@@ -195,257 +269,170 @@ public class MessageHandlerEMail implements MessageHandler {
    */
   public String retrieveTemplateFilename(String templateName, String templatePart, boolean isHtml) {
     if (TEMPLATENAME_SUFFIX_BODY.equals(templatePart))
-      return templateName + "_" + templatePart + ".ftl" + (isHtml ? ".html" : ".txt");
+      return (isHtml ? TemplatePart.BODY_HTML : TemplatePart.BODY_TEXT).getFilename(templateName);
+    else if (TEMPLATENAME_SUFFIX_HEADERS.equals(templatePart))
+      return TemplatePart.HEADERS.getFilename(templateName);
+    else if (TEMPLATENAME_SUFFIX_SUBJECT.equals(templatePart))
+      return TemplatePart.SUBJECT.getFilename(templateName);
     else
       return templateName + "_" + templatePart + ".ftl";
   }
 
-  /*
-   * (non-Javadoc)
+  /**
+   * Returns the SMTP configuration of the given name.
    * 
-   * @see de.jaide.courier.MessageHandler#handleMessage(java.util.Map)
+   * @param configurationName The name of the SMTP configuration, as found in the smtp.json.
+   * @return The SMTP configuration or null, if there is no configuration of that name.
+   * @throws CourierException Thrown if the SMTP configuration couldn't be loaded from its source.
    */
-  public void handleMessage(Map<String, Object> parameters) throws CourierException {
-    /*
-     * Check if the obligatory parameters are there.
-     */
-    for (String key : obligatoryMappingParameters)
-      if (!parameters.containsKey(key))
-        throw new CourierException(new MissingParameterException("The parameter '" + key + "' was expected but couldn't be found."));
-
-    /*
-     * Now retrieve the obligatory parameters.
-     */
-    String configurationName = (String) parameters.get(MAPPING_PARAM_CONFIGURATION_NAME);
-    String templatePath = (String) parameters.get(MAPPING_PARAM_TEMPLATE_PATH);
-    if ((templatePath != null) && (!templatePath.endsWith("/")))
-      templatePath += "/";
-    else if (templatePath == null)
-      templatePath = "/";
-
-    Class<?> templatePathClass = (Class<?>) parameters.get(MAPPING_PARAM_TEMPLATE_PATH_CLASS);
-    File templatePathFile = (File) parameters.get(MAPPING_PARAM_TEMPLATE_PATH_FILE);
-
-    String templateName = (String) parameters.get(MAPPING_PARAM_TEMPLATE_NAME);
-    TemplateTypeEnum templateTypeEnum = (TemplateTypeEnum) parameters.get(MAPPING_PARAM_TEMPLATE_TYPE);
-    String recipientFirstname = (String) parameters.get(MAPPING_PARAM_RECIPIENT_FIRSTNAME);
-    String recipientLastname = (String) parameters.get(MAPPING_PARAM_RECIPIENT_LASTNAME);
-    String recipientEMail = (String) parameters.get(MAPPING_PARAM_RECIPIENT_EMAIL);
-    String ccRecipientFirstname = (String) parameters.get(MAPPING_PARAM_CC_RECIPIENT_FIRSTNAME);
-    String ccRecipientLastname = (String) parameters.get(MAPPING_PARAM_CC_RECIPIENT_LASTNAME);
-    String ccRecipientEMail = (String) parameters.get(MAPPING_PARAM_CC_RECIPIENT_EMAIL);
-
-    /*
-     * The next three parameters are optional, as they might also be specified in the SMTP configuration file. If they are specified they
-     * tell us to overwrite what was specified in the SMTP configuration file and use those values (firstname, lastname, e-mail) for the
-     * sender instead.
-     */
-    String senderFirstname = null;
-    if (parameters.containsKey(MAPPING_PARAM_SENDER_FIRSTNAME))
-      senderFirstname = (String) parameters.get(MAPPING_PARAM_SENDER_FIRSTNAME);
-
-    String senderLastname = null;
-    if (parameters.containsKey(MAPPING_PARAM_SENDER_LASTNAME))
-      senderLastname = (String) parameters.get(MAPPING_PARAM_SENDER_LASTNAME);
-
-    String senderEMail = null;
-    if (parameters.containsKey(MAPPING_PARAM_SENDER_EMAIL))
-      senderEMail = (String) parameters.get(MAPPING_PARAM_SENDER_EMAIL);
-
-    /*
-     * Will be used for parsing the templates.
-     */
-    StringWriter writer = new StringWriter();
-
+  public SmtpConfiguration getSmtpConfiguration(String configurationName) {
     try {
-      /*
-       * Construct the template that we're about to process. First set the path to load the template(s) from. In case a Directory was given
-       * as the base for template loading purposes use that instead.
-       */
-      if (templatePathFile == null) {
-        if (templatePathClass == null)
-          templatingConfiguration.setClassForTemplateLoading(getClass(), templatePath);
-        else
-          templatingConfiguration.setClassForTemplateLoading(templatePathClass, templatePath);
-      } else
-        templatingConfiguration.setDirectoryForTemplateLoading(templatePathFile);
-
-      /*
-       * Get the headers and Freemarker-parse them. If there are no headers then ignore the errors. The file has to be one header per line,
-       * header name and value separated by a colon (":").
-       */
-      Template template;
-
-      Map<String, String> headers = new HashMap<String, String>();
-      String headersFilename = retrieveTemplateFilename(templateName, MessageHandlerEMail.TEMPLATENAME_SUFFIX_HEADERS, true);
-      if (headersFilename != null) {
-        try {
-          template = loadTemplate(headersFilename);
-          template.process(parameters, writer);
-          BufferedReader reader = new BufferedReader(new StringReader(writer.toString()));
-          headers = new HashMap<String, String>();
-          String str = "";
-          while ((str = reader.readLine()) != null) {
-            String[] split = str.split(":");
-            if (split.length > 1)
-              headers.put(split[0].trim(), split[1].trim());
-          }
-        } catch (IOException ioe) {
-          // The header file is optional, hence we don't care if it couldn't be found
-        }
-      }
-
-      /*
-       * Get the subject line and Freemarker-parse it.
-       */
-      String subject = loadAndProcessTemplate(parameters, MessageHandlerEMail.TEMPLATENAME_SUFFIX_SUBJECT, templateName, false);
-
-      /*
-       * Get the body content and Freemarker-parse it.
-       */
-      String contentText = null;
-      String contentHtml = null;
-
-      /*
-       * Load all requested versions of the template.
-       */
-      if (templateTypeEnum == TemplateTypeEnum.TEXT) {
-        contentText = loadAndProcessTemplate(parameters, MessageHandlerEMail.TEMPLATENAME_SUFFIX_BODY, templateName, false);
-      } else if (templateTypeEnum == TemplateTypeEnum.HTML) {
-        contentHtml = loadAndProcessTemplate(parameters, MessageHandlerEMail.TEMPLATENAME_SUFFIX_BODY, templateName, true);
-      } else if (templateTypeEnum == TemplateTypeEnum.BOTH) {
-        contentText = loadAndProcessTemplate(parameters, MessageHandlerEMail.TEMPLATENAME_SUFFIX_BODY, templateName, false);
-        contentHtml = loadAndProcessTemplate(parameters, MessageHandlerEMail.TEMPLATENAME_SUFFIX_BODY, templateName, true);
-      } else if (templateTypeEnum == TemplateTypeEnum.ANY) {
-        try {
-          contentText = loadAndProcessTemplate(parameters, MessageHandlerEMail.TEMPLATENAME_SUFFIX_BODY, templateName, false);
-        } catch (IOException ioe) {
-        } finally {
-          try {
-            contentHtml = loadAndProcessTemplate(parameters, MessageHandlerEMail.TEMPLATENAME_SUFFIX_BODY, templateName, true);
-          } catch (IOException ioe) {
-            throw new RuntimeException("Neither the HTML nor the TEXT-only version of the e-mail template '" + templateName
-                + "' could be found. Are you sure they reside in '" + templatePath + "' as '" + templateName + "_body.ftl.html' or '"
-                + templateName + "_body.ftl.txt'?", ioe);
-          }
-        }
-      }
+      return smtpConfigurationSource.getSmtpConfiguration(configurationName);
+    } catch (IOException ioe) {
+      throw new CourierException("The SMTP configuration '" + configurationName + "' couldn't be loaded.", ioe);
+    }
+  }
 
-      /*
-       * Set the parameters that are identical for that sender, for all recipients.
-       * Note: attachments may not be removed once they have been attached, hence the performance-improving caching had to be removed.
-       */
-      SmtpConfiguration smtpConfiguration = (SmtpConfiguration) smtpConfigurations.get(configurationName);
-      HtmlEmail htmlEmail = new HtmlEmail();
-      htmlEmail.setCharset("UTF-8");
-      htmlEmail.setHostName(smtpConfiguration.getSmtpHostname());
-      htmlEmail.setSmtpPort(smtpConfiguration.getSmtpPort());
-      if (smtpConfiguration.isTls()) {
-        htmlEmail.setAuthenticator(new DefaultAuthenticator(smtpConfiguration.getUsername(), smtpConfiguration.getPassword()));
-        htmlEmail.setStartTLSEnabled(smtpConfiguration.isTls());
-      }
-      htmlEmail.setSSLOnConnect(smtpConfiguration.isSsl());
+  /**
+   * Returns all SMTP configurations loaded from the smtp.json.
+   * 
+   * @return The SMTP configurations, by name. Empty if the handler looks them up in another kind of SmtpConfigurationSource.
+   */
+  public Map<String, SmtpConfiguration> getSmtpConfigurations() {
+    if (smtpConfigurationSource instanceof JsonSmtpConfigurationSource)
+      return ((JsonSmtpConfigurationSource) smtpConfigurationSource).getSmtpConfigurations();
+    return Collections.emptyMap();
+  }
 
-      /*
-       * Changing the sender, to differ from what was specified in the particular SMTP configuration, is optional. As explained above this
-       * will only happen if they were specified by the caller.
-       */
-      if ((senderFirstname != null) || (senderLastname != null) || (senderEMail != null))
-        htmlEmail.setFrom(senderEMail, senderFirstname + " " + senderLastname);
-      else
-        htmlEmail.setFrom(smtpConfiguration.getFromEMail(), smtpConfiguration.getFromSenderName());
+  /**
+   * Returns where the SMTP configurations come from.
+   * 
+   * @return The SMTP configuration source.
+   */
+  public SmtpConfigurationSource getSmtpConfigurationSource() {
+    return smtpConfigurationSource;
+  }
 
-      /*
-       * Set the parameters that differ for each recipient.
-       */
-      htmlEmail.addTo(recipientEMail, recipientFirstname + " " + recipientLastname);
-      if ((ccRecipientFirstname != null) && (ccRecipientLastname != null) && (ccRecipientEMail != null))
-        htmlEmail.addCc(ccRecipientEMail, ccRecipientFirstname + " " + ccRecipientLastname);
-      htmlEmail.setHeaders(headers);
-      htmlEmail.setSubject(subject);
+  /**
+   * Returns the cache of the encoded images and other resources embedded into the HTML e-mails.
+   * 
+   * @return The inline resource cache.
+   */
+  public InlineResourceCache getInlineResourceCache() {
+    return inlineResourceCache;
+  }
 
-      /*
-       * Set the HTML and Text version of the e-mail body.
-       */
-      if (contentHtml != null)
-        htmlEmail.setHtmlMsg(contentHtml);
-      if (contentText != null)
-        htmlEmail.setTextMsg(contentText);
+  /**
+   * Limits the e-mails sent to each SMTP server at the same time, adapting the limit to how fast the server answers. E-mails exceeding the
+   * limit fail right away with an AdmissionRejectedException instead of waiting for an overloaded server.
+   * 
+   * @param initialLimit The number of e-mails that may be sent to a server at the same time at first.
+   * @param maximumLimit The limit never grows beyond this.
+   * @return The installed admission control stage, e.g. to look at the current limits.
+   */
+  public SmtpAdmissionControlStage enableAdmissionControl(int initialLimit, int maximumLimit) {
+    SmtpAdmissionControlStage stage = new SmtpAdmissionControlStage(getStage(STAGE_TRANSPORT), initialLimit, maximumLimit);
+    replaceStage(STAGE_TRANSPORT, stage);
+    return stage;
+  }
 
-      /*
-       * Add attachments, if available.
-       */
-      if (parameters.containsKey(MAPPING_PARAM_ATTACHMENTS)) {
-        @SuppressWarnings("unchecked")
-        List<EmailAttachment> attachments = (List<EmailAttachment>) parameters.get(MAPPING_PARAM_ATTACHMENTS);
-        for (EmailAttachment attachment : attachments) {
-          htmlEmail.attach(attachment);
-        }
-      }
+  /**
+   * Checks the recipient and CC addresses of each e-mail before rendering it, and rejects malformed ones and those on the suppression list
+   * with an InvalidRecipientException right away, without rendering or connecting to the SMTP server. Addresses are sent in their normal
+   * form, e.g. with internationalized domain names converted to ASCII.
+   * 
+   * @return The installed address validation stage, e.g. to fill the suppression list.
+   */
+  public AddressValidationStage enableAddressValidation() {
+    AddressValidationStage stage = new AddressValidationStage();
+    addStageAfter(STAGE_VALIDATE, stage);
+    return stage;
+  }
 
-      /*
-       * Finished - now send the e-mail.
-       */
-      htmlEmail.send();
-    } catch (IOException ioe) {
-      throw new CourierException(ioe);
-    } catch (TemplateException te) {
-      throw new CourierException(te);
-    } catch (EmailException ee) {
-      throw new CourierException(ee);
-    } finally {
-      if (writer != null) {
-        writer.flush();
-
-        try {
-          writer.close();
-        } catch (IOException ioe) {
-          ioe.printStackTrace();
-        }
-      }
-    }
+  /**
+   * Keeps a copy of every e-mail the server accepted in a MessageArchive in the given directory, appended by a thread of its own, e.g. for
+   * compliance. Search and read the e-mails with getArchive() of the returned stage. The archive is closed by shutdown().
+   * 
+   * @param directory The directory of the archive. Created if it doesn't exist yet.
+   * @return The installed archiving stage.
+   * @throws IOException Thrown if the archive couldn't be opened.
+   */
+  public ArchivingStage enableArchive(File directory) throws IOException {
+    ArchivingStage stage = new ArchivingStage(new MessageArchive(directory));
+    addStageAfter(STAGE_TRANSPORT, stage);
+    archivingStage = stage;
+    return stage;
   }
 
   /**
-   * Returns the Freemarker-processed String-content of the specified template part and name.
+   * Sends the e-mails with the SMTP client of this library instead of JavaMail's transport: over pooled connections, and with PIPELINING,
+   * CHUNKING and 8BITMIME whenever the server supports them. If admission control was enabled before, it keeps its limits and limits the
+   * SMTP client from now on.
    * 
-   * @param parameters The Freemarker-variables/parameters to process.
-   * @param templatePart The template part of return. Should be any of TEMPLATENAME_SUFFIX_HEADERS, TEMPLATENAME_SUFFIX_SUBJECT or
-   *          TEMPLATENAME_SUFFIX_BODY.
-   * @param templateName The name of the template to load.
-   * @param isHtml Return the HTML version of the template? Only makes sense for TEMPLATENAME_SUFFIX_BODY.
-   * @throws IOException Thrown if the template couldn't be found.
-   * @throws TemplateException Thrown if the Freemarker-variables/parameters couldn't be processed.
+   * @return The installed transport stage, e.g. to look at the round trips and bytes per message.
    */
-  private String loadAndProcessTemplate(Map<String, Object> parameters, String templatePart, String templateName, boolean isHtml)
-      throws IOException, TemplateException {
-    StringWriter writer = new StringWriter();
-    Template template = templatingConfiguration.getTemplate(retrieveTemplateFilename(templateName, templatePart, isHtml));
-    template.process(parameters, writer);
-    return writer.toString();
+  public SmtpClientTransportStage enableSmtpClient() {
+    SmtpClientTransportStage stage = new SmtpClientTransportStage();
+    MessageStage transport = getStage(STAGE_TRANSPORT);
+    if (transport instanceof ConcurrencyLimitingStage)
+      ((ConcurrencyLimitingStage) transport).setDelegate(stage);
+    else
+      replaceStage(STAGE_TRANSPORT, stage);
+    smtpClientStage = stage;
+    return stage;
   }
 
   /**
-   * Loads the specified template by filename - does some caching as well.
+   * The SMTP client installed by enableSmtpClient(), e.g. to open its connections on warm-up.
    * 
-   * @param templateName The name of the template to load.
-   * @return The Template.
-   * @throws IOException Thrown if the template couldn't be found.
+   * @return The SMTP client transport stage or null, if JavaMail's transport is used.
    */
-  private Template loadTemplate(String templateName) throws IOException {
+  SmtpClientTransportStage getSmtpClientStage() {
+    return smtpClientStage;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.PipelineMessageHandler#onShutdown()
+   */
+  @Override
+  protected void onShutdown() throws InterruptedException, IOException {
     /*
-     * Try to load the template from the cache.
+     * The pooled connections are closed with QUIT, so the servers don't log aborted sessions. The archive is closed last, once the e-mails
+     * sent during the drain are queued for it.
      */
-    Template template = cachedTemplates.get(templateName);
+    if (smtpClientStage != null)
+      smtpClientStage.close();
+    if (archivingStage != null)
+      archivingStage.close();
+  }
 
-    if (template == null) {
-      /*
-       * It's not there - load it from the filesystem and cache it for future use.
-       */
-      template = templatingConfiguration.getTemplate(templateName);
-      cachedTemplates.put(templateName, template);
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.PipelineMessageHandler#getRecipient(de.jaide.courier.pipeline.MessageContext)
+   */
+  @Override
+  protected String getRecipient(MessageContext context) {
+    String recipient = (String) context.getAttribute(AddressValidationStage.ATTRIBUTE_RECIPIENT);
+    return recipient != null ? recipient : (String) context.getParameter(MAPPING_PARAM_RECIPIENT_EMAIL);
+  }
+
+  /**
+   * The time budget given with MAPPING_PARAM_TIMEOUT comes first, then the one of the SMTP configuration, then the handler's.
+   * 
+   * @see de.jaide.courier.pipeline.PipelineMessageHandler#getTimeoutMillis(de.jaide.courier.pipeline.MessageContext)
+   */
+  @Override
+  protected long getTimeoutMillis(MessageContext context) {
+    Object configurationName = context.getParameter(MAPPING_PARAM_CONFIGURATION_NAME);
+    if ((context.getParameter(MAPPING_PARAM_TIMEOUT) == null) && (configurationName instanceof String)) {
+      SmtpConfiguration smtpConfiguration = getSmtpConfiguration((String) configurationName);
+      if ((smtpConfiguration != null) && (smtpConfiguration.getTimeoutMillis() != null))
+        return smtpConfiguration.getTimeoutMillis();
     }
 
-    return template;
+    return super.getTimeoutMillis(context);
   }
 }
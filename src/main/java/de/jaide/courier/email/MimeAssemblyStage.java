@@ -0,0 +1,321 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.apache.commons.mail.DefaultAuthenticator;
+import org.apache.commons.mail.EmailAttachment;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.HtmlEmail;
+
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageStage;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+import de.jaide.courier.pipeline.TemplatePart;
+
+/**
+ * Assembles the MIME message from the rendered template parts, the SMTP configuration and the recipients given by the caller.<br/>
+ * The MIME message is stored as the encoded message of the context, the SMTP configuration it is sent with as an attribute.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class MimeAssemblyStage implements MessageStage {
+  /**
+   * The name of the context attribute holding the SmtpConfiguration the message is sent with.
+   */
+  public static final String ATTRIBUTE_SMTP_CONFIGURATION = "email.smtpConfiguration";
+
+  /**
+   * The handler this stage belongs to. Knows the SMTP configurations.
+   */
+  private final MessageHandlerEMail handler;
+
+  /**
+   * Creates a new MIME assembly stage.
+   * 
+   * @param handler The handler this stage belongs to.
+   */
+  public MimeAssemblyStage(MessageHandlerEMail handler) {
+    this.handler = handler;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#getName()
+   */
+  public String getName() {
+    return PipelineMessageHandler.STAGE_ENCODE;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  public void process(MessageContext context) throws CourierException {
+    Map<String, Object> parameters = context.getParameters();
+
+    String configurationName = (String) parameters.get(MessageHandlerEMail.MAPPING_PARAM_CONFIGURATION_NAME);
+    String recipientFirstname = (String) parameters.get(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME);
+    String recipientLastname = (String) parameters.get(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_LASTNAME);
+    String recipientEMail = (String) parameters.get(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL);
+    String ccRecipientFirstname = (String) parameters.get(MessageHandlerEMail.MAPPING_PARAM_CC_RECIPIENT_FIRSTNAME);
+    String ccRecipientLastname = (String) parameters.get(MessageHandlerEMail.MAPPING_PARAM_CC_RECIPIENT_LASTNAME);
+    String ccRecipientEMail = (String) parameters.get(MessageHandlerEMail.MAPPING_PARAM_CC_RECIPIENT_EMAIL);
+
+    /*
+     * With address validation enabled the addresses are sent in their normal form.
+     */
+    if (context.getAttribute(AddressValidationStage.ATTRIBUTE_RECIPIENT) != null)
+      recipientEMail = (String) context.getAttribute(AddressValidationStage.ATTRIBUTE_RECIPIENT);
+    if (context.getAttribute(AddressValidationStage.ATTRIBUTE_CC_RECIPIENT) != null)
+      ccRecipientEMail = (String) context.getAttribute(AddressValidationStage.ATTRIBUTE_CC_RECIPIENT);
+
+    /*
+     * The next three parameters are optional, as they might also be specified in the SMTP configuration file. If they are specified they
+     * tell us to overwrite what was specified in the SMTP configuration file and use those values (firstname, lastname, e-mail) for the
+     * sender instead.
+     */
+    String senderFirstname = (String) parameters.get(MessageHandlerEMail.MAPPING_PARAM_SENDER_FIRSTNAME);
+    String senderLastname = (String) parameters.get(MessageHandlerEMail.MAPPING_PARAM_SENDER_LASTNAME);
+    String senderEMail = (String) parameters.get(MessageHandlerEMail.MAPPING_PARAM_SENDER_EMAIL);
+
+    SmtpConfiguration smtpConfiguration = handler.getSmtpConfiguration(configurationName);
+    if (smtpConfiguration == null)
+      throw new CourierException("There is no SMTP configuration named '" + configurationName + "'.");
+    context.setAttribute(ATTRIBUTE_SMTP_CONFIGURATION, smtpConfiguration);
+
+    try {
+      /*
+       * Set the parameters that are identical for that sender, for all recipients.
+       * Note: attachments may not be removed once they have been attached, hence the performance-improving caching had to be removed.
+       */
+      HtmlEmail htmlEmail = createHtmlEmail();
+      htmlEmail.setCharset("UTF-8");
+      htmlEmail.setHostName(smtpConfiguration.getSmtpHostname());
+      htmlEmail.setSmtpPort(smtpConfiguration.getSmtpPort());
+      if (smtpConfiguration.isTls()) {
+        htmlEmail.setAuthenticator(new DefaultAuthenticator(smtpConfiguration.getUsername(), smtpConfiguration.getPassword()));
+        htmlEmail.setStartTLSEnabled(smtpConfiguration.isTls());
+      }
+      htmlEmail.setSSLOnConnect(smtpConfiguration.isSsl());
+
+      /*
+       * Changing the sender, to differ from what was specified in the particular SMTP configuration, is optional. As explained above this
+       * will only happen if they were specified by the caller.
+       */
+      if ((senderFirstname != null) || (senderLastname != null) || (senderEMail != null))
+        htmlEmail.setFrom(senderEMail, senderFirstname + " " + senderLastname);
+      else
+        htmlEmail.setFrom(smtpConfiguration.getFromEMail(), smtpConfiguration.getFromSenderName());
+
+      /*
+       * Set the parameters that differ for each recipient.
+       */
+      htmlEmail.addTo(recipientEMail, recipientFirstname + " " + recipientLastname);
+      if ((ccRecipientFirstname != null) && (ccRecipientLastname != null) && (ccRecipientEMail != null))
+        htmlEmail.addCc(ccRecipientEMail, ccRecipientFirstname + " " + ccRecipientLastname);
+      htmlEmail.setHeaders(parseHeaders(context.getRenderedPart(TemplatePart.HEADERS)));
+      htmlEmail.setSubject(context.getRenderedPart(TemplatePart.SUBJECT));
+
+      /*
+       * Set the HTML and Text version of the e-mail body.
+       */
+      String contentHtml = context.getRenderedPart(TemplatePart.BODY_HTML);
+      String contentText = context.getRenderedPart(TemplatePart.BODY_TEXT);
+      if (contentHtml != null)
+        htmlEmail.setHtmlMsg(contentHtml);
+      if (contentText != null)
+        htmlEmail.setTextMsg(contentText);
+
+      /*
+       * Add attachments, if available.
+       */
+      if (parameters.containsKey(MessageHandlerEMail.MAPPING_PARAM_ATTACHMENTS)) {
+        @SuppressWarnings("unchecked")
+        List<EmailAttachment> attachments = (List<EmailAttachment>) parameters.get(MessageHandlerEMail.MAPPING_PARAM_ATTACHMENTS);
+        for (EmailAttachment attachment : attachments) {
+          htmlEmail.attach(attachment);
+        }
+      }
+
+      /*
+       * Finished - assemble the MIME message, the transport stage sends it. Images the HTML refers to by "cid:" are embedded last.
+       */
+      htmlEmail.buildMimeMessage();
+      if (contentHtml != null)
+        embedInlineResources(context, htmlEmail.getMimeMessage());
+      context.setEncodedMessage(htmlEmail.getMimeMessage());
+    } catch (EmailException ee) {
+      throw new CourierException(ee);
+    } catch (MessagingException me) {
+      throw new CourierException(me);
+    } catch (IOException ioe) {
+      throw new CourierException(ioe);
+    }
+  }
+
+  /**
+   * Creates the e-mail to assemble. Its MIME message is a CourierMimeMessage, so later stages may seal it.
+   * 
+   * @return The new e-mail.
+   */
+  protected HtmlEmail createHtmlEmail() {
+    return new HtmlEmail() {
+      @Override
+      protected MimeMessage createMimeMessage(Session session) {
+        return new CourierMimeMessage(session);
+      }
+    };
+  }
+
+  /**
+   * Embeds the images and other resources the HTML template refers to, e.g. by &lt;img src="cid:logo.png"&gt;. Only the markup of the
+   * template itself is searched, text the parameters put into the HTML is never taken for a reference. The resources are looked up next
+   * to the HTML template first, i.e. in the directory of its locale, if any, then in the template path itself. The HTML and the resources
+   * are wrapped into a multipart/related body part, which takes the place of the HTML.
+   * 
+   * @param context The state of the message.
+   * @param message The assembled MIME message.
+   * @throws CourierException Thrown if a referenced resource doesn't exist.
+   */
+  private void embedInlineResources(MessageContext context, MimeMessage message) throws CourierException, MessagingException, IOException {
+    String htmlFilename = context.getTemplateFilenames().get(TemplatePart.BODY_HTML);
+    if (htmlFilename == null)
+      return;
+
+    InlineResourceCache cache = handler.getInlineResourceCache();
+    Set<String> names = cache.findReferences(context.getTemplateConfiguration().getTemplate(htmlFilename));
+    if (names.isEmpty())
+      return;
+
+    String directory = htmlFilename.substring(0, htmlFilename.lastIndexOf('/') + 1);
+    List<MimeBodyPart> resourceParts = new ArrayList<MimeBodyPart>(names.size());
+    for (String name : names) {
+      InlineResourceCache.EncodedResource resource = getInlineResource(context, cache, directory + name);
+      if ((resource == null) && (directory.length() > 0))
+        resource = getInlineResource(context, cache, name);
+      if (resource == null)
+        throw new CourierException("The HTML refers to 'cid:" + name + "', but there is no such file next to the template '" + htmlFilename
+            + "' in '" + context.getTemplatePath() + "'.");
+      resourceParts.add(resource.createBodyPart(name));
+    }
+
+    Object content = message.getContent();
+    if ((content instanceof Multipart) && relate((Multipart) content, resourceParts))
+      return;
+
+    /*
+     * The HTML is the message itself.
+     */
+    MimeMultipart related = new MimeMultipart("related");
+    MimeBodyPart htmlPart = new MimeBodyPart();
+    htmlPart.setDataHandler(message.getDataHandler());
+    related.addBodyPart(htmlPart);
+    for (MimeBodyPart resourcePart : resourceParts)
+      related.addBodyPart(resourcePart);
+    message.setContent(related);
+  }
+
+  private InlineResourceCache.EncodedResource getInlineResource(MessageContext context, InlineResourceCache cache, String name)
+      throws IOException {
+    File templatePathFile = (File) context.getParameter(PipelineMessageHandler.MAPPING_PARAM_TEMPLATE_PATH_FILE);
+    if (templatePathFile != null)
+      return cache.getResource(templatePathFile, name);
+
+    Class<?> templatePathClass = (Class<?>) context.getParameter(PipelineMessageHandler.MAPPING_PARAM_TEMPLATE_PATH_CLASS);
+    return cache.getResource(templatePathClass == null ? handler.getClass() : templatePathClass, context.getTemplatePath(), name);
+  }
+
+  /**
+   * Finds the HTML body part within the given multipart and adds the resources to a multipart/related around it.
+   * 
+   * @return False, if there is no HTML body part.
+   */
+  private boolean relate(Multipart multipart, List<MimeBodyPart> resourceParts) throws MessagingException, IOException {
+    for (int i = 0; i < multipart.getCount(); i++) {
+      BodyPart part = multipart.getBodyPart(i);
+      String contentType = part.getDataHandler().getContentType().toLowerCase();
+      if (contentType.startsWith("text/html")) {
+        if (multipart.getContentType().toLowerCase().startsWith("multipart/related")) {
+          for (MimeBodyPart resourcePart : resourceParts)
+            multipart.addBodyPart(resourcePart);
+          return true;
+        }
+
+        MimeMultipart related = new MimeMultipart("related");
+        multipart.removeBodyPart(i);
+        related.addBodyPart(part);
+        for (MimeBodyPart resourcePart : resourceParts)
+          related.addBodyPart(resourcePart);
+        MimeBodyPart relatedPart = new MimeBodyPart();
+        relatedPart.setContent(related);
+        multipart.addBodyPart(relatedPart, i);
+        return true;
+      }
+
+      if (contentType.startsWith("multipart/") && (part.getContent() instanceof Multipart)
+          && relate((Multipart) part.getContent(), resourceParts))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Parses the rendered headers template. The file has to be one header per line, header name and value separated by a colon (":").
+   * 
+   * @param renderedHeaders The rendered headers template. May be null, as the headers template is optional.
+   * @return The headers, by header name.
+   */
+  private Map<String, String> parseHeaders(String renderedHeaders) {
+    Map<String, String> headers = new HashMap<String, String>();
+    if (renderedHeaders == null)
+      return headers;
+
+    try {
+      BufferedReader reader = new BufferedReader(new StringReader(renderedHeaders));
+      String str = "";
+      while ((str = reader.readLine()) != null) {
+        int colon = str.indexOf(':');
+        if ((colon > 0) && (colon < str.length() - 1))
+          headers.put(str.substring(0, colon).trim(), str.substring(colon + 1).trim());
+      }
+    } catch (IOException ioe) {
+      // Can't happen, we're reading from a String
+    }
+
+    return headers;
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import de.jaide.courier.delivery.DeliveryEvent;
+import de.jaide.courier.exception.InvalidRecipientException;
+import de.jaide.courier.pipeline.ConcurrencyLimitingStage;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageStage;
+
+/**
+ * Limits the messages sent at the same time per SMTP configuration, so a slow or overloaded SMTP server only delays the messages sent to
+ * it, while those exceeding its current limit are rejected with an AdmissionRejectedException right away. Besides timeouts and I/O
+ * errors, 4xx replies of the server shrink the limit, while 5xx replies and invalid recipients don't.
+ * 
+ * @see MessageHandlerEMail#enableAdmissionControl(int, int)
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class SmtpAdmissionControlStage extends ConcurrencyLimitingStage {
+
+  /**
+   * Creates a new admission control stage.
+   * 
+   * @param delegate The transport stage.
+   * @param initialLimit The number of messages that may be sent to a server at the same time at first.
+   * @param maximumLimit The limit never grows beyond this.
+   */
+  public SmtpAdmissionControlStage(MessageStage delegate, int initialLimit, int maximumLimit) {
+    super(delegate, initialLimit, 1, maximumLimit);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.ConcurrencyLimitingStage#isOverload(de.jaide.courier.pipeline.MessageContext, java.lang.RuntimeException)
+   */
+  @Override
+  protected boolean isOverload(MessageContext context, RuntimeException failure) {
+    String serverReply = (String) context.getAttribute(DeliveryEvent.ATTRIBUTE_SERVER_REPLY);
+    if ((serverReply != null) && serverReply.startsWith("4"))
+      return true;
+    if ((failure instanceof InvalidRecipientException) || ((serverReply != null) && serverReply.startsWith("5")))
+      return false;
+
+    return super.isOverload(context, failure);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.ConcurrencyLimitingStage#getLimiterKey(de.jaide.courier.pipeline.MessageContext)
+   */
+  @Override
+  protected String getLimiterKey(MessageContext context) {
+    SmtpConfiguration smtpConfiguration = (SmtpConfiguration) context.getAttribute(MimeAssemblyStage.ATTRIBUTE_SMTP_CONFIGURATION);
+    return smtpConfiguration == null ? super.getLimiterKey(context) : smtpConfiguration.getConfigurationName();
+  }
+}
@@ -16,14 +16,11 @@
 package de.jaide.courier.email;
 
 import java.io.IOException;
-import java.io.Writer;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.io.StringWriter;
 
 import org.json.simple.JSONAware;
-import org.json.simple.JSONObject;
 
-import com.tonian.director.dm.json.JSONWriter;
+import de.jaide.courier.json.JsonPrettyWriter;
 
 /**
  * Holds different SMTP configurations for different message types.<br/>
@@ -43,6 +40,10 @@ public class SmtpConfiguration implements JSONAware {
   private String password;
   private String fromEMail;
   private String fromSenderName;
+  private String dkimDomain;
+  private String dkimSelector;
+  private String dkimPrivateKeyFile;
+  private Integer timeoutMillis;
 
   /**
    * Creates a new SMTP configuration.
@@ -234,38 +235,99 @@ public class SmtpConfiguration implements JSONAware {
     this.fromSenderName = fromSenderName;
   }
 
+  /**
+   * The domain e-mails are DKIM-signed for (d=). If null, e-mails sent with this configuration aren't signed.
+   * 
+   * @return The DKIM signing domain.
+   */
+  public String getDkimDomain() {
+    return dkimDomain;
+  }
+
+  /**
+   * Sets the domain e-mails are DKIM-signed for (d=). If null, e-mails sent with this configuration aren't signed.
+   * 
+   * @param dkimDomain The DKIM signing domain to set.
+   */
+  public void setDkimDomain(String dkimDomain) {
+    this.dkimDomain = dkimDomain;
+  }
+
+  /**
+   * The DKIM selector (s=), i.e. the public key is published in DNS at SELECTOR._domainkey.DOMAIN.
+   * 
+   * @return The DKIM selector.
+   */
+  public String getDkimSelector() {
+    return dkimSelector;
+  }
+
+  /**
+   * Sets the DKIM selector (s=), i.e. the public key is published in DNS at SELECTOR._domainkey.DOMAIN.
+   * 
+   * @param dkimSelector The DKIM selector to set.
+   */
+  public void setDkimSelector(String dkimSelector) {
+    this.dkimSelector = dkimSelector;
+  }
+
+  /**
+   * The path of the file holding the unencrypted PKCS#8 RSA private key (PEM or DER) e-mails are DKIM-signed with.
+   * 
+   * @return The path of the DKIM private key file.
+   */
+  public String getDkimPrivateKeyFile() {
+    return dkimPrivateKeyFile;
+  }
+
+  /**
+   * Sets the path of the file holding the unencrypted PKCS#8 RSA private key (PEM or DER) e-mails are DKIM-signed with.
+   * 
+   * @param dkimPrivateKeyFile The path of the DKIM private key file to set.
+   */
+  public void setDkimPrivateKeyFile(String dkimPrivateKeyFile) {
+    this.dkimPrivateKeyFile = dkimPrivateKeyFile;
+  }
+
+  /**
+   * The time budget of each e-mail sent with this configuration, from rendering it to the server's reply, unless the caller gives one.
+   * 
+   * @return The time budget in milliseconds or null, if the handler's applies.
+   */
+  public Integer getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * Sets the time budget of each e-mail sent with this configuration, from rendering it to the server's reply, unless the caller gives one.
+   * 
+   * @param timeoutMillis The time budget in milliseconds to set, null for the handler's, 0 for none.
+   */
+  public void setTimeoutMillis(Integer timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
   /**
    * Returns the SMTP configuration as a JSON string.
    * 
    * @return The SMTP configuration as a JSON string.
    */
-  @SuppressWarnings("unchecked")
   @Override
   public String toJSONString() {
-    JSONObject entry = new JSONObject();
-
-    Map<String, Object> configuration = new LinkedHashMap<String, Object>();
-    configuration.put("smtpHostname", smtpHostname);
-    configuration.put("smtpPort", new Integer(smtpPort));
-    configuration.put("tls", tls);
-    configuration.put("ssl", ssl);
-    configuration.put("username", username);
-    configuration.put("password", password);
-    configuration.put("fromEMail", fromEMail);
-    configuration.put("fromSenderName", fromSenderName);
-
-    entry.put(configurationName, configuration);
-
     /*
-     * The JSONWriter will pretty-print the output
+     * The JsonPrettyWriter will pretty-print the output
      */
-    Writer jsonWriter = new JSONWriter();
+    StringWriter stringWriter = new StringWriter();
+    JsonPrettyWriter jsonWriter = new JsonPrettyWriter(stringWriter);
     try {
-      entry.writeJSONString(jsonWriter);
+      jsonWriter.beginObject();
+      SmtpConfigurationWriter.writeMember(jsonWriter, this);
+      jsonWriter.endObject();
+      jsonWriter.flush();
     } catch (IOException ioe) {
       throw new RuntimeException(ioe);
     }
 
-    return jsonWriter.toString();
+    return stringWriter.toString();
   }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.jaide.courier.json.JsonTokenizer;
+import de.jaide.courier.json.JsonTokenizer.Token;
+
+/**
+ * Reads SMTP configurations from a smtp.json one at a time, building the SmtpConfiguration objects straight from the JSON tokens.<br/>
+ * The smtp.json is an array of objects, each mapping one or more configuration names to their settings (see smtp.json.template). A single
+ * such object, as written by SmtpConfiguration.toJSONString(), is accepted as well. Unknown settings are ignored.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class SmtpConfigurationReader implements Closeable {
+  private final JsonTokenizer tokenizer;
+
+  /**
+   * True, once the opening bracket of the document was read.
+   */
+  private boolean started;
+
+  /**
+   * True, if the document is an array of objects rather than a single object.
+   */
+  private boolean array;
+
+  /**
+   * True, while reading the members of one of the objects that map names to configurations.
+   */
+  private boolean inGroup;
+
+  /**
+   * Creates a new reader.
+   * 
+   * @param reader The reader to read the smtp.json from.
+   */
+  public SmtpConfigurationReader(Reader reader) {
+    this.tokenizer = new JsonTokenizer(reader);
+  }
+
+  /**
+   * Creates a new reader.
+   * 
+   * @param in The stream to read the UTF-8 encoded smtp.json from.
+   */
+  public SmtpConfigurationReader(InputStream in) {
+    this(new InputStreamReader(in, Charset.forName("UTF-8")));
+  }
+
+  /**
+   * Reads the next SMTP configuration.
+   * 
+   * @return The next SMTP configuration or null, if there are no more.
+   * @throws IOException Thrown if the smtp.json couldn't be read or is malformed.
+   */
+  public SmtpConfiguration next() throws IOException {
+    if (!started) {
+      started = true;
+      Token token = tokenizer.next();
+      if (token == Token.BEGIN_ARRAY)
+        array = true;
+      else if (token == Token.BEGIN_OBJECT)
+        inGroup = true;
+      else
+        throw tokenizer.syntaxError("Expected an array of SMTP configurations");
+    }
+
+    while (true) {
+      if (!inGroup) {
+        if (!array)
+          return null;
+
+        Token token = tokenizer.next();
+        if (token == Token.END_ARRAY) {
+          tokenizer.expect(Token.END_DOCUMENT);
+          array = false;
+          return null;
+        }
+        if (token != Token.BEGIN_OBJECT)
+          throw tokenizer.syntaxError("Expected an object of SMTP configurations");
+        inGroup = true;
+      }
+
+      Token token = tokenizer.next();
+      if (token == Token.END_OBJECT) {
+        inGroup = false;
+        if (!array)
+          tokenizer.expect(Token.END_DOCUMENT);
+        continue;
+      }
+
+      return readConfiguration(tokenizer.getString());
+    }
+  }
+
+  /**
+   * Reads all remaining SMTP configurations.
+   * 
+   * @return The SMTP configurations, by name, in the order they appear in the smtp.json.
+   * @throws IOException Thrown if the smtp.json couldn't be read or is malformed.
+   */
+  public Map<String, SmtpConfiguration> readAll() throws IOException {
+    Map<String, SmtpConfiguration> smtpConfigurations = new LinkedHashMap<String, SmtpConfiguration>();
+    for (SmtpConfiguration smtpConfiguration = next(); smtpConfiguration != null; smtpConfiguration = next())
+      smtpConfigurations.put(smtpConfiguration.getConfigurationName(), smtpConfiguration);
+    return smtpConfigurations;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Closeable#close()
+   */
+  public void close() throws IOException {
+    tokenizer.close();
+  }
+
+  private SmtpConfiguration readConfiguration(String configurationName) throws IOException {
+    SmtpConfiguration smtpConfiguration = new SmtpConfiguration();
+    smtpConfiguration.setConfigurationName(configurationName);
+
+    tokenizer.expect(Token.BEGIN_OBJECT);
+    while (tokenizer.next() == Token.NAME) {
+      String name = tokenizer.getString();
+      if ("smtpHostname".equals(name))
+        smtpConfiguration.setSmtpHostname(readString());
+      else if ("smtpPort".equals(name))
+        smtpConfiguration.setSmtpPort(readInteger());
+      else if ("tls".equals(name))
+        smtpConfiguration.setTls(readBoolean());
+      else if ("ssl".equals(name))
+        smtpConfiguration.setSsl(readBoolean());
+      else if ("username".equals(name))
+        smtpConfiguration.setUsername(readString());
+      else if ("password".equals(name))
+        smtpConfiguration.setPassword(readString());
+      else if ("fromEMail".equals(name))
+        smtpConfiguration.setFromEMail(readString());
+      else if ("fromSenderName".equals(name))
+        smtpConfiguration.setFromSenderName(readString());
+      else if ("dkimDomain".equals(name))
+        smtpConfiguration.setDkimDomain(readString());
+      else if ("dkimSelector".equals(name))
+        smtpConfiguration.setDkimSelector(readString());
+      else if ("dkimPrivateKeyFile".equals(name))
+        smtpConfiguration.setDkimPrivateKeyFile(readString());
+      else if ("timeoutMillis".equals(name))
+        smtpConfiguration.setTimeoutMillis(readTimeout());
+      else
+        tokenizer.skipValue();
+    }
+
+    return smtpConfiguration;
+  }
+
+  private String readString() throws IOException {
+    Token token = tokenizer.next();
+    if (token == Token.NULL)
+      return null;
+    if (token != Token.STRING)
+      throw tokenizer.syntaxError("Expected a string but found " + token);
+    return tokenizer.getString();
+  }
+
+  private Integer readInteger() throws IOException {
+    if (tokenizer.next() == Token.NULL)
+      return null;
+    long value = tokenizer.getLong();
+    if ((value < 0) || (value > 65535))
+      throw tokenizer.syntaxError("Invalid port " + value);
+    return Integer.valueOf((int) value);
+  }
+
+  private Integer readTimeout() throws IOException {
+    if (tokenizer.next() == Token.NULL)
+      return null;
+    long value = tokenizer.getLong();
+    if ((value < 0) || (value > Integer.MAX_VALUE))
+      throw tokenizer.syntaxError("Invalid timeout " + value);
+    return Integer.valueOf((int) value);
+  }
+
+  private boolean readBoolean() throws IOException {
+    return (tokenizer.next() != Token.NULL) && tokenizer.getBoolean();
+  }
+}
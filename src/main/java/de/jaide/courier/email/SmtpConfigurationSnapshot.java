@@ -0,0 +1,314 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import de.jaide.courier.pipeline.TemplateIndex;
+
+/**
+ * A compact binary snapshot of the parsed SMTP configurations and the template index, so startups don't need to parse the smtp.json and
+ * scan the template locations again.<br/>
+ * The snapshot carries the checksum of the smtp.json it was created from and is only used as long as that checksum matches. Each template
+ * index entry carries the fingerprint of its template directory or JAR file and is dropped if that changed. The snapshot itself ends with a
+ * checksum of its content, truncated or otherwise damaged snapshots are rejected.<br/>
+ * <br/>
+ * Snapshots are written on the first start with a snapshot file given to the MessageHandlerEMail, or at build time using the main method of
+ * this class.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class SmtpConfigurationSnapshot {
+  /**
+   * The first bytes of every snapshot, "CSNP".
+   */
+  private static final int MAGIC = 0x43534e50;
+
+  /**
+   * The version of the file format.
+   */
+  private static final int VERSION = 2;
+
+  private final long sourceChecksum;
+  private final Map<String, SmtpConfiguration> smtpConfigurations;
+  private final Map<String, TemplateIndex.Entry> templateIndexEntries;
+
+  /**
+   * Creates a new snapshot.
+   * 
+   * @param sourceChecksum The checksum of the smtp.json the configurations were parsed from, see checksum().
+   * @param smtpConfigurations The SMTP configurations, by name.
+   * @param templateIndexEntries The template index entries, by location key.
+   */
+  public SmtpConfigurationSnapshot(long sourceChecksum, Map<String, SmtpConfiguration> smtpConfigurations,
+      Map<String, TemplateIndex.Entry> templateIndexEntries) {
+    this.sourceChecksum = sourceChecksum;
+    this.smtpConfigurations = Collections.unmodifiableMap(new LinkedHashMap<String, SmtpConfiguration>(smtpConfigurations));
+    this.templateIndexEntries = Collections.unmodifiableMap(new LinkedHashMap<String, TemplateIndex.Entry>(templateIndexEntries));
+  }
+
+  /**
+   * Computes the checksum of the smtp.json a snapshot is created from.
+   * 
+   * @param source The content of the smtp.json.
+   * @return The checksum.
+   */
+  public static long checksum(byte[] source) {
+    CRC32 crc = new CRC32();
+    crc.update(source);
+    return crc.getValue();
+  }
+
+  /**
+   * The checksum of the smtp.json the configurations were parsed from.
+   * 
+   * @return The checksum.
+   */
+  public long getSourceChecksum() {
+    return sourceChecksum;
+  }
+
+  /**
+   * The SMTP configurations, by name.
+   * 
+   * @return The SMTP configurations.
+   */
+  public Map<String, SmtpConfiguration> getSmtpConfigurations() {
+    return smtpConfigurations;
+  }
+
+  /**
+   * The template index entries, by location key.
+   * 
+   * @return The template index entries.
+   */
+  public Map<String, TemplateIndex.Entry> getTemplateIndexEntries() {
+    return templateIndexEntries;
+  }
+
+  /**
+   * Reads a snapshot.
+   * 
+   * @param file The snapshot file.
+   * @return The snapshot.
+   * @throws IOException Thrown if the snapshot couldn't be read, is of an unknown version or is damaged.
+   */
+  public static SmtpConfigurationSnapshot read(File file) throws IOException {
+    CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+    DataInputStream in = new DataInputStream(checked);
+    try {
+      if (in.readInt() != MAGIC)
+        throw new IOException("'" + file + "' is not an SMTP configuration snapshot.");
+      int version = in.readInt();
+      if (version != VERSION)
+        throw new IOException("The SMTP configuration snapshot '" + file + "' is of the unsupported version " + version + ".");
+
+      long sourceChecksum = in.readLong();
+
+      int count = in.readInt();
+      Map<String, SmtpConfiguration> smtpConfigurations = new LinkedHashMap<String, SmtpConfiguration>();
+      for (int i = 0; i < count; i++) {
+        SmtpConfiguration smtpConfiguration = readConfiguration(in);
+        smtpConfigurations.put(smtpConfiguration.getConfigurationName(), smtpConfiguration);
+      }
+
+      count = in.readInt();
+      Map<String, TemplateIndex.Entry> templateIndexEntries = new LinkedHashMap<String, TemplateIndex.Entry>();
+      for (int i = 0; i < count; i++) {
+        String location = in.readUTF();
+        String source = in.readUTF();
+        String prefix = readString(in);
+        long fingerprint = in.readLong();
+        int filenameCount = in.readInt();
+        Set<String> filenames = new TreeSet<String>();
+        for (int j = 0; j < filenameCount; j++)
+          filenames.add(in.readUTF());
+        templateIndexEntries.put(location, new TemplateIndex.Entry(source, prefix, fingerprint, filenames));
+      }
+
+      long expectedChecksum = checked.getChecksum().getValue();
+      if (in.readLong() != expectedChecksum)
+        throw new IOException("The SMTP configuration snapshot '" + file + "' is damaged.");
+
+      return new SmtpConfigurationSnapshot(sourceChecksum, smtpConfigurations, templateIndexEntries);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Writes this snapshot. The snapshot is written to a temporary file first and then renamed, so readers never see a partial snapshot. The
+   * directory is created if it doesn't exist yet.
+   * 
+   * @param file The snapshot file.
+   * @throws IOException Thrown if the snapshot couldn't be written.
+   */
+  public void write(File file) throws IOException {
+    File directory = file.getAbsoluteFile().getParentFile();
+    File temporaryFile = new File(directory, "." + file.getName() + ".tmp");
+    FileUtils.forceMkdir(directory);
+    FileUtils.deleteQuietly(temporaryFile);
+
+    CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)), new CRC32());
+    DataOutputStream out = new DataOutputStream(checked);
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(sourceChecksum);
+
+      out.writeInt(smtpConfigurations.size());
+      for (SmtpConfiguration smtpConfiguration : smtpConfigurations.values())
+        writeConfiguration(out, smtpConfiguration);
+
+      out.writeInt(templateIndexEntries.size());
+      for (Map.Entry<String, TemplateIndex.Entry> entry : templateIndexEntries.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeUTF(entry.getValue().getSource());
+        writeString(out, entry.getValue().getPrefix());
+        out.writeLong(entry.getValue().getFingerprint());
+        out.writeInt(entry.getValue().getFilenames().size());
+        for (String filename : entry.getValue().getFilenames())
+          out.writeUTF(filename);
+      }
+
+      out.flush();
+      out.writeLong(checked.getChecksum().getValue());
+      out.close();
+    } catch (IOException ioe) {
+      IOUtils.closeQuietly(out);
+      FileUtils.deleteQuietly(temporaryFile);
+      throw ioe;
+    } finally {
+      IOUtils.closeQuietly(out);
+    }
+
+    if (!temporaryFile.renameTo(file)) {
+      FileUtils.deleteQuietly(file);
+      if (!temporaryFile.renameTo(file)) {
+        FileUtils.deleteQuietly(temporaryFile);
+        throw new IOException("The SMTP configuration snapshot couldn't be moved to '" + file + "'.");
+      }
+    }
+  }
+
+  /**
+   * Writes a single SMTP configuration in the binary format of the snapshot.
+   * 
+   * @param out The output to write to.
+   * @param smtpConfiguration The SMTP configuration.
+   * @throws IOException Thrown if the output couldn't be written.
+   */
+  static void writeConfiguration(DataOutput out, SmtpConfiguration smtpConfiguration) throws IOException {
+    writeString(out, smtpConfiguration.getConfigurationName());
+    writeString(out, smtpConfiguration.getSmtpHostname());
+    out.writeBoolean(smtpConfiguration.getSmtpPort() != null);
+    if (smtpConfiguration.getSmtpPort() != null)
+      out.writeInt(smtpConfiguration.getSmtpPort());
+    out.writeBoolean(smtpConfiguration.isTls());
+    out.writeBoolean(smtpConfiguration.isSsl());
+    writeString(out, smtpConfiguration.getUsername());
+    writeString(out, smtpConfiguration.getPassword());
+    writeString(out, smtpConfiguration.getFromEMail());
+    writeString(out, smtpConfiguration.getFromSenderName());
+    writeString(out, smtpConfiguration.getDkimDomain());
+    writeString(out, smtpConfiguration.getDkimSelector());
+    writeString(out, smtpConfiguration.getDkimPrivateKeyFile());
+    out.writeBoolean(smtpConfiguration.getTimeoutMillis() != null);
+    if (smtpConfiguration.getTimeoutMillis() != null)
+      out.writeInt(smtpConfiguration.getTimeoutMillis());
+  }
+
+  /**
+   * Reads a single SMTP configuration written by writeConfiguration().
+   * 
+   * @param in The input to read from.
+   * @return The SMTP configuration.
+   * @throws IOException Thrown if the input couldn't be read.
+   */
+  static SmtpConfiguration readConfiguration(DataInput in) throws IOException {
+    SmtpConfiguration smtpConfiguration = new SmtpConfiguration();
+    smtpConfiguration.setConfigurationName(readString(in));
+    smtpConfiguration.setSmtpHostname(readString(in));
+    smtpConfiguration.setSmtpPort(in.readBoolean() ? Integer.valueOf(in.readInt()) : null);
+    smtpConfiguration.setTls(in.readBoolean());
+    smtpConfiguration.setSsl(in.readBoolean());
+    smtpConfiguration.setUsername(readString(in));
+    smtpConfiguration.setPassword(readString(in));
+    smtpConfiguration.setFromEMail(readString(in));
+    smtpConfiguration.setFromSenderName(readString(in));
+    smtpConfiguration.setDkimDomain(readString(in));
+    smtpConfiguration.setDkimSelector(readString(in));
+    smtpConfiguration.setDkimPrivateKeyFile(readString(in));
+    smtpConfiguration.setTimeoutMillis(in.readBoolean() ? Integer.valueOf(in.readInt()) : null);
+    return smtpConfiguration;
+  }
+
+  private static void writeString(DataOutput out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null)
+      out.writeUTF(value);
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  /**
+   * Writes a snapshot at build time.<br/>
+   * Usage: SmtpConfigurationSnapshot &lt;smtp.json&gt; &lt;snapshot file&gt; [&lt;template directory&gt;...]<br/>
+   * The template directories are indexed as given with MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_FILE. Template locations on the
+   * classpath are indexed on first use and persisted with MessageHandlerEMail.writeSnapshot().
+   * 
+   * @param args The smtp.json, the snapshot file and the template directories to index.
+   * @throws Exception Thrown if the snapshot couldn't be written.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: SmtpConfigurationSnapshot <smtp.json> <snapshot file> [<template directory>...]");
+      System.exit(1);
+    }
+
+    byte[] source = FileUtils.readFileToByteArray(new File(args[0]));
+    Map<String, SmtpConfiguration> smtpConfigurations = new SmtpConfigurationReader(new ByteArrayInputStream(source)).readAll();
+
+    TemplateIndex templateIndex = new TemplateIndex();
+    for (int i = 2; i < args.length; i++)
+      templateIndex.lookup(new File(args[i]).getAbsoluteFile());
+
+    new SmtpConfigurationSnapshot(checksum(source), smtpConfigurations, templateIndex.getEntries()).write(new File(args[1]));
+  }
+}
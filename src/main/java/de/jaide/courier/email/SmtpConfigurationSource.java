@@ -0,0 +1,37 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.io.IOException;
+
+/**
+ * Where the SMTP configurations come from, e.g. a smtp.json on the classpath, a directory with a file per configuration or an indexed
+ * configuration file.<br/>
+ * Sources are asked for one configuration at a time, so configurations may be loaded lazily. Implementations need to be thread-safe.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public interface SmtpConfigurationSource {
+
+  /**
+   * Loads the SMTP configuration of the given name.
+   * 
+   * @param configurationName The name of the SMTP configuration.
+   * @return The SMTP configuration or null, if there is no configuration of that name.
+   * @throws IOException Thrown if the configuration couldn't be read.
+   */
+  SmtpConfiguration getSmtpConfiguration(String configurationName) throws IOException;
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+
+import de.jaide.courier.json.JsonPrettyWriter;
+
+/**
+ * Writes SMTP configurations in the layout of the smtp.json, one at a time, e.g. for exporting thousands of configurations without
+ * building the document in memory first.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class SmtpConfigurationWriter implements Closeable, Flushable {
+  private final JsonPrettyWriter writer;
+  private boolean started;
+
+  /**
+   * Creates a new writer.
+   * 
+   * @param writer The writer to write the smtp.json to.
+   */
+  public SmtpConfigurationWriter(Writer writer) {
+    this.writer = new JsonPrettyWriter(writer);
+  }
+
+  /**
+   * Writes an SMTP configuration.
+   * 
+   * @param smtpConfiguration The SMTP configuration.
+   * @throws IOException Thrown if the underlying writer failed.
+   */
+  public void write(SmtpConfiguration smtpConfiguration) throws IOException {
+    if (!started) {
+      writer.beginArray();
+      started = true;
+    }
+
+    writer.beginObject();
+    writeMember(writer, smtpConfiguration);
+    writer.endObject();
+  }
+
+  /**
+   * Writes all given SMTP configurations.
+   * 
+   * @param smtpConfigurations The SMTP configurations.
+   * @throws IOException Thrown if the underlying writer failed.
+   */
+  public void writeAll(Collection<SmtpConfiguration> smtpConfigurations) throws IOException {
+    for (SmtpConfiguration smtpConfiguration : smtpConfigurations)
+      write(smtpConfiguration);
+  }
+
+  /**
+   * Completes the document and flushes it to the underlying writer.
+   * 
+   * @throws IOException Thrown if the underlying writer failed.
+   */
+  public void finish() throws IOException {
+    if (!started) {
+      writer.beginArray();
+      started = true;
+    }
+    writer.endArray();
+    writer.flush();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Flushable#flush()
+   */
+  public void flush() throws IOException {
+    writer.flush();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Closeable#close()
+   */
+  public void close() throws IOException {
+    writer.close();
+  }
+
+  /**
+   * Writes an SMTP configuration as a member of the current object, its name mapped to its settings.
+   * 
+   * @param writer The writer.
+   * @param smtpConfiguration The SMTP configuration.
+   * @throws IOException Thrown if the underlying writer failed.
+   */
+  static void writeMember(JsonPrettyWriter writer, SmtpConfiguration smtpConfiguration) throws IOException {
+    writer.name(smtpConfiguration.getConfigurationName()).beginObject();
+    writer.name("smtpHostname").value(smtpConfiguration.getSmtpHostname());
+    writer.name("smtpPort").value(smtpConfiguration.getSmtpPort());
+    writer.name("tls").value(smtpConfiguration.isTls());
+    writer.name("ssl").value(smtpConfiguration.isSsl());
+    writer.name("username").value(smtpConfiguration.getUsername());
+    writer.name("password").value(smtpConfiguration.getPassword());
+    writer.name("fromEMail").value(smtpConfiguration.getFromEMail());
+    writer.name("fromSenderName").value(smtpConfiguration.getFromSenderName());
+    if (smtpConfiguration.getDkimDomain() != null) {
+      writer.name("dkimDomain").value(smtpConfiguration.getDkimDomain());
+      writer.name("dkimSelector").value(smtpConfiguration.getDkimSelector());
+      writer.name("dkimPrivateKeyFile").value(smtpConfiguration.getDkimPrivateKeyFile());
+    }
+    if (smtpConfiguration.getTimeoutMillis() != null)
+      writer.name("timeoutMillis").value(smtpConfiguration.getTimeoutMillis());
+    writer.endObject();
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.mail.EmailException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+
+import de.jaide.courier.delivery.DeliveryEvent;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.exception.MessageTimeoutException;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageStage;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+
+/**
+ * Sends the assembled MIME message to the SMTP server of its configuration.<br/>
+ * The last reply of the server, the queue ID it mentions, if any, and the Message-ID are stored as attributes for the delivery events,
+ * whether sending succeeded or not.<br/>
+ * If the message has a time budget, JavaMail's connection and read timeouts are shortened to the time left when connecting. JavaMail
+ * applies the read timeout to each reply, so a server answering slowly but steadily may still take longer; the SmtpClientTransportStage
+ * checks the time left before each reply.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class SmtpTransportStage implements MessageStage {
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#getName()
+   */
+  public String getName() {
+    return PipelineMessageHandler.STAGE_TRANSPORT;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  public void process(MessageContext context) throws CourierException {
+    MimeMessage message = (MimeMessage) context.getEncodedMessage();
+    SmtpConfiguration smtpConfiguration = (SmtpConfiguration) context.getAttribute(MimeAssemblyStage.ATTRIBUTE_SMTP_CONFIGURATION);
+
+    try {
+      if (message instanceof CourierMimeMessage)
+        send((CourierMimeMessage) message, context);
+      else
+        Transport.send(message);
+    } catch (MessagingException me) {
+      CourierException ce = new CourierException(new EmailException("Sending the email to the following server failed : "
+          + smtpConfiguration.getSmtpHostname() + ":" + smtpConfiguration.getSmtpPort(), me));
+      if (context.getRemainingNanos() <= 0)
+        throw new MessageTimeoutException(PipelineMessageHandler.STAGE_TRANSPORT, context.getTimeoutMillis(), ce);
+      throw ce;
+    }
+  }
+
+  /**
+   * Does what Transport.send() does, but keeps hold of the transport, so the server's reply can be read before the connection is closed.
+   */
+  private void send(CourierMimeMessage message, MessageContext context) throws MessagingException {
+    message.saveChanges();
+    context.setAttribute(DeliveryEvent.ATTRIBUTE_MESSAGE_ID, message.getMessageID());
+
+    Address[] recipients = message.getAllRecipients();
+    if ((recipients == null) || (recipients.length == 0))
+      throw new SendFailedException("No recipient addresses");
+
+    Session session = message.getSession();
+    limitTimeouts(session.getProperties(), context);
+    Transport transport = session.getTransport(recipients[0]);
+    String reply = null;
+    try {
+      transport.connect();
+      transport.sendMessage(message, recipients);
+    } catch (MessagingException me) {
+      reply = getFailureReply(me);
+      throw me;
+    } finally {
+      if ((reply == null) && (transport instanceof SMTPTransport))
+        reply = ((SMTPTransport) transport).getLastServerResponse();
+      recordReply(context, reply);
+      transport.close();
+    }
+  }
+
+  /**
+   * Shortens the timeouts of the message's session to the time left of its budget. The session belongs to this message alone.
+   */
+  private static void limitTimeouts(Properties properties, MessageContext context) {
+    long remainingNanos = context.getRemainingNanos();
+    if (remainingNanos == Long.MAX_VALUE)
+      return;
+    if (remainingNanos <= 0)
+      throw new MessageTimeoutException(PipelineMessageHandler.STAGE_TRANSPORT, context.getTimeoutMillis(), null);
+
+    long remainingMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos));
+    for (String name : new String[] { "mail.smtp.connectiontimeout", "mail.smtp.timeout" }) {
+      long timeout = parseMillis(properties.getProperty(name));
+      if ((timeout <= 0) || (timeout > remainingMillis))
+        properties.setProperty(name, String.valueOf(remainingMillis));
+    }
+  }
+
+  /**
+   * Returns the timeout of a session property, 0 (infinite for JavaMail) if it isn't set or isn't a number.
+   */
+  private static long parseMillis(String value) {
+    try {
+      return value == null ? 0 : Long.parseLong(value.trim());
+    } catch (NumberFormatException nfe) {
+      return 0;
+    }
+  }
+
+  /**
+   * Returns the reply the server rejected the message or a recipient with. JavaMail may have talked to the server since, e.g. to reset
+   * the session, so the transport's last reply isn't necessarily the one that counts.
+   */
+  private static String getFailureReply(MessagingException me) {
+    Exception exception = me;
+    while (exception != null) {
+      if ((exception instanceof SMTPSendFailedException) || (exception instanceof SMTPAddressFailedException))
+        return exception.getMessage();
+      exception = exception instanceof MessagingException ? ((MessagingException) exception).getNextException() : null;
+    }
+
+    return null;
+  }
+
+  /**
+   * Stores the server's reply and the queue ID it mentions, if any, as attributes for the delivery events.
+   * 
+   * @param context The state of the message.
+   * @param reply The reply of the server. Nothing is stored if null.
+   */
+  private static void recordReply(MessageContext context, String reply) {
+    if (reply == null)
+      return;
+
+    reply = reply.trim();
+    context.setAttribute(DeliveryEvent.ATTRIBUTE_SERVER_REPLY, reply);
+    String queueId = DeliveryEvent.parseQueueId(reply);
+    if (queueId != null)
+      context.setAttribute(DeliveryEvent.ATTRIBUTE_QUEUE_ID, queueId);
+  }
+}
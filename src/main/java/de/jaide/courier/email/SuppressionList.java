@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The addresses no e-mails may be sent to, e.g. since they bounced or unsubscribed. Only a 64 bit hash of each address is kept, in an
+ * open-addressing table, so a million addresses take about 16 MB rather than the hundreds of MB of a HashSet of strings. Two addresses
+ * sharing a hash are practically impossible with a few million addresses.<br/>
+ * Addresses are compared ignoring case and are expected in the normal form of the AddressNormalizer. Lookups don't lock, so they aren't
+ * held up by addresses being added.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class SuppressionList {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /**
+   * The hashes, 0 marking an empty slot. The length is a power of two and the table at most half full.
+   */
+  private volatile AtomicLongArray table = new AtomicLongArray(INITIAL_CAPACITY);
+
+  private int size;
+
+  /**
+   * Adds an address.
+   * 
+   * @param address The address in normal form.
+   * @return True, if the address wasn't on the list yet.
+   */
+  public synchronized boolean add(String address) {
+    long hash = hash(address);
+    if (contains(table, hash))
+      return false;
+
+    if (2 * (size + 1) > table.length()) {
+      AtomicLongArray grown = new AtomicLongArray(table.length() * 2);
+      for (int i = 0; i < table.length(); i++) {
+        if (table.get(i) != 0)
+          insert(grown, table.get(i));
+      }
+      table = grown;
+    }
+    insert(table, hash);
+    size++;
+    return true;
+  }
+
+  /**
+   * Tells if an address is on the list.
+   * 
+   * @param address The address in normal form.
+   * @return True, if the address is on the list.
+   */
+  public boolean contains(String address) {
+    return contains(table, hash(address));
+  }
+
+  /**
+   * The number of addresses on the list.
+   * 
+   * @return The number of addresses.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  private static boolean contains(AtomicLongArray table, long hash) {
+    int mask = table.length() - 1;
+    for (int i = (int) hash & mask;; i = (i + 1) & mask) {
+      long slot = table.get(i);
+      if (slot == hash)
+        return true;
+      if (slot == 0)
+        return false;
+    }
+  }
+
+  private static void insert(AtomicLongArray table, long hash) {
+    int mask = table.length() - 1;
+    int i = (int) hash & mask;
+    while (table.get(i) != 0)
+      i = (i + 1) & mask;
+    table.set(i, hash);
+  }
+
+  /**
+   * FNV-1a over the characters in lower case, with the bits spread afterwards, never 0.
+   */
+  private static long hash(String address) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < address.length(); i++) {
+      char c = address.charAt(i);
+      if ((c >= 'A') && (c <= 'Z'))
+        c += 'a' - 'A';
+      else if (c > 127)
+        c = Character.toLowerCase(c);
+      hash = (hash ^ c) * 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash == 0 ? 1 : hash;
+  }
+}
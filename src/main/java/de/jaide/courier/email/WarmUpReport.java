@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The outcome of warming up an e-mail handler.
+ * 
+ * @see EMailWarmUp#run()
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class WarmUpReport {
+  private final int templates;
+  private final long renders;
+  private final long connections;
+  private final Map<String, String> failures;
+  private final long elapsedMillis;
+
+  WarmUpReport(int templates, long renders, long connections, Map<String, String> failures, long elapsedMillis) {
+    this.templates = templates;
+    this.renders = renders;
+    this.connections = connections;
+    this.failures = Collections.unmodifiableMap(failures);
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  /**
+   * The number of templates found.
+   * 
+   * @return The number of templates.
+   */
+  public int getTemplates() {
+    return templates;
+  }
+
+  /**
+   * The number of synthetic e-mails run through the stages without failing.
+   * 
+   * @return The number of synthetic e-mails.
+   */
+  public long getRenders() {
+    return renders;
+  }
+
+  /**
+   * The number of SMTP connections opened.
+   * 
+   * @return The number of connections.
+   */
+  public long getConnections() {
+    return connections;
+  }
+
+  /**
+   * What failed: the template locations that couldn't be listed, the templates that failed with the synthetic model, prefixed with their
+   * location, and the SMTP configurations that couldn't be connected to, prefixed with "smtp:".
+   * 
+   * @return The failures' messages, by what failed. Empty, if nothing failed.
+   */
+  public Map<String, String> getFailures() {
+    return failures;
+  }
+
+  /**
+   * How long the warm-up took.
+   * 
+   * @return The time in milliseconds.
+   */
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email.dkim;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import de.jaide.courier.email.CourierMimeMessage;
+import de.jaide.courier.email.MimeAssemblyStage;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageStage;
+
+/**
+ * DKIM-signs the assembled MIME message, if its SMTP configuration has a DKIM domain, selector and private key. Runs right after the MIME
+ * assembly, the message is sealed afterwards so the transport sends exactly the signed bytes.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class DkimSigningStage implements MessageStage {
+  /**
+   * The name of this stage.
+   */
+  public static final String STAGE_DKIM = "dkim";
+
+  /**
+   * The signers, by SMTP configuration.
+   */
+  private final ConcurrentMap<String, DkimSigner> signers = new ConcurrentHashMap<String, DkimSigner>();
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#getName()
+   */
+  public String getName() {
+    return STAGE_DKIM;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  public void process(MessageContext context) throws CourierException {
+    SmtpConfiguration smtpConfiguration = (SmtpConfiguration) context.getAttribute(MimeAssemblyStage.ATTRIBUTE_SMTP_CONFIGURATION);
+    if ((smtpConfiguration == null) || (smtpConfiguration.getDkimDomain() == null))
+      return;
+
+    MimeMessage message = (MimeMessage) context.getEncodedMessage();
+    try {
+      if (message instanceof CourierMimeMessage)
+        ((CourierMimeMessage) message).seal();
+      else
+        message.saveChanges();
+
+      getSigner(smtpConfiguration).sign(message);
+    } catch (MessagingException me) {
+      throw new CourierException(me);
+    } catch (IOException ioe) {
+      throw new CourierException(ioe);
+    }
+  }
+
+  /**
+   * Returns the signer of the given SMTP configuration. The signer is created on first use, and again once the private key file changed.
+   * 
+   * @param smtpConfiguration The SMTP configuration.
+   * @return The signer.
+   * @throws IOException Thrown if the private key couldn't be loaded.
+   */
+  private DkimSigner getSigner(SmtpConfiguration smtpConfiguration) throws IOException {
+    if ((smtpConfiguration.getDkimSelector() == null) || (smtpConfiguration.getDkimPrivateKeyFile() == null))
+      throw new CourierException("The SMTP configuration '" + smtpConfiguration.getConfigurationName()
+          + "' has a DKIM domain but lacks the DKIM selector or private key file.");
+
+    String key = smtpConfiguration.getConfigurationName() + ":" + smtpConfiguration.getDkimDomain() + ":"
+        + smtpConfiguration.getDkimSelector() + ":" + smtpConfiguration.getDkimPrivateKeyFile();
+    PrivateKey privateKey = DkimSigner.loadPrivateKey(new File(smtpConfiguration.getDkimPrivateKeyFile()));
+    DkimSigner signer = signers.get(key);
+
+    if ((signer == null) || (signer.getPrivateKey() != privateKey)) {
+      signer = new DkimSigner(smtpConfiguration.getDkimDomain(), smtpConfiguration.getDkimSelector(), privateKey);
+      signers.put(key, signer);
+    }
+
+    return signer;
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email.dkim;
+
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Canonicalizes a message body using the DKIM "relaxed" body algorithm (RFC 6376, section 3.4.4) and feeds it into a digest while it is
+ * being written, so the body never needs to be buffered.<br/>
+ * If the stream is told to skip the headers everything up to and including the first empty line is ignored, hence a complete message may be
+ * written into it with MimeMessage.writeTo().
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class RelaxedBodyHashOutputStream extends OutputStream {
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  private final MessageDigest digest;
+
+  private boolean inHeaders;
+  private int headerLineLength;
+
+  /**
+   * Whitespace seen on the current line that hasn't been written yet. Reduced to a single space if followed by anything else, dropped at the
+   * end of the line.
+   */
+  private boolean pendingWhitespace;
+
+  /**
+   * Line breaks that haven't been written yet. Dropped if nothing but empty lines follows.
+   */
+  private int pendingLineBreaks;
+
+  /**
+   * A carriage return that may or may not be followed by a line feed.
+   */
+  private boolean pendingCarriageReturn;
+
+  /**
+   * True, once anything other than whitespace and line breaks was written.
+   */
+  private boolean hasContent;
+
+  /**
+   * Creates a new stream.
+   * 
+   * @param digest The digest to feed the canonicalized body into. Expected to be freshly reset.
+   * @param skipHeaders If set to true then everything up to and including the first empty line is ignored.
+   */
+  public RelaxedBodyHashOutputStream(MessageDigest digest, boolean skipHeaders) {
+    this.digest = digest;
+    this.inHeaders = skipHeaders;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.OutputStream#write(int)
+   */
+  @Override
+  public void write(int b) {
+    if (inHeaders) {
+      if (b == '\n') {
+        if (headerLineLength == 0)
+          inHeaders = false;
+        headerLineLength = 0;
+      } else if (b != '\r')
+        headerLineLength++;
+      return;
+    }
+
+    if (pendingCarriageReturn) {
+      pendingCarriageReturn = false;
+      if (b == '\n') {
+        endLine();
+        return;
+      }
+      content('\r');
+    }
+
+    if (b == '\r')
+      pendingCarriageReturn = true;
+    else if (b == '\n')
+      endLine();
+    else if ((b == ' ') || (b == '\t'))
+      pendingWhitespace = true;
+    else
+      content(b);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.OutputStream#write(byte[], int, int)
+   */
+  @Override
+  public void write(byte[] bytes, int offset, int length) {
+    int end = offset + length;
+    int i = offset;
+    while (i < end) {
+      /*
+       * Plain runs of content are handed to the digest in one go, anything else goes through the state machine.
+       */
+      if (!inHeaders && !pendingCarriageReturn && !pendingWhitespace && (pendingLineBreaks == 0)) {
+        int start = i;
+        while ((i < end) && isPlain(bytes[i]))
+          i++;
+        if (i > start) {
+          digest.update(bytes, start, i - start);
+          hasContent = true;
+          continue;
+        }
+      }
+
+      write(bytes[i++]);
+    }
+  }
+
+  /**
+   * Finishes the body: trailing empty lines are dropped and a non-empty body always ends with a line break.
+   * 
+   * @return The digest of the canonicalized body.
+   */
+  public byte[] digest() {
+    if (pendingCarriageReturn) {
+      pendingCarriageReturn = false;
+      content('\r');
+    }
+    if (hasContent)
+      digest.update(CRLF);
+
+    return digest.digest();
+  }
+
+  private static boolean isPlain(byte b) {
+    return (b != '\r') && (b != '\n') && (b != ' ') && (b != '\t');
+  }
+
+  private void endLine() {
+    pendingWhitespace = false;
+    pendingLineBreaks++;
+  }
+
+  private void content(int b) {
+    for (; pendingLineBreaks > 0; pendingLineBreaks--)
+      digest.update(CRLF);
+    if (pendingWhitespace) {
+      digest.update((byte) ' ');
+      pendingWhitespace = false;
+    }
+
+    digest.update((byte) b);
+    hasContent = true;
+  }
+}
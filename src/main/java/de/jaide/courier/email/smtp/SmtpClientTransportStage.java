@@ -0,0 +1,333 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email.smtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+
+import org.apache.commons.mail.EmailException;
+
+import com.sun.mail.util.CRLFOutputStream;
+
+import de.jaide.courier.delivery.DeliveryEvent;
+import de.jaide.courier.email.CourierMimeMessage;
+import de.jaide.courier.email.MimeAssemblyStage;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.exception.MessageTimeoutException;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageStage;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+
+/**
+ * Sends the assembled MIME message with the SMTP client of this package instead of JavaMail's transport: over pooled connections, with
+ * PIPELINING cutting the round trips per message to two, CHUNKING sparing the dot-stuffing, and with 8BITMIME sending UTF-8 text as it is instead of as
+ * quoted-printable or base64, as far as the server supports each of them.<br/>
+ * Text parts are only switched to 8bit as long as the message wasn't sealed, e.g. by DKIM signing, since the signature covers the encoded
+ * body. Like the SmtpTransportStage, the server's reply, its queue ID and the Message-ID are stored as attributes for the delivery events.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class SmtpClientTransportStage implements MessageStage {
+  /**
+   * The headers that are never sent.
+   */
+  private static final String[] IGNORED_HEADERS = { "Bcc", "Content-Length" };
+
+  /**
+   * The phase of a MessageTimeoutException thrown while waiting for a connection to the server.
+   */
+  public static final String PHASE_CONNECT = "connect";
+
+  private final SmtpConnectionPool pool;
+
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong eightBitMessages = new AtomicLong();
+  private final AtomicLong roundTrips = new AtomicLong();
+  private final AtomicLong bytesWritten = new AtomicLong();
+
+  /**
+   * Creates a new stage with a connection pool of the default limits.
+   */
+  public SmtpClientTransportStage() {
+    this(new SmtpConnectionPool());
+  }
+
+  /**
+   * Creates a new stage.
+   * 
+   * @param pool The pool of the connections to the SMTP servers.
+   */
+  public SmtpClientTransportStage(SmtpConnectionPool pool) {
+    this.pool = pool;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#getName()
+   */
+  public String getName() {
+    return PipelineMessageHandler.STAGE_TRANSPORT;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  public void process(MessageContext context) throws CourierException {
+    MimeMessage message = (MimeMessage) context.getEncodedMessage();
+    SmtpConfiguration smtpConfiguration = (SmtpConfiguration) context.getAttribute(MimeAssemblyStage.ATTRIBUTE_SMTP_CONFIGURATION);
+    long deadlineNanos = context.getDeadlineNanos();
+    String phase = PHASE_CONNECT;
+
+    try {
+      message.saveChanges();
+      context.setAttribute(DeliveryEvent.ATTRIBUTE_MESSAGE_ID, message.getMessageID());
+      String from = getEnvelopeSender(message);
+      List<String> recipients = getEnvelopeRecipients(message);
+
+      /*
+       * An idle connection may have been closed by the server in the meantime, which only shows once it is used. If the server didn't
+       * answer at all, the message is sent once more on a new connection, as long as there is time left. Connecting and each reply of the
+       * server are bounded by the message's deadline.
+       */
+      SmtpReply reply = null;
+      for (int attempt = 0; reply == null; attempt++) {
+        phase = PHASE_CONNECT;
+        SmtpConnection connection = attempt == 0 ? pool.borrow(smtpConfiguration, deadlineNanos) : pool.open(smtpConfiguration,
+            deadlineNanos);
+        boolean reused = connection.getTransactions() > 0;
+        phase = PipelineMessageHandler.STAGE_TRANSPORT;
+        connection.setDeadline(deadlineNanos);
+        try {
+          reply = send(connection, message, from, recipients);
+        } catch (IOException ioe) {
+          if (!reused || (ioe instanceof SmtpReplyException) || (connection.getTransactionReplies() > 0)
+              || (context.getRemainingNanos() <= 0))
+            throw ioe;
+        } finally {
+          connection.setDeadline(Long.MAX_VALUE);
+          pool.release(connection);
+        }
+      }
+      recordReply(context, reply);
+    } catch (SmtpReplyException sre) {
+      recordReply(context, sre.getReply());
+      throw createException(smtpConfiguration, sre);
+    } catch (IOException ioe) {
+      if (context.getRemainingNanos() <= 0)
+        throw new MessageTimeoutException(phase, context.getTimeoutMillis(), createException(smtpConfiguration, ioe));
+      throw createException(smtpConfiguration, ioe);
+    } catch (MessagingException me) {
+      throw createException(smtpConfiguration, me);
+    }
+  }
+
+  private SmtpReply send(SmtpConnection connection, MimeMessage message, String from, List<String> recipients) throws IOException,
+      MessagingException {
+    boolean eightBit = connection.supports("8BITMIME") && !isSealed(message) && convertTo8Bit(message);
+    MessageBuffer content = new MessageBuffer();
+    message.writeTo(new CRLFOutputStream(content), IGNORED_HEADERS);
+
+    long roundTripsBefore = connection.getRoundTrips();
+    long bytesWrittenBefore = connection.getBytesWritten();
+    try {
+      SmtpReply reply = connection.send(from, recipients, content.getBuffer(), content.size(), eightBit);
+      messages.incrementAndGet();
+      if (eightBit)
+        eightBitMessages.incrementAndGet();
+      return reply;
+    } finally {
+      roundTrips.addAndGet(connection.getRoundTrips() - roundTripsBefore);
+      bytesWritten.addAndGet(connection.getBytesWritten() - bytesWrittenBefore);
+    }
+  }
+
+  /**
+   * Switches the text parts encoded as quoted-printable or base64 to 8bit, as long as their lines aren't too long for SMTP. Attachments are
+   * left alone.
+   * 
+   * @param part The message or one of its parts.
+   * @return True, if the part is or contains an 8bit part now.
+   */
+  private static boolean convertTo8Bit(MimePart part) throws MessagingException, IOException {
+    if (part.isMimeType("multipart/*")) {
+      Multipart multipart = (Multipart) part.getContent();
+      boolean eightBit = false;
+      for (int i = 0; i < multipart.getCount(); i++)
+        eightBit |= convertTo8Bit((MimePart) multipart.getBodyPart(i));
+      return eightBit;
+    }
+
+    String encoding = part.getEncoding();
+    if ("8bit".equalsIgnoreCase(encoding))
+      return true;
+    if (!part.isMimeType("text/*") || Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition())
+        || !("quoted-printable".equalsIgnoreCase(encoding) || "base64".equalsIgnoreCase(encoding)))
+      return false;
+
+    Object content = part.getContent();
+    if (!(content instanceof String) || !fitsInto8Bit((String) content))
+      return false;
+
+    part.setHeader("Content-Transfer-Encoding", "8bit");
+    return true;
+  }
+
+  /**
+   * True, if no line of the text is longer than SMTP allows, in UTF-8, and it doesn't contain NUL characters.
+   */
+  private static boolean fitsInto8Bit(String text) {
+    int lineLength = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == 0)
+        return false;
+
+      if ((c == '\r') || (c == '\n'))
+        lineLength = 0;
+      else
+        lineLength += c < 0x80 ? 1 : (c < 0x800) || Character.isHighSurrogate(c) || Character.isLowSurrogate(c) ? 2 : 3;
+      if (lineLength > SmtpConnection.MAXIMUM_LINE_LENGTH)
+        return false;
+    }
+
+    return true;
+  }
+
+  private static boolean isSealed(MimeMessage message) {
+    return (message instanceof CourierMimeMessage) && ((CourierMimeMessage) message).isSealed();
+  }
+
+  /**
+   * The envelope sender is the bounce address, if there is one, otherwise the sender of the message.
+   */
+  private static String getEnvelopeSender(MimeMessage message) throws MessagingException {
+    if (message instanceof CourierMimeMessage) {
+      String bounceAddress = ((CourierMimeMessage) message).getSession().getProperty("mail.smtp.from");
+      if (bounceAddress != null)
+        return bounceAddress;
+    }
+
+    Address[] from = message.getFrom();
+    if ((from == null) || (from.length == 0))
+      throw new SendFailedException("No sender address");
+    return ((InternetAddress) from[0]).getAddress();
+  }
+
+  private static List<String> getEnvelopeRecipients(MimeMessage message) throws MessagingException {
+    Address[] addresses = message.getAllRecipients();
+    if ((addresses == null) || (addresses.length == 0))
+      throw new SendFailedException("No recipient addresses");
+
+    List<String> recipients = new ArrayList<String>(addresses.length);
+    for (Address address : addresses)
+      recipients.add(((InternetAddress) address).getAddress());
+    return recipients;
+  }
+
+  private static void recordReply(MessageContext context, SmtpReply reply) {
+    String serverReply = reply.toString();
+    context.setAttribute(DeliveryEvent.ATTRIBUTE_SERVER_REPLY, serverReply);
+    String queueId = DeliveryEvent.parseQueueId(serverReply);
+    if (queueId != null)
+      context.setAttribute(DeliveryEvent.ATTRIBUTE_QUEUE_ID, queueId);
+  }
+
+  private static CourierException createException(SmtpConfiguration smtpConfiguration, Exception e) {
+    return new CourierException(new EmailException("Sending the email to the following server failed : "
+        + smtpConfiguration.getSmtpHostname() + ":" + smtpConfiguration.getSmtpPort(), e));
+  }
+
+  /**
+   * Hands out its buffer, so the message isn't copied once more before it is sent.
+   */
+  private static class MessageBuffer extends ByteArrayOutputStream {
+    MessageBuffer() {
+      super(8192);
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+
+  /**
+   * The pool of the connections to the SMTP servers.
+   * 
+   * @return The connection pool.
+   */
+  public SmtpConnectionPool getPool() {
+    return pool;
+  }
+
+  /**
+   * The number of messages the servers accepted.
+   * 
+   * @return The number of messages.
+   */
+  public long getMessages() {
+    return messages.get();
+  }
+
+  /**
+   * The number of accepted messages that were sent with 8bit text parts.
+   * 
+   * @return The number of messages.
+   */
+  public long getEightBitMessages() {
+    return eightBitMessages.get();
+  }
+
+  /**
+   * The number of round trips to the servers for sending messages, not counting connecting.
+   * 
+   * @return The number of round trips.
+   */
+  public long getRoundTrips() {
+    return roundTrips.get();
+  }
+
+  /**
+   * The number of bytes written to the servers for sending messages, commands included and connecting not counted.
+   * 
+   * @return The number of bytes.
+   */
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /**
+   * Closes the idle connections to the SMTP servers.
+   */
+  public void close() {
+    pool.close();
+  }
+}
@@ -0,0 +1,629 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email.smtp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.sun.mail.util.BASE64EncoderStream;
+
+import de.jaide.courier.email.SmtpConfiguration;
+
+/**
+ * A connection to an SMTP server that sends one message after the other, using the ESMTP extensions the server advertises in its reply to
+ * EHLO:
+ * <ul>
+ * <li>PIPELINING: MAIL FROM, all RCPT TO and DATA are written at once and their replies read afterwards, instead of waiting for each reply
+ * in turn.</li>
+ * <li>CHUNKING: the message is sent with BDAT once the server accepted the sender and all recipients, as it is, without dot-stuffing.</li>
+ * <li>8BITMIME: messages with 8bit text parts are announced with BODY=8BITMIME, so UTF-8 text needn't be encoded as quoted-printable or
+ * base64.</li>
+ * <li>SIZE: the size of the message is announced, so the server may reject a message that is too large before it is sent.</li>
+ * </ul>
+ * Instances are not thread-safe, a connection is used by one thread at a time, e.g. as handed out by the SmtpConnectionPool.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class SmtpConnection {
+  /**
+   * The maximum length of a line of a message, in bytes and without the line break (RFC 5321).
+   */
+  public static final int MAXIMUM_LINE_LENGTH = 998;
+
+  private static final byte[] CRLF = { '\r', '\n' };
+  private static final byte[] END_OF_DATA = { '.', '\r', '\n' };
+
+  private final SmtpConfiguration configuration;
+  private final String localHostname;
+
+  /**
+   * The time to wait for each reply of the server, and the time the current message has to be sent by, as returned by System.nanoTime().
+   * The socket's timeout is the shorter of both, it is only changed when it differs from the one set last.
+   */
+  private final int timeoutMillis;
+  private long deadlineNanos = Long.MAX_VALUE;
+  private int soTimeoutMillis;
+
+  private Socket socket;
+  private InputStream in;
+  private OutputStream out;
+
+  /**
+   * The extensions the server advertised, by their upper case keyword, and their parameters, e.g. "SIZE" and "35882577".
+   */
+  private final Map<String, String> extensions = new HashMap<String, String>();
+
+  /**
+   * False, once the connection is in an unknown state, e.g. after an I/O error or an aborted transaction.
+   */
+  private boolean reusable = true;
+
+  private long roundTrips;
+  private long bytesWritten;
+  private int transactions;
+  private int messages;
+  private int transactionReplies;
+  private long lastUsedMillis;
+
+  /**
+   * Connects to the server of the given configuration: reads the greeting, sends EHLO, starts TLS if the configuration asks for it and
+   * authenticates if the configuration has a username and the connection is encrypted.
+   * 
+   * @param configuration The SMTP configuration of the server.
+   * @param localHostname The name of this host, sent with EHLO.
+   * @param timeoutMillis The time to wait for connecting and for each reply of the server.
+   * @throws IOException Thrown if the server couldn't be reached or rejected the connection.
+   */
+  public SmtpConnection(SmtpConfiguration configuration, String localHostname, int timeoutMillis) throws IOException {
+    this(configuration, localHostname, timeoutMillis, Long.MAX_VALUE);
+  }
+
+  /**
+   * Connects to the server of the given configuration, like the other constructor, but gives up once the deadline passed.
+   * 
+   * @param configuration The SMTP configuration of the server.
+   * @param localHostname The name of this host, sent with EHLO.
+   * @param timeoutMillis The time to wait for connecting and for each reply of the server.
+   * @param deadlineNanos The time connecting has to be done by, as returned by System.nanoTime(), Long.MAX_VALUE for none.
+   * @throws IOException Thrown if the server couldn't be reached or rejected the connection, a SocketTimeoutException if the deadline
+   *           passed.
+   */
+  public SmtpConnection(SmtpConfiguration configuration, String localHostname, int timeoutMillis, long deadlineNanos) throws IOException {
+    this.configuration = configuration;
+    this.localHostname = localHostname;
+    this.timeoutMillis = timeoutMillis;
+    this.deadlineNanos = deadlineNanos;
+
+    Socket plainSocket = new Socket();
+    socket = plainSocket;
+    try {
+      int connectTimeoutMillis = getTimeoutMillis();
+      plainSocket.connect(new InetSocketAddress(configuration.getSmtpHostname(), configuration.getSmtpPort()), connectTimeoutMillis);
+      plainSocket.setSoTimeout(connectTimeoutMillis);
+      soTimeoutMillis = connectTimeoutMillis;
+      plainSocket.setTcpNoDelay(true);
+      open(configuration.isSsl() ? startSsl(plainSocket) : plainSocket);
+
+      SmtpReply greeting = readReply();
+      if (greeting.getCode() != 220)
+        throw new SmtpReplyException("connect", greeting);
+      hello();
+
+      if (configuration.isTls() && !configuration.isSsl()) {
+        if (!supports("STARTTLS"))
+          throw new IOException("The SMTP server " + getServer() + " doesn't support STARTTLS.");
+        command("STARTTLS", "STARTTLS", 220);
+        open(startSsl(socket));
+        hello();
+      }
+
+      if ((configuration.getUsername() != null) && (configuration.isTls() || configuration.isSsl()) && supports("AUTH"))
+        authenticate();
+    } catch (IOException ioe) {
+      reusable = false;
+      closeSocket();
+      throw ioe;
+    }
+
+    this.deadlineNanos = Long.MAX_VALUE;
+
+    lastUsedMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Sends a message. With PIPELINING the sender and all recipients go to the server at once, together with DATA if the server doesn't
+   * support CHUNKING, and the message follows once the server accepted all of them: two round trips per message. Servers without
+   * PIPELINING are talked to command by command.<br/>
+   * The message is rejected as a whole if the server rejects any of the recipients, and it is never sent in that case, so retrying it
+   * doesn't deliver it twice to the recipients the server accepted. BDAT is only sent once all recipients were accepted. A pipelined DATA
+   * the server accepted regardless is taken back by closing the connection, since that's the only way to abort it.
+   * 
+   * @param from The envelope sender.
+   * @param recipients The envelope recipients.
+   * @param content The message, including the headers, with CRLF line breaks and not dot-stuffed.
+   * @param length The length of the message, which takes up the start of the content array.
+   * @param eightBit True if the message contains 8bit text parts. Needs the server to support 8BITMIME.
+   * @return The reply of the server to the message, e.g. "250 2.0.0 Ok: queued as 4F1A2B3C".
+   * @throws SmtpReplyException Thrown if the server rejected the sender, a recipient or the message. The connection may still be reused.
+   * @throws IOException Thrown if talking to the server failed. The connection can't be reused.
+   */
+  public SmtpReply send(String from, List<String> recipients, byte[] content, int length, boolean eightBit) throws IOException {
+    if (recipients.isEmpty())
+      throw new IllegalArgumentException("A message needs at least one recipient.");
+    if (!reusable)
+      throw new IOException("The connection to the SMTP server " + getServer() + " can't be used anymore.");
+
+    transactions++;
+    transactionReplies = 0;
+    StringBuilder mail = new StringBuilder("MAIL FROM:<").append(from).append('>');
+    if (eightBit)
+      mail.append(" BODY=8BITMIME");
+    if (supports("SIZE"))
+      mail.append(" SIZE=").append(length);
+
+    try {
+      SmtpReply reply = supports("PIPELINING") ? sendPipelined(mail.toString(), recipients, content, length) : sendLockStep(
+          mail.toString(), recipients, content, length);
+      messages++;
+      return reply;
+    } catch (SmtpReplyException sre) {
+      if (reusable)
+        reset();
+      else
+        closeSocket();
+      throw sre;
+    } catch (IOException ioe) {
+      reusable = false;
+      closeSocket();
+      throw ioe;
+    } finally {
+      lastUsedMillis = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Writes the envelope at once and reads its replies afterwards. The message itself is only written once the server accepted the sender
+   * and all recipients.
+   */
+  private SmtpReply sendPipelined(String mail, List<String> recipients, byte[] content, int length) throws IOException {
+    boolean chunking = supports("CHUNKING");
+    writeLine(mail);
+    for (String recipient : recipients)
+      writeLine("RCPT TO:<" + recipient + ">");
+    if (!chunking)
+      writeLine("DATA");
+    flush();
+
+    SmtpReplyException rejection = check(mail, readReply(), null);
+    for (String recipient : recipients)
+      rejection = check("RCPT TO:<" + recipient + ">", readReply(), rejection);
+
+    if (chunking) {
+      if (rejection != null)
+        throw rejection;
+      writeLine("BDAT " + length + " LAST");
+      write(content, 0, length);
+      flush();
+      return complete("BDAT", readReply(), null);
+    }
+
+    SmtpReply dataReply = readReply();
+    if (dataReply.getCode() != 354)
+      throw rejection != null ? rejection : new SmtpReplyException("DATA", dataReply);
+    if (rejection != null) {
+      reusable = false;
+      throw rejection;
+    }
+
+    writeData(content, length);
+    flush();
+    return complete("DATA", readReply(), null);
+  }
+
+  /**
+   * Writes one command after the other, waiting for each reply.
+   */
+  private SmtpReply sendLockStep(String mail, List<String> recipients, byte[] content, int length) throws IOException {
+    command(mail, mail, 250);
+    for (String recipient : recipients)
+      command("RCPT TO:<" + recipient + ">", "RCPT TO:<" + recipient + ">", 250);
+
+    if (supports("CHUNKING")) {
+      writeLine("BDAT " + length + " LAST");
+      write(content, 0, length);
+      flush();
+      return complete("BDAT", readReply(), null);
+    }
+
+    command("DATA", "DATA", 354);
+    writeData(content, length);
+    flush();
+    return complete("DATA", readReply(), null);
+  }
+
+  /**
+   * Returns the first rejection: the one so far or the given reply, if the server rejected the command with it.
+   */
+  private static SmtpReplyException check(String command, SmtpReply reply, SmtpReplyException rejection) {
+    if ((rejection == null) && !reply.isPositive())
+      return new SmtpReplyException(command, reply);
+    return rejection;
+  }
+
+  private static SmtpReply complete(String command, SmtpReply reply, SmtpReplyException rejection) throws SmtpReplyException {
+    rejection = check(command, reply, rejection);
+    if (rejection != null)
+      throw rejection;
+    return reply;
+  }
+
+  /**
+   * Resets the transaction after a rejection, so the next message starts afresh.
+   */
+  private void reset() {
+    try {
+      writeLine("RSET");
+      flush();
+      if (!readReply().isPositive())
+        reusable = false;
+    } catch (IOException ioe) {
+      reusable = false;
+    }
+    if (!reusable)
+      closeSocket();
+  }
+
+  /**
+   * Writes the message for DATA: lines starting with a dot get another one, and the message ends with a line holding a single dot.
+   */
+  private void writeData(byte[] content, int length) throws IOException {
+    int start = 0;
+    boolean lineStart = true;
+    for (int i = 0; i < length; i++) {
+      if (lineStart && (content[i] == '.')) {
+        write(content, start, i - start);
+        write(END_OF_DATA, 0, 1);
+        start = i;
+      }
+      lineStart = content[i] == '\n';
+    }
+    write(content, start, length - start);
+
+    if ((length == 0) || (content[length - 1] != '\n'))
+      write(CRLF, 0, CRLF.length);
+    write(END_OF_DATA, 0, END_OF_DATA.length);
+  }
+
+  private void hello() throws IOException {
+    extensions.clear();
+    writeLine("EHLO " + localHostname);
+    flush();
+    SmtpReply reply = readReply();
+    if (!reply.isPositive()) {
+      command("HELO " + localHostname, "HELO", 250);
+      return;
+    }
+
+    List<String> lines = reply.getLines();
+    for (int i = 1; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      int blank = line.indexOf(' ');
+      String keyword = blank < 0 ? line : line.substring(0, blank);
+      extensions.put(keyword.toUpperCase(Locale.ENGLISH), blank < 0 ? "" : line.substring(blank + 1).trim());
+    }
+  }
+
+  /**
+   * Authenticates with AUTH PLAIN or, if the server doesn't offer it, AUTH LOGIN.
+   */
+  private void authenticate() throws IOException {
+    String username = configuration.getUsername();
+    String password = configuration.getPassword() == null ? "" : configuration.getPassword();
+    String mechanisms = " " + getExtension("AUTH").toUpperCase(Locale.ENGLISH) + " ";
+
+    if (mechanisms.contains(" PLAIN ")) {
+      command("AUTH PLAIN " + base64("\0" + username + "\0" + password), "AUTH PLAIN", 235);
+    } else if (mechanisms.contains(" LOGIN ")) {
+      command("AUTH LOGIN", "AUTH LOGIN", 334);
+      command(base64(username), "AUTH LOGIN username", 334);
+      command(base64(password), "AUTH LOGIN password", 235);
+    } else {
+      throw new IOException("The SMTP server " + getServer() + " supports neither AUTH PLAIN nor AUTH LOGIN.");
+    }
+  }
+
+  private static String base64(String text) throws IOException {
+    return new String(BASE64EncoderStream.encode(text.getBytes("UTF-8")), "US-ASCII");
+  }
+
+  /**
+   * Sends a command and waits for its reply.
+   * 
+   * @param command The command.
+   * @param description The command as mentioned in the exception, without any credentials.
+   * @param expectedCode The reply code the command succeeds with.
+   * @return The reply.
+   */
+  private SmtpReply command(String command, String description, int expectedCode) throws IOException {
+    writeLine(command);
+    flush();
+    SmtpReply reply = readReply();
+    if (reply.getCode() != expectedCode)
+      throw new SmtpReplyException(description, reply);
+    return reply;
+  }
+
+  private SmtpReply readReply() throws IOException {
+    List<String> lines = new ArrayList<String>(1);
+    while (true) {
+      applyTimeout();
+      String line = readLine();
+      if (line.length() < 3)
+        throw new IOException("The SMTP server " + getServer() + " sent a malformed reply: " + line);
+
+      int code;
+      try {
+        code = Integer.parseInt(line.substring(0, 3));
+      } catch (NumberFormatException nfe) {
+        throw new IOException("The SMTP server " + getServer() + " sent a malformed reply: " + line);
+      }
+
+      lines.add(line.length() > 4 ? line.substring(4) : "");
+      if ((line.length() < 4) || (line.charAt(3) != '-')) {
+        transactionReplies++;
+        return new SmtpReply(code, lines);
+      }
+    }
+  }
+
+  /**
+   * Shortens the socket's timeout to the time left until the deadline, if that is shorter than the timeout per reply.
+   */
+  private void applyTimeout() throws IOException {
+    int timeout = getTimeoutMillis();
+    if (timeout != soTimeoutMillis) {
+      socket.setSoTimeout(timeout);
+      soTimeoutMillis = timeout;
+    }
+  }
+
+  /**
+   * Returns the time to wait for the server: the timeout per reply, or the time left until the deadline if that is shorter.
+   * 
+   * @throws SocketTimeoutException Thrown if the deadline passed already.
+   */
+  private int getTimeoutMillis() throws SocketTimeoutException {
+    if (deadlineNanos == Long.MAX_VALUE)
+      return timeoutMillis;
+
+    long remainingNanos = deadlineNanos - System.nanoTime();
+    if (remainingNanos <= 0)
+      throw new SocketTimeoutException("The deadline for talking to the SMTP server " + getServer() + " passed.");
+
+    long remainingMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos));
+    return (timeoutMillis > 0) && (timeoutMillis < remainingMillis) ? timeoutMillis : (int) Math.min(remainingMillis, Integer.MAX_VALUE);
+  }
+
+  private String readLine() throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b < 0)
+        throw new EOFException("The SMTP server " + getServer() + " closed the connection.");
+      if (b != '\r')
+        line.write(b);
+    }
+    return line.toString("ISO-8859-1");
+  }
+
+  private void writeLine(String line) throws IOException {
+    byte[] bytes = line.getBytes("ISO-8859-1");
+    write(bytes, 0, bytes.length);
+    write(CRLF, 0, CRLF.length);
+  }
+
+  private void write(byte[] bytes, int offset, int length) throws IOException {
+    out.write(bytes, offset, length);
+    bytesWritten += length;
+  }
+
+  /**
+   * Hands everything written so far to the server. Each flush is followed by waiting for the server, i.e. is a round trip.
+   */
+  private void flush() throws IOException {
+    out.flush();
+    roundTrips++;
+  }
+
+  private void open(Socket socket) throws IOException {
+    this.socket = socket;
+    in = new BufferedInputStream(socket.getInputStream());
+    out = new BufferedOutputStream(socket.getOutputStream(), 16384);
+  }
+
+  private SSLSocket startSsl(Socket plainSocket) throws IOException {
+    SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(plainSocket, configuration
+        .getSmtpHostname(), configuration.getSmtpPort(), true);
+    sslSocket.startHandshake();
+    return sslSocket;
+  }
+
+  private String getServer() {
+    return configuration.getSmtpHostname() + ":" + configuration.getSmtpPort();
+  }
+
+  /**
+   * True, if the server advertised the given extension.
+   * 
+   * @param extension The keyword of the extension, e.g. "PIPELINING".
+   * @return True, if the extension is supported.
+   */
+  public boolean supports(String extension) {
+    return extensions.containsKey(extension.toUpperCase(Locale.ENGLISH));
+  }
+
+  /**
+   * Returns the parameters of an extension, e.g. "PLAIN LOGIN" for AUTH.
+   * 
+   * @param extension The keyword of the extension.
+   * @return The parameters, empty if there are none, or null if the server didn't advertise the extension.
+   */
+  public String getExtension(String extension) {
+    return extensions.get(extension.toUpperCase(Locale.ENGLISH));
+  }
+
+  /**
+   * The extensions the server advertised.
+   * 
+   * @return The parameters of the extensions by their upper case keywords.
+   */
+  public Map<String, String> getExtensions() {
+    return Collections.unmodifiableMap(extensions);
+  }
+
+  /**
+   * Sets the time the current message has to be sent by. Waiting for a reply of the server fails with a SocketTimeoutException once it
+   * passed. Reset it to Long.MAX_VALUE before handing the connection on.
+   * 
+   * @param deadlineNanos The deadline, as returned by System.nanoTime(), Long.MAX_VALUE for none.
+   */
+  public void setDeadline(long deadlineNanos) {
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  /**
+   * The SMTP configuration of the server.
+   * 
+   * @return The SMTP configuration.
+   */
+  public SmtpConfiguration getConfiguration() {
+    return configuration;
+  }
+
+  /**
+   * True, as long as the connection is open and in a known state, so the next message may be sent with it.
+   * 
+   * @return True, if the connection may be reused.
+   */
+  public boolean isReusable() {
+    return reusable && (socket != null);
+  }
+
+  /**
+   * The number of times the server was waited for, including connecting.
+   * 
+   * @return The number of round trips.
+   */
+  public long getRoundTrips() {
+    return roundTrips;
+  }
+
+  /**
+   * The number of bytes written to the server, commands included.
+   * 
+   * @return The number of bytes.
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * The number of messages sending was started for, successfully or not.
+   * 
+   * @return The number of transactions.
+   */
+  public int getTransactions() {
+    return transactions;
+  }
+
+  /**
+   * The number of messages the server accepted.
+   * 
+   * @return The number of messages.
+   */
+  public int getMessages() {
+    return messages;
+  }
+
+  /**
+   * The number of replies the server sent for the current or last message. If it is 0 after a failure, the server didn't answer at all,
+   * e.g. since it closed an idle connection in the meantime.
+   * 
+   * @return The number of replies.
+   */
+  int getTransactionReplies() {
+    return transactionReplies;
+  }
+
+  /**
+   * When the connection was last used.
+   * 
+   * @return The time in milliseconds since the epoch.
+   */
+  public long getLastUsedMillis() {
+    return lastUsedMillis;
+  }
+
+  /**
+   * Says QUIT, if the connection is in a known state, and closes it.
+   */
+  public void close() {
+    if (socket == null)
+      return;
+
+    if (reusable) {
+      reusable = false;
+      try {
+        writeLine("QUIT");
+        flush();
+        readReply();
+      } catch (IOException ioe) {
+        // Closed anyway.
+      }
+    }
+    closeSocket();
+  }
+
+  private void closeSocket() {
+    if (socket == null)
+      return;
+
+    try {
+      socket.close();
+    } catch (IOException ioe) {
+      // Nothing left to do.
+    }
+    socket = null;
+  }
+}
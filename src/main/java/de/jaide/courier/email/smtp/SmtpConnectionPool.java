@@ -0,0 +1,242 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email.smtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.jaide.courier.email.SmtpConfiguration;
+
+/**
+ * Keeps the connections to the SMTP servers open between messages, so a message doesn't have to wait for connecting, EHLO, STARTTLS and
+ * authentication. Idle connections are kept per SMTP configuration, the most recently used one is handed out first. Connections idle for
+ * longer than the idle timeout are closed rather than reused, since servers drop idle clients after a while anyway.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class SmtpConnectionPool {
+  /**
+   * The limits of a pool created with the default constructor.
+   */
+  public static final int DEFAULT_MAXIMUM_IDLE = 8;
+  public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+  public static final int DEFAULT_TIMEOUT_MILLIS = 60000;
+
+  private final ConcurrentMap<String, BlockingDeque<SmtpConnection>> idle = new ConcurrentHashMap<String, BlockingDeque<SmtpConnection>>();
+  private final int maximumIdle;
+  private final long idleTimeoutMillis;
+  private final int timeoutMillis;
+  private final String localHostname;
+
+  private final AtomicLong created = new AtomicLong();
+  private final AtomicLong reused = new AtomicLong();
+
+  /**
+   * Creates a new pool with the default limits.
+   */
+  public SmtpConnectionPool() {
+    this(DEFAULT_MAXIMUM_IDLE, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Creates a new pool.
+   * 
+   * @param maximumIdle The number of idle connections kept per SMTP configuration, at most.
+   * @param idleTimeoutMillis Connections idle for longer than this are closed instead of reused.
+   * @param timeoutMillis The time to wait for connecting and for each reply of the server.
+   */
+  public SmtpConnectionPool(int maximumIdle, long idleTimeoutMillis, int timeoutMillis) {
+    this.maximumIdle = maximumIdle;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.timeoutMillis = timeoutMillis;
+    this.localHostname = getLocalHostname();
+  }
+
+  /**
+   * Returns an idle connection to the server of the given configuration or, if there is none, a new one. Hand it back with release() once
+   * the message is sent.
+   * 
+   * @param configuration The SMTP configuration of the server.
+   * @return The connection.
+   * @throws IOException Thrown if a new connection couldn't be opened.
+   */
+  public SmtpConnection borrow(SmtpConfiguration configuration) throws IOException {
+    return borrow(configuration, Long.MAX_VALUE);
+  }
+
+  /**
+   * Returns an idle connection to the server of the given configuration or, if there is none, a new one that has to be connected by the
+   * deadline.
+   * 
+   * @param configuration The SMTP configuration of the server.
+   * @param deadlineNanos The time a new connection has to be connected by, as returned by System.nanoTime(), Long.MAX_VALUE for none.
+   * @return The connection.
+   * @throws IOException Thrown if a new connection couldn't be opened, a SocketTimeoutException if the deadline passed.
+   */
+  public SmtpConnection borrow(SmtpConfiguration configuration, long deadlineNanos) throws IOException {
+    BlockingDeque<SmtpConnection> connections = idle.get(getKey(configuration));
+    if (connections != null) {
+      SmtpConnection connection;
+      while ((connection = connections.pollFirst()) != null) {
+        if (connection.isReusable() && (System.currentTimeMillis() - connection.getLastUsedMillis() < idleTimeoutMillis)) {
+          reused.incrementAndGet();
+          return connection;
+        }
+        connection.close();
+      }
+    }
+
+    return open(configuration, deadlineNanos);
+  }
+
+  /**
+   * Opens a new connection to the server of the given configuration, bypassing the idle ones.
+   * 
+   * @param configuration The SMTP configuration of the server.
+   * @return The connection.
+   * @throws IOException Thrown if the connection couldn't be opened.
+   */
+  public SmtpConnection open(SmtpConfiguration configuration) throws IOException {
+    return open(configuration, Long.MAX_VALUE);
+  }
+
+  /**
+   * Opens a new connection to the server of the given configuration, bypassing the idle ones, that has to be connected by the deadline.
+   * 
+   * @param configuration The SMTP configuration of the server.
+   * @param deadlineNanos The time the connection has to be connected by, as returned by System.nanoTime(), Long.MAX_VALUE for none.
+   * @return The connection.
+   * @throws IOException Thrown if the connection couldn't be opened, a SocketTimeoutException if the deadline passed.
+   */
+  public SmtpConnection open(SmtpConfiguration configuration, long deadlineNanos) throws IOException {
+    created.incrementAndGet();
+    return new SmtpConnection(configuration, localHostname, timeoutMillis, deadlineNanos);
+  }
+
+  /**
+   * Hands a connection back. It is kept for the next message if it is still usable and there aren't too many idle connections already,
+   * otherwise it is closed.
+   * 
+   * @param connection The connection.
+   */
+  public void release(SmtpConnection connection) {
+    if (connection.isReusable()) {
+      String key = getKey(connection.getConfiguration());
+      BlockingDeque<SmtpConnection> connections = idle.get(key);
+      if (connections == null) {
+        BlockingDeque<SmtpConnection> newConnections = new LinkedBlockingDeque<SmtpConnection>(maximumIdle);
+        connections = idle.putIfAbsent(key, newConnections);
+        if (connections == null)
+          connections = newConnections;
+      }
+      if (connections.offerFirst(connection))
+        return;
+    }
+
+    connection.close();
+  }
+
+  /**
+   * Opens connections to the server of the given configuration ahead of the first messages, e.g. on start, so these don't wait for the
+   * TCP and TLS handshakes. The connections are kept as idle ones, those beyond the maximum of idle connections are closed again.
+   * 
+   * @param configuration The SMTP configuration of the server.
+   * @param connections The number of connections to open.
+   * @throws IOException Thrown if a connection couldn't be opened. The ones opened before are kept.
+   */
+  public void prime(SmtpConfiguration configuration, int connections) throws IOException {
+    /*
+     * All connections are opened before any is released, otherwise the next one would just reuse it.
+     */
+    List<SmtpConnection> opened = new ArrayList<SmtpConnection>(connections);
+    try {
+      for (int i = 0; i < connections; i++)
+        opened.add(open(configuration));
+    } finally {
+      for (SmtpConnection connection : opened)
+        release(connection);
+    }
+  }
+
+  /**
+   * Closes all idle connections.
+   */
+  public void close() {
+    for (BlockingDeque<SmtpConnection> connections : idle.values()) {
+      SmtpConnection connection;
+      while ((connection = connections.pollFirst()) != null)
+        connection.close();
+    }
+  }
+
+  /**
+   * The number of connections opened so far.
+   * 
+   * @return The number of connections.
+   */
+  public long getCreatedConnections() {
+    return created.get();
+  }
+
+  /**
+   * The number of times an idle connection was handed out again.
+   * 
+   * @return The number of reused connections.
+   */
+  public long getReusedConnections() {
+    return reused.get();
+  }
+
+  /**
+   * The number of idle connections, to all servers.
+   * 
+   * @return The number of idle connections.
+   */
+  public int getIdleConnections() {
+    int count = 0;
+    for (BlockingDeque<SmtpConnection> connections : idle.values())
+      count += connections.size();
+    return count;
+  }
+
+  /**
+   * Connections are only shared by the same configuration, and only as long as it still points to the same server and account and talks
+   * to it in the same way. The password counts, too, so a changed one is tried on a new connection rather than hidden by an open one. It
+   * only enters the key as its hash code, so the keys don't spread it.
+   */
+  private static String getKey(SmtpConfiguration configuration) {
+    int passwordHash = configuration.getPassword() == null ? 0 : configuration.getPassword().hashCode();
+    return configuration.getConfigurationName() + "|" + configuration.getUsername() + ":" + passwordHash + "@"
+        + configuration.getSmtpHostname() + ":" + configuration.getSmtpPort() + "|" + (configuration.isSsl() ? "ssl" : "")
+        + (configuration.isTls() ? "tls" : "");
+  }
+
+  private static String getLocalHostname() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException uhe) {
+      return "localhost";
+    }
+  }
+}
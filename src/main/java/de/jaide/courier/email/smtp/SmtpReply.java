@@ -0,0 +1,89 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email.smtp;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A reply of an SMTP server: the three digit code and the text of each line, e.g. "250" and "2.0.0 Ok: queued as 4F1A2B3C".
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class SmtpReply {
+  private final int code;
+  private final List<String> lines;
+
+  /**
+   * Creates a new reply.
+   * 
+   * @param code The reply code, e.g. 250.
+   * @param lines The text of each line, without the reply code.
+   */
+  public SmtpReply(int code, List<String> lines) {
+    this.code = code;
+    this.lines = Collections.unmodifiableList(lines);
+  }
+
+  /**
+   * The reply code.
+   * 
+   * @return The reply code, e.g. 250.
+   */
+  public int getCode() {
+    return code;
+  }
+
+  /**
+   * The text of each line, without the reply code. A multi-line reply to EHLO has a line per extension.
+   * 
+   * @return The lines.
+   */
+  public List<String> getLines() {
+    return lines;
+  }
+
+  /**
+   * True, if the server accepted the command, i.e. for 2xx replies.
+   * 
+   * @return True, if the command was accepted.
+   */
+  public boolean isPositive() {
+    return code / 100 == 2;
+  }
+
+  /**
+   * True, if the server failed the command for now, but may accept it later on, i.e. for 4xx replies.
+   * 
+   * @return True, if the failure is transient.
+   */
+  public boolean isTransient() {
+    return code / 100 == 4;
+  }
+
+  /**
+   * Returns the reply as the server sent it, the lines of a multi-line reply joined by blanks.
+   * 
+   * @return The reply, e.g. "250 2.0.0 Ok: queued as 4F1A2B3C".
+   */
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder().append(code);
+    for (String line : lines)
+      builder.append(' ').append(line);
+    return builder.toString();
+  }
+}
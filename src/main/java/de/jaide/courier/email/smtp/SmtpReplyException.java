@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.email.smtp;
+
+import java.io.IOException;
+
+/**
+ * Thrown if the SMTP server rejected a command, e.g. a recipient or the message itself. Unlike other IOExceptions the connection is still
+ * in a known state and may be used for the next message.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class SmtpReplyException extends IOException {
+  private static final long serialVersionUID = 3364205716582530177L;
+
+  private final String command;
+  private final SmtpReply reply;
+
+  /**
+   * Creates a new SmtpReplyException.
+   * 
+   * @param command The command the server rejected, without any credentials, e.g. "RCPT TO:&lt;peter@some-domain.tld&gt;".
+   * @param reply The reply of the server.
+   */
+  public SmtpReplyException(String command, SmtpReply reply) {
+    super("The SMTP server rejected '" + command + "': " + reply);
+    this.command = command;
+    this.reply = reply;
+  }
+
+  /**
+   * The command the server rejected.
+   * 
+   * @return The command.
+   */
+  public String getCommand() {
+    return command;
+  }
+
+  /**
+   * The reply of the server.
+   * 
+   * @return The reply.
+   */
+  public SmtpReply getReply() {
+    return reply;
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.exception;
+
+/**
+ * Thrown if a message was rejected right away, without trying to send it, since too many messages are already on their way to the same
+ * destination. The message may be retried later on.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class AdmissionRejectedException extends CourierException {
+  private static final long serialVersionUID = -2618843290271587143L;
+
+  private final String limiterName;
+  private final int limit;
+
+  /**
+   * Creates a new AdmissionRejectedException.
+   * 
+   * @param limiterName The name of the limiter that rejected the message, e.g. the name of the SMTP configuration.
+   * @param limit The number of messages that may be on their way at that time.
+   */
+  public AdmissionRejectedException(String limiterName, int limit) {
+    super("The message was rejected, " + limit + " messages are already being sent using '" + limiterName + "'.");
+    this.limiterName = limiterName;
+    this.limit = limit;
+  }
+
+  /**
+   * The name of the limiter that rejected the message, e.g. the name of the SMTP configuration.
+   * 
+   * @return The name of the limiter.
+   */
+  public String getLimiterName() {
+    return limiterName;
+  }
+
+  /**
+   * The number of messages that may be on their way at the time the message was rejected.
+   * 
+   * @return The concurrency limit.
+   */
+  public int getLimit() {
+    return limit;
+  }
+}
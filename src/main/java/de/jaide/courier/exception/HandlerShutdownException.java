@@ -0,0 +1,35 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.exception;
+
+/**
+ * Thrown if a message is given to a handler that is shutting down, or if a message wasn't sent since the shutdown's deadline passed before
+ * it reached the transport stage. Such messages are in the shutdown's report and journal, they needn't be retried by the caller.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class HandlerShutdownException extends CourierException {
+  private static final long serialVersionUID = 7481526730185594132L;
+
+  /**
+   * Creates a new HandlerShutdownException.
+   * 
+   * @param message Why the message wasn't sent.
+   */
+  public HandlerShutdownException(String message) {
+    super(message);
+  }
+}
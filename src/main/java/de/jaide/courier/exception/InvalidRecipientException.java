@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.exception;
+
+/**
+ * Thrown if a message was rejected before rendering it, since its recipient's address is malformed, its domain is invalid, or the
+ * recipient is on the suppression list. Retrying the message won't help.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class InvalidRecipientException extends CourierException {
+  private static final long serialVersionUID = 5160834478260916359L;
+
+  private final String recipient;
+  private final boolean suppressed;
+
+  /**
+   * Creates a new InvalidRecipientException.
+   * 
+   * @param recipient The address as given by the caller.
+   * @param reason Why the address was rejected.
+   * @param suppressed True, if the address is valid but on the suppression list.
+   */
+  public InvalidRecipientException(String recipient, String reason, boolean suppressed) {
+    super("The recipient '" + recipient + "' was rejected: " + reason);
+    this.recipient = recipient;
+    this.suppressed = suppressed;
+  }
+
+  /**
+   * The address as given by the caller.
+   * 
+   * @return The rejected address.
+   */
+  public String getRecipient() {
+    return recipient;
+  }
+
+  /**
+   * Tells apart valid addresses that are on the suppression list from malformed ones.
+   * 
+   * @return True, if the address is on the suppression list.
+   */
+  public boolean isSuppressed() {
+    return suppressed;
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.exception;
+
+/**
+ * Thrown if the thread sending a message was interrupted, e.g. since the Future returned by submitMessage() was cancelled with
+ * cancel(true). The message stops at the next point it checks its time budget, see MessageContext.checkDeadline().
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class MessageCancelledException extends CourierException {
+  private static final long serialVersionUID = 4512877640092146131L;
+
+  /**
+   * Creates a new MessageCancelledException.
+   * 
+   * @param phase Where the message was cancelled, e.g. "render".
+   */
+  public MessageCancelledException(String phase) {
+    super("The message was cancelled during " + phase + ".");
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.exception;
+
+/**
+ * Thrown if a message wasn't sent within its time budget. The phase tells where the time ran out: the name of the stage, e.g. "render", or
+ * "connect" while waiting for a connection to the server. Unless the phase is "transport", the message wasn't handed to the server and
+ * may be retried. A timeout during transport may still have been delivered by the server.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class MessageTimeoutException extends CourierException {
+  private static final long serialVersionUID = -2081757213650394287L;
+
+  private final String phase;
+  private final long timeoutMillis;
+
+  /**
+   * Creates a new MessageTimeoutException.
+   * 
+   * @param phase Where the time ran out, e.g. "render".
+   * @param timeoutMillis The time budget of the message.
+   * @param throwable The wrapped throwable, e.g. a SocketTimeoutException, or null.
+   */
+  public MessageTimeoutException(String phase, long timeoutMillis, Throwable throwable) {
+    super("The message wasn't sent within its time budget of " + timeoutMillis + " ms, the time ran out during " + phase + ".", throwable);
+    this.phase = phase;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Where the time ran out: the name of the stage, or "connect" while waiting for a connection to the server.
+   * 
+   * @return The phase.
+   */
+  public String getPhase() {
+    return phase;
+  }
+
+  /**
+   * The time budget of the message.
+   * 
+   * @return The time budget in milliseconds.
+   */
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.file;
+
+import java.io.UnsupportedEncodingException;
+
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageStage;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+import de.jaide.courier.pipeline.TemplatePart;
+
+/**
+ * Encodes the rendered template parts as a UTF-8 text document: the rendered headers, the recipient and the subject line, followed by a
+ * blank line and the body. If both versions of the body were rendered the Text-only version comes first, the HTML version is separated by
+ * a marker line.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class FileEncodingStage implements MessageStage {
+  /**
+   * Separates the Text-only from the HTML version of the body.
+   */
+  static final String HTML_SEPARATOR = "----- text/html -----";
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#getName()
+   */
+  public String getName() {
+    return PipelineMessageHandler.STAGE_ENCODE;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  public void process(MessageContext context) throws CourierException {
+    String headers = context.getRenderedPart(TemplatePart.HEADERS);
+    String contentText = context.getRenderedPart(TemplatePart.BODY_TEXT);
+    String contentHtml = context.getRenderedPart(TemplatePart.BODY_HTML);
+    Object recipient = context.getParameter(MessageHandlerFile.MAPPING_PARAM_RECIPIENT);
+
+    StringBuilder document = new StringBuilder(256 + (contentText == null ? 0 : contentText.length())
+        + (contentHtml == null ? 0 : contentHtml.length()));
+    if ((headers != null) && (headers.trim().length() > 0)) {
+      document.append(headers.trim()).append('\n');
+    }
+    if (recipient != null)
+      document.append("To: ").append(recipient).append('\n');
+    document.append("Subject: ").append(context.getRenderedPart(TemplatePart.SUBJECT)).append('\n');
+    document.append('\n');
+
+    if (contentText != null)
+      document.append(contentText);
+    if ((contentText != null) && (contentHtml != null))
+      document.append('\n').append(HTML_SEPARATOR).append('\n');
+    if (contentHtml != null)
+      document.append(contentHtml);
+
+    try {
+      context.setEncodedMessage(document.toString().getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException uee) {
+      throw new CourierException(uee);
+    }
+  }
+}
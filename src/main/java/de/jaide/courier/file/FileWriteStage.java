@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageStage;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+
+/**
+ * Writes the encoded message into the output directory. The file is written under a temporary name first and renamed afterwards, so
+ * whoever picks up the files never sees a partially written message.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class FileWriteStage implements MessageStage {
+  /**
+   * The name of the context attribute holding the File the message was written to.
+   */
+  public static final String ATTRIBUTE_FILE = "file.file";
+
+  /**
+   * The directory the messages are written to.
+   */
+  private final File outputDirectory;
+
+  /**
+   * Keeps the generated filenames of messages written within the same millisecond apart.
+   */
+  private final AtomicLong counter = new AtomicLong();
+
+  /**
+   * Creates a new file write stage.
+   * 
+   * @param outputDirectory The directory the messages are written to. Created, if it doesn't exist.
+   */
+  public FileWriteStage(File outputDirectory) {
+    this.outputDirectory = outputDirectory;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#getName()
+   */
+  public String getName() {
+    return PipelineMessageHandler.STAGE_TRANSPORT;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  public void process(MessageContext context) throws CourierException {
+    if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs() && !outputDirectory.isDirectory())
+      throw new CourierException("The output directory '" + outputDirectory + "' couldn't be created.");
+
+    String filename = (String) context.getParameter(MessageHandlerFile.MAPPING_PARAM_FILENAME);
+    if (filename == null)
+      filename = context.getTemplateName() + "-" + System.currentTimeMillis() + "-" + counter.incrementAndGet() + ".txt";
+
+    File file = new File(outputDirectory, filename);
+    File temporaryFile = new File(outputDirectory, "." + filename + ".tmp");
+
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(temporaryFile);
+      out.write((byte[]) context.getEncodedMessage());
+      out.close();
+      out = null;
+
+      /*
+       * Renaming doesn't replace an existing file on every platform.
+       */
+      if (!temporaryFile.renameTo(file) && !(file.delete() && temporaryFile.renameTo(file)))
+        throw new IOException("Couldn't rename '" + temporaryFile + "' to '" + file + "'.");
+
+      context.setAttribute(ATTRIBUTE_FILE, file);
+    } catch (IOException ioe) {
+      temporaryFile.delete();
+      throw new CourierException(ioe);
+    } finally {
+      IOUtils.closeQuietly(out);
+    }
+  }
+}
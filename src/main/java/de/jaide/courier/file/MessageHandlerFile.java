@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.file;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+import de.jaide.courier.pipeline.TemplateEngine;
+
+/**
+ * A handler that renders the very same templates as the e-mail handler, but writes the messages as text files into a local directory
+ * instead of sending them. Useful as an outbox for development and testing, or for handing messages over to other systems.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class MessageHandlerFile extends PipelineMessageHandler {
+  /**
+   * Mapping parameters known to this handler, in addition to the template parameters of the shared stages.
+   */
+  public static final String MAPPING_PARAM_RECIPIENT = "recipient";
+  public static final String MAPPING_PARAM_FILENAME = "filename";
+
+  /**
+   * The obligatory mapping parameters define which parameters HAVE to be provided when calling this handler.
+   */
+  private static List<String> obligatoryMappingParameters = new ArrayList<String>();
+  static {
+    obligatoryMappingParameters.add(MAPPING_PARAM_TEMPLATE_NAME);
+  }
+
+  /**
+   * The directory the messages are written to.
+   */
+  private final File outputDirectory;
+
+  /**
+   * Creates an instance of this class.
+   * 
+   * @param outputDirectory The directory the messages are written to. Created, if it doesn't exist.
+   */
+  public MessageHandlerFile(File outputDirectory) {
+    super(obligatoryMappingParameters, new TemplateEngine());
+    this.outputDirectory = outputDirectory;
+
+    addStage(new FileEncodingStage());
+    addStage(new FileWriteStage(outputDirectory));
+  }
+
+  /**
+   * The directory the messages are written to.
+   * 
+   * @return The output directory.
+   */
+  public File getOutputDirectory() {
+    return outputDirectory;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.PipelineMessageHandler#getRecipient(de.jaide.courier.pipeline.MessageContext)
+   */
+  @Override
+  protected String getRecipient(MessageContext context) {
+    Object recipient = context.getParameter(MAPPING_PARAM_RECIPIENT);
+    return recipient == null ? null : recipient.toString();
+  }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.json;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes pretty-printed JSON, token by token, into a buffer that is handed to the underlying writer in blocks.<br/>
+ * The layout is the one of com.tonian.director.dm.json.JSONWriter: a line break after every opening bracket and comma, a line break before
+ * every closing bracket and three spaces of indentation per level. Unlike JSONWriter the layout is driven by the tokens rather than by
+ * looking at every single character, so brackets and commas within strings are left alone.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class JsonPrettyWriter implements Closeable, Flushable {
+  private static final int BUFFER_SIZE = 8192;
+  private static final String INDENTATION = "   ";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final Writer writer;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int position;
+
+  /**
+   * The line break plus indentation, grown as needed, so a new line is a single bulk copy.
+   */
+  private char[] newline = new char[] { '\n' };
+  private int depth;
+
+  /**
+   * True, if the next value or name needs to be preceded by a comma.
+   */
+  private boolean needsComma;
+
+  /**
+   * True, if the last token was a name, so the next value follows right after the colon.
+   */
+  private boolean afterName;
+
+  /**
+   * Creates a new writer.
+   * 
+   * @param writer The writer to write to. Needn't be buffered.
+   */
+  public JsonPrettyWriter(Writer writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * Begins an object.
+   * 
+   * @return This writer.
+   * @throws IOException Thrown if the underlying writer failed.
+   */
+  public JsonPrettyWriter beginObject() throws IOException {
+    return open('{');
+  }
+
+  /**
+   * Ends the current object.
+   * 
+   * @return This writer.
+   * @throws IOException Thrown if the underlying writer failed.
+   */
+  public JsonPrettyWriter endObject() throws IOException {
+    return close('}');
+  }
+
+  /**
+   * Begins an array.
+   * 
+   * @return This writer.
+   * @throws IOException Thrown if the underlying writer failed.
+   */
+  public JsonPrettyWriter beginArray() throws IOException {
+    return open('[');
+  }
+
+  /**
+   * Ends the current array.
+   * 
+   * @return This writer.
+   * @throws IOException Thrown if the underlying writer failed.
+   */
+  public JsonPrettyWriter endArray() throws IOException {
+    return close(']');
+  }
+
+  /**
+   * Writes the name of the next member of the current object.
+   * 
+   * @param name The name.
+   * @return This writer.
+   * @throws IOException Thrown if the underlying writer failed.
+   */
+  public JsonPrettyWriter name(String name) throws IOException {
+    beforeValue();
+    string(name);
+    write(':');
+    afterName = true;
+    return this;
+  }
+
+  /**
+   * Writes a string value, or null.
+   * 
+   * @param value The value.
+   * @return This writer.
+   * @throws IOException Thrown if the underlying writer failed.
+   */
+  public JsonPrettyWriter value(String value) throws IOException {
+    beforeValue();
+    if (value == null)
+      write("null");
+    else
+      string(value);
+    return this;
+  }
+
+  /**
+   * Writes a number value, or null.
+   * 
+   * @param value The value.
+   * @return This writer.
+   * @throws IOException Thrown if the underlying writer failed.
+   */
+  public JsonPrettyWriter value(Number value) throws IOException {
+    beforeValue();
+    write(value == null ? "null" : value.toString());
+    return this;
+  }
+
+  /**
+   * Writes a boolean value.
+   * 
+   * @param value The value.
+   * @return This writer.
+   * @throws IOException Thrown if the underlying writer failed.
+   */
+  public JsonPrettyWriter value(boolean value) throws IOException {
+    beforeValue();
+    write(value ? "true" : "false");
+    return this;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Flushable#flush()
+   */
+  public void flush() throws IOException {
+    writer.write(buffer, 0, position);
+    position = 0;
+    writer.flush();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Closeable#close()
+   */
+  public void close() throws IOException {
+    flush();
+    writer.close();
+  }
+
+  private JsonPrettyWriter open(char bracket) throws IOException {
+    beforeValue();
+    write(bracket);
+    depth++;
+    newline();
+    needsComma = false;
+    return this;
+  }
+
+  private JsonPrettyWriter close(char bracket) throws IOException {
+    depth--;
+    newline();
+    write(bracket);
+    needsComma = true;
+    return this;
+  }
+
+  private void beforeValue() throws IOException {
+    if (afterName) {
+      afterName = false;
+      return;
+    }
+    if (needsComma) {
+      write(',');
+      newline();
+    }
+    needsComma = true;
+  }
+
+  private void newline() throws IOException {
+    int length = 1 + depth * INDENTATION.length();
+    if (newline.length < length) {
+      newline = new char[length + 8 * INDENTATION.length()];
+      newline[0] = '\n';
+      for (int i = 1; i < newline.length; i++)
+        newline[i] = ' ';
+    }
+    write(newline, length);
+  }
+
+  /**
+   * Writes a quoted string, copying runs that need no escaping in one go.
+   */
+  private void string(String value) throws IOException {
+    write('"');
+    int length = value.length();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if ((c >= 0x20) && (c != '"') && (c != '\\') && (c != 0x7f) && (c < 0x2028 || c > 0x2029))
+        continue;
+
+      write(value, start, i);
+      start = i + 1;
+      switch (c) {
+      case '"':
+        write("\\\"");
+        break;
+      case '\\':
+        write("\\\\");
+        break;
+      case '\n':
+        write("\\n");
+        break;
+      case '\r':
+        write("\\r");
+        break;
+      case '\t':
+        write("\\t");
+        break;
+      case '\b':
+        write("\\b");
+        break;
+      case '\f':
+        write("\\f");
+        break;
+      default:
+        write("\\u");
+        write(HEX[(c >> 12) & 0xf]);
+        write(HEX[(c >> 8) & 0xf]);
+        write(HEX[(c >> 4) & 0xf]);
+        write(HEX[c & 0xf]);
+      }
+    }
+    write(value, start, length);
+    write('"');
+  }
+
+  private void write(char c) throws IOException {
+    if (position == buffer.length)
+      drain();
+    buffer[position++] = c;
+  }
+
+  private void write(String value) throws IOException {
+    write(value, 0, value.length());
+  }
+
+  private void write(String value, int start, int end) throws IOException {
+    while (start < end) {
+      if (position == buffer.length)
+        drain();
+      int count = Math.min(end - start, buffer.length - position);
+      value.getChars(start, start + count, buffer, position);
+      position += count;
+      start += count;
+    }
+  }
+
+  private void write(char[] chars, int length) throws IOException {
+    int start = 0;
+    while (start < length) {
+      if (position == buffer.length)
+        drain();
+      int count = Math.min(length - start, buffer.length - position);
+      System.arraycopy(chars, start, buffer, position, count);
+      position += count;
+      start += count;
+    }
+  }
+
+  private void drain() throws IOException {
+    writer.write(buffer, 0, position);
+    position = 0;
+  }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.json;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A pull tokenizer for JSON. Reads the document in blocks and hands out one token at a time, so a document of any size is processed
+ * without ever building it up in memory, neither as a String nor as a tree of maps and lists.<br/>
+ * <br/>
+ * The tokenizer checks the JSON syntax: names only appear in objects, values are separated by commas and objects and arrays are closed
+ * properly. Syntax errors are reported as IOExceptions, giving the line and column.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class JsonTokenizer implements Closeable {
+  /**
+   * The tokens of a JSON document.
+   */
+  public enum Token {
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+  }
+
+  private static final int BUFFER_SIZE = 8192;
+
+  /**
+   * The state of the enclosing objects and arrays.
+   */
+  private static final byte IN_ARRAY_EMPTY = 1;
+  private static final byte IN_ARRAY = 2;
+  private static final byte IN_OBJECT_EMPTY = 3;
+  private static final byte IN_OBJECT_NAME = 4;
+  private static final byte IN_OBJECT_VALUE = 5;
+
+  private final Reader reader;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int position;
+  private int limit;
+
+  /**
+   * The current line and where it starts, relative to the buffer. Negative once the start of the line was dropped from the buffer.
+   */
+  private int line = 1;
+  private long lineStart;
+
+  private byte[] stack = new byte[16];
+  private int depth;
+  private boolean documentStarted;
+
+  private final StringBuilder text = new StringBuilder();
+  private Token token;
+  private boolean booleanValue;
+
+  /**
+   * Creates a new tokenizer.
+   * 
+   * @param reader The reader to read the JSON document from. Needn't be buffered.
+   */
+  public JsonTokenizer(Reader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * Reads the next token.
+   * 
+   * @return The next token, Token.END_DOCUMENT once the document is complete.
+   * @throws IOException Thrown if the document couldn't be read or isn't valid JSON.
+   */
+  public Token next() throws IOException {
+    int c = nextNonWhitespace();
+
+    if (depth == 0) {
+      if (documentStarted) {
+        if (c != -1)
+          throw syntaxError("Unexpected content after the end of the document");
+        return token = Token.END_DOCUMENT;
+      }
+      if (c == -1)
+        throw syntaxError("Empty document");
+      documentStarted = true;
+      return token = readValue(c);
+    }
+
+    byte state = stack[depth - 1];
+    switch (state) {
+    case IN_ARRAY_EMPTY:
+      if (c == ']')
+        return token = pop();
+      stack[depth - 1] = IN_ARRAY;
+      return token = readValue(c);
+
+    case IN_ARRAY:
+      if (c == ']')
+        return token = pop();
+      if (c != ',')
+        throw syntaxError("Expected ',' or ']'");
+      return token = readValue(nextNonWhitespace());
+
+    case IN_OBJECT_EMPTY:
+    case IN_OBJECT_VALUE:
+      if (c == '}')
+        return token = pop();
+      if (state == IN_OBJECT_VALUE) {
+        if (c != ',')
+          throw syntaxError("Expected ',' or '}'");
+        c = nextNonWhitespace();
+      }
+      if (c != '"')
+        throw syntaxError("Expected a name");
+      readString();
+      if (nextNonWhitespace() != ':')
+        throw syntaxError("Expected ':'");
+      stack[depth - 1] = IN_OBJECT_NAME;
+      return token = Token.NAME;
+
+    case IN_OBJECT_NAME:
+      stack[depth - 1] = IN_OBJECT_VALUE;
+      return token = readValue(c);
+
+    default:
+      throw new IllegalStateException();
+    }
+  }
+
+  /**
+   * Moves on to the next of a sequence of documents, e.g. the next line of a JSON lines file. Needs to be called before reading each
+   * document of such a sequence, including the first one.
+   * 
+   * @return False, if there are no more documents.
+   * @throws IOException Thrown if the input couldn't be read.
+   */
+  public boolean nextDocument() throws IOException {
+    if (depth != 0)
+      throw new IllegalStateException("The current document isn't complete yet");
+
+    int c = nextNonWhitespace();
+    if (c == -1)
+      return false;
+
+    /*
+     * The first character of the document is still in the buffer, next() reads it again.
+     */
+    position--;
+    documentStarted = false;
+    token = null;
+    return true;
+  }
+
+  /**
+   * The current token.
+   * 
+   * @return The current token or null, if next() wasn't called yet.
+   */
+  public Token getToken() {
+    return token;
+  }
+
+  /**
+   * The text of the current NAME, STRING or NUMBER token.
+   * 
+   * @return The name, the unescaped string or the number as it appears in the document.
+   */
+  public String getString() {
+    if ((token != Token.NAME) && (token != Token.STRING) && (token != Token.NUMBER))
+      throw new IllegalStateException("The current token " + token + " has no text");
+    return text.toString();
+  }
+
+  /**
+   * The value of the current NUMBER token.
+   * 
+   * @return The number as a long.
+   * @throws IOException Thrown if the number isn't an integer or out of range.
+   */
+  public long getLong() throws IOException {
+    if (token != Token.NUMBER)
+      throw syntaxError("Expected a number but found " + token);
+    try {
+      return Long.parseLong(text.toString());
+    } catch (NumberFormatException nfe) {
+      throw syntaxError("Expected an integer but found " + text);
+    }
+  }
+
+  /**
+   * The value of the current BOOLEAN token.
+   * 
+   * @return The boolean value.
+   * @throws IOException Thrown if the current token is no boolean.
+   */
+  public boolean getBoolean() throws IOException {
+    if (token != Token.BOOLEAN)
+      throw syntaxError("Expected a boolean but found " + token);
+    return booleanValue;
+  }
+
+  /**
+   * Skips the value following the current NAME token, or the current value itself if it is the beginning of an object or array.
+   * 
+   * @throws IOException Thrown if the document couldn't be read or isn't valid JSON.
+   */
+  public void skipValue() throws IOException {
+    Token current = token == Token.NAME ? next() : token;
+    if ((current == Token.BEGIN_OBJECT) || (current == Token.BEGIN_ARRAY)) {
+      int targetDepth = depth - 1;
+      while (depth > targetDepth)
+        next();
+    }
+  }
+
+  /**
+   * Reads the next token and checks that it is the expected one.
+   * 
+   * @param expected The expected token.
+   * @throws IOException Thrown if the next token is a different one.
+   */
+  public void expect(Token expected) throws IOException {
+    if (next() != expected)
+      throw syntaxError("Expected " + expected + " but found " + token);
+  }
+
+  /**
+   * Creates an exception giving the current position in the document.
+   * 
+   * @param message The description of the error.
+   * @return The exception, to be thrown by the caller.
+   */
+  public IOException syntaxError(String message) {
+    return new IOException(message + " at line " + line + ", column " + (position - lineStart) + ".");
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.io.Closeable#close()
+   */
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  private Token readValue(int c) throws IOException {
+    switch (c) {
+    case '{':
+      push(IN_OBJECT_EMPTY);
+      return Token.BEGIN_OBJECT;
+    case '[':
+      push(IN_ARRAY_EMPTY);
+      return Token.BEGIN_ARRAY;
+    case '"':
+      readString();
+      return Token.STRING;
+    case 't':
+      readLiteral("rue");
+      booleanValue = true;
+      return Token.BOOLEAN;
+    case 'f':
+      readLiteral("alse");
+      booleanValue = false;
+      return Token.BOOLEAN;
+    case 'n':
+      readLiteral("ull");
+      return Token.NULL;
+    default:
+      if ((c == '-') || ((c >= '0') && (c <= '9'))) {
+        readNumber(c);
+        return Token.NUMBER;
+      }
+      throw syntaxError(c == -1 ? "Unexpected end of the document" : "Unexpected character '" + (char) c + "'");
+    }
+  }
+
+  private void push(byte state) {
+    if (depth == stack.length) {
+      byte[] grown = new byte[stack.length * 2];
+      System.arraycopy(stack, 0, grown, 0, depth);
+      stack = grown;
+    }
+    stack[depth++] = state;
+  }
+
+  private Token pop() {
+    return stack[--depth] <= IN_ARRAY ? Token.END_ARRAY : Token.END_OBJECT;
+  }
+
+  /**
+   * Reads a string, the opening quote already consumed. Runs without escapes are copied from the buffer in one go.
+   */
+  private void readString() throws IOException {
+    text.setLength(0);
+    while (true) {
+      int start = position;
+      while (position < limit) {
+        char c = buffer[position];
+        if ((c == '"') || (c == '\\') || (c < 0x20))
+          break;
+        position++;
+      }
+      text.append(buffer, start, position - start);
+
+      if (position == limit) {
+        if (!fill())
+          throw syntaxError("Unterminated string");
+        continue;
+      }
+
+      char c = buffer[position++];
+      if (c == '"')
+        return;
+      if (c != '\\')
+        throw syntaxError("Unescaped control character in string");
+
+      int escaped = read();
+      switch (escaped) {
+      case '"':
+      case '\\':
+      case '/':
+        text.append((char) escaped);
+        break;
+      case 'b':
+        text.append('\b');
+        break;
+      case 'f':
+        text.append('\f');
+        break;
+      case 'n':
+        text.append('\n');
+        break;
+      case 'r':
+        text.append('\r');
+        break;
+      case 't':
+        text.append('\t');
+        break;
+      case 'u':
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(read(), 16);
+          if (digit < 0)
+            throw syntaxError("Invalid unicode escape");
+          value = (value << 4) | digit;
+        }
+        text.append((char) value);
+        break;
+      default:
+        throw syntaxError("Invalid escape sequence");
+      }
+    }
+  }
+
+  private void readNumber(int first) throws IOException {
+    text.setLength(0);
+    text.append((char) first);
+    while (true) {
+      if ((position == limit) && !fill())
+        break;
+      char c = buffer[position];
+      if (((c >= '0') && (c <= '9')) || (c == '.') || (c == 'e') || (c == 'E') || (c == '+') || (c == '-')) {
+        text.append(c);
+        position++;
+      } else {
+        break;
+      }
+    }
+
+    if ((text.length() == 1) && (first == '-'))
+      throw syntaxError("Invalid number");
+  }
+
+  private void readLiteral(String rest) throws IOException {
+    for (int i = 0; i < rest.length(); i++)
+      if (read() != rest.charAt(i))
+        throw syntaxError("Invalid literal");
+  }
+
+  private int nextNonWhitespace() throws IOException {
+    while (true) {
+      if ((position == limit) && !fill())
+        return -1;
+      char c = buffer[position++];
+      if (c == '\n') {
+        line++;
+        lineStart = position;
+      } else if ((c != ' ') && (c != '\t') && (c != '\r')) {
+        return c;
+      }
+    }
+  }
+
+  private int read() throws IOException {
+    if ((position == limit) && !fill())
+      throw syntaxError("Unexpected end of the document");
+    return buffer[position++];
+  }
+
+  private boolean fill() throws IOException {
+    lineStart -= limit;
+    position = 0;
+    limit = reader.read(buffer, 0, buffer.length);
+    if (limit <= 0) {
+      limit = 0;
+      return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.jaide.courier.exception.CourierException;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * Remembers the rendered template parts of recent messages, so a message rendering the same templates with the same model as a previous
+ * one, e.g. an alert sent to every member of a distribution list, skips Freemarker altogether. Wraps the rendering stage:
+ * 
+ * <pre>
+ * handler.replaceStage(PipelineMessageHandler.STAGE_RENDER,
+ *     new CachingTemplateRenderingStage(handler.getStage(PipelineMessageHandler.STAGE_RENDER), 1000, 16 * 1024 * 1024));
+ * </pre>
+ * 
+ * Messages are told apart by the Freemarker configuration and filenames of their templates and the ModelDigest of those mapped parameters
+ * whose names appear in the templates. So messages that only differ in parameters the templates don't read, e.g. the recipient's address,
+ * share their rendered parts. Templates that may read parameters not named in them, i.e. that include or import other templates, access
+ * .data_model, .vars or .globals, or use ?eval or ?interpret, are told apart by all of the parameters. So are all templates, if
+ * setKeyedByAllParameters() was called, which is needed if the Freemarker configuration has auto-imports or auto-includes.<br/>
+ * Messages whose parameters can't be digested are always rendered. Cached parts are dropped once Freemarker reloads one of their templates,
+ * the least recently used ones once there are more or bigger ones than allowed. Templates whose output doesn't depend on the model alone,
+ * e.g. on the current time, should either not be cached or only for a limited time, see setTimeToLive().
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class CachingTemplateRenderingStage implements MessageStage {
+  /**
+   * The estimated memory used by an entry besides the rendered text, in bytes.
+   */
+  private static final int ENTRY_OVERHEAD = 256;
+
+  /**
+   * Directives, special variables and built-ins through which templates may read parameters not named in them.
+   */
+  private static final String[] DYNAMIC_ACCESS = { "#include", "#import", ".data_model", ".vars", ".globals", "?eval", "?interpret" };
+
+  private final MessageStage delegate;
+  private final int maximumEntries;
+  private final long maximumBytes;
+  private volatile long timeToLive;
+  private volatile boolean keyedByAllParameters;
+
+  /**
+   * The names appearing in each template, or null if it may read parameters not named in it. Guarded by itself.
+   */
+  private final Map<Template, Set<String>> names = new WeakHashMap<Template, Set<String>>();
+
+  /**
+   * The rendered parts, least recently used first. Guarded by itself.
+   */
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  private long bytes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong uncacheable = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Creates a new cache.
+   * 
+   * @param delegate The stage rendering the template parts on a cache miss.
+   * @param maximumEntries The maximum number of messages to remember.
+   * @param maximumBytes The maximum estimated memory used by the remembered messages, in bytes.
+   */
+  public CachingTemplateRenderingStage(MessageStage delegate, int maximumEntries, long maximumBytes) {
+    if ((maximumEntries <= 0) || (maximumBytes <= 0))
+      throw new IllegalArgumentException("The maximum number of entries and bytes need to be positive.");
+
+    this.delegate = delegate;
+    this.maximumEntries = maximumEntries;
+    this.maximumBytes = maximumBytes;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#getName()
+   */
+  public String getName() {
+    return delegate.getName();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  public void process(MessageContext context) throws CourierException {
+    byte[] digest = ModelDigest.digest(keyedByAllParameters ? context.getParameters() : getReadParameters(context));
+    if (digest == null) {
+      uncacheable.incrementAndGet();
+      delegate.process(context);
+      return;
+    }
+
+    Key key = new Key(context.getTemplateConfiguration(), context.getTemplateFilenames().toString(), digest);
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+
+    if ((entry != null) && isCurrent(context, entry)) {
+      hits.incrementAndGet();
+      for (Map.Entry<TemplatePart, String> part : entry.renderedParts.entrySet())
+        context.setRenderedPart(part.getKey(), part.getValue());
+      return;
+    }
+
+    misses.incrementAndGet();
+    delegate.process(context);
+    put(key, createEntry(context));
+  }
+
+  /**
+   * How long rendered parts are reused at most, in milliseconds.
+   * 
+   * @return The time to live or 0, if rendered parts are reused for as long as they're cached.
+   */
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  /**
+   * Sets how long rendered parts are reused at most, e.g. for templates showing the current date.
+   * 
+   * @param timeToLive The time to live in milliseconds or 0, if rendered parts are reused for as long as they're cached.
+   */
+  public void setTimeToLive(long timeToLive) {
+    this.timeToLive = timeToLive;
+  }
+
+  /**
+   * Whether messages are told apart by all of their parameters, rather than only by those whose names appear in their templates.
+   * 
+   * @return True, if messages are told apart by all of their parameters.
+   */
+  public boolean isKeyedByAllParameters() {
+    return keyedByAllParameters;
+  }
+
+  /**
+   * Sets whether messages are told apart by all of their parameters, e.g. since the templates call macros of an auto-import that read
+   * parameters the templates themselves don't name. Defaults to false.
+   * 
+   * @param keyedByAllParameters True, if messages are told apart by all of their parameters.
+   */
+  public void setKeyedByAllParameters(boolean keyedByAllParameters) {
+    this.keyedByAllParameters = keyedByAllParameters;
+  }
+
+  /**
+   * Forgets all rendered parts.
+   */
+  public void invalidateAll() {
+    synchronized (entries) {
+      entries.clear();
+      bytes = 0;
+    }
+  }
+
+  /**
+   * The number of remembered messages.
+   * 
+   * @return The number of remembered messages.
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * The estimated memory used by the remembered messages.
+   * 
+   * @return The estimated memory used, in bytes.
+   */
+  public long getBytes() {
+    synchronized (entries) {
+      return bytes;
+    }
+  }
+
+  /**
+   * The number of messages whose parts were taken from the cache.
+   * 
+   * @return The number of cache hits.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * The number of messages that were rendered and added to the cache.
+   * 
+   * @return The number of cache misses.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * The number of messages that were rendered since their parameters can't be digested.
+   * 
+   * @return The number of uncacheable messages.
+   */
+  public long getUncacheable() {
+    return uncacheable.get();
+  }
+
+  /**
+   * The number of messages dropped to stay within the limits.
+   * 
+   * @return The number of evictions.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * True, if the entry hasn't expired and Freemarker still hands out the templates it was rendered from.
+   */
+  private boolean isCurrent(MessageContext context, Entry entry) {
+    if ((timeToLive > 0) && (System.currentTimeMillis() - entry.created > timeToLive))
+      return false;
+
+    try {
+      for (Map.Entry<String, Template> template : entry.templates.entrySet())
+        if (context.getTemplateConfiguration().getTemplate(template.getKey()) != template.getValue())
+          return false;
+    } catch (IOException ioe) {
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the parameters whose names appear in any of the templates of the message, or all of them, if one of the templates may read
+   * parameters not named in it or can't be loaded. A name appearing in some other context only makes the key more specific than needed,
+   * and so does a parameter whose name isn't an identifier.
+   */
+  private Map<String, Object> getReadParameters(MessageContext context) {
+    TemplateIndex.Entry indexEntry = context.getTemplateIndexEntry();
+    List<Set<String>> templateNames = new ArrayList<Set<String>>(context.getTemplateFilenames().size());
+    for (Map.Entry<TemplatePart, String> filename : context.getTemplateFilenames().entrySet()) {
+      boolean optional = context.isOptional(filename.getKey());
+      if ((indexEntry != null) && optional && !indexEntry.contains(filename.getValue()))
+        continue;
+
+      Template template;
+      try {
+        template = context.getTemplateConfiguration().getTemplate(filename.getValue());
+      } catch (IOException ioe) {
+        if (optional)
+          continue;
+
+        return context.getParameters();
+      }
+
+      Set<String> names = getNames(template);
+      if (names == null)
+        return context.getParameters();
+      templateNames.add(names);
+    }
+
+    Map<String, Object> parameters = new HashMap<String, Object>();
+    for (Map.Entry<String, Object> parameter : context.getParameters().entrySet()) {
+      boolean read = !isIdentifier(parameter.getKey());
+      for (int i = 0; !read && (i < templateNames.size()); i++)
+        read = templateNames.get(i).contains(parameter.getKey());
+      if (read)
+        parameters.put(parameter.getKey(), parameter.getValue());
+    }
+
+    return parameters;
+  }
+
+  /**
+   * Returns the identifiers appearing in the source of the given template, or null if it may read parameters not named in it.
+   */
+  private Set<String> getNames(Template template) {
+    synchronized (names) {
+      if (names.containsKey(template))
+        return names.get(template);
+    }
+
+    String source = template.toString();
+    Set<String> identifiers = new HashSet<String>();
+    int start = -1;
+    for (int i = 0; i <= source.length(); i++) {
+      boolean identifierPart = (i < source.length()) && isIdentifierPart(source.charAt(i));
+      if (identifierPart && (start < 0))
+        start = i;
+      else if (!identifierPart && (start >= 0)) {
+        identifiers.add(source.substring(start, i));
+        start = -1;
+      }
+    }
+
+    for (String access : DYNAMIC_ACCESS)
+      if (source.contains(access))
+        identifiers = null;
+
+    synchronized (names) {
+      names.put(template, identifiers);
+    }
+    return identifiers;
+  }
+
+  private static boolean isIdentifier(String name) {
+    for (int i = 0; i < name.length(); i++)
+      if (!isIdentifierPart(name.charAt(i)))
+        return false;
+
+    return name.length() > 0;
+  }
+
+  private static boolean isIdentifierPart(char c) {
+    return Character.isLetterOrDigit(c) || (c == '_') || (c == '$') || (c == '@');
+  }
+
+  private Entry createEntry(MessageContext context) {
+    Entry entry = new Entry();
+    long size = ENTRY_OVERHEAD;
+    for (Map.Entry<TemplatePart, String> filename : context.getTemplateFilenames().entrySet()) {
+      String content = context.getRenderedPart(filename.getKey());
+      if (content == null)
+        continue;
+
+      try {
+        entry.templates.put(filename.getValue(), context.getTemplateConfiguration().getTemplate(filename.getValue()));
+      } catch (IOException ioe) {
+        return null;
+      }
+      entry.renderedParts.put(filename.getKey(), content);
+      size += 2L * content.length();
+    }
+    entry.bytes = size;
+    return entry;
+  }
+
+  private void put(Key key, Entry entry) {
+    if ((entry == null) || (entry.bytes > maximumBytes))
+      return;
+
+    synchronized (entries) {
+      Entry previous = entries.put(key, entry);
+      if (previous != null)
+        bytes -= previous.bytes;
+      bytes += entry.bytes;
+
+      Iterator<Entry> eldest = entries.values().iterator();
+      while ((entries.size() > maximumEntries) || (bytes > maximumBytes)) {
+        bytes -= eldest.next().bytes;
+        eldest.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Identifies the rendered parts of a message.
+   */
+  private static class Key {
+    private final Configuration configuration;
+    private final String filenames;
+    private final byte[] digest;
+    private final int hashCode;
+
+    Key(Configuration configuration, String filenames, byte[] digest) {
+      this.configuration = configuration;
+      this.filenames = filenames;
+      this.digest = digest;
+      this.hashCode = (System.identityHashCode(configuration) * 31 + filenames.hashCode()) * 31 + Arrays.hashCode(digest);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof Key))
+        return false;
+
+      Key other = (Key) object;
+      return (configuration == other.configuration) && filenames.equals(other.filenames) && Arrays.equals(digest, other.digest);
+    }
+  }
+
+  /**
+   * The rendered parts of a message and the templates they were rendered from.
+   */
+  private static class Entry {
+    private final Map<TemplatePart, String> renderedParts = new EnumMap<TemplatePart, String>(TemplatePart.class);
+    private final Map<String, Template> templates = new LinkedHashMap<String, Template>();
+    private final long created = System.currentTimeMillis();
+    private long bytes;
+  }
+}
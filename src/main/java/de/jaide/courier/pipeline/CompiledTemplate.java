@@ -0,0 +1,438 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.text.Collator;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A template turned into a tree of renderers by the TemplateCompiler: text is appended as it is, the variables are looked up in the
+ * parameters directly, without wrapping them into Freemarker models, and conditions and lists are plain Java.<br/>
+ * The output is the same as Freemarker's. Whenever a parameter is of a type Freemarker would treat differently from a plain string, e.g. a
+ * number, which is formatted by locale, or a JavaBean, or where Freemarker would fail, e.g. on a missing variable, render() gives up and
+ * returns null, and the caller renders the template with Freemarker instead.<br/>
+ * Instances are immutable and thread-safe.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class CompiledTemplate {
+  private final String name;
+  private final Node[] nodes;
+  private final int loopDepth;
+  private final Locale locale;
+
+  /**
+   * The length of the last output, to size the buffer of the next one.
+   */
+  private volatile int lastLength = 256;
+
+  CompiledTemplate(String name, List<Node> nodes, int loopDepth, Locale locale) {
+    this.name = name;
+    this.nodes = nodes.toArray(new Node[nodes.size()]);
+    this.loopDepth = loopDepth;
+    this.locale = locale;
+  }
+
+  /**
+   * Renders the template.
+   * 
+   * @param parameters The parameters of the message.
+   * @return The output or null, if the parameters need Freemarker to be rendered.
+   */
+  public String render(Map<String, Object> parameters) {
+    StringBuilder out = new StringBuilder(lastLength + 64);
+    try {
+      render(nodes, new State(parameters, loopDepth, locale), out);
+    } catch (Fallback f) {
+      return null;
+    }
+
+    lastLength = out.length();
+    return out.toString();
+  }
+
+  /**
+   * The name of the template, e.g. "signup_body.ftl.html".
+   * 
+   * @return The name.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return name + " (" + nodes.length + " nodes)";
+  }
+
+  static void render(Node[] nodes, State state, StringBuilder out) {
+    for (Node node : nodes)
+      node.render(state, out);
+  }
+
+  /**
+   * Appends the text with the characters Freemarker's ?html replaces by entities replaced.
+   */
+  static void appendHtml(String text, StringBuilder out) {
+    int start = 0;
+    for (int i = 0; i < text.length(); i++) {
+      String entity;
+      switch (text.charAt(i)) {
+      case '<':
+        entity = "&lt;";
+        break;
+      case '>':
+        entity = "&gt;";
+        break;
+      case '&':
+        entity = "&amp;";
+        break;
+      case '"':
+        entity = "&quot;";
+        break;
+      default:
+        continue;
+      }
+      out.append(text, start, i).append(entity);
+      start = i + 1;
+    }
+    out.append(text, start, text.length());
+  }
+
+  /**
+   * The state of a single rendering: the parameters and the current items of the enclosing lists.
+   */
+  static final class State {
+    final Map<String, Object> parameters;
+    final Object[] items;
+    final boolean[] hasNext;
+    final Locale locale;
+    private Collator collator;
+
+    State(Map<String, Object> parameters, int loopDepth, Locale locale) {
+      this.parameters = parameters;
+      this.items = new Object[loopDepth];
+      this.hasNext = new boolean[loopDepth];
+      this.locale = locale;
+    }
+
+    /**
+     * Freemarker compares strings with the collator of the locale, so e.g. ignorable characters don't make a difference.
+     */
+    Collator getCollator() {
+      if (collator == null)
+        collator = Collator.getInstance(locale);
+      return collator;
+    }
+  }
+
+  /**
+   * Thrown when the parameters need Freemarker to be rendered. Carries no stack trace, since it is thrown for control flow only.
+   */
+  static final class Fallback extends RuntimeException {
+    private static final long serialVersionUID = 8023156432904461286L;
+
+    static final Fallback INSTANCE = new Fallback();
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Throwable#fillInStackTrace()
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  /**
+   * A part of the template.
+   */
+  abstract static class Node {
+    abstract void render(State state, StringBuilder out);
+  }
+
+  /**
+   * A condition of an if or elseif.
+   */
+  abstract static class Condition {
+    abstract boolean isTrue(State state);
+  }
+
+  /**
+   * A variable, a parameter or the item of an enclosing list, and the keys of the nested maps to follow, e.g. "member.company.name".
+   */
+  static final class Path {
+    final int loop;
+    final String[] names;
+
+    /**
+     * @param loop The nesting level of the list whose item this is, -1 for a parameter.
+     * @param names The name of the variable and the keys to follow.
+     */
+    Path(int loop, String[] names) {
+      this.loop = loop;
+      this.names = names;
+    }
+
+    /**
+     * Returns the value or null, if the last key is missing. Freemarker fails if a value on the way is missing or not a map.
+     */
+    Object resolve(State state) {
+      Object value = loop < 0 ? state.parameters.get(names[0]) : state.items[loop];
+      for (int i = 1; i < names.length; i++) {
+        if (!(value instanceof Map))
+          throw Fallback.INSTANCE;
+        value = ((Map<?, ?>) value).get(names[i]);
+      }
+      return value;
+    }
+
+    String resolveString(State state) {
+      Object value = resolve(state);
+      if ((value != null) && !(value instanceof String))
+        throw Fallback.INSTANCE;
+      return (String) value;
+    }
+  }
+
+  static final class TextNode extends Node {
+    final String text;
+
+    TextNode(String text) {
+      this.text = text;
+    }
+
+    @Override
+    void render(State state, StringBuilder out) {
+      out.append(text);
+    }
+  }
+
+  /**
+   * ${name}, ${name!"default"} and ${name?html}, also with ?html applied by an escape directive.
+   */
+  static final class InterpolationNode extends Node {
+    final Path path;
+    final String defaultValue;
+    final int htmlEscapes;
+
+    InterpolationNode(Path path, String defaultValue, int htmlEscapes) {
+      this.path = path;
+      this.defaultValue = defaultValue;
+      this.htmlEscapes = htmlEscapes;
+    }
+
+    @Override
+    void render(State state, StringBuilder out) {
+      String value = path.resolveString(state);
+      if (value == null) {
+        if (defaultValue == null)
+          throw Fallback.INSTANCE;
+        value = defaultValue;
+      }
+
+      if (htmlEscapes == 0) {
+        out.append(value);
+        return;
+      }
+      for (int i = 1; i < htmlEscapes; i++) {
+        StringBuilder escaped = new StringBuilder(value.length() + 16);
+        appendHtml(value, escaped);
+        value = escaped.toString();
+      }
+      appendHtml(value, out);
+    }
+  }
+
+  /**
+   * An if with its elseifs and else, the else having no condition.
+   */
+  static final class IfNode extends Node {
+    final Condition[] conditions;
+    final Node[][] branches;
+
+    IfNode(List<Condition> conditions, List<Node[]> branches) {
+      this.conditions = conditions.toArray(new Condition[conditions.size()]);
+      this.branches = branches.toArray(new Node[branches.size()][]);
+    }
+
+    @Override
+    void render(State state, StringBuilder out) {
+      for (int i = 0; i < conditions.length; i++) {
+        if ((conditions[i] == null) || conditions[i].isTrue(state)) {
+          CompiledTemplate.render(branches[i], state, out);
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * A list over a collection or an array. Freemarker looks up a missing item in the parameters, so null items fall back.
+   */
+  static final class ListNode extends Node {
+    final Path path;
+    final int loop;
+    final Node[] body;
+
+    ListNode(Path path, int loop, List<Node> body) {
+      this.path = path;
+      this.loop = loop;
+      this.body = body.toArray(new Node[body.size()]);
+    }
+
+    @Override
+    void render(State state, StringBuilder out) {
+      Object value = path.resolve(state);
+      if (value instanceof Collection) {
+        Iterator<?> iterator = ((Collection<?>) value).iterator();
+        while (iterator.hasNext())
+          renderItem(state, out, iterator.next(), iterator.hasNext());
+      } else if (value instanceof Object[]) {
+        Object[] array = (Object[]) value;
+        for (int i = 0; i < array.length; i++)
+          renderItem(state, out, array[i], i < array.length - 1);
+      } else {
+        throw Fallback.INSTANCE;
+      }
+    }
+
+    private void renderItem(State state, StringBuilder out, Object item, boolean hasNext) {
+      if (item == null)
+        throw Fallback.INSTANCE;
+      state.items[loop] = item;
+      state.hasNext[loop] = hasNext;
+      CompiledTemplate.render(body, state, out);
+    }
+  }
+
+  /**
+   * name??
+   */
+  static final class ExistsCondition extends Condition {
+    final Path path;
+
+    ExistsCondition(Path path) {
+      this.path = path;
+    }
+
+    @Override
+    boolean isTrue(State state) {
+      return path.resolve(state) != null;
+    }
+  }
+
+  /**
+   * A boolean parameter.
+   */
+  static final class BooleanCondition extends Condition {
+    final Path path;
+
+    BooleanCondition(Path path) {
+      this.path = path;
+    }
+
+    @Override
+    boolean isTrue(State state) {
+      Object value = path.resolve(state);
+      if (!(value instanceof Boolean))
+        throw Fallback.INSTANCE;
+      return ((Boolean) value).booleanValue();
+    }
+  }
+
+  /**
+   * item_has_next
+   */
+  static final class HasNextCondition extends Condition {
+    final int loop;
+
+    HasNextCondition(int loop) {
+      this.loop = loop;
+    }
+
+    @Override
+    boolean isTrue(State state) {
+      return state.hasNext[loop];
+    }
+  }
+
+  /**
+   * name == "literal" and name != "literal".
+   */
+  static final class EqualsCondition extends Condition {
+    final Path path;
+    final String literal;
+    final boolean equal;
+
+    EqualsCondition(Path path, String literal, boolean equal) {
+      this.path = path;
+      this.literal = literal;
+      this.equal = equal;
+    }
+
+    @Override
+    boolean isTrue(State state) {
+      String value = path.resolveString(state);
+      if (value == null)
+        throw Fallback.INSTANCE;
+      return (value.equals(literal) || (state.getCollator().compare(value, literal) == 0)) == equal;
+    }
+  }
+
+  static final class NotCondition extends Condition {
+    final Condition condition;
+
+    NotCondition(Condition condition) {
+      this.condition = condition;
+    }
+
+    @Override
+    boolean isTrue(State state) {
+      return !condition.isTrue(state);
+    }
+  }
+
+  /**
+   * && and ||, evaluated left to right and short-circuited like in Freemarker.
+   */
+  static final class LogicalCondition extends Condition {
+    final Condition left;
+    final Condition right;
+    final boolean and;
+
+    LogicalCondition(Condition left, Condition right, boolean and) {
+      this.left = left;
+      this.right = right;
+      this.and = and;
+    }
+
+    @Override
+    boolean isTrue(State state) {
+      return and ? left.isTrue(state) && right.isTrue(state) : left.isTrue(state) || right.isTrue(state);
+    }
+  }
+}
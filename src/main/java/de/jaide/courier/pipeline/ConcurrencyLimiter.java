@@ -0,0 +1,224 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+/**
+ * Limits how many calls may be in flight at the same time, adapting the limit to the observed latency (additive increase, multiplicative
+ * decrease).<br/>
+ * The limit grows by one per limit's worth of calls that were answered about as fast as the fastest recent calls, as long as the calls
+ * actually use the limit. It shrinks by the backoff factor whenever a call takes longer than the tolerated multiple of that baseline, or
+ * fails since the destination is overloaded, but at most once per baseline latency, so a burst of slow answers to calls started under the
+ * old limit doesn't shrink it to the minimum at once. Calls failing for other reasons only give back their slot. Calls beyond the limit
+ * are rejected instead of queued, so callers never wait for a slow destination.
+ * <br/>
+ * The baseline is the fastest call of the current window of samples. A new window starts every WINDOW_SAMPLES calls, so the baseline
+ * follows the destination if it permanently becomes slower.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class ConcurrencyLimiter {
+  /**
+   * The number of calls after which the baseline latency is measured anew.
+   */
+  public static final int WINDOW_SAMPLES = 500;
+
+  private final String name;
+  private final int minimumLimit;
+  private final int maximumLimit;
+  private final double tolerance;
+  private final double backoff;
+
+  /**
+   * The current limit. Fractional, so it can grow by less than one call per call.
+   */
+  private double limit;
+  private int inFlight;
+  private long rejected;
+
+  private long baselineNanos = Long.MAX_VALUE;
+  private long windowMinimumNanos = Long.MAX_VALUE;
+  private int windowSamples;
+  private long lastDecreaseNanos;
+
+  /**
+   * Creates a new limiter tolerating twice the baseline latency and backing off to 90% of the limit.
+   * 
+   * @param name The name of the limiter, e.g. the name of the SMTP configuration.
+   * @param initialLimit The limit to start with.
+   * @param minimumLimit The limit never falls below this.
+   * @param maximumLimit The limit never grows beyond this.
+   */
+  public ConcurrencyLimiter(String name, int initialLimit, int minimumLimit, int maximumLimit) {
+    this(name, initialLimit, minimumLimit, maximumLimit, 2.0, 0.9);
+  }
+
+  /**
+   * Creates a new limiter.
+   * 
+   * @param name The name of the limiter, e.g. the name of the SMTP configuration.
+   * @param initialLimit The limit to start with.
+   * @param minimumLimit The limit never falls below this.
+   * @param maximumLimit The limit never grows beyond this.
+   * @param tolerance Calls taking longer than the baseline latency times this are considered a sign of overload.
+   * @param backoff The factor the limit is multiplied with on overload.
+   */
+  public ConcurrencyLimiter(String name, int initialLimit, int minimumLimit, int maximumLimit, double tolerance, double backoff) {
+    if ((minimumLimit < 1) || (minimumLimit > initialLimit) || (initialLimit > maximumLimit))
+      throw new IllegalArgumentException("The limits need to satisfy 1 <= minimum <= initial <= maximum.");
+    if ((tolerance <= 1.0) || (backoff <= 0.0) || (backoff >= 1.0))
+      throw new IllegalArgumentException("The tolerance needs to be > 1, the backoff between 0 and 1.");
+
+    this.name = name;
+    this.limit = initialLimit;
+    this.minimumLimit = minimumLimit;
+    this.maximumLimit = maximumLimit;
+    this.tolerance = tolerance;
+    this.backoff = backoff;
+  }
+
+  /**
+   * Admits a call, unless the limit is reached.
+   * 
+   * @return The time the call was admitted, as returned by System.nanoTime(), to be passed to onSuccess() or onFailure(). -1, if the call
+   *         was rejected.
+   */
+  public synchronized long tryAcquire() {
+    if (inFlight >= (int) limit) {
+      rejected++;
+      return -1;
+    }
+
+    inFlight++;
+    return System.nanoTime();
+  }
+
+  /**
+   * Records a call that succeeded.
+   * 
+   * @param startNanos The time the call was admitted, as returned by tryAcquire().
+   */
+  public void onSuccess(long startNanos) {
+    onSuccess(startNanos, System.nanoTime());
+  }
+
+  /**
+   * Records a call that succeeded at the given time.
+   * 
+   * @param startNanos The time the call was admitted, as returned by tryAcquire().
+   * @param endNanos The time the call succeeded, as returned by System.nanoTime().
+   */
+  public synchronized void onSuccess(long startNanos, long endNanos) {
+    long latency = endNanos - startNanos;
+    int callsInFlight = inFlight--;
+
+    windowMinimumNanos = Math.min(windowMinimumNanos, latency);
+    if (++windowSamples >= WINDOW_SAMPLES) {
+      baselineNanos = windowMinimumNanos;
+      windowMinimumNanos = Long.MAX_VALUE;
+      windowSamples = 0;
+    }
+    baselineNanos = Math.min(baselineNanos, latency);
+
+    if (latency > baselineNanos * tolerance)
+      decrease(endNanos);
+    else if (callsInFlight * 2 >= (int) limit)
+      limit = Math.min(maximumLimit, limit + 1.0 / limit);
+  }
+
+  /**
+   * Records a call that failed since the destination is overloaded, e.g. since it timed out or refused the connection.
+   * 
+   * @param startNanos The time the call was admitted, as returned by tryAcquire().
+   */
+  public void onFailure(long startNanos) {
+    onFailure(startNanos, System.nanoTime());
+  }
+
+  /**
+   * Records a call that failed at the given time since the destination is overloaded.
+   * 
+   * @param startNanos The time the call was admitted, as returned by tryAcquire().
+   * @param endNanos The time the call failed, as returned by System.nanoTime().
+   */
+  public synchronized void onFailure(long startNanos, long endNanos) {
+    inFlight--;
+    decrease(endNanos);
+  }
+
+  /**
+   * Records a call that failed for a reason that says nothing about the destination's load, e.g. since a recipient was rejected for good.
+   * The limit stays as it is.
+   * 
+   * @param startNanos The time the call was admitted, as returned by tryAcquire().
+   */
+  public synchronized void release(long startNanos) {
+    inFlight--;
+  }
+
+  /**
+   * The name of the limiter, e.g. the name of the SMTP configuration.
+   * 
+   * @return The name of the limiter.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * The number of calls that may currently be in flight.
+   * 
+   * @return The current limit.
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * The number of calls currently in flight.
+   * 
+   * @return The number of calls in flight.
+   */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /**
+   * The number of calls rejected so far.
+   * 
+   * @return The number of rejected calls.
+   */
+  public synchronized long getRejected() {
+    return rejected;
+  }
+
+  /**
+   * The latency of the fastest recent call.
+   * 
+   * @return The baseline latency in nanoseconds, or Long.MAX_VALUE if no call succeeded yet.
+   */
+  public synchronized long getBaselineNanos() {
+    return baselineNanos;
+  }
+
+  private void decrease(long now) {
+    long interval = baselineNanos == Long.MAX_VALUE ? 0 : baselineNanos;
+    if ((lastDecreaseNanos != 0) && (now - lastDecreaseNanos < interval))
+      return;
+
+    limit = Math.max(minimumLimit, limit * backoff);
+    lastDecreaseNanos = now;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.jaide.courier.exception.AdmissionRejectedException;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.exception.MessageTimeoutException;
+
+/**
+ * Limits how many messages may pass the wrapped stage at the same time, using a ConcurrencyLimiter per key, and rejects any further ones
+ * with an AdmissionRejectedException right away instead of letting them queue up behind a slow destination:
+ * 
+ * <pre>
+ * handler.replaceStage(PipelineMessageHandler.STAGE_TRANSPORT,
+ *     new ConcurrencyLimitingStage(handler.getStage(PipelineMessageHandler.STAGE_TRANSPORT), 10, 1, 100));
+ * </pre>
+ * 
+ * All messages share the same limiter, unless a subclass tells them apart by overriding getLimiterKey(). Only failures that isOverload()
+ * considers a sign of an overloaded destination shrink the limit, all others just give back the message's slot.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class ConcurrencyLimitingStage implements MessageStage {
+  private volatile MessageStage delegate;
+  private final int initialLimit;
+  private final int minimumLimit;
+  private final int maximumLimit;
+
+  private final ConcurrentMap<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<String, ConcurrencyLimiter>();
+
+  /**
+   * Creates a new limiting stage.
+   * 
+   * @param delegate The stage to limit.
+   * @param initialLimit The limit every limiter starts with.
+   * @param minimumLimit The limit never falls below this.
+   * @param maximumLimit The limit never grows beyond this.
+   */
+  public ConcurrencyLimitingStage(MessageStage delegate, int initialLimit, int minimumLimit, int maximumLimit) {
+    if ((minimumLimit < 1) || (minimumLimit > initialLimit) || (initialLimit > maximumLimit))
+      throw new IllegalArgumentException("The limits need to satisfy 1 <= minimum <= initial <= maximum.");
+
+    this.delegate = delegate;
+    this.initialLimit = initialLimit;
+    this.minimumLimit = minimumLimit;
+    this.maximumLimit = maximumLimit;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#getName()
+   */
+  public String getName() {
+    return delegate.getName();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  public void process(MessageContext context) throws CourierException {
+    ConcurrencyLimiter limiter = getLimiter(getLimiterKey(context));
+    long start = limiter.tryAcquire();
+    if (start == -1)
+      throw new AdmissionRejectedException(limiter.getName(), limiter.getLimit());
+
+    boolean succeeded = false;
+    boolean overload = false;
+    try {
+      delegate.process(context);
+      succeeded = true;
+    } catch (RuntimeException re) {
+      overload = isOverload(context, re);
+      throw re;
+    } finally {
+      if (succeeded)
+        limiter.onSuccess(start);
+      else if (overload)
+        limiter.onFailure(start);
+      else
+        limiter.release(start);
+    }
+  }
+
+  /**
+   * Returns the limiter for the given key, creating it on first use.
+   * 
+   * @param key The key, e.g. the name of an SMTP configuration.
+   * @return The limiter.
+   */
+  public ConcurrencyLimiter getLimiter(String key) {
+    ConcurrencyLimiter limiter = limiters.get(key);
+    if (limiter == null) {
+      ConcurrencyLimiter created = new ConcurrencyLimiter(key, initialLimit, minimumLimit, maximumLimit);
+      limiter = limiters.putIfAbsent(key, created);
+      if (limiter == null)
+        limiter = created;
+    }
+    return limiter;
+  }
+
+  /**
+   * The limited stage.
+   * 
+   * @return The limited stage.
+   */
+  public MessageStage getDelegate() {
+    return delegate;
+  }
+
+  /**
+   * Limits another stage from now on, keeping the limits learned so far, e.g. once a different transport was installed.
+   * 
+   * @param delegate The stage to limit. Needs to have the name of the one limited so far.
+   */
+  public void setDelegate(MessageStage delegate) {
+    if (!delegate.getName().equals(this.delegate.getName()))
+      throw new IllegalArgumentException("The stage '" + delegate.getName() + "' can't replace the stage '" + this.delegate.getName()
+          + "'.");
+
+    this.delegate = delegate;
+  }
+
+  /**
+   * Tells whether the given failure is a sign of the destination being overloaded, which shrinks the limit. By default timeouts and
+   * failures caused by an IOException, e.g. a refused connection, are. Anything else, e.g. a cancelled message or an invalid recipient,
+   * says nothing about the destination's load.
+   * 
+   * @param context The context of the message.
+   * @param failure The exception the wrapped stage failed with.
+   * @return True, if the limit is to shrink.
+   */
+  protected boolean isOverload(MessageContext context, RuntimeException failure) {
+    if (failure instanceof MessageTimeoutException)
+      return true;
+
+    for (Throwable cause = failure.getCause(); cause != null; cause = cause.getCause())
+      if (cause instanceof IOException)
+        return true;
+
+    return false;
+  }
+
+  /**
+   * Tells apart the destinations that are limited independently of each other.
+   * 
+   * @param context The context of the message.
+   * @return The key of the limiter to use for the message. The name of the wrapped stage by default.
+   */
+  protected String getLimiterKey(MessageContext context) {
+    return delegate.getName();
+  }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.exception.MessageCancelledException;
+import de.jaide.courier.exception.MessageTimeoutException;
+import freemarker.template.Configuration;
+
+/**
+ * Holds the state of a single message while it runs through the stages of a {@link PipelineMessageHandler}.<br/>
+ * The shared stages fill in the resolved template files and the rendered parts, channel-specific stages store whatever they need (e.g. the
+ * assembled MIME message) as the encoded message or as an attribute.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class MessageContext {
+  /**
+   * The mapped parameters given by the caller. They're also the Freemarker-variables for the templates.
+   */
+  private final Map<String, Object> parameters;
+
+  /**
+   * The time this message entered the pipeline, as returned by System.nanoTime().
+   */
+  private final long startNanos = System.nanoTime();
+
+  /**
+   * The time budget of this message in milliseconds, 0 if it has none, and the time it runs out, as returned by System.nanoTime().
+   */
+  private long timeoutMillis;
+  private long deadlineNanos = Long.MAX_VALUE;
+
+  private String templateName;
+  private String templatePath;
+  private TemplateTypeEnum templateType;
+  private Configuration templateConfiguration;
+  private TemplateIndex.Entry templateIndexEntry;
+  private Locale locale;
+
+  /**
+   * The filenames of the template parts to render, and which of them are optional.
+   */
+  private final Map<TemplatePart, String> templateFilenames = new EnumMap<TemplatePart, String>(TemplatePart.class);
+  private final Set<TemplatePart> optionalParts = EnumSet.noneOf(TemplatePart.class);
+
+  /**
+   * The Freemarker-processed template parts.
+   */
+  private final Map<TemplatePart, String> renderedParts = new EnumMap<TemplatePart, String>(TemplatePart.class);
+
+  /**
+   * The channel-specific representation of the message, e.g. a MIME message.
+   */
+  private Object encodedMessage;
+
+  /**
+   * Additional state stages may want to pass on to later stages.
+   */
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+  /**
+   * Creates a new context for the given parameters.
+   * 
+   * @param parameters The mapped parameters given by the caller.
+   */
+  public MessageContext(Map<String, Object> parameters) {
+    this.parameters = parameters;
+  }
+
+  /**
+   * The mapped parameters given by the caller.
+   * 
+   * @return The mapped parameters.
+   */
+  public Map<String, Object> getParameters() {
+    return parameters;
+  }
+
+  /**
+   * Returns the mapped parameter of the given name.
+   * 
+   * @param key The name of the parameter.
+   * @return The parameter or null, if it wasn't given.
+   */
+  public Object getParameter(String key) {
+    return parameters.get(key);
+  }
+
+  /**
+   * The time this message entered the pipeline, as returned by System.nanoTime().
+   * 
+   * @return The time this message entered the pipeline.
+   */
+  public long getStartNanos() {
+    return startNanos;
+  }
+
+  /**
+   * Sets the time budget of this message, counted from the time it entered the pipeline.
+   * 
+   * @param timeoutMillis The time budget in milliseconds, 0 for none.
+   */
+  public void setTimeoutMillis(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+    this.deadlineNanos = timeoutMillis > 0 ? startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE;
+  }
+
+  /**
+   * The time budget of this message.
+   * 
+   * @return The time budget in milliseconds, 0 if it has none.
+   */
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * The time the budget of this message runs out, as returned by System.nanoTime().
+   * 
+   * @return The deadline, Long.MAX_VALUE if the message has no time budget.
+   */
+  public long getDeadlineNanos() {
+    return deadlineNanos;
+  }
+
+  /**
+   * The time left of the budget of this message.
+   * 
+   * @return The time left in nanoseconds, at most 0 if the budget is used up, Long.MAX_VALUE if the message has no time budget.
+   */
+  public long getRemainingNanos() {
+    return deadlineNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadlineNanos - System.nanoTime();
+  }
+
+  /**
+   * Stops the message if its time budget is used up or the thread sending it was interrupted. Long-running stages call this regularly.
+   * 
+   * @param phase Where the message is, e.g. the name of the stage.
+   * @throws MessageTimeoutException If the time budget is used up.
+   * @throws MessageCancelledException If the thread was interrupted, the interrupt flag is kept.
+   */
+  public void checkDeadline(String phase) {
+    if (Thread.currentThread().isInterrupted())
+      throw new MessageCancelledException(phase);
+    if (getRemainingNanos() <= 0)
+      throw new MessageTimeoutException(phase, timeoutMillis, null);
+  }
+
+  /**
+   * The name of the template, e.g. "signup".
+   * 
+   * @return The name of the template.
+   */
+  public String getTemplateName() {
+    return templateName;
+  }
+
+  /**
+   * Sets the name of the template, e.g. "signup".
+   * 
+   * @param templateName The name of the template.
+   */
+  public void setTemplateName(String templateName) {
+    this.templateName = templateName;
+  }
+
+  /**
+   * The path the templates are loaded from. Only used for messages given to the user.
+   * 
+   * @return The path the templates are loaded from.
+   */
+  public String getTemplatePath() {
+    return templatePath;
+  }
+
+  /**
+   * Sets the path the templates are loaded from. Only used for messages given to the user.
+   * 
+   * @param templatePath The path the templates are loaded from.
+   */
+  public void setTemplatePath(String templatePath) {
+    this.templatePath = templatePath;
+  }
+
+  /**
+   * The requested versions of the body content.
+   * 
+   * @return The requested versions of the body content.
+   */
+  public TemplateTypeEnum getTemplateType() {
+    return templateType;
+  }
+
+  /**
+   * Sets the requested versions of the body content.
+   * 
+   * @param templateType The requested versions of the body content.
+   */
+  public void setTemplateType(TemplateTypeEnum templateType) {
+    this.templateType = templateType;
+  }
+
+  /**
+   * The Freemarker configuration the templates of this message are loaded with.
+   * 
+   * @return The Freemarker configuration.
+   */
+  public Configuration getTemplateConfiguration() {
+    return templateConfiguration;
+  }
+
+  /**
+   * Sets the Freemarker configuration the templates of this message are loaded with.
+   * 
+   * @param templateConfiguration The Freemarker configuration.
+   */
+  public void setTemplateConfiguration(Configuration templateConfiguration) {
+    this.templateConfiguration = templateConfiguration;
+  }
+
+  /**
+   * The template files known to exist in the location the templates of this message are loaded from.
+   * 
+   * @return The template index entry or null, if the location isn't indexed.
+   */
+  public TemplateIndex.Entry getTemplateIndexEntry() {
+    return templateIndexEntry;
+  }
+
+  /**
+   * Sets the template files known to exist in the location the templates of this message are loaded from.
+   * 
+   * @param templateIndexEntry The template index entry or null, if the location isn't indexed.
+   */
+  public void setTemplateIndexEntry(TemplateIndex.Entry templateIndexEntry) {
+    this.templateIndexEntry = templateIndexEntry;
+  }
+
+  /**
+   * The locale the template parts were resolved for.
+   * 
+   * @return The locale or null, if the caller didn't ask for one.
+   */
+  public Locale getLocale() {
+    return locale;
+  }
+
+  /**
+   * Sets the locale the template parts were resolved for.
+   * 
+   * @param locale The locale or null, if the caller didn't ask for one.
+   */
+  public void setLocale(Locale locale) {
+    this.locale = locale;
+  }
+
+  /**
+   * The filenames of the template parts to render, in the order they're rendered.
+   * 
+   * @return The filenames of the template parts to render.
+   */
+  public Map<TemplatePart, String> getTemplateFilenames() {
+    return templateFilenames;
+  }
+
+  /**
+   * Adds a template part that is to be rendered.
+   * 
+   * @param part The template part.
+   * @param filename The filename of the template, relative to the template path.
+   * @param optional If set to true then a missing template file is silently ignored.
+   */
+  public void addTemplatePart(TemplatePart part, String filename, boolean optional) {
+    templateFilenames.put(part, filename);
+    if (optional)
+      optionalParts.add(part);
+    else
+      optionalParts.remove(part);
+  }
+
+  /**
+   * True, if the given template part may be missing.
+   * 
+   * @param part The template part.
+   * @return True, if the given template part may be missing.
+   */
+  public boolean isOptional(TemplatePart part) {
+    return optionalParts.contains(part);
+  }
+
+  /**
+   * Returns the Freemarker-processed content of the given template part.
+   * 
+   * @param part The template part.
+   * @return The rendered content or null, if the part wasn't rendered.
+   */
+  public String getRenderedPart(TemplatePart part) {
+    return renderedParts.get(part);
+  }
+
+  /**
+   * Sets the Freemarker-processed content of the given template part.
+   * 
+   * @param part The template part.
+   * @param content The rendered content.
+   */
+  public void setRenderedPart(TemplatePart part, String content) {
+    renderedParts.put(part, content);
+  }
+
+  /**
+   * The channel-specific representation of the message, e.g. a MIME message.
+   * 
+   * @return The encoded message.
+   */
+  public Object getEncodedMessage() {
+    return encodedMessage;
+  }
+
+  /**
+   * Sets the channel-specific representation of the message, e.g. a MIME message.
+   * 
+   * @param encodedMessage The encoded message.
+   */
+  public void setEncodedMessage(Object encodedMessage) {
+    this.encodedMessage = encodedMessage;
+  }
+
+  /**
+   * Returns an attribute a previous stage stored.
+   * 
+   * @param name The name of the attribute.
+   * @return The attribute or null, if it wasn't set.
+   */
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  /**
+   * Stores an attribute for later stages.
+   * 
+   * @param name The name of the attribute.
+   * @param value The value of the attribute.
+   */
+  public void setAttribute(String name, Object value) {
+    attributes.put(name, value);
+  }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.mail.EmailAttachment;
+
+/**
+ * A file holding the mapped parameters of messages that weren't sent when their handler was shut down, so they can be sent on the next
+ * start.<br/>
+ * The parameters are written in a binary format of their own, since the usual values, e.g. template classes and e-mail attachments, aren't
+ * all Serializable. Strings, numbers, booleans, dates, locales, files, classes, enum constants, e-mail attachments, and lists and maps of
+ * these are supported, any other value only if it is Serializable. Like the SMTP configuration snapshot, the journal is written to a
+ * temporary file first and renamed, and ends with a checksum of its content.
+ * 
+ * @see PipelineMessageHandler#shutdown(long, java.util.concurrent.TimeUnit, File)
+ * @see PipelineMessageHandler#resume(File)
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class MessageJournal {
+  /**
+   * The first bytes of every journal, "CJNL".
+   */
+  private static final int MAGIC = 0x434a4e4c;
+
+  /**
+   * The version of the file format.
+   */
+  private static final int VERSION = 1;
+
+  /**
+   * The types of the values.
+   */
+  private static final int TYPE_NULL = 0;
+  private static final int TYPE_STRING = 1;
+  private static final int TYPE_BOOLEAN = 2;
+  private static final int TYPE_INTEGER = 3;
+  private static final int TYPE_LONG = 4;
+  private static final int TYPE_DOUBLE = 5;
+  private static final int TYPE_DATE = 6;
+  private static final int TYPE_LOCALE = 7;
+  private static final int TYPE_FILE = 8;
+  private static final int TYPE_CLASS = 9;
+  private static final int TYPE_ENUM = 10;
+  private static final int TYPE_ATTACHMENT = 11;
+  private static final int TYPE_LIST = 12;
+  private static final int TYPE_MAP = 13;
+  private static final int TYPE_SERIALIZED = 14;
+
+  private final File file;
+
+  /**
+   * Creates a new journal.
+   * 
+   * @param file The journal file. Needn't exist yet.
+   */
+  public MessageJournal(File file) {
+    this.file = file;
+  }
+
+  /**
+   * The journal file.
+   * 
+   * @return The journal file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Reads the messages of the journal.
+   * 
+   * @return The mapped parameters of each message, in the order written. Empty, if the journal file doesn't exist.
+   * @throws IOException Thrown if the journal couldn't be read, is of an unknown version or is damaged.
+   */
+  public List<Map<String, Object>> read() throws IOException {
+    List<Map<String, Object>> messages = new ArrayList<Map<String, Object>>();
+    if (!file.exists())
+      return messages;
+
+    /*
+     * The checksum is verified before anything is parsed, so a damaged or cut off journal never makes the lengths in it allocate memory.
+     */
+    byte[] content = FileUtils.readFileToByteArray(file);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+    if ((content.length < 4) || (in.readInt() != MAGIC))
+      throw new IOException("'" + file + "' is not a message journal.");
+    if (content.length < 20)
+      throw new IOException("The message journal '" + file + "' is damaged.");
+
+    CRC32 crc = new CRC32();
+    crc.update(content, 0, content.length - 8);
+    DataInputStream checksumIn = new DataInputStream(new ByteArrayInputStream(content, content.length - 8, 8));
+    if (checksumIn.readLong() != crc.getValue())
+      throw new IOException("The message journal '" + file + "' is damaged.");
+
+    in = new DataInputStream(new ByteArrayInputStream(content, 4, content.length - 12));
+    int version = in.readInt();
+    if (version != VERSION)
+      throw new IOException("The message journal '" + file + "' is of the unsupported version " + version + ".");
+
+    try {
+      int count = readLength(in);
+      for (int i = 0; i < count; i++) {
+        byte[] record = new byte[readLength(in)];
+        in.readFully(record);
+        messages.add(readParameters(new DataInputStream(new ByteArrayInputStream(record))));
+      }
+    } catch (EOFException eofe) {
+      throw new IOException("The message journal '" + file + "' is damaged.", eofe);
+    }
+
+    return messages;
+  }
+
+  /**
+   * Writes the messages to the journal, replacing any messages written before. A message with a parameter that can't be written is left
+   * out, the others are written anyway.
+   * 
+   * @param messages The mapped parameters of each message.
+   * @return The messages that were left out. Empty, if all were written.
+   * @throws IOException Thrown if the journal couldn't be written.
+   */
+  public List<Map<String, Object>> write(List<Map<String, Object>> messages) throws IOException {
+    List<byte[]> records = new ArrayList<byte[]>(messages.size());
+    List<Map<String, Object>> rejected = new ArrayList<Map<String, Object>>();
+    for (Map<String, Object> parameters : messages) {
+      ByteArrayOutputStream record = new ByteArrayOutputStream();
+      try {
+        DataOutputStream out = new DataOutputStream(record);
+        writeParameters(out, parameters);
+        out.flush();
+        records.add(record.toByteArray());
+      } catch (NotSerializableException nse) {
+        rejected.add(parameters);
+      }
+    }
+
+    File directory = file.getAbsoluteFile().getParentFile();
+    File temporaryFile = new File(directory, "." + file.getName() + ".tmp");
+
+    CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)), new CRC32());
+    DataOutputStream out = new DataOutputStream(checked);
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(records.size());
+      for (byte[] record : records) {
+        out.writeInt(record.length);
+        out.write(record);
+      }
+
+      out.flush();
+      out.writeLong(checked.getChecksum().getValue());
+      out.close();
+    } finally {
+      IOUtils.closeQuietly(out);
+    }
+
+    if (!temporaryFile.renameTo(file)) {
+      FileUtils.deleteQuietly(file);
+      if (!temporaryFile.renameTo(file))
+        throw new IOException("The message journal couldn't be moved to '" + file + "'.");
+    }
+    return rejected;
+  }
+
+  /**
+   * Deletes the journal file, e.g. once its messages were resubmitted.
+   * 
+   * @throws IOException Thrown if the journal file exists, but couldn't be deleted.
+   */
+  public void delete() throws IOException {
+    if (file.exists() && !file.delete())
+      throw new IOException("The message journal '" + file + "' couldn't be deleted.");
+  }
+
+  private static void writeParameters(DataOutputStream out, Map<?, ?> parameters) throws IOException {
+    out.writeInt(parameters.size());
+    for (Map.Entry<?, ?> entry : parameters.entrySet()) {
+      writeString(out, (String) entry.getKey());
+      writeValue(out, entry.getValue());
+    }
+  }
+
+  private static Map<String, Object> readParameters(DataInputStream in) throws IOException {
+    int count = readLength(in);
+    Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+    for (int i = 0; i < count; i++) {
+      String key = readString(in);
+      parameters.put(key, readValue(in));
+    }
+    return parameters;
+  }
+
+  private static void writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(TYPE_NULL);
+    } else if (value instanceof String) {
+      out.writeByte(TYPE_STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(TYPE_BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(TYPE_INTEGER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(TYPE_LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Double) {
+      out.writeByte(TYPE_DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value.getClass() == Date.class) {
+      out.writeByte(TYPE_DATE);
+      out.writeLong(((Date) value).getTime());
+    } else if (value instanceof Locale) {
+      out.writeByte(TYPE_LOCALE);
+      writeString(out, value.toString());
+    } else if (value instanceof File) {
+      out.writeByte(TYPE_FILE);
+      writeString(out, ((File) value).getPath());
+    } else if (value instanceof Class) {
+      out.writeByte(TYPE_CLASS);
+      writeString(out, ((Class<?>) value).getName());
+    } else if (value instanceof Enum) {
+      out.writeByte(TYPE_ENUM);
+      writeString(out, ((Enum<?>) value).getDeclaringClass().getName());
+      writeString(out, ((Enum<?>) value).name());
+    } else if (value instanceof EmailAttachment) {
+      EmailAttachment attachment = (EmailAttachment) value;
+      out.writeByte(TYPE_ATTACHMENT);
+      writeOptionalString(out, attachment.getPath());
+      writeOptionalString(out, attachment.getURL() != null ? attachment.getURL().toExternalForm() : null);
+      writeOptionalString(out, attachment.getName());
+      writeOptionalString(out, attachment.getDescription());
+      writeOptionalString(out, attachment.getDisposition());
+    } else if (value instanceof List) {
+      out.writeByte(TYPE_LIST);
+      out.writeInt(((List<?>) value).size());
+      for (Object element : (List<?>) value)
+        writeValue(out, element);
+    } else if ((value instanceof Map) && hasStringKeys((Map<?, ?>) value)) {
+      out.writeByte(TYPE_MAP);
+      writeParameters(out, (Map<?, ?>) value);
+    } else if (value instanceof Serializable) {
+      ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+      ObjectOutputStream objectOut = new ObjectOutputStream(serialized);
+      objectOut.writeObject(value);
+      objectOut.close();
+      out.writeByte(TYPE_SERIALIZED);
+      out.writeInt(serialized.size());
+      serialized.writeTo(out);
+    } else {
+      throw new NotSerializableException(value.getClass().getName());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object readValue(DataInputStream in) throws IOException {
+    int type = in.readByte();
+    switch (type) {
+    case TYPE_NULL:
+      return null;
+    case TYPE_STRING:
+      return readString(in);
+    case TYPE_BOOLEAN:
+      return in.readBoolean();
+    case TYPE_INTEGER:
+      return in.readInt();
+    case TYPE_LONG:
+      return in.readLong();
+    case TYPE_DOUBLE:
+      return in.readDouble();
+    case TYPE_DATE:
+      return new Date(in.readLong());
+    case TYPE_LOCALE:
+      return toLocale(readString(in));
+    case TYPE_FILE:
+      return new File(readString(in));
+    case TYPE_CLASS:
+      return loadClass(readString(in));
+    case TYPE_ENUM:
+      return toEnum(loadClass(readString(in)), readString(in));
+    case TYPE_ATTACHMENT:
+      EmailAttachment attachment = new EmailAttachment();
+      attachment.setPath(readOptionalString(in));
+      String url = readOptionalString(in);
+      if (url != null)
+        attachment.setURL(new URL(url));
+      attachment.setName(readOptionalString(in));
+      attachment.setDescription(readOptionalString(in));
+      attachment.setDisposition(readOptionalString(in));
+      return attachment;
+    case TYPE_LIST:
+      int size = readLength(in);
+      List<Object> list = new ArrayList<Object>(size);
+      for (int i = 0; i < size; i++)
+        list.add(readValue(in));
+      return list;
+    case TYPE_MAP:
+      return readParameters(in);
+    case TYPE_SERIALIZED:
+      byte[] serialized = new byte[readLength(in)];
+      in.readFully(serialized);
+      ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(serialized)) {
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException {
+          try {
+            return loadClass(description.getName());
+          } catch (IOException ioe) {
+            return super.resolveClass(description);
+          }
+        }
+      };
+      try {
+        return objectIn.readObject();
+      } catch (ClassNotFoundException cnfe) {
+        throw new IOException("The class of a journaled parameter couldn't be found: " + cnfe.getMessage());
+      } finally {
+        objectIn.close();
+      }
+    default:
+      throw new IOException("Unknown type " + type + " of a journaled parameter.");
+    }
+  }
+
+  private static boolean hasStringKeys(Map<?, ?> map) {
+    for (Object key : map.keySet())
+      if (!(key instanceof String))
+        return false;
+
+    return true;
+  }
+
+  /**
+   * Loads a class with the context class loader, which knows the application's classes, or with the class loader of this library.
+   */
+  private static Class<?> loadClass(String name) throws IOException {
+    ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    try {
+      if (classLoader != null)
+        return Class.forName(name, false, classLoader);
+    } catch (ClassNotFoundException cnfe) {
+      // Try the class loader of this library below
+    }
+    try {
+      return Class.forName(name, false, MessageJournal.class.getClassLoader());
+    } catch (ClassNotFoundException cnfe) {
+      throw new IOException("The class '" + name + "' of a journaled parameter couldn't be found.");
+    }
+  }
+
+  /**
+   * Looks up the constant of an enum whose type is only known at runtime.
+   */
+  @SuppressWarnings( { "unchecked", "rawtypes" })
+  private static Object toEnum(Class<?> enumClass, String name) throws IOException {
+    if (!enumClass.isEnum())
+      throw new IOException("The class '" + enumClass.getName() + "' of a journaled parameter isn't an enum.");
+
+    return Enum.valueOf((Class<? extends Enum>) enumClass, name);
+  }
+
+  private static Locale toLocale(String name) {
+    String[] parts = name.split("_", 3);
+    if (parts.length == 1)
+      return new Locale(parts[0]);
+    if (parts.length == 2)
+      return new Locale(parts[0], parts[1]);
+    return new Locale(parts[0], parts[1], parts[2]);
+  }
+
+  /**
+   * Strings are written as their length and UTF-8 bytes, since writeUTF() is limited to 64 KB, which e.g. a pre-rendered HTML part may
+   * exceed.
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[readLength(in)];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  /**
+   * Reads a length or a number of elements, which can't be more than the bytes left to read, since every element takes at least one.
+   */
+  private static int readLength(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if ((length < 0) || (length > in.available()))
+      throw new IOException("The message journal is damaged: a length of " + length + " exceeds the " + in.available() + " bytes left.");
+    return length;
+  }
+
+  private static void writeOptionalString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null)
+      writeString(out, value);
+  }
+
+  private static String readOptionalString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? readString(in) : null;
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import de.jaide.courier.exception.CourierException;
+
+/**
+ * A single step of a message pipeline, e.g. validating the parameters, rendering the templates or handing the message over to the
+ * transport.<br/>
+ * Stages are shared between all messages running through a handler, hence implementations need to be thread-safe and keep any per-message
+ * state in the given {@link MessageContext}.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public interface MessageStage {
+
+  /**
+   * The name of this stage. Used for replacing or inserting stages relative to each other and for reporting metrics.
+   * 
+   * @return The name of this stage.
+   */
+  public String getName();
+
+  /**
+   * Processes the message.
+   * 
+   * @param context The state of the message that is currently running through the pipeline.
+   * @throws CourierException Thrown in case of a Runtime problem.
+   */
+  public void process(MessageContext context) throws CourierException;
+}
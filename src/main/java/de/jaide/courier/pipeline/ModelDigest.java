@@ -0,0 +1,348 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ * Computes a SHA-1 digest of a Freemarker model that is equal for equal models, no matter in which order their maps and sets were filled.
+ * <br/>
+ * Only values whose content is known to be what the templates see are digested: null, strings, numbers, booleans, characters, dates,
+ * enums, classes, files, locales, and maps, collections and arrays of these. Any other object, e.g. a JavaBean whose properties the
+ * templates read, makes the model undigestable, since two instances can't be told apart reliably.<br/>
+ * Maps and sets whose iteration order is part of their content (linked and sorted ones), and which the templates may list in that order,
+ * are digested in that order. All others are digested ordered by the canonical form of their keys or elements.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class ModelDigest {
+  /**
+   * How deep models may be nested, so cyclic models don't overflow the stack.
+   */
+  private static final int MAXIMUM_DEPTH = 32;
+
+  /**
+   * The type tags preceding the values, so e.g. the string "1" and the number 1 differ.
+   */
+  private static final int TAG_NULL = 0;
+  private static final int TAG_STRING = 1;
+  private static final int TAG_NUMBER = 2;
+  private static final int TAG_BOOLEAN = 3;
+  private static final int TAG_CHARACTER = 4;
+  private static final int TAG_DATE = 5;
+  private static final int TAG_ENUM = 6;
+  private static final int TAG_CLASS = 7;
+  private static final int TAG_FILE = 8;
+  private static final int TAG_LOCALE = 9;
+  private static final int TAG_MAP = 10;
+  private static final int TAG_LIST = 11;
+  private static final int TAG_SET = 12;
+
+  private static final Comparator<byte[]> BYTES_COMPARATOR = new Comparator<byte[]>() {
+    public int compare(byte[] a, byte[] b) {
+      int length = Math.min(a.length, b.length);
+      for (int i = 0; i < length; i++)
+        if (a[i] != b[i])
+          return (a[i] & 0xff) - (b[i] & 0xff);
+
+      return a.length - b.length;
+    }
+  };
+
+  private ModelDigest() {
+  }
+
+  /**
+   * Computes the digest of the given model.
+   * 
+   * @param model The model, usually the map of mapped parameters.
+   * @return The SHA-1 digest or null, if the model contains values that can't be digested.
+   */
+  public static byte[] digest(Object model) {
+    MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new IllegalStateException(nsae);
+    }
+
+    Sink sink = new Sink(messageDigest);
+    if (!write(sink, model, 0))
+      return null;
+    sink.flush();
+    return messageDigest.digest();
+  }
+
+  /**
+   * Writes the canonical form of the given value.
+   * 
+   * @return False, if the value can't be digested.
+   */
+  private static boolean write(Sink out, Object value, int depth) {
+    if (depth > MAXIMUM_DEPTH)
+      return false;
+
+    if (value == null) {
+      out.writeByte(TAG_NULL);
+    } else if (value instanceof String) {
+      out.writeByte(TAG_STRING);
+      out.writeString((String) value);
+    } else if (value instanceof CharSequence) {
+      out.writeByte(TAG_STRING);
+      out.writeString(value.toString());
+    } else if (value instanceof Number) {
+      out.writeByte(TAG_NUMBER);
+      out.writeString(value.getClass().getName());
+      out.writeString(value.toString());
+    } else if (value instanceof Boolean) {
+      out.writeByte(TAG_BOOLEAN);
+      out.writeByte(((Boolean) value).booleanValue() ? 1 : 0);
+    } else if (value instanceof Character) {
+      out.writeByte(TAG_CHARACTER);
+      out.writeInt(((Character) value).charValue());
+    } else if (value instanceof Date) {
+      out.writeByte(TAG_DATE);
+      out.writeString(value.getClass().getName());
+      out.writeLong(((Date) value).getTime());
+    } else if (value instanceof Enum<?>) {
+      out.writeByte(TAG_ENUM);
+      out.writeString(((Enum<?>) value).getDeclaringClass().getName());
+      out.writeString(((Enum<?>) value).name());
+    } else if (value instanceof Class<?>) {
+      out.writeByte(TAG_CLASS);
+      out.writeString(((Class<?>) value).getName());
+    } else if (value instanceof File) {
+      out.writeByte(TAG_FILE);
+      out.writeString(((File) value).getPath());
+    } else if (value instanceof Locale) {
+      out.writeByte(TAG_LOCALE);
+      out.writeString(value.toString());
+    } else if (value instanceof Map<?, ?>) {
+      return writeMap(out, (Map<?, ?>) value, depth);
+    } else if (value instanceof Set<?>) {
+      return writeSet(out, (Set<?>) value, depth);
+    } else if (value instanceof Iterable<?>) {
+      out.writeByte(TAG_LIST);
+      for (Object element : (Iterable<?>) value) {
+        out.writeByte(1);
+        if (!write(out, element, depth + 1))
+          return false;
+      }
+      out.writeByte(0);
+    } else if (value.getClass().isArray()) {
+      int length = Array.getLength(value);
+      out.writeByte(TAG_LIST);
+      for (int i = 0; i < length; i++) {
+        out.writeByte(1);
+        if (!write(out, Array.get(value, i), depth + 1))
+          return false;
+      }
+      out.writeByte(0);
+    } else {
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Writes the entries of a map ordered by their keys, unless the map has an order of its own. String keys, by far the most common ones, are
+   * ordered as they are, any others by their canonical form.
+   */
+  private static boolean writeMap(Sink out, Map<?, ?> map, int depth) {
+    int size = map.size();
+    Object[] keys = new Object[size];
+    Object[] values = new Object[size];
+    boolean stringKeys = true;
+    int i = 0;
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      keys[i] = entry.getKey();
+      values[i] = entry.getValue();
+      if (!(keys[i] instanceof String))
+        stringKeys = false;
+      i++;
+    }
+
+    boolean ordered = (map instanceof LinkedHashMap<?, ?>) || (map instanceof SortedMap<?, ?>);
+    if (!stringKeys) {
+      for (i = 0; i < size; i++) {
+        keys[i] = toBytes(keys[i], depth + 1);
+        if (keys[i] == null)
+          return false;
+      }
+    }
+
+    Integer[] order = new Integer[size];
+    for (i = 0; i < size; i++)
+      order[i] = i;
+    if (!ordered)
+      Arrays.sort(order, new KeyComparator(keys, stringKeys));
+
+    out.writeByte(TAG_MAP);
+    out.writeInt(size);
+    for (Integer index : order) {
+      if (stringKeys) {
+        out.writeByte(TAG_STRING);
+        out.writeString((String) keys[index]);
+      } else {
+        out.writeBytes((byte[]) keys[index]);
+      }
+      if (!write(out, values[index], depth + 1))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Writes the elements of a set ordered by their canonical form, unless the set has an order of its own.
+   */
+  private static boolean writeSet(Sink out, Set<?> set, int depth) {
+    List<byte[]> elements = new ArrayList<byte[]>(set.size());
+    for (Object element : set) {
+      byte[] bytes = toBytes(element, depth + 1);
+      if (bytes == null)
+        return false;
+      elements.add(bytes);
+    }
+
+    if (!(set instanceof LinkedHashSet<?>) && !(set instanceof SortedSet<?>))
+      Collections.sort(elements, BYTES_COMPARATOR);
+    out.writeByte(TAG_SET);
+    out.writeInt(elements.size());
+    for (byte[] element : elements)
+      out.writeBytes(element);
+
+    return true;
+  }
+
+  private static byte[] toBytes(Object value, int depth) {
+    Sink sink = new Sink(null);
+    return write(sink, value, depth) ? sink.toByteArray() : null;
+  }
+
+  /**
+   * Orders the keys of a map, given as strings or in their canonical form.
+   */
+  private static class KeyComparator implements Comparator<Integer> {
+    private final Object[] keys;
+    private final boolean stringKeys;
+
+    KeyComparator(Object[] keys, boolean stringKeys) {
+      this.keys = keys;
+      this.stringKeys = stringKeys;
+    }
+
+    public int compare(Integer a, Integer b) {
+      if (stringKeys)
+        return ((String) keys[a]).compareTo((String) keys[b]);
+      return BYTES_COMPARATOR.compare((byte[]) keys[a], (byte[]) keys[b]);
+    }
+  }
+
+  /**
+   * Collects the canonical form in a buffer, which is handed to the digest whenever it's full, or grown if there's no digest.
+   */
+  private static class Sink {
+    private final MessageDigest messageDigest;
+    private byte[] buffer;
+    private int position;
+
+    Sink(MessageDigest messageDigest) {
+      this.messageDigest = messageDigest;
+      this.buffer = new byte[messageDigest == null ? 64 : 8192];
+    }
+
+    void writeByte(int b) {
+      ensure(1);
+      buffer[position++] = (byte) b;
+    }
+
+    void writeInt(int value) {
+      ensure(4);
+      buffer[position++] = (byte) (value >>> 24);
+      buffer[position++] = (byte) (value >>> 16);
+      buffer[position++] = (byte) (value >>> 8);
+      buffer[position++] = (byte) value;
+    }
+
+    void writeLong(long value) {
+      writeInt((int) (value >>> 32));
+      writeInt((int) value);
+    }
+
+    /**
+     * Writes the string length-prefixed, so adjacent strings can't be shifted into each other.
+     */
+    void writeString(String value) {
+      int length = value.length();
+      writeInt(length);
+      for (int i = 0; i < length; i++) {
+        if (buffer.length - position < 2)
+          ensure(2);
+        char c = value.charAt(i);
+        buffer[position++] = (byte) (c >>> 8);
+        buffer[position++] = (byte) c;
+      }
+    }
+
+    void writeBytes(byte[] bytes) {
+      if (messageDigest != null) {
+        flush();
+        messageDigest.update(bytes);
+      } else {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+      }
+    }
+
+    void flush() {
+      messageDigest.update(buffer, 0, position);
+      position = 0;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buffer, position);
+    }
+
+    private void ensure(int count) {
+      if (buffer.length - position >= count)
+        return;
+
+      if (messageDigest != null)
+        flush();
+      else
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + count));
+    }
+  }
+}
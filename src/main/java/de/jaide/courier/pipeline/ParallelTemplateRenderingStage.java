@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.exception.MessageCancelledException;
+import de.jaide.courier.exception.MessageTimeoutException;
+
+/**
+ * Renders the template parts of a message concurrently, e.g. the text and the HTML version of a body with TemplateTypeEnum.BOTH, and
+ * joins them before the message is encoded. Replaces the standard rendering stage:
+ * 
+ * <pre>
+ * handler.replaceStage(PipelineMessageHandler.STAGE_RENDER, new ParallelTemplateRenderingStage());
+ * </pre>
+ * 
+ * Handing a part to another thread costs more than rendering a small template, so only parts whose templates took at least the threshold to
+ * render the last times are rendered concurrently. A template is always rendered on the calling thread the first time, and the calling
+ * thread renders one of the slow parts itself while the others are rendered by the executor.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class ParallelTemplateRenderingStage extends TemplateRenderingStage {
+  /**
+   * The default threshold, in microseconds.
+   */
+  public static final long DEFAULT_THRESHOLD_MICROS = 500;
+
+  /**
+   * The executor shared by all stages that weren't given one, lazily created.
+   */
+  private static ExecutorService sharedExecutor;
+
+  private final ExecutorService executor;
+  private final long thresholdNanos;
+
+  /**
+   * The moving average of the rendering times, by Freemarker configuration and filename.
+   */
+  private final ConcurrentMap<String, Long> renderingNanos = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * Creates a new stage rendering on the shared executor, with the default threshold. With a single processor there's nothing to gain, so
+   * all parts are rendered on the calling thread then.
+   */
+  public ParallelTemplateRenderingStage() {
+    this(getSharedExecutor(), Runtime.getRuntime().availableProcessors() > 1 ? DEFAULT_THRESHOLD_MICROS : Long.MAX_VALUE);
+  }
+
+  /**
+   * Creates a new stage.
+   * 
+   * @param executor The executor rendering the slow parts.
+   * @param thresholdMicros How long a template has to take to be rendered concurrently, in microseconds. 0 renders all parts concurrently.
+   */
+  public ParallelTemplateRenderingStage(ExecutorService executor, long thresholdMicros) {
+    this.executor = executor;
+    this.thresholdNanos = TimeUnit.MICROSECONDS.toNanos(thresholdMicros);
+  }
+
+  /**
+   * Returns the executor shared by all stages that weren't given one: one daemon thread per processor, idle threads time out.
+   * 
+   * @return The shared executor.
+   */
+  public static synchronized ExecutorService getSharedExecutor() {
+    if (sharedExecutor == null) {
+      int threads = Runtime.getRuntime().availableProcessors();
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new NamedThreadFactory("courier-render"));
+      executor.allowCoreThreadTimeOut(true);
+      sharedExecutor = executor;
+    }
+
+    return sharedExecutor;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.TemplateRenderingStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  @Override
+  public void process(final MessageContext context) throws CourierException {
+    Map<TemplatePart, String> inline = new EnumMap<TemplatePart, String>(TemplatePart.class);
+    List<TemplatePart> slowParts = new ArrayList<TemplatePart>();
+    List<String> slowFilenames = new ArrayList<String>();
+    for (Map.Entry<TemplatePart, String> entry : context.getTemplateFilenames().entrySet()) {
+      Long nanos = renderingNanos.get(key(context, entry.getValue()));
+      if ((nanos != null) && (nanos.longValue() >= thresholdNanos)) {
+        slowParts.add(entry.getKey());
+        slowFilenames.add(entry.getValue());
+      } else {
+        inline.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    /*
+     * With less than two slow parts there's nothing to gain. Otherwise all but the last slow part go to the executor, the calling thread
+     * renders the last one and the fast ones.
+     */
+    if (slowParts.size() < 2) {
+      super.process(context);
+      return;
+    }
+
+    int submitted = slowParts.size() - 1;
+    List<Future<String>> futures = new ArrayList<Future<String>>(submitted);
+    try {
+      for (int i = 0; i < submitted; i++) {
+        final TemplatePart part = slowParts.get(i);
+        final String filename = slowFilenames.get(i);
+        futures.add(executor.submit(new Callable<String>() {
+          public String call() throws Exception {
+            return renderPart(context, part, filename);
+          }
+        }));
+      }
+
+      Map<TemplatePart, String> rendered = new EnumMap<TemplatePart, String>(TemplatePart.class);
+      rendered.put(slowParts.get(submitted), renderPart(context, slowParts.get(submitted), slowFilenames.get(submitted)));
+      for (Map.Entry<TemplatePart, String> entry : inline.entrySet())
+        rendered.put(entry.getKey(), renderPart(context, entry.getKey(), entry.getValue()));
+      for (int i = 0; i < submitted; i++)
+        rendered.put(slowParts.get(i), join(context, futures.get(i)));
+
+      for (Map.Entry<TemplatePart, String> entry : rendered.entrySet())
+        if (entry.getValue() != null)
+          context.setRenderedPart(entry.getKey(), entry.getValue());
+    } finally {
+      for (Future<String> future : futures)
+        future.cancel(true);
+    }
+
+    checkBodyRendered(context);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.TemplateRenderingStage#renderPart(de.jaide.courier.pipeline.MessageContext,
+   * de.jaide.courier.pipeline.TemplatePart, java.lang.String)
+   */
+  @Override
+  protected String renderPart(MessageContext context, TemplatePart part, String filename) throws CourierException {
+    long start = System.nanoTime();
+    String content = super.renderPart(context, part, filename);
+    if (content != null) {
+      String key = key(context, filename);
+      long nanos = System.nanoTime() - start;
+      Long average = renderingNanos.get(key);
+      renderingNanos.put(key, average == null ? nanos : (average.longValue() * 3 + nanos) / 4);
+    }
+
+    return content;
+  }
+
+  /**
+   * Waits for a part rendered by the executor, at most for the time left of the message's budget.
+   */
+  private static String join(MessageContext context, Future<String> future) throws CourierException {
+    try {
+      long remainingNanos = context.getRemainingNanos();
+      if (remainingNanos == Long.MAX_VALUE)
+        return future.get();
+
+      return future.get(remainingNanos, TimeUnit.NANOSECONDS);
+    } catch (TimeoutException te) {
+      throw new MessageTimeoutException(PipelineMessageHandler.STAGE_RENDER, context.getTimeoutMillis(), te);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new MessageCancelledException(PipelineMessageHandler.STAGE_RENDER);
+    } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof CourierException)
+        throw (CourierException) ee.getCause();
+      throw new CourierException(ee.getCause());
+    }
+  }
+
+  private static String key(MessageContext context, String filename) {
+    return System.identityHashCode(context.getTemplateConfiguration()) + ":" + filename;
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.util.Map;
+
+import freemarker.template.ObjectWrapper;
+import freemarker.template.SimpleCollection;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateHashModelEx;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+
+/**
+ * The root model the templates of a message are rendered with: a hash backed directly by the parameters.<br/>
+ * Handing Freemarker the parameter map makes it copy the map into a new SimpleHash for every template part. This model is created once
+ * per message instead and shared by all of its parts. It never modifies itself, so parts rendered concurrently may share it, too.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class ParameterModel implements TemplateHashModelEx {
+  /**
+   * The name of the MessageContext attribute the model is kept in.
+   */
+  public static final String ATTRIBUTE_PARAMETER_MODEL = "de.jaide.courier.parameterModel";
+
+  private final Map<String, Object> parameters;
+  private final ObjectWrapper objectWrapper;
+
+  /**
+   * Creates a new model.
+   * 
+   * @param parameters The parameters of the message.
+   * @param objectWrapper Wraps the values of the parameters.
+   */
+  public ParameterModel(Map<String, Object> parameters, ObjectWrapper objectWrapper) {
+    this.parameters = parameters;
+    this.objectWrapper = objectWrapper;
+  }
+
+  /**
+   * Returns the model of the given message, creating it when the first template part is rendered.
+   * 
+   * @param context The state of the message, with the Freemarker configuration already resolved.
+   * @return The model.
+   */
+  public static ParameterModel get(MessageContext context) {
+    synchronized (context) {
+      ParameterModel model = (ParameterModel) context.getAttribute(ATTRIBUTE_PARAMETER_MODEL);
+      if (model == null) {
+        model = new ParameterModel(context.getParameters(), context.getTemplateConfiguration().getObjectWrapper());
+        context.setAttribute(ATTRIBUTE_PARAMETER_MODEL, model);
+      }
+
+      return model;
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see freemarker.template.TemplateHashModel#get(java.lang.String)
+   */
+  public TemplateModel get(String key) throws TemplateModelException {
+    Object value = parameters.get(key);
+    return value == null ? null : objectWrapper.wrap(value);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see freemarker.template.TemplateHashModel#isEmpty()
+   */
+  public boolean isEmpty() {
+    return parameters.isEmpty();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see freemarker.template.TemplateHashModelEx#size()
+   */
+  public int size() {
+    return parameters.size();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see freemarker.template.TemplateHashModelEx#keys()
+   */
+  public TemplateCollectionModel keys() {
+    return new SimpleCollection(parameters.keySet(), objectWrapper);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see freemarker.template.TemplateHashModelEx#values()
+   */
+  public TemplateCollectionModel values() {
+    return new SimpleCollection(parameters.values(), objectWrapper);
+  }
+}
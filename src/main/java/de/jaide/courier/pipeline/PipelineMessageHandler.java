@@ -0,0 +1,759 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.jaide.courier.MessageHandler;
+import de.jaide.courier.delivery.DeliveryTracker;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.exception.HandlerShutdownException;
+
+/**
+ * A message handler that runs each message through a list of stages: validate, resolve template, render, encode and transport.<br/>
+ * The first three stages are shared between all channels, a channel only needs to provide the stages that encode and transport the
+ * rendered message. Metrics, asynchronous execution and any stage inserted into the pipeline apply to every channel alike.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public abstract class PipelineMessageHandler implements MessageHandler {
+  /**
+   * The names of the standard stages.
+   */
+  public static final String STAGE_VALIDATE = "validate";
+  public static final String STAGE_RESOLVE = "resolve";
+  public static final String STAGE_RENDER = "render";
+  public static final String STAGE_ENCODE = "encode";
+  public static final String STAGE_TRANSPORT = "transport";
+
+  /**
+   * Mapping parameters known to the shared stages.
+   */
+  public static final String MAPPING_PARAM_TEMPLATE_PATH = "templatePath";
+  public static final String MAPPING_PARAM_TEMPLATE_PATH_CLASS = "templatePathClass";
+  public static final String MAPPING_PARAM_TEMPLATE_PATH_FILE = "templatePathFile";
+  public static final String MAPPING_PARAM_TEMPLATE_NAME = "templateName";
+  public static final String MAPPING_PARAM_TEMPLATE_TYPE = "templatetype";
+  public static final String MAPPING_PARAM_LOCALE = "locale";
+  public static final String MAPPING_PARAM_TIMEOUT = "timeoutMillis";
+
+  /**
+   * How long shutdown() waits for messages being transported once its deadline passed, unless set otherwise.
+   */
+  public static final long DEFAULT_SHUTDOWN_GRACE_MILLIS = 10000;
+
+  /**
+   * The stages every message runs through, in order.
+   */
+  private final List<MessageStage> stages = new CopyOnWriteArrayList<MessageStage>();
+
+  /**
+   * How long shutdown() waits for the messages being transported once its deadline passed.
+   * 
+   * @return The grace period in milliseconds.
+   */
+  public long getShutdownGraceMillis() {
+    return shutdownGraceMillis;
+  }
+
+  /**
+   * Sets how long shutdown() waits for the messages being transported once its deadline passed, e.g. a little longer than the timeout of
+   * the transport. Messages still being transported after it are reported as in doubt.
+   * 
+   * @param shutdownGraceMillis The grace period in milliseconds.
+   */
+  public void setShutdownGraceMillis(long shutdownGraceMillis) {
+    if (shutdownGraceMillis < 0)
+      throw new IllegalArgumentException("The grace period must not be negative.");
+
+    this.shutdownGraceMillis = shutdownGraceMillis;
+  }
+
+  /**
+   * Invocations, failures and timings per stage.
+   */
+  private final PipelineMetrics metrics = new PipelineMetrics();
+
+  /**
+   * Hands out the Freemarker configurations used by the shared stages.
+   */
+  private final TemplateEngine templateEngine;
+
+  /**
+   * Runs the messages given to submitMessage(). Lazily created, if not set.
+   */
+  private ExecutorService asyncExecutor;
+  private boolean ownsAsyncExecutor;
+
+  /**
+   * Records what became of each message. Null, unless delivery tracking was enabled.
+   */
+  private volatile DeliveryTracker deliveryTracker;
+
+  /**
+   * The time budget of each message in milliseconds, unless the caller or the channel gives one. 0 for none.
+   */
+  private volatile long timeoutMillis;
+  private volatile long shutdownGraceMillis = DEFAULT_SHUTDOWN_GRACE_MILLIS;
+
+  /**
+   * Set by shutdown(): no messages are accepted anymore, and once the deadline passed, messages stop before their next stage unless they
+   * already reached the transport stage.
+   */
+  private volatile boolean shuttingDown;
+  private volatile boolean aborting;
+
+  /**
+   * The messages being run through the stages, and the submitted messages that haven't started yet. shutdown() waits on drained until
+   * both are empty.
+   */
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final Set<MessageTask> pending = Collections.newSetFromMap(new ConcurrentHashMap<MessageTask, Boolean>());
+  private final Object drained = new Object();
+
+  /**
+   * The messages running through the stages, and those of them that reached the transport stage.
+   */
+  private final Set<MessageContext> running = Collections.newSetFromMap(new ConcurrentHashMap<MessageContext, Boolean>());
+  private final Set<MessageContext> inTransport = Collections.newSetFromMap(new ConcurrentHashMap<MessageContext, Boolean>());
+
+  /**
+   * The messages that weren't sent, since the shutdown's deadline passed.
+   */
+  private final Queue<Map<String, Object>> unsent = new ConcurrentLinkedQueue<Map<String, Object>>();
+
+  /**
+   * Creates a new handler with the shared validate, resolve and render stages. Subclasses add their encode and transport stages.
+   * 
+   * @param obligatoryMappingParameters The parameters that HAVE to be provided when calling this handler.
+   * @param templateEngine Hands out the Freemarker configurations.
+   */
+  protected PipelineMessageHandler(List<String> obligatoryMappingParameters, TemplateEngine templateEngine) {
+    this.templateEngine = templateEngine;
+
+    addStage(new ValidationStage(obligatoryMappingParameters));
+    addStage(new TemplateResolutionStage(templateEngine, getClass()));
+    addStage(new TemplateRenderingStage());
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.MessageHandler#handleMessage(java.util.Map)
+   */
+  public void handleMessage(Map<String, Object> parameters) throws CourierException {
+    process(parameters);
+  }
+
+  /**
+   * Runs the message through all stages.
+   * 
+   * @param parameters Mapped parameters that may be used in the templating/message sending process.
+   * @return The state of the message after the last stage.
+   * @throws CourierException Thrown in case of a Runtime problem, or a HandlerShutdownException if this handler is shutting down.
+   */
+  public MessageContext process(Map<String, Object> parameters) throws CourierException {
+    /*
+     * Counted as in flight before looking at the flag, so a shutdown either rejects the message or waits for it.
+     */
+    inFlight.incrementAndGet();
+    try {
+      if (shuttingDown)
+        throw new HandlerShutdownException("The message handler is shutting down.");
+
+      return execute(parameters);
+    } finally {
+      leave();
+    }
+  }
+
+  private MessageContext execute(Map<String, Object> parameters) throws CourierException {
+    MessageContext context = new MessageContext(parameters);
+    DeliveryTracker tracker = deliveryTracker;
+    long transportNanos = 0;
+    boolean transporting = false;
+
+    running.add(context);
+    try {
+      context.setTimeoutMillis(getTimeoutMillis(context));
+      for (MessageStage stage : stages) {
+        /*
+         * Once the transport stage started, the message may already be with the server, so the stages after it run regardless. It is
+         * counted as being transported before looking at the flag, so a shutdown either stops it or knows it may have been sent.
+         */
+        if (STAGE_TRANSPORT.equals(stage.getName())) {
+          inTransport.add(context);
+          if (aborting) {
+            inTransport.remove(context);
+            abort(parameters);
+          }
+          context.checkDeadline(stage.getName());
+          transporting = true;
+        } else if (!transporting) {
+          if (aborting)
+            abort(parameters);
+          context.checkDeadline(stage.getName());
+        }
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+          stage.process(context);
+          failed = false;
+        } finally {
+          long elapsed = System.nanoTime() - start;
+          metrics.record(stage.getName(), elapsed, failed);
+          if (STAGE_TRANSPORT.equals(stage.getName()))
+            transportNanos = elapsed;
+        }
+      }
+    } catch (RuntimeException re) {
+      if (tracker != null)
+        tracker.record(context, getRecipient(context), transportNanos, re);
+      throw re;
+    } finally {
+      inTransport.remove(context);
+      running.remove(context);
+    }
+
+    if (tracker != null)
+      tracker.record(context, getRecipient(context), transportNanos, null);
+    return context;
+  }
+
+  /**
+   * Runs the message through the stages before the transport stage, without sending it, e.g. to warm up the templates and the encoding
+   * before taking traffic. Neither recorded in the metrics nor tracked.
+   * 
+   * @param parameters Mapped parameters that may be used in the templating/message sending process.
+   * @return The state of the message before the transport stage, e.g. with the encoded message.
+   * @throws CourierException Thrown in case of a Runtime problem.
+   */
+  public MessageContext dryRun(Map<String, Object> parameters) throws CourierException {
+    MessageContext context = new MessageContext(parameters);
+    for (MessageStage stage : stages) {
+      if (STAGE_TRANSPORT.equals(stage.getName()))
+        break;
+      stage.process(context);
+    }
+    return context;
+  }
+
+  /**
+   * Runs the message through all stages on a background thread. Cancelling the Future with cancel(true) stops the message at the next
+   * check of its time budget, unless it already reached the transport stage.
+   * 
+   * @param parameters Mapped parameters that may be used in the templating/message sending process.
+   * @return The Future of the message's state after the last stage. Throws an ExecutionException wrapping the CourierException, if any.
+   * @throws HandlerShutdownException Thrown if this handler is shutting down.
+   */
+  public Future<MessageContext> submitMessage(Map<String, Object> parameters) throws HandlerShutdownException {
+    return submitMessage(parameters, null);
+  }
+
+  private Future<MessageContext> submitMessage(Map<String, Object> parameters, ResumedJournal journal) throws HandlerShutdownException {
+    MessageTask task = new MessageTask(parameters, journal);
+    pending.add(task);
+    if (shuttingDown) {
+      pending.remove(task);
+      signalDrained();
+      throw new HandlerShutdownException("The message handler is shutting down.");
+    }
+
+    getAsyncExecutor().execute(task);
+    return task;
+  }
+
+  /**
+   * Stops accepting messages and waits for the queued and in-flight ones to be sent, until the deadline. Messages that haven't reached the
+   * transport stage by then aren't sent: the queued ones are taken from the queue, the in-flight ones stop before their next stage, and
+   * their Futures and process() calls fail with a HandlerShutdownException. Messages already being transported are waited for up to the
+   * shutdown grace period, since stopping them could lose them or, once resumed, send them twice. Those still being transported after it
+   * are given up on and reported as in doubt: they may or may not reach the server, so they are neither journaled nor waited for. Finally
+   * the resources of the stages are released, e.g. the pooled SMTP connections are closed with QUIT.<br/>
+   * The unsent messages are written to the journal file, if one is given, and sent on the next start with resume().
+   * 
+   * @param timeout How long to wait for the messages to be sent.
+   * @param unit The unit of the timeout.
+   * @param journalFile The file to write the unsent messages to, or null. Messages journaled before and not resumed yet are kept.
+   * @return What became of the messages.
+   * @throws InterruptedException Thrown if interrupted while waiting for the messages.
+   * @throws IOException Thrown if the journal couldn't be written or a stage's resources couldn't be released.
+   */
+  public ShutdownReport shutdown(long timeout, TimeUnit unit, File journalFile) throws InterruptedException, IOException {
+    long start = System.nanoTime();
+    long deadline = start + unit.toNanos(timeout);
+    shuttingDown = true;
+
+    boolean deadlineExceeded = !awaitDrained(deadline);
+    List<Map<String, Object>> unsentMessages = new ArrayList<Map<String, Object>>();
+    List<Map<String, Object>> inDoubtMessages = new ArrayList<Map<String, Object>>();
+    if (deadlineExceeded) {
+      aborting = true;
+      for (MessageTask task : pending) {
+        if (pending.remove(task)) {
+          unsent.add(task.parameters);
+          task.abort();
+        }
+      }
+
+      /*
+       * Messages that are still running without being transported can't reach the transport stage anymore, so they are unsent even if
+       * they didn't stop yet.
+       */
+      if (!awaitDrained(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownGraceMillis))) {
+        for (MessageContext context : inTransport)
+          inDoubtMessages.add(context.getParameters());
+        for (MessageContext context : running)
+          if (!inTransport.contains(context))
+            unsent.add(context.getParameters());
+      }
+
+      Set<Map<String, Object>> seen = Collections.newSetFromMap(new IdentityHashMap<Map<String, Object>, Boolean>());
+      for (Map<String, Object> parameters : unsent)
+        if (seen.add(parameters))
+          unsentMessages.add(parameters);
+    }
+
+    ExecutorService executor;
+    synchronized (this) {
+      executor = ownsAsyncExecutor ? asyncExecutor : null;
+    }
+    if (executor != null)
+      executor.shutdown();
+    onShutdown();
+
+    List<Map<String, Object>> unjournaled = unsentMessages;
+    if (journalFile != null) {
+      MessageJournal journal = new MessageJournal(journalFile);
+      List<Map<String, Object>> messages = journal.read();
+      messages.addAll(unsentMessages);
+      if (!messages.isEmpty())
+        unjournaled = journal.write(messages);
+    }
+    return new ShutdownReport(unsentMessages, unjournaled, inDoubtMessages, deadlineExceeded, (System.nanoTime() - start) / 1000000);
+  }
+
+  /**
+   * Submits the messages journaled by a previous shutdown, e.g. on start. The journal is deleted once all of them are done, sent or not,
+   * so if the application stops before, they are resumed once more on the next start.
+   * 
+   * @param journalFile The journal file. Nothing happens, if it doesn't exist.
+   * @return The Futures of the resubmitted messages, see submitMessage().
+   * @throws IOException Thrown if the journal couldn't be read or, if it holds no messages, deleted.
+   */
+  public List<Future<MessageContext>> resume(File journalFile) throws IOException {
+    MessageJournal journal = new MessageJournal(journalFile);
+    List<Map<String, Object>> messages = journal.read();
+    if (messages.isEmpty()) {
+      journal.delete();
+      return new ArrayList<Future<MessageContext>>();
+    }
+
+    ResumedJournal resumed = new ResumedJournal(journal, messages.size());
+    List<Future<MessageContext>> futures = new ArrayList<Future<MessageContext>>();
+    for (Map<String, Object> parameters : messages)
+      futures.add(submitMessage(parameters, resumed));
+    return futures;
+  }
+
+  /**
+   * True, once shutdown() was called.
+   * 
+   * @return True, if this handler doesn't accept messages anymore.
+   */
+  public boolean isShutdown() {
+    return shuttingDown;
+  }
+
+  /**
+   * Called by shutdown() once all messages are drained, to release the resources of the stages, e.g. pooled connections. Channels that
+   * install such stages override this.
+   * 
+   * @throws InterruptedException Thrown if interrupted while releasing the resources.
+   * @throws IOException Thrown if the resources couldn't be released.
+   */
+  protected void onShutdown() throws InterruptedException, IOException {
+  }
+
+  /**
+   * Waits until no message is queued or in flight anymore.
+   * 
+   * @param deadline The time to wait until, as returned by System.nanoTime().
+   * @return True, if all messages were drained, false if the deadline passed first.
+   */
+  private boolean awaitDrained(long deadline) throws InterruptedException {
+    synchronized (drained) {
+      while ((inFlight.get() > 0) || !pending.isEmpty()) {
+        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remainingMillis <= 0)
+          return false;
+        drained.wait(remainingMillis);
+      }
+    }
+    return true;
+  }
+
+  private void leave() {
+    if ((inFlight.decrementAndGet() == 0) && shuttingDown)
+      signalDrained();
+  }
+
+  private void signalDrained() {
+    synchronized (drained) {
+      drained.notifyAll();
+    }
+  }
+
+  private void abort(Map<String, Object> parameters) throws HandlerShutdownException {
+    unsent.add(parameters);
+    throw new HandlerShutdownException("The message wasn't sent, since the message handler's shutdown deadline passed.");
+  }
+
+  /**
+   * Returns the executor that runs the messages given to submitMessage(). If none was set a pool with one thread per processor is created.
+   * 
+   * @return The executor for asynchronous sending.
+   */
+  public synchronized ExecutorService getAsyncExecutor() {
+    if (asyncExecutor == null) {
+      asyncExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new NamedThreadFactory("courier-async"));
+      ownsAsyncExecutor = true;
+    }
+
+    return asyncExecutor;
+  }
+
+  /**
+   * Sets the executor that runs the messages given to submitMessage(). It isn't shut down by shutdown(), since it may be shared.
+   * 
+   * @param asyncExecutor The executor for asynchronous sending.
+   */
+  public synchronized void setAsyncExecutor(ExecutorService asyncExecutor) {
+    this.asyncExecutor = asyncExecutor;
+    this.ownsAsyncExecutor = false;
+  }
+
+  /**
+   * The time budget of each message, unless the caller gives one with MAPPING_PARAM_TIMEOUT or the channel has one configured.
+   * 
+   * @return The time budget in milliseconds, 0 for none.
+   */
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * Sets the time budget of each message, from entering the pipeline to the reply of the server, unless the caller gives one with
+   * MAPPING_PARAM_TIMEOUT or the channel has one configured. A message running out of time fails with a MessageTimeoutException.
+   * 
+   * @param timeoutMillis The time budget in milliseconds, 0 for none.
+   */
+  public void setTimeoutMillis(long timeoutMillis) {
+    if (timeoutMillis < 0)
+      throw new IllegalArgumentException("The timeout must not be negative.");
+
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Invocations, failures and timings per stage.
+   * 
+   * @return The metrics of this handler.
+   */
+  public PipelineMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Records a delivery event for each message from now on, in an index keeping the given number of the most recent events. Enabling it
+   * again starts over with a new index.
+   * 
+   * @param capacity The number of events to keep at most.
+   * @return The tracker, for querying the events and adding sinks.
+   */
+  public DeliveryTracker enableDeliveryTracking(int capacity) {
+    DeliveryTracker tracker = new DeliveryTracker(capacity);
+    deliveryTracker = tracker;
+    return tracker;
+  }
+
+  /**
+   * Sets the tracker recording a delivery event for each message, e.g. one shared by several handlers.
+   * 
+   * @param deliveryTracker The tracker or null, to stop tracking.
+   */
+  public void setDeliveryTracker(DeliveryTracker deliveryTracker) {
+    this.deliveryTracker = deliveryTracker;
+  }
+
+  /**
+   * Returns the tracker recording a delivery event for each message.
+   * 
+   * @return The tracker or null, if delivery tracking isn't enabled.
+   */
+  public DeliveryTracker getDeliveryTracker() {
+    return deliveryTracker;
+  }
+
+  /**
+   * Hands out the Freemarker configurations used by the shared stages.
+   * 
+   * @return The template engine.
+   */
+  public TemplateEngine getTemplateEngine() {
+    return templateEngine;
+  }
+
+  /**
+   * Returns the stages every message runs through, in order.
+   * 
+   * @return An unmodifiable snapshot of the stages.
+   */
+  public List<MessageStage> getStages() {
+    return Collections.unmodifiableList(new ArrayList<MessageStage>(stages));
+  }
+
+  /**
+   * Returns the stage of the given name.
+   * 
+   * @param name The name of the stage.
+   * @return The stage or null, if there is no stage of that name.
+   */
+  public MessageStage getStage(String name) {
+    int index = indexOf(name);
+    return index < 0 ? null : stages.get(index);
+  }
+
+  /**
+   * Appends a stage to the end of the pipeline.
+   * 
+   * @param stage The stage to add.
+   */
+  public void addStage(MessageStage stage) {
+    stages.add(stage);
+  }
+
+  /**
+   * Inserts a stage right before the stage of the given name.
+   * 
+   * @param name The name of the existing stage.
+   * @param stage The stage to insert.
+   */
+  public synchronized void addStageBefore(String name, MessageStage stage) {
+    stages.add(requireIndexOf(name), stage);
+  }
+
+  /**
+   * Inserts a stage right after the stage of the given name.
+   * 
+   * @param name The name of the existing stage.
+   * @param stage The stage to insert.
+   */
+  public synchronized void addStageAfter(String name, MessageStage stage) {
+    stages.add(requireIndexOf(name) + 1, stage);
+  }
+
+  /**
+   * Replaces the stage of the given name, e.g. to wrap it with caching or limiting behaviour.
+   * 
+   * @param name The name of the existing stage.
+   * @param stage The stage to use instead.
+   * @return The replaced stage.
+   */
+  public synchronized MessageStage replaceStage(String name, MessageStage stage) {
+    return stages.set(requireIndexOf(name), stage);
+  }
+
+  /**
+   * Removes the stage of the given name.
+   * 
+   * @param name The name of the stage.
+   * @return The removed stage or null, if there was no stage of that name.
+   */
+  public synchronized MessageStage removeStage(String name) {
+    int index = indexOf(name);
+    return index < 0 ? null : stages.remove(index);
+  }
+
+  /**
+   * Returns the recipient of the message, for the delivery events. Channels that know their recipient parameter override this.
+   * 
+   * @param context The state of the message.
+   * @return The recipient or null, if unknown.
+   */
+  protected String getRecipient(MessageContext context) {
+    return null;
+  }
+
+  /**
+   * Returns the time budget of the message: the one given with MAPPING_PARAM_TIMEOUT, else the handler's. Channels that configure a time
+   * budget per server override this.
+   * 
+   * @param context The state of the message, before the first stage.
+   * @return The time budget in milliseconds, 0 for none.
+   */
+  protected long getTimeoutMillis(MessageContext context) {
+    Object timeout = context.getParameter(MAPPING_PARAM_TIMEOUT);
+    if (timeout == null)
+      return timeoutMillis;
+    if (!(timeout instanceof Number) || (((Number) timeout).longValue() < 0))
+      throw new CourierException("The mapping parameter '" + MAPPING_PARAM_TIMEOUT + "' must be a non-negative number of milliseconds.");
+
+    return ((Number) timeout).longValue();
+  }
+
+  private int indexOf(String name) {
+    for (int i = 0; i < stages.size(); i++)
+      if (stages.get(i).getName().equals(name))
+        return i;
+
+    return -1;
+  }
+
+  private int requireIndexOf(String name) {
+    int index = indexOf(name);
+    if (index < 0)
+      throw new IllegalArgumentException("There is no stage named '" + name + "' in this pipeline.");
+
+    return index;
+  }
+
+  /**
+   * A submitted message. Once started, it is in flight. If shutdown() takes it from the queue first, it doesn't run at all.
+   */
+  private class MessageTask extends FutureTask<MessageContext> {
+    private final Map<String, Object> parameters;
+    private final ResumedJournal journal;
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    MessageTask(final Map<String, Object> parameters, ResumedJournal journal) {
+      super(new Callable<MessageContext>() {
+        public MessageContext call() throws Exception {
+          return execute(parameters);
+        }
+      });
+      this.parameters = parameters;
+      this.journal = journal;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.concurrent.FutureTask#run()
+     */
+    @Override
+    public void run() {
+      inFlight.incrementAndGet();
+      try {
+        if (pending.remove(this))
+          super.run();
+      } finally {
+        leave();
+      }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.concurrent.FutureTask#set(java.lang.Object)
+     */
+    @Override
+    protected void set(MessageContext context) {
+      onDone();
+      super.set(context);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.concurrent.FutureTask#setException(java.lang.Throwable)
+     */
+    @Override
+    protected void setException(Throwable throwable) {
+      onDone();
+      super.setException(throwable);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.concurrent.FutureTask#cancel(boolean)
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled)
+        onDone();
+      return cancelled;
+    }
+
+    void abort() {
+      setException(new HandlerShutdownException("The message wasn't sent, since the message handler's shutdown deadline passed."));
+    }
+
+    /**
+     * Tells the journal the message was resumed from, before anyone waiting for the message is woken up.
+     */
+    private void onDone() {
+      if ((journal != null) && done.compareAndSet(false, true))
+        journal.onDone();
+    }
+  }
+
+  /**
+   * The journal the messages given to resume() were read from, deleted once all of them are done.
+   */
+  private static class ResumedJournal {
+    private final MessageJournal journal;
+    private final AtomicInteger outstanding;
+
+    ResumedJournal(MessageJournal journal, int messages) {
+      this.journal = journal;
+      this.outstanding = new AtomicInteger(messages);
+    }
+
+    void onDone() {
+      if (outstanding.decrementAndGet() > 0)
+        return;
+
+      try {
+        journal.delete();
+      } catch (IOException ioe) {
+        // The messages are resumed once more on the next start.
+      }
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the invocations, failures and time spent per stage of a {@link PipelineMessageHandler}.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class PipelineMetrics {
+  /**
+   * The metrics, by stage name.
+   */
+  private final ConcurrentMap<String, StageMetrics> stageMetrics = new ConcurrentHashMap<String, StageMetrics>();
+
+  /**
+   * Records a single invocation of a stage.
+   * 
+   * @param stageName The name of the stage.
+   * @param elapsedNanos The time the stage took.
+   * @param failed True, if the stage threw an exception.
+   */
+  public void record(String stageName, long elapsedNanos, boolean failed) {
+    StageMetrics metrics = stageMetrics.get(stageName);
+    if (metrics == null) {
+      StageMetrics created = new StageMetrics();
+      metrics = stageMetrics.putIfAbsent(stageName, created);
+      if (metrics == null)
+        metrics = created;
+    }
+
+    metrics.record(elapsedNanos, failed);
+  }
+
+  /**
+   * Returns the metrics of the given stage.
+   * 
+   * @param stageName The name of the stage.
+   * @return The metrics or null, if the stage wasn't invoked yet.
+   */
+  public StageMetrics getStageMetrics(String stageName) {
+    return stageMetrics.get(stageName);
+  }
+
+  /**
+   * Returns the metrics of all stages that were invoked so far, by stage name.
+   * 
+   * @return The metrics of all stages.
+   */
+  public Map<String, StageMetrics> getAllStageMetrics() {
+    return Collections.unmodifiableMap(new TreeMap<String, StageMetrics>(stageMetrics));
+  }
+
+  @Override
+  public String toString() {
+    return getAllStageMetrics().toString();
+  }
+
+  /**
+   * The metrics of a single stage.
+   */
+  public static class StageMetrics {
+    private final AtomicLong invocations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long elapsedNanos, boolean failed) {
+      invocations.incrementAndGet();
+      if (failed)
+        failures.incrementAndGet();
+      totalNanos.addAndGet(elapsedNanos);
+
+      long max;
+      while (elapsedNanos > (max = maxNanos.get()))
+        if (maxNanos.compareAndSet(max, elapsedNanos))
+          break;
+    }
+
+    /**
+     * How often the stage was invoked.
+     * 
+     * @return The number of invocations.
+     */
+    public long getInvocations() {
+      return invocations.get();
+    }
+
+    /**
+     * How often the stage threw an exception.
+     * 
+     * @return The number of failed invocations.
+     */
+    public long getFailures() {
+      return failures.get();
+    }
+
+    /**
+     * The time spent in the stage, over all invocations.
+     * 
+     * @return The total time in nanoseconds.
+     */
+    public long getTotalNanos() {
+      return totalNanos.get();
+    }
+
+    /**
+     * The longest time a single invocation of the stage took.
+     * 
+     * @return The maximum time in nanoseconds.
+     */
+    public long getMaxNanos() {
+      return maxNanos.get();
+    }
+
+    @Override
+    public String toString() {
+      long count = getInvocations();
+      return "invocations=" + count + ", failures=" + getFailures() + ", avgMicros=" + (count == 0 ? 0 : getTotalNanos() / count / 1000)
+          + ", maxMicros=" + getMaxNanos() / 1000;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of shutting down a message handler.
+ * 
+ * @see PipelineMessageHandler#shutdown(long, java.util.concurrent.TimeUnit, java.io.File)
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class ShutdownReport {
+  private final List<Map<String, Object>> unsent;
+  private final List<Map<String, Object>> unjournaled;
+  private final List<Map<String, Object>> inDoubt;
+  private final boolean deadlineExceeded;
+  private final long elapsedMillis;
+
+  ShutdownReport(List<Map<String, Object>> unsent, List<Map<String, Object>> unjournaled, List<Map<String, Object>> inDoubt,
+      boolean deadlineExceeded, long elapsedMillis) {
+    this.unsent = Collections.unmodifiableList(unsent);
+    this.unjournaled = Collections.unmodifiableList(unjournaled);
+    this.inDoubt = Collections.unmodifiableList(inDoubt);
+    this.deadlineExceeded = deadlineExceeded;
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  /**
+   * The mapped parameters of the messages that weren't sent, since the deadline passed before they reached the transport stage.
+   * 
+   * @return The unsent messages. Empty, if all messages were drained in time.
+   */
+  public List<Map<String, Object>> getUnsent() {
+    return unsent;
+  }
+
+  /**
+   * The unsent messages that couldn't be written to the journal, since a parameter is neither of a supported type nor Serializable. Without
+   * a journal, these are all unsent messages.
+   * 
+   * @return The unsent messages that weren't journaled.
+   */
+  public List<Map<String, Object>> getUnjournaled() {
+    return unjournaled;
+  }
+
+  /**
+   * The mapped parameters of the messages that were still being transported when the grace period after the deadline ran out. They may
+   * or may not have reached the server, so they are neither unsent nor journaled; check their delivery before sending them again.
+   * 
+   * @return The messages in doubt. Empty, if all messages being transported were done in time.
+   */
+  public List<Map<String, Object>> getInDoubt() {
+    return inDoubt;
+  }
+
+  /**
+   * True, if the deadline passed before all queued and in-flight messages were drained.
+   * 
+   * @return True, if the deadline was exceeded.
+   */
+  public boolean isDeadlineExceeded() {
+    return deadlineExceeded;
+  }
+
+  /**
+   * How long the shutdown took, including waiting for messages that were already being transported at the deadline, up to the grace
+   * period.
+   * 
+   * @return The time in milliseconds.
+   */
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+}
@@ -0,0 +1,793 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.tree.TreeNode;
+
+import org.apache.commons.io.IOUtils;
+
+import de.jaide.courier.pipeline.CompiledTemplate.BooleanCondition;
+import de.jaide.courier.pipeline.CompiledTemplate.Condition;
+import de.jaide.courier.pipeline.CompiledTemplate.EqualsCondition;
+import de.jaide.courier.pipeline.CompiledTemplate.ExistsCondition;
+import de.jaide.courier.pipeline.CompiledTemplate.HasNextCondition;
+import de.jaide.courier.pipeline.CompiledTemplate.IfNode;
+import de.jaide.courier.pipeline.CompiledTemplate.InterpolationNode;
+import de.jaide.courier.pipeline.CompiledTemplate.ListNode;
+import de.jaide.courier.pipeline.CompiledTemplate.LogicalCondition;
+import de.jaide.courier.pipeline.CompiledTemplate.Node;
+import de.jaide.courier.pipeline.CompiledTemplate.NotCondition;
+import de.jaide.courier.pipeline.CompiledTemplate.Path;
+import de.jaide.courier.pipeline.CompiledTemplate.TextNode;
+import freemarker.cache.TemplateLoader;
+import freemarker.core.TextBlock;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * Compiles the templates of the busiest messages into CompiledTemplates, which render them without Freemarker's interpreter. Opt in per
+ * template name:
+ * 
+ * <pre>
+ * handler.getTemplateEngine().setHotReload(false);
+ * handler.getTemplateEngine().getTemplateCompiler().addTemplate(&quot;signup&quot;);
+ * </pre>
+ * 
+ * Each part of the template, e.g. "signup_subject.ftl" and "signup_body.ftl.html", is compiled when it is rendered for the first time.
+ * The compiler understands a subset of the template language: interpolations of variables and map keys, with ! defaults and ?html, the
+ * escape directive for ?html, if, elseif and else with ??, ==, != and boolean variables, list with _has_next, and comments. Parts using
+ * anything else are left to Freemarker, and so are single messages whose parameters Freemarker would treat differently from plain strings,
+ * see CompiledTemplate.<br/>
+ * Templates are only compiled with hot reloading turned off: the compiler reads the template source by itself, which only matches what
+ * Freemarker loaded as long as neither changes nor localized lookup come in between.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TemplateCompiler {
+  /**
+   * The custom attribute of the Freemarker configurations the compiler is kept in, see get().
+   */
+  public static final String CONFIGURATION_ATTRIBUTE = "de.jaide.courier.templateCompiler";
+
+  /**
+   * Marks templates that use more than the compiler understands.
+   */
+  private static final Object UNSUPPORTED = new Object();
+
+  private final Set<String> templateNames = new CopyOnWriteArraySet<String>();
+
+  /**
+   * The compiled templates, or UNSUPPORTED, by the Freemarker template they were compiled from.
+   */
+  private final ConcurrentMap<Template, Object> compiledTemplates = new ConcurrentHashMap<Template, Object>();
+
+  private final AtomicLong compiledRenders = new AtomicLong();
+  private final AtomicLong fallbacks = new AtomicLong();
+  private final AtomicLong unsupportedTemplates = new AtomicLong();
+
+  /**
+   * Returns the compiler of the template engine that created the given configuration.
+   * 
+   * @param configuration The Freemarker configuration.
+   * @return The compiler or null, if the configuration wasn't created by a template engine.
+   */
+  public static TemplateCompiler get(Configuration configuration) {
+    return (TemplateCompiler) configuration.getCustomAttribute(CONFIGURATION_ATTRIBUTE);
+  }
+
+  /**
+   * Compiles the parts of the given template from now on.
+   * 
+   * @param templateName The name of the template, e.g. "signup".
+   */
+  public void addTemplate(String templateName) {
+    templateNames.add(templateName);
+  }
+
+  /**
+   * Renders the parts of the given template with Freemarker again.
+   * 
+   * @param templateName The name of the template, e.g. "signup".
+   */
+  public void removeTemplate(String templateName) {
+    templateNames.remove(templateName);
+    for (Template template : compiledTemplates.keySet()) {
+      if (templateName.equals(getTemplateName(template.getName())))
+        compiledTemplates.remove(template);
+    }
+  }
+
+  /**
+   * Renders a template part with its compiled version, compiling it first if needed.
+   * 
+   * @param template The Freemarker template of the part.
+   * @param parameters The parameters of the message.
+   * @return The output or null, if the template isn't compiled or the message has to be rendered by Freemarker.
+   */
+  public String render(Template template, Map<String, Object> parameters) {
+    if (templateNames.isEmpty() || template.getConfiguration().getLocalizedLookup()
+        || !templateNames.contains(getTemplateName(template.getName())))
+      return null;
+
+    Object compiledTemplate = compiledTemplates.get(template);
+    if (compiledTemplate == null) {
+      try {
+        compiledTemplate = compile(template);
+      } catch (IOException ioe) {
+        compiledTemplate = null;
+      }
+      if (compiledTemplate == null) {
+        compiledTemplate = UNSUPPORTED;
+        unsupportedTemplates.incrementAndGet();
+      }
+      compiledTemplates.put(template, compiledTemplate);
+    }
+    if (compiledTemplate == UNSUPPORTED)
+      return null;
+
+    String content = ((CompiledTemplate) compiledTemplate).render(parameters);
+    if (content == null)
+      fallbacks.incrementAndGet();
+    else
+      compiledRenders.incrementAndGet();
+    return content;
+  }
+
+  /**
+   * Compiles a template, reading its source from the template loader of its configuration.
+   * 
+   * @param template The Freemarker template.
+   * @return The compiled template or null, if the template uses more than the compiler understands.
+   * @throws IOException Thrown if the source couldn't be read.
+   */
+  public CompiledTemplate compile(Template template) throws IOException {
+    TemplateLoader loader = template.getConfiguration().getTemplateLoader();
+    Object source = loader.findTemplateSource(template.getName());
+    if (source == null)
+      throw new IOException("The template '" + template.getName() + "' couldn't be found.");
+
+    String text;
+    try {
+      String encoding = template.getEncoding() != null ? template.getEncoding() : template.getConfiguration().getEncoding(
+          template.getLocale());
+      Reader reader = loader.getReader(source, encoding);
+      try {
+        text = IOUtils.toString(reader);
+      } finally {
+        reader.close();
+      }
+    } finally {
+      loader.closeTemplateSource(source);
+    }
+
+    return compile(template, text);
+  }
+
+  /**
+   * Compiles a template from the given source.
+   * 
+   * @param template The Freemarker template parsed from the source, for its name, its locale and the text it kept.
+   * @param source The source of the template.
+   * @return The compiled template or null, if the template uses more than the compiler understands.
+   */
+  public CompiledTemplate compile(Template template, String source) {
+    try {
+      Parser parser = new Parser(source, template.getRootTreeNode());
+      List<Node> nodes = parser.parse();
+      return new CompiledTemplate(template.getName(), nodes, parser.loopDepth, template.getLocale());
+    } catch (Unsupported u) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the name of the template a part belongs to, e.g. "signup" for "de/signup_body.ftl.html".
+   */
+  private static String getTemplateName(String filename) {
+    String name = filename.substring(filename.lastIndexOf('/') + 1);
+    int end = name.lastIndexOf('_');
+    return end < 0 ? name : name.substring(0, end);
+  }
+
+  /**
+   * The names of the templates compiled.
+   * 
+   * @return The template names.
+   */
+  public Set<String> getTemplates() {
+    return templateNames;
+  }
+
+  /**
+   * The number of template parts rendered by their compiled version.
+   * 
+   * @return The number of renders.
+   */
+  public long getCompiledRenders() {
+    return compiledRenders.get();
+  }
+
+  /**
+   * The number of template parts that were compiled but rendered by Freemarker, since their parameters needed it.
+   * 
+   * @return The number of renders.
+   */
+  public long getFallbacks() {
+    return fallbacks.get();
+  }
+
+  /**
+   * The number of template parts that use more than the compiler understands and are always rendered by Freemarker.
+   * 
+   * @return The number of template parts.
+   */
+  public long getUnsupportedTemplates() {
+    return unsupportedTemplates.get();
+  }
+
+  /**
+   * Thrown when the template uses more than the compiler understands.
+   */
+  private static class Unsupported extends Exception {
+    private static final long serialVersionUID = -2787409130371627215L;
+  }
+
+  /**
+   * Turns the source of a template into nodes: first into tokens, with the text Freemarker kept after stripping white-space, then into a
+   * tree.
+   */
+  private static class Parser {
+    private static final int TEXT = 0;
+    private static final int INTERPOLATION = 1;
+    private static final int START_TAG = 2;
+    private static final int END_TAG = 3;
+    private static final int COMMENT = 4;
+
+    private static final List<String> RESERVED = Arrays.asList("true", "false", "gt", "gte", "lt", "lte", "as", "in", "using");
+    private static final String[] UNSUPPORTED_SYNTAX = { "#{", "<@", "</@", "[#", "[/#", "[@", "[/@" };
+
+    private final String source;
+    private final TreeNode root;
+    private List<Token> tokens;
+    private int position;
+
+    /**
+     * The item variables of the enclosing lists, the deepest nesting, and the enclosing escape directives.
+     */
+    private final List<String> loopVariables = new ArrayList<String>();
+    int loopDepth;
+    private int escapes;
+
+    Parser(String source, TreeNode root) {
+      this.source = source;
+      this.root = root;
+    }
+
+    List<Node> parse() throws Unsupported {
+      tokens = keepText(tokenize());
+      List<Node> nodes = parseNodes();
+      if (position < tokens.size())
+        throw new Unsupported();
+      return nodes;
+    }
+
+    private List<Token> tokenize() throws Unsupported {
+      for (String syntax : UNSUPPORTED_SYNTAX) {
+        if (source.contains(syntax))
+          throw new Unsupported();
+      }
+
+      List<Token> result = new ArrayList<Token>();
+      int textStart = 0;
+      int i = 0;
+      while (i < source.length()) {
+        Token token;
+        if (source.startsWith("<#--", i)) {
+          int end = source.indexOf("-->", i + 4);
+          if (end < 0)
+            throw new Unsupported();
+          token = new Token(COMMENT, null, null, i, end + 3);
+        } else if (source.startsWith("<#", i)) {
+          int nameEnd = skipName(i + 2);
+          int end = findEnd(nameEnd, '>');
+          token = new Token(START_TAG, source.substring(i + 2, nameEnd), source.substring(nameEnd, end).trim(), i, end + 1);
+        } else if (source.startsWith("</#", i)) {
+          int nameEnd = skipName(i + 3);
+          int end = findEnd(nameEnd, '>');
+          if (source.substring(nameEnd, end).trim().length() > 0)
+            throw new Unsupported();
+          token = new Token(END_TAG, source.substring(i + 3, nameEnd), null, i, end + 1);
+        } else if (source.startsWith("${", i)) {
+          int end = findEnd(i + 2, '}');
+          token = new Token(INTERPOLATION, null, source.substring(i + 2, end), i, end + 1);
+        } else {
+          i++;
+          continue;
+        }
+
+        if (textStart < i)
+          result.add(new Token(TEXT, null, null, textStart, i));
+        result.add(token);
+        i = token.end;
+        textStart = i;
+      }
+      if (textStart < source.length())
+        result.add(new Token(TEXT, null, null, textStart, source.length()));
+      return result;
+    }
+
+    private int skipName(int start) {
+      int end = start;
+      while ((end < source.length()) && Character.isLetter(source.charAt(end)))
+        end++;
+      return end;
+    }
+
+    /**
+     * Finds the end of a tag or interpolation, skipping string literals and parentheses.
+     */
+    private int findEnd(int start, char terminator) throws Unsupported {
+      int depth = 0;
+      for (int i = start; i < source.length(); i++) {
+        char c = source.charAt(i);
+        if ((c == '"') || (c == '\'')) {
+          int end = source.indexOf(c, i + 1);
+          if (end < 0)
+            throw new Unsupported();
+          i = end;
+        } else if (c == '(') {
+          depth++;
+        } else if (c == ')') {
+          depth--;
+        } else if ((c == terminator) && (depth == 0)) {
+          return i;
+        }
+      }
+      throw new Unsupported();
+    }
+
+    /**
+     * Gives the text tokens the text Freemarker kept of them. Freemarker strips the white-space of lines with tags and comments only by
+     * rules that depend on the tags around, so the text is taken from the text blocks of the parsed template, matched by their position.
+     */
+    private List<Token> keepText(List<Token> sourceTokens) throws Unsupported {
+      List<Integer> lineStarts = new ArrayList<Integer>();
+      lineStarts.add(0);
+      for (int i = 0; i < source.length(); i++) {
+        char c = source.charAt(i);
+        if ((c == '\n') || ((c == '\r') && ((i + 1 == source.length()) || (source.charAt(i + 1) != '\n'))))
+          lineStarts.add(i + 1);
+      }
+
+      TreeMap<Integer, TextBlock> textBlocks = new TreeMap<Integer, TextBlock>();
+      collectTextBlocks(root, lineStarts, textBlocks);
+
+      List<Token> result = new ArrayList<Token>();
+      for (Token token : sourceTokens) {
+        if (token.kind != TEXT) {
+          result.add(token);
+          continue;
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<Integer, TextBlock> entry : textBlocks.subMap(token.start, token.end).entrySet()) {
+          String blockText = entry.getValue().getCanonicalForm();
+          if ((entry.getKey() + blockText.length() > token.end) || !source.startsWith(blockText, entry.getKey()))
+            throw new Unsupported();
+          text.append(blockText);
+        }
+        if (text.length() > 0)
+          result.add(new Token(TEXT, null, text.toString(), token.start, token.end));
+      }
+      return result;
+    }
+
+    private void collectTextBlocks(TreeNode node, List<Integer> lineStarts, Map<Integer, TextBlock> textBlocks) throws Unsupported {
+      if ((node instanceof TextBlock) && (((TextBlock) node).getCanonicalForm().length() > 0)) {
+        TextBlock textBlock = (TextBlock) node;
+        textBlocks.put(getOffset(textBlock.getBeginLine(), textBlock.getBeginColumn(), lineStarts), textBlock);
+      }
+      for (int i = 0; i < node.getChildCount(); i++)
+        collectTextBlocks(node.getChildAt(i), lineStarts, textBlocks);
+    }
+
+    /**
+     * Returns the position of the character at the given line and column, counted like Freemarker does, with tab stops every 8 columns.
+     */
+    private int getOffset(int line, int column, List<Integer> lineStarts) throws Unsupported {
+      if ((line < 1) || (line > lineStarts.size()))
+        throw new Unsupported();
+
+      int currentColumn = 0;
+      for (int i = lineStarts.get(line - 1); i < source.length(); i++) {
+        currentColumn = source.charAt(i) == '\t' ? currentColumn + 8 - currentColumn % 8 : currentColumn + 1;
+        if (currentColumn == column)
+          return i;
+        if (currentColumn > column)
+          break;
+      }
+      throw new Unsupported();
+    }
+
+    /**
+     * Parses nodes up to the next end tag, else or elseif, which is left to the caller.
+     */
+    private List<Node> parseNodes() throws Unsupported {
+      List<Node> nodes = new ArrayList<Node>();
+      StringBuilder text = new StringBuilder();
+      while (position < tokens.size()) {
+        Token token = tokens.get(position);
+        if ((token.kind == END_TAG) || ((token.kind == START_TAG) && (token.name.equals("else") || token.name.equals("elseif"))))
+          break;
+
+        position++;
+        if (token.kind == TEXT) {
+          text.append(token.content);
+          continue;
+        } else if (token.kind == COMMENT) {
+          continue;
+        }
+
+        if (text.length() > 0) {
+          nodes.add(new TextNode(text.toString()));
+          text.setLength(0);
+        }
+
+        if (token.kind == INTERPOLATION) {
+          nodes.add(parseInterpolation(token.content));
+        } else if (token.name.equals("if")) {
+          nodes.add(parseIf(token));
+        } else if (token.name.equals("list")) {
+          nodes.add(parseList(token));
+        } else if (token.name.equals("escape")) {
+          Expression expression = new Expression(token.content);
+          String variable = expression.nextIdentifier();
+          expression.expect("as");
+          expression.expect(variable);
+          expression.expect("?");
+          expression.expect("html");
+          expression.expectEnd();
+
+          escapes++;
+          nodes.addAll(parseNodes());
+          expectEndTag("escape");
+          escapes--;
+        } else {
+          throw new Unsupported();
+        }
+      }
+
+      if (text.length() > 0)
+        nodes.add(new TextNode(text.toString()));
+      return nodes;
+    }
+
+    private void expectEndTag(String name) throws Unsupported {
+      if ((position >= tokens.size()) || (tokens.get(position).kind != END_TAG) || !tokens.get(position).name.equals(name))
+        throw new Unsupported();
+      position++;
+    }
+
+    private Node parseInterpolation(String content) throws Unsupported {
+      Expression expression = new Expression(content);
+      Path path;
+      String defaultValue = null;
+      if (expression.accept("(")) {
+        path = parsePath(expression);
+        if (expression.accept("!"))
+          defaultValue = expression.acceptString();
+        expression.expect(")");
+      } else {
+        path = parsePath(expression);
+        if (expression.accept("!")) {
+          defaultValue = expression.acceptString();
+          expression.expectEnd();
+        }
+      }
+
+      int htmlEscapes = escapes > 0 ? 1 : 0;
+      while (expression.accept("?")) {
+        expression.expect("html");
+        htmlEscapes++;
+      }
+      expression.expectEnd();
+      return new InterpolationNode(path, defaultValue, htmlEscapes);
+    }
+
+    private Node parseIf(Token token) throws Unsupported {
+      List<Condition> conditions = new ArrayList<Condition>();
+      List<Node[]> branches = new ArrayList<Node[]>();
+      conditions.add(parseCondition(token.content));
+      while (true) {
+        List<Node> branch = parseNodes();
+        branches.add(branch.toArray(new Node[branch.size()]));
+        if (position >= tokens.size())
+          throw new Unsupported();
+
+        Token next = tokens.get(position++);
+        if (next.kind == END_TAG) {
+          if (!next.name.equals("if"))
+            throw new Unsupported();
+          return new IfNode(conditions, branches);
+        } else if (conditions.contains(null)) {
+          throw new Unsupported();
+        } else if (next.name.equals("elseif")) {
+          conditions.add(parseCondition(next.content));
+        } else if (next.content.length() == 0) {
+          conditions.add(null);
+        } else {
+          throw new Unsupported();
+        }
+      }
+    }
+
+    private Node parseList(Token token) throws Unsupported {
+      Expression expression = new Expression(token.content);
+      Path path = parsePath(expression);
+      expression.expect("as");
+      String variable = expression.nextIdentifier();
+      expression.expectEnd();
+
+      int loop = loopVariables.size();
+      loopVariables.add(variable);
+      loopDepth = Math.max(loopDepth, loopVariables.size());
+      List<Node> body = parseNodes();
+      expectEndTag("list");
+      loopVariables.remove(loop);
+      return new ListNode(path, loop, body);
+    }
+
+    private Condition parseCondition(String content) throws Unsupported {
+      Expression expression = new Expression(content);
+      Condition condition = parseOr(expression);
+      expression.expectEnd();
+      return condition;
+    }
+
+    private Condition parseOr(Expression expression) throws Unsupported {
+      Condition condition = parseAnd(expression);
+      while (expression.accept("||"))
+        condition = new LogicalCondition(condition, parseAnd(expression), false);
+      return condition;
+    }
+
+    private Condition parseAnd(Expression expression) throws Unsupported {
+      Condition condition = parseUnary(expression);
+      while (expression.accept("&&"))
+        condition = new LogicalCondition(condition, parseUnary(expression), true);
+      return condition;
+    }
+
+    /**
+     * In Freemarker ! binds closer than == and !=, so "!a == b" compares a boolean with a string, which isn't supported.
+     */
+    private Condition parseUnary(Expression expression) throws Unsupported {
+      if (expression.accept("!")) {
+        Condition condition = new NotCondition(parseNegated(expression));
+        if (expression.isComparison())
+          throw new Unsupported();
+        return condition;
+      }
+
+      if (expression.accept("(")) {
+        Condition condition = parseOr(expression);
+        expression.expect(")");
+        if (expression.isComparison())
+          throw new Unsupported();
+        return condition;
+      }
+
+      Condition hasNext = parseHasNext(expression);
+      if (hasNext != null)
+        return hasNext;
+
+      Path path = parsePath(expression);
+      if (expression.accept("??"))
+        return new ExistsCondition(path);
+      if (expression.accept("==") || expression.accept("="))
+        return new EqualsCondition(path, expression.expectString(), true);
+      if (expression.accept("!="))
+        return new EqualsCondition(path, expression.expectString(), false);
+      return new BooleanCondition(path);
+    }
+
+    private Condition parseNegated(Expression expression) throws Unsupported {
+      if (expression.accept("!"))
+        return new NotCondition(parseNegated(expression));
+      if (expression.accept("(")) {
+        Condition condition = parseOr(expression);
+        expression.expect(")");
+        return condition;
+      }
+
+      Condition hasNext = parseHasNext(expression);
+      if (hasNext != null)
+        return hasNext;
+
+      Path path = parsePath(expression);
+      return expression.accept("??") ? new ExistsCondition(path) : new BooleanCondition(path);
+    }
+
+    /**
+     * Parses "item_has_next" of an enclosing list.
+     */
+    private Condition parseHasNext(Expression expression) {
+      String name = expression.peek();
+      if ((name == null) || !name.endsWith("_has_next") || ".".equals(expression.peek(1)))
+        return null;
+
+      int loop = loopVariables.lastIndexOf(name.substring(0, name.length() - "_has_next".length()));
+      if (loop < 0)
+        return null;
+      expression.nextToken();
+      return new HasNextCondition(loop);
+    }
+
+    private Path parsePath(Expression expression) throws Unsupported {
+      List<String> names = new ArrayList<String>();
+      names.add(expression.nextIdentifier());
+      while (expression.accept("."))
+        names.add(expression.nextIdentifier());
+
+      String root = names.get(0);
+      if (RESERVED.contains(root))
+        throw new Unsupported();
+      int loop = loopVariables.lastIndexOf(root);
+      if (loop < 0) {
+        for (String variable : loopVariables) {
+          if (root.equals(variable + "_has_next") || root.equals(variable + "_index"))
+            throw new Unsupported();
+        }
+      }
+      return new Path(loop, names.toArray(new String[names.size()]));
+    }
+  }
+
+  /**
+   * A tag, interpolation, comment or text in the source.
+   */
+  private static class Token {
+    final int kind;
+    final String name;
+    final String content;
+    final int start;
+    final int end;
+
+    Token(int kind, String name, String content, int start, int end) {
+      this.kind = kind;
+      this.name = name;
+      this.content = content;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  /**
+   * The tokens of an expression: identifiers, string literals, kept with their leading quote, and operators.
+   */
+  private static class Expression {
+    private static final String[] OPERATORS = { "??", "?", "!=", "!", "==", "=", "&&", "||", "(", ")", "." };
+
+    private final List<String> tokens = new ArrayList<String>();
+    private int position;
+
+    Expression(String expression) throws Unsupported {
+      int i = 0;
+      tokenizing: while (i < expression.length()) {
+        char c = expression.charAt(i);
+        if (Character.isWhitespace(c)) {
+          i++;
+        } else if (Character.isLetter(c) || (c == '_') || (c == '$')) {
+          int start = i;
+          while ((i < expression.length())
+              && (Character.isLetterOrDigit(expression.charAt(i)) || (expression.charAt(i) == '_') || (expression.charAt(i) == '$')))
+            i++;
+          tokens.add(expression.substring(start, i));
+        } else if ((c == '"') || (c == '\'')) {
+          int end = expression.indexOf(c, i + 1);
+          String literal = end < 0 ? null : expression.substring(i + 1, end);
+          if ((literal == null) || (literal.indexOf('\\') >= 0) || literal.contains("${") || literal.contains("#{"))
+            throw new Unsupported();
+          tokens.add("\"" + literal);
+          i = end + 1;
+        } else {
+          for (String operator : OPERATORS) {
+            if (expression.startsWith(operator, i)) {
+              tokens.add(operator);
+              i += operator.length();
+              continue tokenizing;
+            }
+          }
+          throw new Unsupported();
+        }
+      }
+    }
+
+    String peek() {
+      return peek(0);
+    }
+
+    String peek(int ahead) {
+      return position + ahead < tokens.size() ? tokens.get(position + ahead) : null;
+    }
+
+    String nextToken() {
+      return tokens.get(position++);
+    }
+
+    boolean accept(String token) {
+      if (!token.equals(peek()))
+        return false;
+      position++;
+      return true;
+    }
+
+    void expect(String token) throws Unsupported {
+      if (!accept(token))
+        throw new Unsupported();
+    }
+
+    void expectEnd() throws Unsupported {
+      if (position < tokens.size())
+        throw new Unsupported();
+    }
+
+    boolean isComparison() {
+      String next = peek();
+      return "==".equals(next) || "=".equals(next) || "!=".equals(next);
+    }
+
+    String nextIdentifier() throws Unsupported {
+      String next = peek();
+      if ((next == null) || !(Character.isLetter(next.charAt(0)) || (next.charAt(0) == '_') || (next.charAt(0) == '$')))
+        throw new Unsupported();
+      position++;
+      return next;
+    }
+
+    /**
+     * Returns the string literal, or the empty string if the default operator has none.
+     */
+    String acceptString() {
+      String next = peek();
+      if ((next == null) || (next.charAt(0) != '"'))
+        return "";
+      position++;
+      return next.substring(1);
+    }
+
+    String expectString() throws Unsupported {
+      String next = peek();
+      if ((next == null) || (next.charAt(0) != '"'))
+        throw new Unsupported();
+      position++;
+      return next.substring(1);
+    }
+  }
+}
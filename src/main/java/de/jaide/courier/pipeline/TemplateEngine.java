@@ -0,0 +1,229 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import freemarker.template.Configuration;
+import freemarker.template.DefaultObjectWrapper;
+import freemarker.template.ObjectWrapper;
+import freemarker.template.TemplateExceptionHandler;
+
+/**
+ * Hands out the Freemarker configurations used for loading templates, one per template location.<br/>
+ * A Freemarker configuration may only have one template loader, so sharing a single configuration between messages that load their
+ * templates from different locations would require reconfiguring it on every call. Instead each location gets its own configuration, which
+ * also keeps Freemarker's template cache from mixing up equally named templates of different locations.<br/>
+ * All configurations are pinned to the Freemarker version they were tested with and share one object wrapper, so the properties of each
+ * JavaBean class passed as a parameter are introspected once, not once per template location. By default changed templates are picked up
+ * while running; in production hot reloading should be turned off:
+ * 
+ * <pre>
+ * handler.getTemplateEngine().setHotReload(false);
+ * </pre>
+ * 
+ * Templates are then loaded once and never checked for changes again, and Freemarker's own localized lookup, which probes for files like
+ * "signup_subject_en_US.ftl" the locale resolver already took care of, is turned off.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TemplateEngine {
+  /**
+   * The Freemarker version whose behaviour the configurations are pinned to, so upgrading Freemarker doesn't silently change the output.
+   */
+  public static final String FREEMARKER_VERSION = "2.3.19";
+
+  /**
+   * How often Freemarker checks whether a template changed with hot reloading turned on, in seconds. This is Freemarker's default.
+   */
+  public static final int HOT_RELOAD_DELAY_SECONDS = 5;
+
+  /**
+   * The Freemarker configurations, by template location.
+   */
+  private final ConcurrentMap<String, Configuration> configurations = new ConcurrentHashMap<String, Configuration>();
+
+  /**
+   * Knows which template files exist in which template location.
+   */
+  private final TemplateIndex templateIndex = new TemplateIndex();
+
+  /**
+   * Picks the best available version of each template part for a locale.
+   */
+  private final TemplateLocaleResolver localeResolver = new TemplateLocaleResolver(templateIndex);
+
+  /**
+   * The object wrapper shared by all configurations, caching the introspected JavaBean classes.
+   */
+  private final ObjectWrapper objectWrapper = createObjectWrapper();
+
+  /**
+   * Compiles the templates opted in, shared by all configurations.
+   */
+  private final TemplateCompiler templateCompiler = new TemplateCompiler();
+
+  private volatile boolean hotReload = true;
+
+  /**
+   * Returns the Freemarker configuration that loads its templates using the classloader of the given class.
+   * 
+   * @param loaderClass The class whose classloader is used for loading the templates.
+   * @param templatePath The absolute path of the templates, e.g. "/email_templates/en/".
+   * @return The Freemarker configuration.
+   */
+  public Configuration getConfiguration(Class<?> loaderClass, String templatePath) {
+    String key = "class:" + loaderClass.getName() + "@" + System.identityHashCode(loaderClass.getClassLoader()) + ":" + templatePath;
+    Configuration configuration = configurations.get(key);
+
+    if (configuration == null) {
+      configuration = createConfiguration();
+      configuration.setClassForTemplateLoading(loaderClass, templatePath);
+      configuration = putIfAbsent(key, configuration);
+    }
+
+    return configuration;
+  }
+
+  /**
+   * Returns the Freemarker configuration that loads its templates from the given directory.
+   * 
+   * @param templateDirectory The directory to load the templates from.
+   * @return The Freemarker configuration.
+   * @throws IOException Thrown if the directory doesn't exist.
+   */
+  public Configuration getConfiguration(File templateDirectory) throws IOException {
+    String key = "file:" + templateDirectory.getAbsolutePath();
+    Configuration configuration = configurations.get(key);
+
+    if (configuration == null) {
+      configuration = createConfiguration();
+      configuration.setDirectoryForTemplateLoading(templateDirectory);
+      configuration = putIfAbsent(key, configuration);
+    }
+
+    return configuration;
+  }
+
+  /**
+   * Returns the index of the template files, by template location.
+   * 
+   * @return The template index.
+   */
+  public TemplateIndex getTemplateIndex() {
+    return templateIndex;
+  }
+
+  /**
+   * Returns the resolver picking the best available version of each template part for a locale.
+   * 
+   * @return The locale resolver.
+   */
+  public TemplateLocaleResolver getLocaleResolver() {
+    return localeResolver;
+  }
+
+  /**
+   * Turns picking up changed templates on or off, for the configurations handed out so far and for those handed out later on.
+   * 
+   * @param hotReload True, if changed templates are picked up while running, false, if templates are loaded once.
+   */
+  public void setHotReload(boolean hotReload) {
+    this.hotReload = hotReload;
+    for (Configuration configuration : configurations.values())
+      applyHotReload(configuration);
+  }
+
+  /**
+   * Returns whether changed templates are picked up while running.
+   * 
+   * @return True, if hot reloading is turned on, which is the default.
+   */
+  public boolean isHotReload() {
+    return hotReload;
+  }
+
+  /**
+   * Returns the object wrapper shared by all configurations.
+   * 
+   * @return The object wrapper.
+   */
+  public ObjectWrapper getObjectWrapper() {
+    return objectWrapper;
+  }
+
+  /**
+   * Returns the compiler of the busiest templates, which is off until templates are added to it.
+   * 
+   * @return The template compiler.
+   */
+  public TemplateCompiler getTemplateCompiler() {
+    return templateCompiler;
+  }
+
+  /**
+   * Creates a new Freemarker configuration, without a template loader.
+   * 
+   * @return The new Freemarker configuration.
+   */
+  protected Configuration createConfiguration() {
+    Configuration configuration = new Configuration();
+    configuration.setIncompatibleEnhancements(FREEMARKER_VERSION);
+    configuration.setObjectWrapper(objectWrapper);
+    configuration.setCustomAttribute(TemplateCompiler.CONFIGURATION_ATTRIBUTE, templateCompiler);
+
+    /*
+     * A failing template fails the message anyway, so there's no point in printing the stack trace into the discarded output first.
+     */
+    configuration.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+    applyHotReload(configuration);
+    return configuration;
+  }
+
+  /**
+   * Creates the object wrapper shared by all configurations.
+   * 
+   * @return The new object wrapper.
+   */
+  protected ObjectWrapper createObjectWrapper() {
+    return new DefaultObjectWrapper();
+  }
+
+  /**
+   * Sets up the given configuration for hot reloading or for loading each template once.
+   * 
+   * @param configuration The configuration.
+   */
+  private void applyHotReload(Configuration configuration) {
+    configuration.setTemplateUpdateDelay(hotReload ? HOT_RELOAD_DELAY_SECONDS : Integer.MAX_VALUE);
+    configuration.setLocalizedLookup(hotReload);
+  }
+
+  /**
+   * Caches the given configuration, unless another thread was faster.
+   * 
+   * @param key The template location.
+   * @param configuration The newly created configuration.
+   * @return The cached configuration.
+   */
+  private Configuration putIfAbsent(String key, Configuration configuration) {
+    Configuration existing = configurations.putIfAbsent(key, configuration);
+    return existing == null ? configuration : existing;
+  }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+
+/**
+ * Knows which template files exist in which template location, so optional template parts (the headers, either version of the body with
+ * TemplateTypeEnum.ANY) that don't exist are skipped without asking Freemarker to look for them. The index can be persisted together with
+ * the SMTP configurations, so it doesn't need to be rebuilt on startup.
+ * <br/>
+ * Each entry carries a fingerprint of its source, i.e. the names, sizes and modification times of the files in the template directory or
+ * the size and modification time of the JAR file the templates are packaged in. Entries whose fingerprint doesn't match their source
+ * anymore are scanned again.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TemplateIndex {
+  /**
+   * The prefixes of the location keys.
+   */
+  public static final String LOCATION_CLASSPATH = "classpath:";
+  public static final String LOCATION_FILE = "file:";
+
+  /**
+   * How often an entry is checked against its source at most, in milliseconds. Matches Freemarker's default template update delay.
+   */
+  public static final long REVALIDATION_INTERVAL = 5000;
+
+  /**
+   * The entries, by location key.
+   */
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  /**
+   * The locations that can't be indexed, e.g. since they reside neither in a directory nor in a JAR file.
+   */
+  private final Set<String> unindexable = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * Returns the location key of templates loaded by the classloader of the given class.
+   * 
+   * @param loaderClass The class whose classloader loads the templates.
+   * @param templatePath The absolute path of the templates, e.g. "/email_templates/en/".
+   * @return The location key.
+   */
+  public static String classpathLocation(Class<?> loaderClass, String templatePath) {
+    return LOCATION_CLASSPATH + loaderClass.getName() + ":" + templatePath;
+  }
+
+  /**
+   * Returns the location key of templates loaded from the given directory.
+   * 
+   * @param templateDirectory The directory the templates are loaded from.
+   * @return The location key.
+   */
+  public static String fileLocation(File templateDirectory) {
+    return LOCATION_FILE + templateDirectory.getAbsolutePath();
+  }
+
+  /**
+   * Returns the entry of the given template location. Entries whose source changed are scanned again, at most every
+   * REVALIDATION_INTERVAL milliseconds.
+   * 
+   * @param location The location key.
+   * @return The entry or null, if the location isn't known or doesn't exist anymore.
+   */
+  public Entry get(String location) {
+    Entry entry = entries.get(location);
+    if ((entry == null) || (System.currentTimeMillis() - entry.checked < REVALIDATION_INTERVAL))
+      return entry;
+
+    File source = new File(entry.getSource());
+    if (fingerprint(source) == entry.getFingerprint()) {
+      entry.checked = System.currentTimeMillis();
+      return entry;
+    }
+
+    Entry rescanned = scan(source, entry.getPrefix());
+    if (rescanned == null)
+      entries.remove(location);
+    else
+      entries.put(location, rescanned);
+    return rescanned;
+  }
+
+  /**
+   * Returns the entry of the given classpath location, scanning it if it isn't known yet.
+   * 
+   * @param loaderClass The class whose classloader loads the templates.
+   * @param templatePath The absolute path of the templates, e.g. "/email_templates/en/".
+   * @return The entry or null, if the location can't be indexed.
+   */
+  public Entry lookup(Class<?> loaderClass, String templatePath) {
+    String location = classpathLocation(loaderClass, templatePath);
+    Entry entry = get(location);
+    if ((entry == null) && !unindexable.contains(location))
+      entry = scan(location, resolveClasspathSource(loaderClass, templatePath), templatePath);
+
+    return entry;
+  }
+
+  /**
+   * Returns the entry of the given template directory, scanning it if it isn't known yet.
+   * 
+   * @param templateDirectory The directory the templates are loaded from.
+   * @return The entry or null, if the directory can't be read.
+   */
+  public Entry lookup(File templateDirectory) {
+    String location = fileLocation(templateDirectory);
+    Entry entry = get(location);
+    if ((entry == null) && !unindexable.contains(location))
+      entry = scan(location, templateDirectory, null);
+
+    return entry;
+  }
+
+  /**
+   * Scans the given location and remembers the result.
+   * 
+   * @param location The location key.
+   * @param source The directory or JAR file the templates of that location reside in. May be null, if that's unknown.
+   * @param prefix The path of the templates within the JAR file, e.g. "/email_templates/en/". Ignored for directories.
+   * @return The entry or null, if the location can't be indexed.
+   */
+  private Entry scan(String location, File source, String prefix) {
+    Entry entry = source == null ? null : scan(source, prefix);
+    if (entry == null)
+      unindexable.add(location);
+    else
+      entries.put(location, entry);
+
+    return entry;
+  }
+
+  /**
+   * Adds an entry, e.g. one read from a snapshot. Entries whose source changed since are ignored.
+   * 
+   * @param location The location key.
+   * @param entry The entry.
+   * @return True, if the entry was still valid and hence added.
+   */
+  public boolean put(String location, Entry entry) {
+    if (fingerprint(new File(entry.getSource())) != entry.getFingerprint())
+      return false;
+
+    entries.put(location, entry);
+    return true;
+  }
+
+  /**
+   * Forgets the given location, so it's scanned again on its next lookup. Also applies to locations that couldn't be indexed, e.g. a
+   * directory that didn't exist back then.
+   * 
+   * @param location The location key.
+   */
+  public void invalidate(String location) {
+    entries.remove(location);
+    unindexable.remove(location);
+  }
+
+  /**
+   * Returns all entries, by location key.
+   * 
+   * @return An unmodifiable snapshot of all entries.
+   */
+  public Map<String, Entry> getEntries() {
+    return Collections.unmodifiableMap(new TreeMap<String, Entry>(entries));
+  }
+
+  /**
+   * Resolves the directory or JAR file a classpath location resides in.
+   * 
+   * @param loaderClass The class whose classloader loads the templates.
+   * @param templatePath The absolute path of the templates, e.g. "/email_templates/en/".
+   * @return The directory or JAR file, or null if the location doesn't exist, resides somewhere else or in more than one classpath root.
+   */
+  public static File resolveClasspathSource(Class<?> loaderClass, String templatePath) {
+    ClassLoader classLoader = loaderClass.getClassLoader();
+    if (!templatePath.startsWith("/")) {
+      String packageName = loaderClass.getName().substring(0, Math.max(0, loaderClass.getName().lastIndexOf('.')));
+      templatePath = "/" + (packageName.length() == 0 ? "" : packageName.replace('.', '/') + "/") + templatePath;
+    }
+
+    return resolveClasspathSource(classLoader == null ? ClassLoader.getSystemClassLoader() : classLoader, templatePath);
+  }
+
+  /**
+   * Resolves the directory or JAR file a classpath location resides in. If several classpath roots hold the location, e.g. a directory and
+   * a JAR file, Freemarker may find some of the templates in one and some in the other, so the location isn't indexed then.
+   * 
+   * @param classLoader The classloader that loads the templates.
+   * @param templatePath The absolute path of the templates, e.g. "/email_templates/en/".
+   * @return The directory or JAR file, or null if the location doesn't exist, resides somewhere else or in more than one classpath root.
+   */
+  public static File resolveClasspathSource(ClassLoader classLoader, String templatePath) {
+    try {
+      Enumeration<URL> urls = classLoader.getResources(templatePath.startsWith("/") ? templatePath.substring(1) : templatePath);
+      if (!urls.hasMoreElements())
+        return null;
+      URL url = urls.nextElement();
+      if (urls.hasMoreElements())
+        return null;
+
+      if ("file".equals(url.getProtocol()))
+        return new File(URLDecoder.decode(url.getPath(), "UTF-8"));
+      if ("jar".equals(url.getProtocol()))
+        return new File(URLDecoder.decode(((JarURLConnection) url.openConnection()).getJarFileURL().getPath(), "UTF-8"));
+    } catch (UnsupportedEncodingException uee) {
+      // UTF-8 is always there
+    } catch (IOException ioe) {
+      // Not indexable, Freemarker will look for the templates
+    }
+
+    return null;
+  }
+
+  /**
+   * Scans a template directory or the given path within a JAR file.
+   * 
+   * @param source The directory or JAR file.
+   * @param prefix The path of the templates within the JAR file, e.g. "/email_templates/en/". Ignored for directories.
+   * @return The entry or null, if the source couldn't be read.
+   */
+  public static Entry scan(File source, String prefix) {
+    Set<String> filenames = new TreeSet<String>();
+
+    if (source.isDirectory()) {
+      String[] names = source.list();
+      if (names == null)
+        return null;
+      for (String name : names)
+        if (new File(source, name).isFile())
+          filenames.add(name);
+    } else if (source.isFile() && (prefix != null)) {
+      String path = prefix.startsWith("/") ? prefix.substring(1) : prefix;
+      if (!path.endsWith("/"))
+        path += "/";
+
+      JarFile jarFile = null;
+      try {
+        jarFile = new JarFile(source);
+        Enumeration<JarEntry> jarEntries = jarFile.entries();
+        while (jarEntries.hasMoreElements()) {
+          String name = jarEntries.nextElement().getName();
+          if (name.startsWith(path) && (name.indexOf('/', path.length()) < 0) && (name.length() > path.length()))
+            filenames.add(name.substring(path.length()));
+        }
+      } catch (IOException ioe) {
+        return null;
+      } finally {
+        if (jarFile != null) {
+          try {
+            jarFile.close();
+          } catch (IOException ioe) {
+            // Nothing we can do about it
+          }
+        }
+      }
+    } else {
+      return null;
+    }
+
+    return new Entry(source.getPath(), source.isDirectory() ? null : prefix, fingerprint(source), filenames);
+  }
+
+  /**
+   * Computes the fingerprint of a template directory (names, sizes and modification times of its files) or a JAR file (size and
+   * modification time).
+   * 
+   * @param source The directory or JAR file.
+   * @return The fingerprint, or 0 if the source doesn't exist.
+   */
+  public static long fingerprint(File source) {
+    CRC32 crc = new CRC32();
+
+    if (source.isDirectory()) {
+      File[] files = source.listFiles();
+      if (files == null)
+        return 0;
+      Arrays.sort(files);
+      for (File file : files) {
+        update(crc, file.getName());
+        update(crc, file.length());
+        update(crc, file.lastModified());
+      }
+    } else if (source.isFile()) {
+      update(crc, source.length());
+      update(crc, source.lastModified());
+    } else {
+      return 0;
+    }
+
+    return crc.getValue();
+  }
+
+  private static void update(CRC32 crc, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      crc.update(c >>> 8);
+      crc.update(c);
+    }
+  }
+
+  private static void update(CRC32 crc, long value) {
+    for (int shift = 56; shift >= 0; shift -= 8)
+      crc.update((int) (value >>> shift));
+  }
+
+  /**
+   * The template files of a single location.
+   */
+  public static class Entry {
+    private final String source;
+    private final String prefix;
+    private final long fingerprint;
+    private final Set<String> filenames;
+
+    /**
+     * When the entry was last checked against its source.
+     */
+    private volatile long checked = System.currentTimeMillis();
+
+    /**
+     * Creates a new entry.
+     * 
+     * @param source The path of the directory or JAR file the templates reside in.
+     * @param prefix The path of the templates within the JAR file or null, if they reside in a directory.
+     * @param fingerprint The fingerprint of the source at the time it was scanned.
+     * @param filenames The names of the template files.
+     */
+    public Entry(String source, String prefix, long fingerprint, Set<String> filenames) {
+      this.source = source;
+      this.prefix = prefix;
+      this.fingerprint = fingerprint;
+      this.filenames = Collections.unmodifiableSet(new TreeSet<String>(filenames));
+    }
+
+    /**
+     * The path of the directory or JAR file the templates reside in.
+     * 
+     * @return The path of the source.
+     */
+    public String getSource() {
+      return source;
+    }
+
+    /**
+     * The path of the templates within the JAR file.
+     * 
+     * @return The path of the templates within the JAR file or null, if they reside in a directory.
+     */
+    public String getPrefix() {
+      return prefix;
+    }
+
+    /**
+     * The fingerprint of the source at the time it was scanned.
+     * 
+     * @return The fingerprint.
+     */
+    public long getFingerprint() {
+      return fingerprint;
+    }
+
+    /**
+     * The names of the template files.
+     * 
+     * @return The names of the template files, sorted.
+     */
+    public Set<String> getFilenames() {
+      return filenames;
+    }
+
+    /**
+     * True, if the given template file exists.
+     * 
+     * @param filename The name of the template file.
+     * @return True, if the template file exists.
+     */
+    public boolean contains(String filename) {
+      return filenames.contains(filename);
+    }
+  }
+}
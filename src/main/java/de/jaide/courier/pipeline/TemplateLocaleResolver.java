@@ -0,0 +1,340 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import freemarker.cache.TemplateLoader;
+import freemarker.template.Configuration;
+
+/**
+ * Picks the best available version of each template part for a locale, from a template location holding one subdirectory per locale,
+ * e.g. "/email_templates/de_AT/", "/email_templates/de/" and "/email_templates/en/".<br/>
+ * For "de_AT" the parts are looked up in "de_AT/", "de/", the directories of the default locale and finally the template location itself,
+ * each part on its own. So a subject that was translated for Austria is combined with the German body, if there's no Austrian one.
+ * <br/>
+ * The result is remembered per template location, template name and locale, so the directories are probed only once. Wherever the template
+ * index knows the probed directories the remembered result is checked against it, so added or removed template files are noticed after
+ * TemplateIndex.REVALIDATION_INTERVAL milliseconds. Other results are kept until invalidateAll() is called. Since the locale is usually
+ * supplied by the caller, only the most recently used resolutions are kept.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TemplateLocaleResolver {
+  /**
+   * How many resolutions are kept by default.
+   */
+  public static final int DEFAULT_MAX_RESOLUTIONS = 1024;
+
+  /**
+   * Knows which template files exist in which template location.
+   */
+  private final TemplateIndex templateIndex;
+
+  /**
+   * The resolved template parts, by template location, template name and locale. The least recently used ones are dropped.
+   */
+  private final Map<String, Resolution> resolutions;
+
+  /**
+   * The locale whose templates are used, if there are none for the requested locale.
+   */
+  private volatile Locale defaultLocale = Locale.ENGLISH;
+
+  /**
+   * Creates a new resolver.
+   * 
+   * @param templateIndex Knows which template files exist in which template location.
+   */
+  public TemplateLocaleResolver(TemplateIndex templateIndex) {
+    this(templateIndex, DEFAULT_MAX_RESOLUTIONS);
+  }
+
+  /**
+   * Creates a new resolver that keeps at most the given number of resolutions.
+   * 
+   * @param templateIndex Knows which template files exist in which template location.
+   * @param maxResolutions How many resolutions are kept.
+   */
+  public TemplateLocaleResolver(TemplateIndex templateIndex, final int maxResolutions) {
+    if (maxResolutions <= 0)
+      throw new IllegalArgumentException("The maximum number of resolutions needs to be positive.");
+
+    this.templateIndex = templateIndex;
+    this.resolutions = new LinkedHashMap<String, Resolution>(16, 0.75f, true) {
+      private static final long serialVersionUID = -2710419203870235791L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Resolution> eldest) {
+        return size() > maxResolutions;
+      }
+    };
+  }
+
+  /**
+   * The locale whose templates are used, if there are none for the requested locale. Defaults to English.
+   * 
+   * @return The default locale.
+   */
+  public Locale getDefaultLocale() {
+    return defaultLocale;
+  }
+
+  /**
+   * Sets the locale whose templates are used, if there are none for the requested locale.
+   * 
+   * @param defaultLocale The default locale.
+   */
+  public void setDefaultLocale(Locale defaultLocale) {
+    this.defaultLocale = defaultLocale;
+    invalidateAll();
+  }
+
+  /**
+   * Resolves the template parts of the given template, loaded by the classloader of the given class.
+   * 
+   * @param configuration The Freemarker configuration loading the templates from the given path.
+   * @param loaderClass The class whose classloader is used for loading the templates.
+   * @param templatePath The absolute path holding the locale directories, e.g. "/email_templates/".
+   * @param templateName The name of the template, e.g. "signup".
+   * @param locale The requested locale.
+   * @return The resolved template parts.
+   * @throws IOException Thrown if the template loader failed.
+   */
+  public Resolution resolve(Configuration configuration, Class<?> loaderClass, String templatePath, String templateName, Locale locale)
+      throws IOException {
+    return resolve(configuration, loaderClass, templatePath, null, templateName, locale);
+  }
+
+  /**
+   * Resolves the template parts of the given template, loaded from the given directory.
+   * 
+   * @param configuration The Freemarker configuration loading the templates from the given directory.
+   * @param templateDirectory The directory holding the locale directories.
+   * @param templateName The name of the template, e.g. "signup".
+   * @param locale The requested locale.
+   * @return The resolved template parts.
+   * @throws IOException Thrown if the template loader failed.
+   */
+  public Resolution resolve(Configuration configuration, File templateDirectory, String templateName, Locale locale) throws IOException {
+    return resolve(configuration, null, null, templateDirectory, templateName, locale);
+  }
+
+  /**
+   * Forgets all resolved template parts, e.g. after templates were deployed to a location the template index can't watch.
+   */
+  public void invalidateAll() {
+    synchronized (resolutions) {
+      resolutions.clear();
+    }
+  }
+
+  /**
+   * The number of remembered resolutions.
+   * 
+   * @return The number of remembered resolutions.
+   */
+  public int size() {
+    synchronized (resolutions) {
+      return resolutions.size();
+    }
+  }
+
+  /**
+   * Returns the locale directories probed for the given locale, most specific first. The last one is the empty string, i.e. the template
+   * location itself.
+   * 
+   * @param locale The requested locale.
+   * @return The locale directories, without trailing slashes.
+   */
+  public List<String> getCandidates(Locale locale) {
+    List<String> candidates = new ArrayList<String>();
+    addCandidates(candidates, locale);
+    addCandidates(candidates, defaultLocale);
+    candidates.add("");
+    return candidates;
+  }
+
+  /**
+   * Turns the given locale parameter into a Locale.
+   * 
+   * @param locale A Locale or a String like "de_AT" or "de-AT".
+   * @return The locale or null, if null was given.
+   */
+  public static Locale toLocale(Object locale) {
+    if ((locale == null) || (locale instanceof Locale))
+      return (Locale) locale;
+
+    String[] tokens = locale.toString().split("[_-]", 3);
+    return new Locale(tokens[0], tokens.length > 1 ? tokens[1] : "", tokens.length > 2 ? tokens[2] : "");
+  }
+
+  private Resolution resolve(Configuration configuration, Class<?> loaderClass, String templatePath, File templateDirectory,
+      String templateName, Locale locale) throws IOException {
+    String base = loaderClass != null ? TemplateIndex.classpathLocation(loaderClass, templatePath) : TemplateIndex
+        .fileLocation(templateDirectory);
+    String key = base + "#" + templateName + "#" + locale;
+
+    Resolution resolution;
+    synchronized (resolutions) {
+      resolution = resolutions.get(key);
+    }
+    if ((resolution != null) && resolution.isCurrent(templateIndex))
+      return resolution;
+    if (resolution != null)
+      for (String location : resolution.locations)
+        templateIndex.invalidate(location);
+
+    List<String> candidates = getCandidates(locale);
+    List<String> locations = new ArrayList<String>(candidates.size());
+    List<TemplateIndex.Entry> entries = new ArrayList<TemplateIndex.Entry>(candidates.size());
+    for (String candidate : candidates) {
+      if (loaderClass != null) {
+        String path = candidate.length() == 0 ? templatePath : templatePath + candidate + "/";
+        locations.add(TemplateIndex.classpathLocation(loaderClass, path));
+        entries.add(templateIndex.lookup(loaderClass, path));
+      } else {
+        File directory = candidate.length() == 0 ? templateDirectory : new File(templateDirectory, candidate);
+        locations.add(TemplateIndex.fileLocation(directory));
+        entries.add(templateIndex.lookup(directory));
+      }
+    }
+
+    Map<TemplatePart, String> filenames = new EnumMap<TemplatePart, String>(TemplatePart.class);
+    for (TemplatePart part : TemplatePart.values()) {
+      String filename = part.getFilename(templateName);
+      for (int i = 0; i < candidates.size(); i++) {
+        String path = candidates.get(i).length() == 0 ? filename : candidates.get(i) + "/" + filename;
+        TemplateIndex.Entry entry = entries.get(i);
+        if ((entry != null) ? entry.contains(filename) : exists(configuration.getTemplateLoader(), path)) {
+          filenames.put(part, path);
+          break;
+        }
+      }
+    }
+
+    resolution = new Resolution(locale, candidates, filenames, locations, entries);
+    synchronized (resolutions) {
+      resolutions.put(key, resolution);
+    }
+    return resolution;
+  }
+
+  private static void addCandidates(List<String> candidates, Locale locale) {
+    if (locale == null)
+      return;
+
+    String language = locale.getLanguage();
+    String country = locale.getCountry();
+    String variant = locale.getVariant();
+    if (variant.length() > 0)
+      addCandidate(candidates, language + "_" + country + "_" + variant);
+    if (country.length() > 0)
+      addCandidate(candidates, language + "_" + country);
+    if (language.length() > 0)
+      addCandidate(candidates, language);
+  }
+
+  private static void addCandidate(List<String> candidates, String candidate) {
+    if (!candidates.contains(candidate))
+      candidates.add(candidate);
+  }
+
+  /**
+   * Asks the template loader for a template the template index doesn't know about.
+   */
+  private static boolean exists(TemplateLoader templateLoader, String path) throws IOException {
+    Object source = templateLoader.findTemplateSource(path);
+    if (source == null)
+      return false;
+
+    templateLoader.closeTemplateSource(source);
+    return true;
+  }
+
+  /**
+   * The best available version of each template part, for a single template location, template name and locale.
+   */
+  public static class Resolution {
+    private final Locale locale;
+    private final List<String> candidates;
+    private final Map<TemplatePart, String> filenames;
+
+    /**
+     * The template locations probed, and their template index entries at that time.
+     */
+    private final List<String> locations;
+    private final List<TemplateIndex.Entry> entries;
+
+    private Resolution(Locale locale, List<String> candidates, Map<TemplatePart, String> filenames, List<String> locations,
+        List<TemplateIndex.Entry> entries) {
+      this.locale = locale;
+      this.candidates = Collections.unmodifiableList(candidates);
+      this.filenames = Collections.unmodifiableMap(filenames);
+      this.locations = locations;
+      this.entries = entries;
+    }
+
+    /**
+     * The requested locale.
+     * 
+     * @return The requested locale.
+     */
+    public Locale getLocale() {
+      return locale;
+    }
+
+    /**
+     * The locale directories that were probed, most specific first.
+     * 
+     * @return The locale directories, without trailing slashes.
+     */
+    public List<String> getCandidates() {
+      return candidates;
+    }
+
+    /**
+     * Returns the filename of the best available version of the given template part.
+     * 
+     * @param part The template part.
+     * @return The filename relative to the template location, e.g. "de/signup_subject.ftl", or null if there's no version at all.
+     */
+    public String getFilename(TemplatePart part) {
+      return filenames.get(part);
+    }
+
+    /**
+     * True, if none of the indexed template locations changed since they were probed.
+     */
+    private boolean isCurrent(TemplateIndex templateIndex) {
+      for (int i = 0; i < locations.size(); i++) {
+        TemplateIndex.Entry entry = entries.get(i);
+        if ((entry != null) && (templateIndex.get(locations.get(i)) != entry))
+          return false;
+      }
+
+      return true;
+    }
+  }
+}
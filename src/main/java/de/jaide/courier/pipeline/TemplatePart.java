@@ -0,0 +1,72 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+/**
+ * Represents the Freemarker-templated parts a message is assembled from: HEADERS, SUBJECT, BODY_TEXT, BODY_HTML.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public enum TemplatePart {
+
+  /**
+   * The (optional) headers, one header per line, header name and value separated by a colon (":").
+   */
+  HEADERS("headers", ".ftl"),
+
+  /**
+   * The subject line.
+   */
+  SUBJECT("subject", ".ftl"),
+
+  /**
+   * The Text-only version of the body content.
+   */
+  BODY_TEXT("body", ".ftl.txt"),
+
+  /**
+   * The HTML version of the body content.
+   */
+  BODY_HTML("body", ".ftl.html");
+
+  private final String suffix;
+  private final String extension;
+
+  private TemplatePart(String suffix, String extension) {
+    this.suffix = suffix;
+    this.extension = extension;
+  }
+
+  /**
+   * The suffix that is appended to the template name, e.g. "subject".
+   * 
+   * @return The suffix of this template part.
+   */
+  public String getSuffix() {
+    return suffix;
+  }
+
+  /**
+   * Returns the filename, excluding the path, of this part of the given template.<br/>
+   * If "activate" is given as the <code>templateName</code> and this is the SUBJECT part then "activate_subject.ftl" is returned.
+   * 
+   * @param templateName The template name to return the filename for.
+   * @return The filename of the template, excluding the path.
+   */
+  public String getFilename(String templateName) {
+    return templateName + "_" + suffix + extension;
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.exception.CourierException;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+/**
+ * Freemarker-processes all template parts the resolution stage asked for. Parts compiled by the TemplateCompiler are rendered by their
+ * compiled version instead. The time budget of the message is checked while the output is written, so a template running too long stops
+ * with a MessageTimeoutException.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TemplateRenderingStage implements MessageStage {
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#getName()
+   */
+  public String getName() {
+    return PipelineMessageHandler.STAGE_RENDER;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  public void process(MessageContext context) throws CourierException {
+    for (Map.Entry<TemplatePart, String> entry : context.getTemplateFilenames().entrySet()) {
+      String content = renderPart(context, entry.getKey(), entry.getValue());
+      if (content != null)
+        context.setRenderedPart(entry.getKey(), content);
+    }
+
+    checkBodyRendered(context);
+  }
+
+  /**
+   * Returns the Freemarker-processed String-content of the specified template part.
+   * 
+   * @param context The state of the message.
+   * @param part The template part to render.
+   * @param filename The filename of the template part.
+   * @return The rendered content or null, if the template part is optional and couldn't be found.
+   * @throws CourierException Thrown if a non-optional template couldn't be found or the template couldn't be processed.
+   */
+  protected String renderPart(MessageContext context, TemplatePart part, String filename) throws CourierException {
+    /*
+     * Optional parts the template index knows to be missing aren't looked up at all.
+     */
+    TemplateIndex.Entry indexEntry = context.getTemplateIndexEntry();
+    if ((indexEntry != null) && context.isOptional(part) && !indexEntry.contains(filename))
+      return null;
+
+    try {
+      Template template = context.getTemplateConfiguration().getTemplate(filename);
+      TemplateCompiler compiler = TemplateCompiler.get(context.getTemplateConfiguration());
+      String content = compiler == null ? null : compiler.render(template, context.getParameters());
+      if (content != null)
+        return content;
+
+      DeadlineWriter writer = new DeadlineWriter(context);
+      template.process(ParameterModel.get(context), writer);
+      return writer.toString();
+    } catch (IOException ioe) {
+      if (context.isOptional(part))
+        return null;
+
+      throw new CourierException(ioe);
+    } catch (TemplateException te) {
+      throw new CourierException(te);
+    }
+  }
+
+  /**
+   * With TemplateTypeEnum.ANY both versions of the body are optional, but at least one of them has to be there.
+   * 
+   * @param context The state of the message.
+   * @throws CourierException Thrown if neither version of the body could be found.
+   */
+  protected void checkBodyRendered(MessageContext context) throws CourierException {
+    if ((context.getTemplateType() == TemplateTypeEnum.ANY) && (context.getRenderedPart(TemplatePart.BODY_TEXT) == null)
+        && (context.getRenderedPart(TemplatePart.BODY_HTML) == null)) {
+      String templateName = context.getTemplateName();
+      throw new CourierException("Neither the HTML nor the TEXT-only version of the e-mail template '" + templateName
+          + "' could be found. Are you sure they reside in '" + context.getTemplatePath() + "' as '" + templateName
+          + "_body.ftl.html' or '" + templateName + "_body.ftl.txt'?");
+    }
+  }
+
+  /**
+   * Collects the output of a template, checking the time budget of the message every few writes. The exceptions of checkDeadline() are
+   * unchecked, so they pass through Freemarker and aren't mistaken for a missing optional part.
+   */
+  private static class DeadlineWriter extends Writer {
+    private static final int CHECK_INTERVAL = 32;
+
+    private final StringWriter out = new StringWriter();
+    private final MessageContext context;
+    private int writes;
+
+    DeadlineWriter(MessageContext context) {
+      this.context = context;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.Writer#write(char[], int, int)
+     */
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      check();
+      out.write(cbuf, off, len);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.Writer#write(java.lang.String)
+     */
+    @Override
+    public void write(String str) {
+      check();
+      out.write(str);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.Writer#write(java.lang.String, int, int)
+     */
+    @Override
+    public void write(String str, int off, int len) {
+      check();
+      out.write(str, off, len);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.Writer#write(int)
+     */
+    @Override
+    public void write(int c) {
+      check();
+      out.write(c);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.Writer#flush()
+     */
+    @Override
+    public void flush() {
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.Writer#close()
+     */
+    @Override
+    public void close() {
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+      return out.toString();
+    }
+
+    private void check() {
+      if (++writes % CHECK_INTERVAL == 0)
+        context.checkDeadline(PipelineMessageHandler.STAGE_RENDER);
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.exception.CourierException;
+
+/**
+ * Determines where the templates are loaded from and which template parts need to be rendered.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TemplateResolutionStage implements MessageStage {
+  /**
+   * Hands out the Freemarker configurations, by template location.
+   */
+  private final TemplateEngine templateEngine;
+
+  /**
+   * The class whose classloader is used for loading the templates, if the caller didn't specify one.
+   */
+  private final Class<?> defaultLoaderClass;
+
+  /**
+   * Creates a new template resolution stage.
+   * 
+   * @param templateEngine Hands out the Freemarker configurations, by template location.
+   * @param defaultLoaderClass The class whose classloader is used for loading the templates, if the caller didn't specify one.
+   */
+  public TemplateResolutionStage(TemplateEngine templateEngine, Class<?> defaultLoaderClass) {
+    this.templateEngine = templateEngine;
+    this.defaultLoaderClass = defaultLoaderClass;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#getName()
+   */
+  public String getName() {
+    return PipelineMessageHandler.STAGE_RESOLVE;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  public void process(MessageContext context) throws CourierException {
+    String templatePath = (String) context.getParameter(PipelineMessageHandler.MAPPING_PARAM_TEMPLATE_PATH);
+    if ((templatePath != null) && (!templatePath.endsWith("/")))
+      templatePath += "/";
+    else if (templatePath == null)
+      templatePath = "/";
+
+    Class<?> templatePathClass = (Class<?>) context.getParameter(PipelineMessageHandler.MAPPING_PARAM_TEMPLATE_PATH_CLASS);
+    File templatePathFile = (File) context.getParameter(PipelineMessageHandler.MAPPING_PARAM_TEMPLATE_PATH_FILE);
+
+    String templateName = (String) context.getParameter(PipelineMessageHandler.MAPPING_PARAM_TEMPLATE_NAME);
+    TemplateTypeEnum templateType = (TemplateTypeEnum) context.getParameter(PipelineMessageHandler.MAPPING_PARAM_TEMPLATE_TYPE);
+    Locale locale = TemplateLocaleResolver.toLocale(context.getParameter(PipelineMessageHandler.MAPPING_PARAM_LOCALE));
+    context.setTemplateName(templateName);
+    context.setTemplateType(templateType);
+    context.setLocale(locale);
+
+    /*
+     * First set the path to load the template(s) from. In case a Directory was given as the base for template loading purposes use that
+     * instead. With a locale the path holds one directory per locale, and each template part is picked from the best matching one.
+     */
+    TemplateLocaleResolver.Resolution resolution = null;
+    try {
+      if (templatePathFile == null) {
+        Class<?> loaderClass = templatePathClass == null ? defaultLoaderClass : templatePathClass;
+        context.setTemplateConfiguration(templateEngine.getConfiguration(loaderClass, templatePath));
+        context.setTemplatePath(templatePath);
+        if (locale == null)
+          context.setTemplateIndexEntry(templateEngine.getTemplateIndex().lookup(loaderClass, templatePath));
+        else
+          resolution = templateEngine.getLocaleResolver().resolve(context.getTemplateConfiguration(), loaderClass, templatePath,
+              templateName, locale);
+      } else {
+        context.setTemplateConfiguration(templateEngine.getConfiguration(templatePathFile));
+        context.setTemplatePath(templatePathFile.getPath());
+        if (locale == null)
+          context.setTemplateIndexEntry(templateEngine.getTemplateIndex().lookup(templatePathFile));
+        else
+          resolution = templateEngine.getLocaleResolver().resolve(context.getTemplateConfiguration(), templatePathFile, templateName,
+              locale);
+      }
+    } catch (IOException ioe) {
+      throw new CourierException(ioe);
+    }
+
+    /*
+     * The headers are optional, the subject is not. Which versions of the body are needed depends on the template type.
+     */
+    addTemplatePart(context, resolution, TemplatePart.HEADERS, true);
+    addTemplatePart(context, resolution, TemplatePart.SUBJECT, false);
+    if ((templateType == TemplateTypeEnum.TEXT) || (templateType == TemplateTypeEnum.BOTH))
+      addTemplatePart(context, resolution, TemplatePart.BODY_TEXT, false);
+    if ((templateType == TemplateTypeEnum.HTML) || (templateType == TemplateTypeEnum.BOTH))
+      addTemplatePart(context, resolution, TemplatePart.BODY_HTML, false);
+    if (templateType == TemplateTypeEnum.ANY) {
+      addTemplatePart(context, resolution, TemplatePart.BODY_TEXT, true);
+      addTemplatePart(context, resolution, TemplatePart.BODY_HTML, true);
+    }
+  }
+
+  /**
+   * Adds a template part that is to be rendered, in the version the locale resolution picked, if any.
+   * 
+   * @param context The state of the message.
+   * @param resolution The resolved template parts or null, if the caller didn't ask for a locale.
+   * @param part The template part.
+   * @param optional If set to true then a missing template file is silently ignored.
+   * @throws CourierException Thrown if a non-optional template part doesn't exist for the locale, nor for any of its fallbacks.
+   */
+  private void addTemplatePart(MessageContext context, TemplateLocaleResolver.Resolution resolution, TemplatePart part, boolean optional)
+      throws CourierException {
+    if (resolution == null) {
+      context.addTemplatePart(part, part.getFilename(context.getTemplateName()), optional);
+      return;
+    }
+
+    String filename = resolution.getFilename(part);
+    if (filename != null)
+      context.addTemplatePart(part, filename, optional);
+    else if (!optional)
+      throw new CourierException("The template '" + part.getFilename(context.getTemplateName()) + "' couldn't be found for the locale '"
+          + resolution.getLocale() + "'. Are you sure it resides in one of the directories " + resolution.getCandidates() + " of '"
+          + context.getTemplatePath() + "'?");
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.exception.MissingParameterException;
+
+/**
+ * Checks if the obligatory parameters are there.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class ValidationStage implements MessageStage {
+  /**
+   * The obligatory mapping parameters define which parameters HAVE to be provided when calling the handler.
+   */
+  private final List<String> obligatoryMappingParameters;
+
+  /**
+   * Creates a new validation stage.
+   * 
+   * @param obligatoryMappingParameters The parameters that HAVE to be provided when calling the handler.
+   */
+  public ValidationStage(List<String> obligatoryMappingParameters) {
+    this.obligatoryMappingParameters = new ArrayList<String>(obligatoryMappingParameters);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#getName()
+   */
+  public String getName() {
+    return PipelineMessageHandler.STAGE_VALIDATE;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see de.jaide.courier.pipeline.MessageStage#process(de.jaide.courier.pipeline.MessageContext)
+   */
+  public void process(MessageContext context) throws CourierException {
+    Map<String, Object> parameters = context.getParameters();
+    for (String key : obligatoryMappingParameters)
+      if (!parameters.containsKey(key))
+        throw new CourierException(new MissingParameterException("The parameter '" + key + "' was expected but couldn't be found."));
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.benchmark.FakeSmtpServer;
+import de.jaide.courier.email.AddressNormalizer;
+import de.jaide.courier.email.AddressValidationStage;
+import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationSource;
+import de.jaide.courier.email.SuppressionList;
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.exception.InvalidRecipientException;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+
+/**
+ * Tests the address validation: normal forms of valid addresses, rejection of malformed ones, the suppression list and the stage
+ * rejecting e-mails before they are rendered.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestAddressValidation {
+  private static final String[][] VALID = { { "peter.miller@some-domain.tld", "peter.miller@some-domain.tld" },
+      { "  Peter.Miller@Some-Domain.TLD\t", "Peter.Miller@some-domain.tld" },
+      { "p+news/x=1@mail.some-domain.tld", "p+news/x=1@mail.some-domain.tld" },
+      { "!#$%&'*+-/=?^_`{|}~@some-domain.tld", "!#$%&'*+-/=?^_`{|}~@some-domain.tld" },
+      { "\"peter miller\"@some-domain.tld", "\"peter miller\"@some-domain.tld" },
+      { "\"peter@\\\"home\\\"\"@some-domain.tld", "\"peter@\\\"home\\\"\"@some-domain.tld" },
+      { "jorg@B\u00fccher.DE", "jorg@xn--bcher-kva.de" }, { "peter@[192.168.0.1]", "peter@[192.168.0.1]" },
+      { "peter@123.some-domain.tld", "peter@123.some-domain.tld" } };
+
+  private static final String[] INVALID = { null, "", "peter.miller", "@some-domain.tld", "peter@", ".peter@some-domain.tld",
+      "peter.@some-domain.tld", "peter..miller@some-domain.tld", "peter miller@some-domain.tld", "peter(miller)@some-domain.tld",
+      "j\u00f6rg@some-domain.tld", "\"peter@some-domain.tld", "\"pe\"ter\"@some-domain.tld", "peter@localhost", "peter@some-domain.tld.",
+      "peter@some_domain.tld", "peter@-some-domain.tld", "peter@some-domain-.tld", "peter@some..domain.tld", "peter@192.168.0.1",
+      "peter@[192.168.0.256]", "peter@[192.168.0]", "peter@" + repeat("a", 64) + ".tld", repeat("p", 65) + "@some-domain.tld",
+      repeat("p", 64) + "@" + repeat(repeat("d", 60) + ".", 3) + "some-domain.tld" };
+
+  /**
+   * Valid addresses are brought into their normal form, malformed ones are rejected.
+   */
+  @Test
+  public void testNormalize() {
+    AddressNormalizer normalizer = new AddressNormalizer();
+    for (String[] address : VALID)
+      Assert.assertEquals(normalizer.normalize(address[0]), address[1], address[0]);
+
+    for (String address : INVALID) {
+      try {
+        normalizer.normalize(address);
+        Assert.fail("Accepted " + address);
+      } catch (InvalidRecipientException ire) {
+        Assert.assertEquals(ire.getRecipient(), address);
+        Assert.assertFalse(ire.isSuppressed());
+      }
+    }
+
+    /*
+     * Addresses in normal form are returned as they are, and the verdict about each domain is cached.
+     */
+    String address = "peter@some-domain.tld";
+    Assert.assertSame(normalizer.normalize(address), address);
+
+    final int[] verified = new int[1];
+    normalizer = new AddressNormalizer(2) {
+      @Override
+      protected boolean verifyDomain(String domain) {
+        verified[0]++;
+        return !domain.equals("bounce.tld");
+      }
+    };
+    for (int i = 0; i < 10; i++)
+      normalizer.normalize("peter" + i + "@Some-Domain.tld");
+    Assert.assertEquals(verified[0], 1);
+    try {
+      normalizer.normalize("peter@bounce.tld");
+      Assert.fail("Accepted an unverified domain");
+    } catch (InvalidRecipientException ire) {
+      Assert.assertTrue(ire.getMessage().contains("bounce.tld"), ire.getMessage());
+    }
+    normalizer.normalize("peter@other-domain.tld");
+    Assert.assertTrue(normalizer.getCachedDomains() <= 2, "Cached " + normalizer.getCachedDomains());
+  }
+
+  /**
+   * The suppression list finds the addresses added, ignoring case, also after growing, and no others.
+   */
+  @Test
+  public void testSuppressionList() {
+    SuppressionList suppressionList = new SuppressionList();
+    for (int i = 0; i < 100000; i++)
+      Assert.assertTrue(suppressionList.add("member" + i + "@some-domain.tld"));
+    Assert.assertFalse(suppressionList.add("Member42@Some-Domain.tld"));
+    Assert.assertEquals(suppressionList.size(), 100000);
+
+    for (int i = 0; i < 100000; i++) {
+      Assert.assertTrue(suppressionList.contains("member" + i + "@some-domain.tld"));
+      Assert.assertFalse(suppressionList.contains("member" + i + "@other-domain.tld"));
+    }
+    Assert.assertTrue(suppressionList.contains("MEMBER99999@SOME-DOMAIN.TLD"));
+  }
+
+  /**
+   * The stage rejects malformed and suppressed recipients before rendering and without connecting to the server, and valid recipients
+   * are sent to in their normal form.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testValidationStage() throws Exception {
+    FakeSmtpServer server = new FakeSmtpServer();
+    try {
+      MessageHandlerEMail handler = createHandler(server);
+      AddressValidationStage stage = handler.enableAddressValidation();
+      Assert.assertEquals(stage.loadSuppressionList(new StringReader("# bounced\nSarah@Some-Domain.TLD\n\nno address\n")), 1);
+
+      try {
+        handler.process(createParameters("peter.miller@some-domain"));
+        Assert.fail("Sent to a malformed address");
+      } catch (InvalidRecipientException ire) {
+        Assert.assertFalse(ire.isSuppressed());
+      }
+      try {
+        handler.process(createParameters("sarah@some-domain.tld"));
+        Assert.fail("Sent to a suppressed address");
+      } catch (InvalidRecipientException ire) {
+        Assert.assertTrue(ire.isSuppressed());
+      }
+      Assert.assertEquals(stage.getInvalid(), 1);
+      Assert.assertEquals(stage.getSuppressed(), 1);
+      Assert.assertNull(handler.getMetrics().getStageMetrics(PipelineMessageHandler.STAGE_RENDER), "Rendered");
+      Assert.assertEquals(server.getMessages(), 0);
+
+      handler.process(createParameters(" Peter.Miller@Some-Domain.TLD"));
+      Assert.assertEquals(server.getMessages(), 1);
+      Assert.assertTrue(server.getLastMessage().contains("Peter.Miller@some-domain.tld"), server.getLastMessage());
+    } finally {
+      server.stop();
+    }
+  }
+
+  private MessageHandlerEMail createHandler(FakeSmtpServer server) {
+    final SmtpConfiguration smtpConfiguration = new SmtpConfiguration("fake", "127.0.0.1", server.getPort(), false, false, null, null,
+        "courier@some-domain.tld", "Courier");
+    return new MessageHandlerEMail(new SmtpConfigurationSource() {
+      public SmtpConfiguration getSmtpConfiguration(String configurationName) {
+        return smtpConfiguration;
+      }
+    });
+  }
+
+  private Map<String, Object> createParameters(String recipient) {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_CONFIGURATION_NAME, "fake");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH, "/email_templates/en/");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_NAME, "signup");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.HTML);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME, "Peter");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_LASTNAME, "Miller");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL, recipient);
+    mappedParameters.put("link", "http://www.jaide.de/projects/notify/confirm?id=123");
+    return mappedParameters;
+  }
+
+  private static String repeat(String text, int times) {
+    StringBuilder repeated = new StringBuilder();
+    for (int i = 0; i < times; i++)
+      repeated.append(text);
+    return repeated.toString();
+  }
+}
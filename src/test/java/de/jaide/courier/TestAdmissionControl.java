@@ -0,0 +1,247 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.delivery.DeliveryEvent;
+import de.jaide.courier.email.MimeAssemblyStage;
+import de.jaide.courier.email.SmtpAdmissionControlStage;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.exception.AdmissionRejectedException;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.exception.InvalidRecipientException;
+import de.jaide.courier.exception.MessageCancelledException;
+import de.jaide.courier.exception.MessageTimeoutException;
+import de.jaide.courier.pipeline.ConcurrencyLimiter;
+import de.jaide.courier.pipeline.ConcurrencyLimitingStage;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageStage;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+
+/**
+ * Tests the adaptive concurrency limit in front of the transport stage.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestAdmissionControl {
+
+  /**
+   * Messages beyond the limit are rejected right away, and admitted again once the others are through.
+   * 
+   * @throws InterruptedException
+   */
+  @Test
+  public void testRejectsBeyondLimit() throws InterruptedException {
+    BlockingStage transport = new BlockingStage(2);
+    ConcurrencyLimitingStage stage = new ConcurrencyLimitingStage(transport, 2, 1, 10);
+    Assert.assertEquals(stage.getName(), PipelineMessageHandler.STAGE_TRANSPORT);
+
+    Thread first = send(stage, new MessageContext(new HashMap<String, Object>()));
+    Thread second = send(stage, new MessageContext(new HashMap<String, Object>()));
+    Assert.assertTrue(transport.entered.await(5, TimeUnit.SECONDS));
+
+    try {
+      stage.process(new MessageContext(new HashMap<String, Object>()));
+      Assert.fail("The third message must be rejected");
+    } catch (AdmissionRejectedException are) {
+      Assert.assertEquals(are.getLimit(), 2);
+      Assert.assertEquals(are.getLimiterName(), PipelineMessageHandler.STAGE_TRANSPORT);
+    }
+
+    transport.release.countDown();
+    first.join();
+    second.join();
+    ConcurrencyLimiter limiter = stage.getLimiter(PipelineMessageHandler.STAGE_TRANSPORT);
+    Assert.assertEquals(limiter.getInFlight(), 0);
+    Assert.assertEquals(limiter.getRejected(), 1);
+    stage.process(new MessageContext(new HashMap<String, Object>()));
+  }
+
+  /**
+   * The limit grows while the destination answers fast and is used, and shrinks when answers slow down or fail, at most once per baseline
+   * latency. The calls are timed explicitly, so the outcome doesn't depend on the scheduler.
+   */
+  @Test
+  public void testLimitAdapts() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 4, 2, 8);
+    long baseline = TimeUnit.MILLISECONDS.toNanos(10);
+    long now = System.nanoTime();
+
+    for (int round = 0; round < 20; round++) {
+      int limit = limiter.getLimit();
+      for (int i = 0; i < limit; i++)
+        Assert.assertTrue(limiter.tryAcquire() != -1L);
+      Assert.assertEquals(limiter.tryAcquire(), -1L);
+      now += baseline;
+      for (int i = 0; i < limit; i++)
+        limiter.onSuccess(now - baseline, now);
+    }
+    Assert.assertEquals(limiter.getLimit(), 8);
+    Assert.assertEquals(limiter.getBaselineNanos(), baseline);
+
+    for (int i = 0; i < 3; i++) {
+      limiter.tryAcquire();
+      limiter.onFailure(now - baseline, now + i);
+    }
+    Assert.assertEquals(limiter.getLimit(), 7, "Failures within one baseline latency shrink the limit once");
+
+    for (int i = 0; i < 5; i++) {
+      now += 2 * baseline;
+      limiter.tryAcquire();
+      limiter.onSuccess(now - 10 * baseline, now);
+    }
+    Assert.assertTrue(limiter.getLimit() < 7, "Limit is " + limiter.getLimit());
+
+    for (int i = 0; i < 20; i++) {
+      now += 2 * baseline;
+      limiter.tryAcquire();
+      limiter.onFailure(now - baseline, now);
+    }
+    Assert.assertEquals(limiter.getLimit(), 2);
+
+    limiter.release(limiter.tryAcquire());
+    Assert.assertEquals(limiter.getLimit(), 2);
+    Assert.assertEquals(limiter.getInFlight(), 0);
+  }
+
+  /**
+   * Timeouts, I/O errors and 4xx replies shrink the limit, while permanent failures only give back the message's slot.
+   */
+  @Test
+  public void testOnlyOverloadShrinksLimit() {
+    assertShrinksLimit(new MessageTimeoutException(PipelineMessageHandler.STAGE_TRANSPORT, 1000, null), null, true);
+    assertShrinksLimit(new CourierException(new ConnectException("Connection refused")), null, true);
+    assertShrinksLimit(new CourierException("Sending the email failed"), "421 4.7.0 Try again later", true);
+    assertShrinksLimit(new CourierException(new IOException("User unknown")), "550 5.1.1 User unknown", false);
+    assertShrinksLimit(new InvalidRecipientException("peter", "The '@' is missing.", false), null, false);
+    assertShrinksLimit(new MessageCancelledException(PipelineMessageHandler.STAGE_TRANSPORT), null, false);
+    assertShrinksLimit(new CourierException("Unknown template"), null, false);
+  }
+
+  /**
+   * A busy SMTP configuration doesn't keep messages from being sent using another one.
+   * 
+   * @throws InterruptedException
+   */
+  @Test
+  public void testSmtpConfigurationsLimitedIndependently() throws InterruptedException {
+    BlockingStage transport = new BlockingStage(1);
+    SmtpAdmissionControlStage stage = new SmtpAdmissionControlStage(transport, 1, 10);
+
+    Thread busy = send(stage, createContext("busy"));
+    Assert.assertTrue(transport.entered.await(5, TimeUnit.SECONDS));
+    try {
+      stage.process(createContext("busy"));
+      Assert.fail("The second message to the busy server must be rejected");
+    } catch (AdmissionRejectedException are) {
+      Assert.assertEquals(are.getLimiterName(), "busy");
+    }
+
+    transport.release.countDown();
+    stage.process(createContext("idle"));
+    busy.join();
+    Assert.assertEquals(stage.getLimiter("idle").getRejected(), 0);
+    Assert.assertEquals(stage.getLimiter("busy").getRejected(), 1);
+  }
+
+  private void assertShrinksLimit(RuntimeException failure, String serverReply, boolean shrinks) {
+    SmtpAdmissionControlStage stage = new SmtpAdmissionControlStage(new FailingStage(failure, serverReply), 10, 10);
+    try {
+      stage.process(createContext("test"));
+      Assert.fail("The message must fail");
+    } catch (RuntimeException re) {
+      Assert.assertSame(re, failure);
+    }
+
+    ConcurrencyLimiter limiter = stage.getLimiter("test");
+    Assert.assertEquals(limiter.getInFlight(), 0);
+    Assert.assertEquals(limiter.getLimit(), shrinks ? 9 : 10, failure.toString());
+  }
+
+  private MessageContext createContext(String configurationName) {
+    MessageContext context = new MessageContext(new HashMap<String, Object>());
+    context.setAttribute(MimeAssemblyStage.ATTRIBUTE_SMTP_CONFIGURATION, new SmtpConfiguration(configurationName, "localhost", 25, false,
+        false, null, null, "courier@some-domain.tld", "Courier"));
+    return context;
+  }
+
+  private Thread send(final MessageStage stage, final MessageContext context) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        stage.process(context);
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * A transport stage that holds the messages until it's released.
+   */
+  private static class BlockingStage implements MessageStage {
+    private final CountDownLatch entered;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    BlockingStage(int expected) {
+      entered = new CountDownLatch(expected);
+    }
+
+    public String getName() {
+      return PipelineMessageHandler.STAGE_TRANSPORT;
+    }
+
+    public void process(MessageContext context) throws CourierException {
+      entered.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException ie) {
+        throw new CourierException(ie);
+      }
+    }
+  }
+
+  /**
+   * A transport stage that fails every message, after recording the given server reply.
+   */
+  private static class FailingStage implements MessageStage {
+    private final RuntimeException failure;
+    private final String serverReply;
+
+    FailingStage(RuntimeException failure, String serverReply) {
+      this.failure = failure;
+      this.serverReply = serverReply;
+    }
+
+    public String getName() {
+      return PipelineMessageHandler.STAGE_TRANSPORT;
+    }
+
+    public void process(MessageContext context) throws CourierException {
+      if (serverReply != null)
+        context.setAttribute(DeliveryEvent.ATTRIBUTE_SERVER_REPLY, serverReply);
+      throw failure;
+    }
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.bulk.BulkResult;
+import de.jaide.courier.bulk.BulkSendListener;
+import de.jaide.courier.bulk.BulkSender;
+import de.jaide.courier.bulk.CsvRecipientReader;
+import de.jaide.courier.bulk.JsonLinesRecipientReader;
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.file.MessageHandlerFile;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageStage;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+
+/**
+ * Tests sending to streamed recipient lists.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestBulkSender {
+  private File directory;
+
+  @BeforeClass
+  public void init() {
+    directory = new File("target/test-bulk-" + System.currentTimeMillis());
+  }
+
+  @AfterClass
+  public void cleanup() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  /**
+   * Quoted values may contain separators, quotes and line breaks; empty lines are skipped.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testCsvRecipientReader() throws IOException {
+    CsvRecipientReader reader = new CsvRecipientReader(new StringReader("recipient,memberFirstname,memberCompany\r\n"
+        + "peter@some-domain.tld,Peter,\"JAIDE, GmbH\"\r\n" + "\n" + "sarah@some-domain.tld,\"Sarah \"\"Sally\"\"\",\"Line\nbreak\"\n"
+        + "short@some-domain.tld"));
+
+    Map<String, Object> recipient = reader.next();
+    Assert.assertEquals(Arrays.asList(reader.getColumns()), Arrays.asList("recipient", "memberFirstname", "memberCompany"));
+    Assert.assertEquals(recipient.get("memberCompany"), "JAIDE, GmbH");
+    Assert.assertEquals(reader.getRow(), 1);
+
+    recipient = reader.next();
+    Assert.assertEquals(recipient.get("memberFirstname"), "Sarah \"Sally\"");
+    Assert.assertEquals(recipient.get("memberCompany"), "Line\nbreak");
+
+    recipient = reader.next();
+    Assert.assertEquals(recipient.get("recipient"), "short@some-domain.tld");
+    Assert.assertEquals(recipient.get("memberCompany"), "");
+    Assert.assertEquals(reader.getRow(), 3);
+    Assert.assertNull(reader.next());
+
+    try {
+      new CsvRecipientReader(new StringReader("a,b\n\"unterminated,b\n")).next();
+      Assert.fail("Unterminated quotes must be reported");
+    } catch (IOException ioe) {
+      Assert.assertTrue(ioe.getMessage().contains("line 2"), ioe.getMessage());
+    }
+  }
+
+  /**
+   * Each line is an object, whose values keep their JSON types.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testJsonLinesRecipientReader() throws IOException {
+    JsonLinesRecipientReader reader = new JsonLinesRecipientReader(new StringReader(
+        "{\"recipient\": \"peter@some-domain.tld\", \"orders\": [1, 2.5], \"vip\": true, \"address\": {\"city\": \"Berlin\"}}\n" + "\n"
+            + "{\"recipient\": \"sarah@some-domain.tld\", \"nickname\": null}\n"));
+
+    Map<String, Object> recipient = reader.next();
+    Assert.assertEquals(recipient.get("recipient"), "peter@some-domain.tld");
+    Assert.assertEquals(recipient.get("orders"), Arrays.asList(new Object[] { 1L, 2.5 }));
+    Assert.assertEquals(recipient.get("vip"), Boolean.TRUE);
+    Assert.assertEquals(((Map<?, ?>) recipient.get("address")).get("city"), "Berlin");
+
+    recipient = reader.next();
+    Assert.assertTrue(recipient.containsKey("nickname"));
+    Assert.assertNull(recipient.get("nickname"));
+    Assert.assertEquals(reader.getRow(), 2);
+    Assert.assertNull(reader.next());
+
+    try {
+      new JsonLinesRecipientReader(new StringReader("[1, 2]\n")).next();
+      Assert.fail("Arrays aren't recipients");
+    } catch (IOException ioe) {
+      Assert.assertTrue(ioe.getMessage().contains("line 1"), ioe.getMessage());
+    }
+  }
+
+  /**
+   * Recipients are read no faster than their messages are sent, so no more than the window is ever held in memory.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testReadsNoFurtherAheadThanTheWindow() throws Exception {
+    final int recipients = 5000;
+    final GeneratingReader input = new GeneratingReader(recipients);
+    final AtomicInteger processed = new AtomicInteger();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maximumInFlight = new AtomicInteger();
+    final AtomicLong maximumLead = new AtomicLong();
+
+    MessageHandlerFile handler = new MessageHandlerFile(new File(directory, "outbox"));
+    handler.replaceStage(PipelineMessageHandler.STAGE_TRANSPORT, new MessageStage() {
+      public String getName() {
+        return PipelineMessageHandler.STAGE_TRANSPORT;
+      }
+
+      public void process(MessageContext context) throws CourierException {
+        int current = inFlight.incrementAndGet();
+        update(maximumInFlight, current);
+        update(maximumLead, input.getRows() - processed.get());
+        Thread.yield();
+        processed.incrementAndGet();
+        inFlight.decrementAndGet();
+      }
+    });
+
+    BulkSender sender = new BulkSender(handler, 4, 16);
+    BulkResult result = sender.send(new CsvRecipientReader(input), createDefaults("contact_accept"));
+    Assert.assertEquals(result.getRead(), recipients);
+    Assert.assertEquals(result.getSent(), recipients);
+    Assert.assertEquals(result.getFailed(), 0);
+    Assert.assertTrue(maximumInFlight.get() <= 4, "In flight: " + maximumInFlight);
+
+    /*
+     * The reader reads ahead a block of up to 8192 characters, 32 characters per row at most.
+     */
+    Assert.assertTrue(maximumLead.get() <= 16 + 8192 / 32 + 1, "Read ahead: " + maximumLead);
+  }
+
+  /**
+   * Failed messages don't stop the bulk send, they're reported with their row.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testFailuresAreReported() throws Exception {
+    MessageHandlerFile handler = new MessageHandlerFile(new File(directory, "outbox"));
+    final List<Long> failedRows = new CopyOnWriteArrayList<Long>();
+    final Map<Long, String> sentFilenames = new ConcurrentHashMap<Long, String>();
+
+    BulkSender sender = new BulkSender(handler, 2);
+    sender.setListener(new BulkSendListener() {
+      public void onSent(long row, MessageContext context) {
+        sentFilenames.put(row, (String) context.getParameter(MessageHandlerFile.MAPPING_PARAM_RECIPIENT));
+      }
+
+      public void onFailed(long row, Map<String, Object> recipient, CourierException exception) {
+        failedRows.add(row);
+      }
+    });
+
+    String recipients = "{\"recipient\": \"peter@some-domain.tld\", \"memberFirstname\": \"Peter\"}\n"
+        + "{\"recipient\": \"broken@some-domain.tld\", \"templateName\": \"does_not_exist\"}\n"
+        + "{\"recipient\": \"sarah@some-domain.tld\", \"memberFirstname\": \"Sarah\"}\n";
+    BulkResult result = sender.send(new JsonLinesRecipientReader(new StringReader(recipients)), createDefaults("contact_accept"));
+    Assert.assertEquals(result.getSent(), 2);
+    Assert.assertEquals(result.getFailed(), 1);
+    Assert.assertEquals(failedRows, Arrays.asList(2L));
+    Assert.assertEquals(sentFilenames.get(3L), "sarah@some-domain.tld");
+  }
+
+  private Map<String, Object> createDefaults(String templateName) {
+    Map<String, Object> defaults = new HashMap<String, Object>();
+    defaults.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH, "/email_templates/en/");
+    defaults.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    defaults.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_NAME, templateName);
+    defaults.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.TEXT);
+    defaults.put("recipientFirstname", "Peter");
+    defaults.put("memberLastname", "Smith");
+    defaults.put("memberTitle", "Developer");
+    defaults.put("memberCompany", "JAIDE GmbH");
+    defaults.put("memberProfileLink", "http://www.salambc.com/members?id=12345");
+    defaults.put("memberCompanyLink", "http://www.salambc.com/companies?id=4711");
+    defaults.put("recipientProfileLink", "http://www.salambc.com/companies?id=54321");
+    defaults.put("unsubscribeLink", "http://www.salambc.com/preferences/notifications/unsubscribe?id=54321");
+    return defaults;
+  }
+
+  private static void update(AtomicInteger maximum, int value) {
+    int current;
+    while (value > (current = maximum.get()))
+      if (maximum.compareAndSet(current, value))
+        return;
+  }
+
+  private static void update(AtomicLong maximum, long value) {
+    long current;
+    while (value > (current = maximum.get()))
+      if (maximum.compareAndSet(current, value))
+        return;
+  }
+
+  /**
+   * Generates the CSV rows as they are read, so they are never all in memory.
+   */
+  private static class GeneratingReader extends Reader {
+    private final int rows;
+    private volatile int row = -1;
+    private String current = "recipient,memberFirstname\n";
+    private int position;
+
+    GeneratingReader(int rows) {
+      this.rows = rows;
+    }
+
+    int getRows() {
+      return Math.max(0, row);
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+      int count = 0;
+      while (count < length) {
+        if (position == current.length()) {
+          if (row + 1 >= rows)
+            break;
+          row++;
+          current = "member" + row + "@some-domain.tld,Member " + row + "\n";
+          position = 0;
+        }
+        int chunk = Math.min(length - count, current.length() - position);
+        current.getChars(position, position + chunk, buffer, offset + count);
+        position += chunk;
+        count += chunk;
+      }
+      return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
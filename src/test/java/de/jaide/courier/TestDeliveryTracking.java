@@ -0,0 +1,224 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.benchmark.FakeSmtpServer;
+import de.jaide.courier.delivery.DeliveryEvent;
+import de.jaide.courier.delivery.DeliveryEventIndex;
+import de.jaide.courier.delivery.DeliveryEventSink;
+import de.jaide.courier.delivery.DeliveryStatus;
+import de.jaide.courier.delivery.DeliveryTracker;
+import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationSource;
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.file.MessageHandlerFile;
+
+/**
+ * Tests the delivery events: the index and its queries, the sinks, and the server replies recorded by the SMTP transport.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestDeliveryTracking {
+  private File directory;
+
+  @BeforeClass
+  public void init() {
+    directory = new File("target/test-delivery-" + System.currentTimeMillis());
+  }
+
+  @AfterClass
+  public void cleanup() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  /**
+   * Events are found by recipient, template, status and time range, newest first, and the oldest ones are dropped once the index is
+   * full.
+   */
+  @Test
+  public void testIndex() {
+    DeliveryEventIndex index = new DeliveryEventIndex(1000);
+    Assert.assertEquals(index.getCapacity(), 4 * DeliveryEventIndex.BUCKET_SIZE);
+
+    for (int i = 0; i < 2000; i++) {
+      DeliveryStatus status = i % 10 == 0 ? DeliveryStatus.FAILED : DeliveryStatus.ACCEPTED;
+      index.add(new DeliveryEvent(i, status, "member" + (i % 50) + "@some-domain.tld", i % 2 == 0 ? "signup" : "contact_accept", null,
+          null, null, null, 0, 0));
+    }
+
+    Assert.assertEquals(index.getAdded(), 2000);
+    Assert.assertEquals(index.getCount(DeliveryStatus.FAILED), 200);
+    Assert.assertTrue(index.size() > index.getCapacity() - DeliveryEventIndex.BUCKET_SIZE);
+    Assert.assertTrue(index.size() <= index.getCapacity());
+
+    List<DeliveryEvent> events = index.findByRecipient("MEMBER7@some-domain.tld", 0, Long.MAX_VALUE);
+    Assert.assertFalse(events.isEmpty());
+    Assert.assertEquals(events.get(0).getTimestamp(), 1957);
+    for (int i = 0; i < events.size(); i++) {
+      Assert.assertEquals(events.get(i).getTimestamp() % 50, 7);
+      if (i > 0)
+        Assert.assertTrue(events.get(i).getTimestamp() < events.get(i - 1).getTimestamp(), "Newest first");
+    }
+
+    Assert.assertEquals(index.findByTemplate("signup", 1900, 1999).size(), 50);
+    Assert.assertEquals(index.findByTemplate("signup", 0, 999).size(), 0, "Dropped long ago");
+    Assert.assertEquals(index.find(null, "signup", DeliveryStatus.FAILED, 1900, 1999, 100).size(), 10);
+    Assert.assertEquals(index.find(null, null, null, 0, Long.MAX_VALUE, 5).size(), 5);
+    Assert.assertTrue(index.findByRecipient("nobody@some-domain.tld", 0, Long.MAX_VALUE).isEmpty());
+  }
+
+  /**
+   * Accepted and failed messages are recorded with their recipient and template, and handed to the sinks.
+   * 
+   * @throws InterruptedException
+   */
+  @Test
+  public void testFileHandler() throws InterruptedException {
+    MessageHandlerFile handler = new MessageHandlerFile(new File(directory, "outbox"));
+    DeliveryTracker tracker = handler.enableDeliveryTracking(1000);
+    final CountDownLatch received = new CountDownLatch(2);
+    tracker.addSink(new DeliveryEventSink() {
+      public void onEvent(DeliveryEvent event) {
+        received.countDown();
+      }
+    });
+
+    handler.process(createFileParameters("contact_accept"));
+    try {
+      handler.process(createFileParameters("no_such_template"));
+      Assert.fail("The template doesn't exist");
+    } catch (CourierException ce) {
+      // Expected.
+    }
+
+    List<DeliveryEvent> events = tracker.getIndex().findByRecipient("peter@some-domain.tld", 0, Long.MAX_VALUE);
+    Assert.assertEquals(events.size(), 2);
+    Assert.assertEquals(events.get(0).getStatus(), DeliveryStatus.FAILED);
+    Assert.assertEquals(events.get(0).getTemplateName(), "no_such_template");
+    Assert.assertNotNull(events.get(0).getError());
+    Assert.assertEquals(events.get(1).getStatus(), DeliveryStatus.ACCEPTED);
+    Assert.assertEquals(events.get(1).getTemplateName(), "contact_accept");
+    Assert.assertTrue(events.get(1).getElapsedNanos() >= events.get(1).getTransportNanos());
+    Assert.assertTrue(events.get(1).getTransportNanos() > 0);
+
+    Assert.assertTrue(received.await(5, TimeUnit.SECONDS), "The sink didn't get the events");
+    Assert.assertEquals(tracker.getDroppedEvents(), 0);
+  }
+
+  /**
+   * The SMTP server's reply decides between accepted, deferred and failed, and the queue ID it mentions is recorded.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testSmtpReplies() throws IOException {
+    FakeSmtpServer server = new FakeSmtpServer();
+    try {
+      final SmtpConfiguration smtpConfiguration = new SmtpConfiguration("fake", "127.0.0.1", server.getPort(), false, false, null, null,
+          "courier@some-domain.tld", "Courier");
+      MessageHandlerEMail handler = new MessageHandlerEMail(new SmtpConfigurationSource() {
+        public SmtpConfiguration getSmtpConfiguration(String configurationName) {
+          return smtpConfiguration;
+        }
+      });
+      DeliveryTracker tracker = handler.enableDeliveryTracking(1000);
+
+      server.setDataReply("250 2.0.0 Ok: queued as 4F1A2B3C");
+      handler.process(createEMailParameters());
+      DeliveryEvent accepted = tracker.getIndex().find(null, null, DeliveryStatus.ACCEPTED, 0, Long.MAX_VALUE, 1).get(0);
+      Assert.assertEquals(accepted.getQueueId(), "4F1A2B3C");
+      Assert.assertEquals(accepted.getServerReply(), "250 2.0.0 Ok: queued as 4F1A2B3C");
+      Assert.assertEquals(accepted.getRecipient(), "peter@some-domain.tld");
+      Assert.assertNotNull(accepted.getMessageId());
+
+      server.setDataReply("451 4.3.0 Try again later");
+      sendFailing(handler);
+      DeliveryEvent deferred = tracker.getIndex().find(null, null, DeliveryStatus.DEFERRED, 0, Long.MAX_VALUE, 1).get(0);
+      Assert.assertEquals(deferred.getServerReply(), "451 4.3.0 Try again later");
+      Assert.assertNull(deferred.getQueueId());
+
+      server.setDataReply("554 5.7.1 Rejected");
+      sendFailing(handler);
+      DeliveryEvent failed = tracker.getIndex().find(null, null, DeliveryStatus.FAILED, 0, Long.MAX_VALUE, 1).get(0);
+      Assert.assertEquals(failed.getServerReply(), "554 5.7.1 Rejected");
+      Assert.assertEquals(server.getMessages(), 1);
+    } finally {
+      server.stop();
+    }
+  }
+
+  private void sendFailing(MessageHandlerEMail handler) {
+    try {
+      handler.process(createEMailParameters());
+      Assert.fail("The server didn't accept the message");
+    } catch (CourierException ce) {
+      // Expected.
+    }
+  }
+
+  private Map<String, Object> createFileParameters(String templateName) {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH, "/email_templates/en/");
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_NAME, templateName);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.BOTH);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_RECIPIENT, "peter@some-domain.tld");
+    addTemplateParameters(mappedParameters);
+    return mappedParameters;
+  }
+
+  private Map<String, Object> createEMailParameters() {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_CONFIGURATION_NAME, "fake");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH, "/email_templates/en/");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_NAME, "contact_accept");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.BOTH);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME, "Peter");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_LASTNAME, "Miller");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL, "peter@some-domain.tld");
+    addTemplateParameters(mappedParameters);
+    return mappedParameters;
+  }
+
+  private void addTemplateParameters(Map<String, Object> mappedParameters) {
+    mappedParameters.put("recipientFirstname", "Peter");
+    mappedParameters.put("memberFirstname", "Sarah");
+    mappedParameters.put("memberLastname", "Smith");
+    mappedParameters.put("memberTitle", "Developer");
+    mappedParameters.put("memberCompany", "JAIDE GmbH");
+    mappedParameters.put("memberProfileLink", "http://www.salambc.com/members?id=12345");
+    mappedParameters.put("memberCompanyLink", "http://www.salambc.com/companies?id=4711");
+    mappedParameters.put("recipientProfileLink", "http://www.salambc.com/companies?id=54321");
+    mappedParameters.put("unsubscribeLink", "http://www.salambc.com/preferences/notifications/unsubscribe?id=54321");
+  }
+}
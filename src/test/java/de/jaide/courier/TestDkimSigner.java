@@ -0,0 +1,231 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeUtility;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.email.CourierMimeMessage;
+import de.jaide.courier.email.dkim.DkimSigner;
+import de.jaide.courier.email.dkim.RelaxedBodyHashOutputStream;
+
+/**
+ * Tests the DKIM canonicalization and signing.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestDkimSigner {
+
+  /**
+   * The relaxed body canonicalization, checked against the examples of RFC 6376, section 3.4.5, and the empty body.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testRelaxedBodyCanonicalization() throws Exception {
+    Assert.assertEquals(bodyHash(" C \r\nD \t E\r\n\r\n\r\n"), sha256(" C\r\nD E\r\n"));
+    Assert.assertEquals(bodyHash("\r\n\r\n"), sha256(""));
+    Assert.assertEquals(bodyHash("no line break"), sha256("no line break\r\n"));
+    Assert.assertEquals(bodyHash("\r\n \r\nA"), sha256("\r\n\r\nA\r\n"));
+  }
+
+  /**
+   * The headers are skipped, if asked to.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testHeadersSkipped() throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    RelaxedBodyHashOutputStream out = new RelaxedBodyHashOutputStream(digest, true);
+    out.write("Subject: Hello\r\nX-Folded: a\r\n b\r\n\r\nBody  text\r\n".getBytes("US-ASCII"));
+    Assert.assertEquals(out.digest(), sha256("Body text\r\n"));
+  }
+
+  /**
+   * The relaxed header canonicalization, checked against the examples of RFC 6376, section 3.4.5.
+   */
+  @Test
+  public void testRelaxedHeaderCanonicalization() {
+    Assert.assertEquals(DkimSigner.canonicalizeHeader("A", " X"), "a:X");
+    Assert.assertEquals(DkimSigner.canonicalizeHeader("B ", " Y\t\r\n\tZ  "), "b:Y Z");
+  }
+
+  /**
+   * Signs a message and verifies body hash and signature, the way a receiving server would.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testSignAndVerify() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    KeyPair keyPair = generator.generateKeyPair();
+
+    CourierMimeMessage message = new CourierMimeMessage(Session.getInstance(new Properties()));
+    message.setFrom(new InternetAddress("sender@mydomain.com", "Peter Sendername"));
+    message.addRecipient(Message.RecipientType.TO, new InternetAddress("recipient@some-domain.tld"));
+    message.setSubject("Grüße aus Köln, a long subject line that will certainly have to be folded by JavaMail", "UTF-8");
+    message.setText("Hello  Peter,\r\n\r\nthis is the body.   \r\n\r\n\r\n", "UTF-8");
+    message.seal();
+
+    DkimSigner signer = new DkimSigner("mydomain.com", "courier", keyPair.getPrivate());
+    signer.sign(message);
+
+    /*
+     * Sending calls saveChanges() again, which must not change anything.
+     */
+    message.saveChanges();
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    message.writeTo(written);
+    String raw = written.toString("US-ASCII");
+
+    int bodyStart = raw.indexOf("\r\n\r\n") + 4;
+    String body = raw.substring(bodyStart);
+    String dkimHeader = message.getHeader(DkimSigner.HEADER_DKIM_SIGNATURE)[0];
+    Assert.assertEquals(tag(dkimHeader, "bh"), base64(sha256(referenceBodyCanonicalization(body))));
+
+    /*
+     * Recompute the signed data from the headers as written and verify it with the public key.
+     */
+    StringBuilder signedData = new StringBuilder();
+    for (String name : tag(dkimHeader, "h").split(":")) {
+      String value = message.getHeader(name)[0];
+      signedData.append(DkimSigner.canonicalizeHeader(name, value)).append("\r\n");
+    }
+    String withoutSignature = dkimHeader.substring(0, dkimHeader.lastIndexOf("b=") + 2);
+    signedData.append(DkimSigner.canonicalizeHeader(DkimSigner.HEADER_DKIM_SIGNATURE, withoutSignature));
+
+    Signature verifier = Signature.getInstance("SHA256withRSA");
+    verifier.initVerify(keyPair.getPublic());
+    verifier.update(signedData.toString().getBytes("UTF-8"));
+    Assert.assertTrue(verifier.verify(decodeBase64(tag(dkimHeader, "b"))));
+  }
+
+  /**
+   * Bodies of the same length but different content get their own body hashes, and the same body gets the same one.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testBodyHashCache() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    DkimSigner signer = new DkimSigner("mydomain.com", "courier", generator.generateKeyPair().getPrivate());
+
+    String[] bodies = { "Hello Peter,\r\n", "Hello Sarah,\r\n", "Hello Peter,\r\n" };
+    String[] bodyHashes = new String[bodies.length];
+    for (int i = 0; i < bodies.length; i++) {
+      CourierMimeMessage message = new CourierMimeMessage(Session.getInstance(new Properties()));
+      message.setFrom(new InternetAddress("sender@mydomain.com"));
+      message.setText(bodies[i], "UTF-8");
+      message.seal();
+      bodyHashes[i] = tag(signer.sign(message), "bh");
+      Assert.assertEquals(bodyHashes[i], base64(sha256(bodies[i])));
+    }
+    Assert.assertFalse(bodyHashes[0].equals(bodyHashes[1]));
+    Assert.assertEquals(bodyHashes[2], bodyHashes[0]);
+  }
+
+  /**
+   * A rotated key file is parsed again once it is invalidated or its modification time changed.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testKeyRotation() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    File keyFile = File.createTempFile("courier-dkim", ".der");
+    try {
+      FileUtils.writeByteArrayToFile(keyFile, generator.generateKeyPair().getPrivate().getEncoded());
+      PrivateKey first = DkimSigner.loadPrivateKey(keyFile);
+      Assert.assertSame(DkimSigner.loadPrivateKey(keyFile), first);
+
+      FileUtils.writeByteArrayToFile(keyFile, generator.generateKeyPair().getPrivate().getEncoded());
+      DkimSigner.invalidatePrivateKey(keyFile);
+      PrivateKey second = DkimSigner.loadPrivateKey(keyFile);
+      Assert.assertFalse(second.equals(first));
+
+      FileUtils.writeByteArrayToFile(keyFile, generator.generateKeyPair().getPrivate().getEncoded());
+      keyFile.setLastModified(keyFile.lastModified() + 10000);
+      Thread.sleep(1100);
+      Assert.assertFalse(DkimSigner.loadPrivateKey(keyFile).equals(second));
+    } finally {
+      DkimSigner.invalidatePrivateKey(keyFile);
+      FileUtils.deleteQuietly(keyFile);
+    }
+  }
+
+  private static byte[] bodyHash(String body) throws Exception {
+    RelaxedBodyHashOutputStream out = new RelaxedBodyHashOutputStream(MessageDigest.getInstance("SHA-256"), false);
+    byte[] bytes = body.getBytes("US-ASCII");
+    out.write(bytes, 0, bytes.length);
+    return out.digest();
+  }
+
+  private static byte[] sha256(String data) throws Exception {
+    return MessageDigest.getInstance("SHA-256").digest(data.getBytes("US-ASCII"));
+  }
+
+  /**
+   * A straightforward, non-streaming implementation of the relaxed body canonicalization.
+   */
+  private static String referenceBodyCanonicalization(String body) {
+    String canonicalized = body.replaceAll("[ \t]+\r\n", "\r\n").replaceAll("[ \t]+", " ").replaceAll("(\r\n)+$", "");
+    return canonicalized.length() == 0 ? "" : canonicalized + "\r\n";
+  }
+
+  private static String tag(String header, String name) {
+    Matcher matcher = Pattern.compile("(?:^|;)\\s*" + name + "=([^;]*)").matcher(header);
+    Assert.assertTrue(matcher.find(), "Tag " + name + " missing in " + header);
+    return matcher.group(1).replaceAll("\\s", "");
+  }
+
+  private static String base64(byte[] bytes) throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    OutputStream out = MimeUtility.encode(buffer, "base64");
+    out.write(bytes);
+    out.close();
+    return buffer.toString("US-ASCII").replaceAll("\\s", "");
+  }
+
+  private static byte[] decodeBase64(String data) throws Exception {
+    InputStream in = MimeUtility.decode(new ByteArrayInputStream(data.getBytes("US-ASCII")), "base64");
+    return IOUtils.toByteArray(in);
+  }
+}
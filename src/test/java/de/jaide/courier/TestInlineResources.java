@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.email.InlineResourceCache;
+import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationSource;
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+
+/**
+ * Tests embedding the images referenced by "cid:" in the HTML templates.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestInlineResources {
+  private File directory;
+
+  @BeforeClass
+  public void init() {
+    directory = new File("target/test-inline-resources-" + System.currentTimeMillis());
+  }
+
+  @AfterClass
+  public void cleanup() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  /**
+   * The logo is embedded once per e-mail, next to the HTML, and only read and encoded for the first e-mail.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testEmbedsReferencedImages() throws Exception {
+    MessageHandlerEMail handler = createHandler();
+
+    for (TemplateTypeEnum templateType : new TemplateTypeEnum[] { TemplateTypeEnum.BOTH, TemplateTypeEnum.HTML }) {
+      MimeMessage message = (MimeMessage) handler.process(createParameters("newsletter", templateType)).getEncodedMessage();
+      message.saveChanges();
+      Multipart related = findRelated((Multipart) message.getContent());
+      Assert.assertNotNull(related, "There is no multipart/related for " + templateType);
+      Assert.assertEquals(related.getCount(), 2);
+      Assert.assertTrue(related.getBodyPart(0).isMimeType("text/html"));
+      Assert.assertEquals(related.getBodyPart(1).getHeader("Content-ID")[0], "<logo.gif>");
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      message.writeTo(out);
+      String raw = out.toString("US-ASCII");
+      Assert.assertTrue(raw.contains("R0lGODlhAQABAIAAAP///wAAACH5BAEAAAAALAAAAAABAAEAAAICRAEAOw=="), raw);
+      Assert.assertTrue(raw.contains("Content-Type: image/gif"), raw);
+      Assert.assertTrue(raw.contains("Content-Transfer-Encoding: base64"), raw);
+    }
+
+    Assert.assertEquals(handler.getInlineResourceCache().getLoads(), 1);
+    Assert.assertEquals(handler.getInlineResourceCache().getHits(), 1);
+  }
+
+  /**
+   * Referring to an image that doesn't exist fails the message instead of sending a broken image.
+   */
+  @Test(expectedExceptions = CourierException.class)
+  public void testMissingImage() {
+    createHandler().process(createParameters("broken", TemplateTypeEnum.HTML));
+  }
+
+  /**
+   * References in the parameters are neither embedded nor fail the message, only those in the template are.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testIgnoresReferencesInParameters() throws Exception {
+    MessageHandlerEMail handler = createHandler();
+    Map<String, Object> mappedParameters = createParameters("newsletter", TemplateTypeEnum.HTML);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME,
+        "<img src=\"cid:../../../../etc/passwd\"/><img src=\"cid:unknown.png\"/>");
+
+    MimeMessage message = (MimeMessage) handler.process(mappedParameters).getEncodedMessage();
+    message.saveChanges();
+    Multipart related = findRelated((Multipart) message.getContent());
+    Assert.assertEquals(related.getCount(), 2);
+    Assert.assertEquals(related.getBodyPart(1).getHeader("Content-ID")[0], "<logo.gif>");
+  }
+
+  /**
+   * Names leading out of the template path are never looked up, and only a bounded number of missing locations is remembered.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testRejectsNamesOutsideOfTemplatePath() throws Exception {
+    File templates = new File(directory, "outside/templates");
+    FileUtils.writeStringToFile(new File(directory, "outside/secret.txt"), "secret", "UTF-8");
+    templates.mkdirs();
+
+    InlineResourceCache cache = new InlineResourceCache(10);
+    Assert.assertNull(cache.getResource(templates, "../secret.txt"));
+    Assert.assertNull(cache.getResource(templates, new File(directory, "outside/secret.txt").getAbsolutePath()));
+    Assert.assertNull(cache.getResource(getClass(), "/inline_templates/", "../testng.xml"));
+    Assert.assertEquals(cache.findReferences("<img src=\"cid:../secret.txt\"/><img src=\"cid:logo.gif\"/> cid:text.gif").size(), 1);
+
+    for (int i = 0; i < 100; i++)
+      Assert.assertNull(cache.getResource(templates, "missing-" + i + ".png"));
+    Assert.assertEquals(cache.size(), 10);
+    Assert.assertEquals(cache.getLoads(), 0);
+  }
+
+  /**
+   * Images next to templates in a directory are read again once they change.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testChangedImageInDirectory() throws Exception {
+    File templates = new File(directory, "templates");
+    FileUtils.copyDirectory(new File(getClass().getResource("/inline_templates/").toURI()), templates);
+    MessageHandlerEMail handler = createHandler();
+
+    Map<String, Object> mappedParameters = createParameters("newsletter", TemplateTypeEnum.HTML);
+    mappedParameters.remove(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_FILE, templates);
+    handler.process(mappedParameters);
+    handler.process(mappedParameters);
+    Assert.assertEquals(handler.getInlineResourceCache().getLoads(), 1);
+
+    File logo = new File(templates, "logo.gif");
+    FileUtils.writeByteArrayToFile(logo, new byte[] { 'G', 'I', 'F', '8', '9', 'a' });
+    logo.setLastModified(logo.lastModified() + 10000);
+    MimeMessage message = (MimeMessage) handler.process(mappedParameters).getEncodedMessage();
+    Assert.assertEquals(handler.getInlineResourceCache().getLoads(), 2);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    message.writeTo(out);
+    Assert.assertTrue(out.toString("US-ASCII").contains("R0lGODlh\r\n"));
+  }
+
+  private Multipart findRelated(Multipart multipart) throws MessagingException, IOException {
+    if (multipart.getContentType().startsWith("multipart/related"))
+      return multipart;
+
+    for (int i = 0; i < multipart.getCount(); i++) {
+      BodyPart part = multipart.getBodyPart(i);
+      if (part.getContent() instanceof Multipart) {
+        Multipart related = findRelated((Multipart) part.getContent());
+        if (related != null)
+          return related;
+      }
+    }
+    return null;
+  }
+
+  private MessageHandlerEMail createHandler() {
+    final SmtpConfiguration smtpConfiguration = new SmtpConfiguration("inline", "localhost", 25, false, false, null, null,
+        "courier@some-domain.tld", "Courier");
+    MessageHandlerEMail handler = new MessageHandlerEMail(new SmtpConfigurationSource() {
+      public SmtpConfiguration getSmtpConfiguration(String configurationName) {
+        return smtpConfiguration;
+      }
+    });
+    handler.removeStage(PipelineMessageHandler.STAGE_TRANSPORT);
+    return handler;
+  }
+
+  private Map<String, Object> createParameters(String templateName, TemplateTypeEnum templateType) {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_CONFIGURATION_NAME, "inline");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH, "/inline_templates/");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_NAME, templateName);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_TYPE, templateType);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME, "Peter");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_LASTNAME, "Recipientname");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL, "peter@some-domain.tld");
+    return mappedParameters;
+  }
+}
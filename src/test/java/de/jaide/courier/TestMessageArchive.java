@@ -0,0 +1,287 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.mail.MessagingException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.mail.EmailAttachment;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.archive.ArchiveEntry;
+import de.jaide.courier.archive.ArchivingStage;
+import de.jaide.courier.archive.MessageArchive;
+import de.jaide.courier.benchmark.FakeSmtpServer;
+import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationSource;
+import de.jaide.courier.email.TemplateTypeEnum;
+
+/**
+ * Tests the message archive: deduplication of shared parts, reading messages back after a restart, segment rotation and archiving the
+ * e-mails a handler sent.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestMessageArchive {
+  /**
+   * Messages sharing an attachment store it once, and read back exactly as they were appended, also after the archive was reopened.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testDeduplication() throws IOException {
+    File directory = createDirectory();
+    try {
+      String attachment = createAttachment(100 * 1024);
+      byte[][] messages = new byte[10][];
+      MessageArchive archive = new MessageArchive(directory);
+      for (int i = 0; i < messages.length; i++) {
+        messages[i] = createMessage(i, attachment);
+        archive.append(1000 + i, Arrays.asList("recipient-" + (i % 2) + "@some-domain.tld"), "<" + i + "@some-domain.tld>", messages[i],
+            messages[i].length);
+      }
+      archive.flush();
+
+      Assert.assertEquals(archive.getMessages(), 10);
+      Assert.assertTrue(archive.getDeduplicatedBytes() >= 9 * attachment.length(), "Deduplicated " + archive.getDeduplicatedBytes());
+      Assert.assertTrue(archive.getStoredBytes() < 2 * attachment.length(), "Stored " + archive.getStoredBytes());
+      assertMessages(archive, messages);
+      archive.close();
+
+      /*
+       * Reopened, the messages are still found, and the attachment is still shared.
+       */
+      archive = new MessageArchive(directory);
+      Assert.assertEquals(archive.getMessages(), 10);
+      assertMessages(archive, messages);
+      byte[] message = createMessage(10, attachment);
+      archive.append(1010, Arrays.asList("recipient-0@some-domain.tld"), null, message, message.length);
+      archive.close();
+      Assert.assertTrue(archive.getDeduplicatedBytes() >= attachment.length(), "Deduplicated " + archive.getDeduplicatedBytes());
+    } finally {
+      FileUtils.deleteQuietly(directory);
+    }
+  }
+
+  private void assertMessages(MessageArchive archive, byte[][] messages) throws IOException {
+    List<ArchiveEntry> entries = archive.findByRecipient("Recipient-1@some-domain.tld", 0, Long.MAX_VALUE);
+    Assert.assertEquals(entries.size(), 5);
+    Assert.assertEquals(entries.get(0).getMessageId(), "<9@some-domain.tld>", "Newest first");
+    Assert.assertEquals(archive.findByRecipient("recipient-1@some-domain.tld", 1003, 1005).size(), 2);
+
+    entries = archive.findByTime(1002, 1007, 3);
+    Assert.assertEquals(entries.size(), 3);
+    Assert.assertEquals(entries.get(0).getTimestamp(), 1007);
+    Assert.assertEquals(entries.get(2).getTimestamp(), 1005);
+
+    for (ArchiveEntry entry : archive.findByTime(0, Long.MAX_VALUE, Integer.MAX_VALUE)) {
+      int i = (int) (entry.getTimestamp() - 1000);
+      Assert.assertEquals(archive.read(entry), messages[i]);
+    }
+  }
+
+  /**
+   * The archive starts a new segment once the current one is full, and reads across them.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testSegments() throws IOException {
+    File directory = createDirectory();
+    try {
+      byte[][] messages = new byte[20][];
+      MessageArchive archive = new MessageArchive(directory, 32 * 1024, 100);
+      for (int i = 0; i < messages.length; i++) {
+        messages[i] = createMessage(i, createAttachment(8 * 1024));
+        archive.append(1000 + i, Arrays.asList("recipient-" + (i % 2) + "@some-domain.tld"), "<" + i + "@some-domain.tld>", messages[i],
+            messages[i].length);
+        archive.flush();
+      }
+      archive.close();
+      Assert.assertTrue(directory.list().length > 4, "Segments " + Arrays.toString(directory.list()));
+
+      archive = new MessageArchive(directory);
+      Assert.assertEquals(archive.getMessages(), 20);
+      for (ArchiveEntry entry : archive.findByTime(0, Long.MAX_VALUE, Integer.MAX_VALUE))
+        Assert.assertEquals(archive.read(entry), messages[(int) (entry.getTimestamp() - 1000)]);
+      List<ArchiveEntry> entries = archive.findByRecipient("recipient-1@some-domain.tld", 1004, 1015);
+      Assert.assertEquals(entries.size(), 6);
+      Assert.assertEquals(entries.get(0).getTimestamp(), 1015);
+      Assert.assertEquals(entries.get(5).getTimestamp(), 1005);
+      Assert.assertEquals(archive.findByTime(1003, 1008, 4).get(3).getTimestamp(), 1005);
+      archive.close();
+    } finally {
+      FileUtils.deleteQuietly(directory);
+    }
+  }
+
+  /**
+   * A message may have more recipients than fit into an unsigned short.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testManyRecipients() throws IOException {
+    File directory = createDirectory();
+    try {
+      List<String> recipients = new ArrayList<String>();
+      for (int i = 0; i < 70000; i++)
+        recipients.add("member" + i + "@some-domain.tld");
+      byte[] message = createMessage(0, createAttachment(1024));
+      MessageArchive archive = new MessageArchive(directory);
+      archive.append(1000, recipients, null, message, message.length);
+      archive.close();
+
+      archive = new MessageArchive(directory);
+      List<ArchiveEntry> entries = archive.findByRecipient("member69999@some-domain.tld", 0, Long.MAX_VALUE);
+      Assert.assertEquals(entries.size(), 1);
+      Assert.assertEquals(entries.get(0).getRecipients().size(), 70000);
+      Assert.assertEquals(archive.read(entries.get(0)), message);
+      archive.close();
+    } finally {
+      FileUtils.deleteQuietly(directory);
+    }
+  }
+
+  /**
+   * The handler archives the e-mails it sent, off the sending thread, and they are read back as e-mails.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testArchivingStage() throws Exception {
+    File directory = createDirectory();
+    File attachmentFile = File.createTempFile("courier-attachment", ".bin");
+    FakeSmtpServer server = new FakeSmtpServer();
+    try {
+      FileUtils.writeStringToFile(attachmentFile, createAttachment(50 * 1024), "US-ASCII");
+      MessageHandlerEMail handler = createHandler(server);
+      ArchivingStage stage = handler.enableArchive(directory);
+      for (int i = 0; i < 5; i++)
+        handler.process(createParameters("peter-" + (i % 2) + "@some-domain.tld", attachmentFile));
+      stage.flush();
+
+      MessageArchive archive = stage.getArchive();
+      Assert.assertEquals(stage.getArchived(), 5);
+      Assert.assertEquals(stage.getFailures(), 0);
+      Assert.assertEquals(archive.getMessages(), 5);
+      Assert.assertTrue(archive.getDeduplicatedBytes() >= 4 * attachmentFile.length(), "Deduplicated " + archive.getDeduplicatedBytes());
+
+      List<ArchiveEntry> entries = archive.findByRecipient("peter-0@some-domain.tld", 0, Long.MAX_VALUE);
+      Assert.assertEquals(entries.size(), 3);
+      Assert.assertNotNull(entries.get(0).getMessageId());
+      Assert.assertEquals(archive.readMessage(entries.get(0)).getMessageID(), entries.get(0).getMessageId());
+      Assert.assertEquals(archive.readMessage(entries.get(0)).getSubject(),
+          "Peter has accepted your contact request on the Salam Business Club");
+      Assert.assertEquals(archive.findByTime(0, Long.MAX_VALUE, 2).size(), 2);
+      stage.close();
+    } catch (MessagingException me) {
+      throw new IOException(me);
+    } finally {
+      server.stop();
+      FileUtils.deleteQuietly(attachmentFile);
+      FileUtils.deleteQuietly(directory);
+    }
+  }
+
+  /**
+   * A message with a text part, a random base64 attachment and boundaries of its own, like the ones JavaMail creates.
+   */
+  private byte[] createMessage(int number, String attachment) throws IOException {
+    String boundary = "----=_Part_" + number + "_" + (number * 7919);
+    StringBuilder message = new StringBuilder();
+    message.append("Message-ID: <").append(number).append("@some-domain.tld>\r\n");
+    message.append("Subject: Message ").append(number).append("\r\n");
+    message.append("Content-Type: multipart/mixed; boundary=\"").append(boundary).append("\"\r\n\r\n");
+    message.append("--").append(boundary).append("\r\n");
+    message.append("Content-Type: text/plain\r\n\r\nHello recipient ").append(number).append("!\r\n");
+    message.append("--").append(boundary).append("\r\n");
+    message.append("Content-Type: application/octet-stream\r\nContent-Transfer-Encoding: base64\r\n\r\n");
+    message.append(attachment);
+    message.append("--").append(boundary).append("--\r\n");
+    return message.toString().getBytes("US-ASCII");
+  }
+
+  /**
+   * Random bytes in base64, in lines of 76 characters.
+   */
+  private String createAttachment(int length) throws IOException {
+    byte[] bytes = new byte[length * 3 / 4];
+    new Random().nextBytes(bytes);
+    String base64 = new String(com.sun.mail.util.BASE64EncoderStream.encode(bytes), "US-ASCII");
+    StringBuilder attachment = new StringBuilder();
+    for (int i = 0; i < base64.length(); i += 76)
+      attachment.append(base64, i, Math.min(i + 76, base64.length())).append("\r\n");
+    return attachment.toString();
+  }
+
+  private File createDirectory() throws IOException {
+    File directory = File.createTempFile("courier-archive", "");
+    directory.delete();
+    return directory;
+  }
+
+  private MessageHandlerEMail createHandler(FakeSmtpServer server) {
+    final SmtpConfiguration smtpConfiguration = new SmtpConfiguration("fake", "127.0.0.1", server.getPort(), false, false, null, null,
+        "courier@some-domain.tld", "Courier");
+    return new MessageHandlerEMail(new SmtpConfigurationSource() {
+      public SmtpConfiguration getSmtpConfiguration(String configurationName) {
+        return smtpConfiguration;
+      }
+    });
+  }
+
+  private Map<String, Object> createParameters(String recipient, File attachmentFile) {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_CONFIGURATION_NAME, "fake");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH, "/email_templates/en/");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_NAME, "contact_accept");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.BOTH);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME, "Peter");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_LASTNAME, "Miller");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL, recipient);
+    mappedParameters.put("recipientFirstname", "Peter");
+    mappedParameters.put("memberFirstname", "Sarah");
+    mappedParameters.put("memberLastname", "Smith");
+    mappedParameters.put("memberTitle", "Developer");
+    mappedParameters.put("memberCompany", "JAIDE GmbH");
+    mappedParameters.put("memberProfileLink", "http://www.salambc.com/members?id=12345");
+    mappedParameters.put("memberCompanyLink", "http://www.salambc.com/companies?id=4711");
+    mappedParameters.put("recipientProfileLink", "http://www.salambc.com/companies?id=54321");
+    mappedParameters.put("unsubscribeLink", "http://www.salambc.com/preferences/notifications/unsubscribe?id=54321");
+
+    EmailAttachment attachment = new EmailAttachment();
+    attachment.setPath(attachmentFile.getPath());
+    attachment.setDisposition(EmailAttachment.ATTACHMENT);
+    attachment.setName("report.txt");
+    List<EmailAttachment> attachments = new ArrayList<EmailAttachment>();
+    attachments.add(attachment);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_ATTACHMENTS, attachments);
+    return mappedParameters;
+  }
+}
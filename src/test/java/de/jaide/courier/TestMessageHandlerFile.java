@@ -0,0 +1,122 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.file.FileWriteStage;
+import de.jaide.courier.file.MessageHandlerFile;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+import de.jaide.courier.pipeline.TemplatePart;
+
+/**
+ * Tests the message handler that writes the rendered messages into a local directory, and with it the shared pipeline stages.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestMessageHandlerFile {
+  private File outputDirectory;
+  private MessageHandlerFile handler;
+
+  @BeforeClass
+  public void init() {
+    outputDirectory = new File("target/test-outbox-" + System.currentTimeMillis());
+    handler = new MessageHandlerFile(outputDirectory);
+  }
+
+  @AfterClass
+  public void cleanup() throws IOException {
+    FileUtils.deleteDirectory(outputDirectory);
+  }
+
+  /**
+   * Renders the contact_accept template in both versions and checks the written file.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testMessageHandlerForFiles_ContactAccept() throws IOException {
+    Map<String, Object> mappedParameters = createParameters("contact_accept", TemplateTypeEnum.BOTH);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_FILENAME, "contact_accept.txt");
+
+    MessageContext context = handler.process(mappedParameters);
+
+    File file = (File) context.getAttribute(FileWriteStage.ATTRIBUTE_FILE);
+    Assert.assertEquals(file, new File(outputDirectory, "contact_accept.txt"));
+
+    String content = FileUtils.readFileToString(file, "UTF-8");
+    Assert.assertTrue(content.startsWith("MIME-Version: 1.0\nTo: peter@some-domain.tld\n"));
+    Assert.assertTrue(content.contains("Subject: Peter has accepted your contact request on the Salam Business Club\n\n"));
+    Assert.assertTrue(content.contains("Dear Peter,"));
+    Assert.assertTrue(content.contains("----- text/html -----"));
+    Assert.assertTrue(content.contains("<title>Sarah has accepted your contact request"));
+
+    Assert.assertEquals(handler.getMetrics().getStageMetrics(PipelineMessageHandler.STAGE_RENDER).getFailures(), 0);
+  }
+
+  /**
+   * The signup template only comes as HTML, TemplateTypeEnum.ANY has to pick that one.
+   */
+  @Test
+  public void testMessageHandlerForFiles_AnyTemplateType() {
+    Map<String, Object> mappedParameters = createParameters("signup", TemplateTypeEnum.ANY);
+    mappedParameters.put("link", "http://www.jaide.de/activate?id=1");
+
+    MessageContext context = handler.process(mappedParameters);
+    Assert.assertTrue(((File) context.getAttribute(FileWriteStage.ATTRIBUTE_FILE)).isFile());
+    Assert.assertNull(context.getRenderedPart(TemplatePart.BODY_TEXT));
+    Assert.assertTrue(context.getRenderedPart(TemplatePart.BODY_HTML).contains("Activate account"));
+  }
+
+  /**
+   * A missing obligatory parameter fails the validation stage.
+   */
+  @Test(expectedExceptions = CourierException.class)
+  public void testMessageHandlerForFiles_MissingTemplateName() {
+    handler.handleMessage(new HashMap<String, Object>());
+  }
+
+  private Map<String, Object> createParameters(String templateName, TemplateTypeEnum templateType) {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH, "/email_templates/en/");
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_NAME, templateName);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_TYPE, templateType);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_RECIPIENT, "peter@some-domain.tld");
+    mappedParameters.put("recipientFirstname", "Peter");
+    mappedParameters.put("memberFirstname", "Sarah");
+    mappedParameters.put("memberLastname", "Smith");
+    mappedParameters.put("memberTitle", "Developer");
+    mappedParameters.put("memberCompany", "JAIDE GmbH");
+    mappedParameters.put("memberProfileLink", "http://www.salambc.com/members?id=12345");
+    mappedParameters.put("memberCompanyLink", "http://www.salambc.com/companies?id=4711");
+    mappedParameters.put("recipientProfileLink", "http://www.salambc.com/companies?id=54321");
+    mappedParameters.put("unsubscribeLink", "http://www.salambc.com/preferences/notifications/unsubscribe?id=54321");
+    return mappedParameters;
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.benchmark.FakeSmtpServer;
+import de.jaide.courier.delivery.DeliveryEvent;
+import de.jaide.courier.delivery.DeliveryStatus;
+import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationSource;
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.email.smtp.SmtpClientTransportStage;
+import de.jaide.courier.exception.MessageCancelledException;
+import de.jaide.courier.exception.MessageTimeoutException;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+
+/**
+ * Tests the time budget of messages: which budget applies, and that a slow template and a slow server stop the message once the budget
+ * is used up, and that cancelling a submitted message stops its rendering.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestMessageTimeout {
+  private File templates;
+
+  @BeforeClass
+  public void init() throws Exception {
+    templates = new File(FileUtils.getTempDirectory(), "courier-timeout-" + System.nanoTime());
+    FileUtils.writeStringToFile(new File(templates, "slow_subject.ftl"), "Slow", "UTF-8");
+    FileUtils.writeStringToFile(new File(templates, "slow_body.ftl.html"), "<#list 1..1000000000 as i>${i} </#list>", "UTF-8");
+  }
+
+  @AfterClass
+  public void cleanup() throws Exception {
+    FileUtils.deleteDirectory(templates);
+  }
+
+  /**
+   * The budget given with the message comes first, then the one of the SMTP configuration, then the handler's.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testPrecedence() throws Exception {
+    FakeSmtpServer server = new FakeSmtpServer();
+    try {
+      SmtpConfiguration smtpConfiguration = createConfiguration(server);
+      MessageHandlerEMail handler = createHandler(smtpConfiguration);
+      Assert.assertEquals(handler.process(createParameters()).getTimeoutMillis(), 0);
+
+      handler.setTimeoutMillis(5000);
+      Assert.assertEquals(handler.process(createParameters()).getTimeoutMillis(), 5000);
+
+      smtpConfiguration.setTimeoutMillis(7000);
+      MessageContext context = handler.process(createParameters());
+      Assert.assertEquals(context.getTimeoutMillis(), 7000);
+      Assert.assertEquals(context.getDeadlineNanos() - context.getStartNanos(), TimeUnit.MILLISECONDS.toNanos(7000));
+
+      Map<String, Object> parameters = createParameters();
+      parameters.put(MessageHandlerEMail.MAPPING_PARAM_TIMEOUT, 9000);
+      Assert.assertEquals(handler.process(parameters).getTimeoutMillis(), 9000);
+
+      parameters.put(MessageHandlerEMail.MAPPING_PARAM_TIMEOUT, 0L);
+      context = handler.process(parameters);
+      Assert.assertEquals(context.getTimeoutMillis(), 0);
+      Assert.assertEquals(context.getDeadlineNanos(), Long.MAX_VALUE);
+      Assert.assertEquals(server.getMessages(), 5);
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * A template running too long stops with a timeout during rendering, and nothing is sent.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testRenderTimeout() throws Exception {
+    FakeSmtpServer server = new FakeSmtpServer();
+    try {
+      MessageHandlerEMail handler = createHandler(createConfiguration(server));
+      handler.enableDeliveryTracking(100);
+      Map<String, Object> parameters = createSlowParameters();
+      parameters.put(MessageHandlerEMail.MAPPING_PARAM_TIMEOUT, 200);
+
+      long start = System.nanoTime();
+      try {
+        handler.process(parameters);
+        Assert.fail("Rendered beyond the time budget");
+      } catch (MessageTimeoutException mte) {
+        Assert.assertEquals(mte.getPhase(), PipelineMessageHandler.STAGE_RENDER);
+        Assert.assertEquals(mte.getTimeoutMillis(), 200);
+      }
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      Assert.assertTrue(elapsedMillis < 2000, "Took " + elapsedMillis + " ms");
+      Assert.assertEquals(server.getMessages(), 0);
+
+      List<DeliveryEvent> events = handler.getDeliveryTracker().getIndex().findByTemplate("slow", 0, Long.MAX_VALUE);
+      Assert.assertEquals(events.size(), 1);
+      Assert.assertEquals(events.get(0).getStatus(), DeliveryStatus.DEFERRED);
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Cancelling a submitted message interrupts its rendering, so the thread is free for the next message.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testCancel() throws Exception {
+    FakeSmtpServer server = new FakeSmtpServer();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      MessageHandlerEMail handler = createHandler(createConfiguration(server));
+      handler.setAsyncExecutor(executor);
+      Future<MessageContext> slow = handler.submitMessage(createSlowParameters());
+      Thread.sleep(200);
+      Assert.assertTrue(slow.cancel(true));
+
+      Future<MessageContext> next = handler.submitMessage(createParameters());
+      next.get(5, TimeUnit.SECONDS);
+      Assert.assertEquals(server.getMessages(), 1);
+    } finally {
+      executor.shutdownNow();
+      server.stop();
+    }
+
+    /*
+     * An interrupted thread stops before its message's next stage.
+     */
+    MessageHandlerEMail handler = createHandler(createConfiguration(server));
+    Thread.currentThread().interrupt();
+    try {
+      handler.process(createParameters());
+      Assert.fail("Ignored the interrupt");
+    } catch (MessageCancelledException mce) {
+      Assert.assertTrue(Thread.interrupted());
+    }
+  }
+
+  /**
+   * A server answering too slowly stops the message with a timeout during transport, with JavaMail and with the SMTP client.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testTransportTimeout() throws Exception {
+    FakeSmtpServer server = new FakeSmtpServer();
+    try {
+      server.setLatencyMillis(3000);
+      SmtpConfiguration smtpConfiguration = createConfiguration(server);
+      smtpConfiguration.setTimeoutMillis(500);
+      MessageHandlerEMail handler = createHandler(smtpConfiguration);
+      assertTransportTimeout(handler);
+
+      SmtpClientTransportStage smtpClient = handler.enableSmtpClient();
+      assertTransportTimeout(handler);
+
+      /*
+       * The connection that timed out isn't reused, and the next message with enough time left is sent.
+       */
+      server.setLatencyMillis(0);
+      handler.process(createParameters());
+      Assert.assertEquals(smtpClient.getMessages(), 1);
+      Assert.assertEquals(smtpClient.getPool().getReusedConnections(), 0);
+    } finally {
+      server.stop();
+    }
+  }
+
+  private void assertTransportTimeout(MessageHandlerEMail handler) {
+    long start = System.nanoTime();
+    try {
+      handler.process(createParameters());
+      Assert.fail("Sent beyond the time budget");
+    } catch (MessageTimeoutException mte) {
+      Assert.assertEquals(mte.getPhase(), PipelineMessageHandler.STAGE_TRANSPORT);
+      Assert.assertEquals(mte.getTimeoutMillis(), 500);
+    }
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    Assert.assertTrue(elapsedMillis < 2000, "Took " + elapsedMillis + " ms");
+  }
+
+  private SmtpConfiguration createConfiguration(FakeSmtpServer server) {
+    return new SmtpConfiguration("fake", "127.0.0.1", server.getPort(), false, false, null, null, "courier@some-domain.tld", "Courier");
+  }
+
+  private MessageHandlerEMail createHandler(final SmtpConfiguration smtpConfiguration) {
+    return new MessageHandlerEMail(new SmtpConfigurationSource() {
+      public SmtpConfiguration getSmtpConfiguration(String configurationName) {
+        return smtpConfiguration;
+      }
+    });
+  }
+
+  private Map<String, Object> createParameters() {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_CONFIGURATION_NAME, "fake");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH, "/email_templates/en/");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_NAME, "signup");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.HTML);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME, "Peter");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_LASTNAME, "Miller");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL, "peter.miller@some-domain.tld");
+    mappedParameters.put("link", "http://www.jaide.de/projects/notify/confirm?id=123");
+    return mappedParameters;
+  }
+
+  private Map<String, Object> createSlowParameters() {
+    Map<String, Object> mappedParameters = createParameters();
+    mappedParameters.remove(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_FILE, templates);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_NAME, "slow");
+    return mappedParameters;
+  }
+}
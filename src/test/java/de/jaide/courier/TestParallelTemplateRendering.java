@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.file.MessageHandlerFile;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.NamedThreadFactory;
+import de.jaide.courier.pipeline.ParallelTemplateRenderingStage;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+import de.jaide.courier.pipeline.TemplatePart;
+
+/**
+ * Tests rendering the template parts of a message concurrently.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestParallelTemplateRendering {
+  private File outputDirectory;
+  private ExecutorService executor;
+
+  @BeforeClass
+  public void init() {
+    outputDirectory = new File("target/test-parallel-" + System.currentTimeMillis());
+    executor = Executors.newFixedThreadPool(2, new NamedThreadFactory("test-render"));
+  }
+
+  @AfterClass
+  public void cleanup() throws IOException {
+    executor.shutdown();
+    FileUtils.deleteDirectory(outputDirectory);
+  }
+
+  /**
+   * Templates are rendered on the calling thread the first time. From then on, with a threshold of 0, all but one part are rendered by
+   * the executor, with the same result.
+   */
+  @Test
+  public void testSlowPartsRenderedConcurrently() {
+    MessageHandlerFile handler = createHandler(0);
+    String caller = Thread.currentThread().getName();
+
+    MessageContext first = handler.process(createParameters(200));
+    Assert.assertEquals(first.getRenderedPart(TemplatePart.SUBJECT), "Report " + caller);
+    Assert.assertTrue(first.getRenderedPart(TemplatePart.BODY_TEXT).startsWith("Rendered by " + caller));
+    Assert.assertTrue(first.getRenderedPart(TemplatePart.BODY_HTML).contains("Rendered by " + caller));
+
+    MessageContext second = handler.process(createParameters(200));
+    int onExecutor = 0;
+    for (TemplatePart part : new TemplatePart[] { TemplatePart.SUBJECT, TemplatePart.BODY_TEXT, TemplatePart.BODY_HTML }) {
+      String content = second.getRenderedPart(part);
+      Assert.assertEquals(content.replaceAll("test-render-\\d+", caller), first.getRenderedPart(part));
+      if (content.contains("test-render-"))
+        onExecutor++;
+    }
+    Assert.assertEquals(onExecutor, 2);
+  }
+
+  /**
+   * Templates faster than the threshold stay on the calling thread.
+   */
+  @Test
+  public void testFastPartsRenderedInline() {
+    MessageHandlerFile handler = createHandler(60L * 1000 * 1000);
+    for (int i = 0; i < 3; i++) {
+      MessageContext context = handler.process(createParameters(5));
+      Assert.assertFalse(context.getRenderedPart(TemplatePart.BODY_HTML).contains("test-render-"));
+      Assert.assertFalse(context.getRenderedPart(TemplatePart.BODY_TEXT).contains("test-render-"));
+    }
+  }
+
+  /**
+   * A failing part rendered by the executor fails the message with the original exception.
+   */
+  @Test
+  public void testFailureOnExecutor() {
+    MessageHandlerFile handler = createHandler(0);
+    handler.process(createParameters(10));
+
+    Map<String, Object> mappedParameters = createParameters(10);
+    mappedParameters.remove("items");
+    try {
+      handler.process(mappedParameters);
+      Assert.fail("Rendering without items succeeded");
+    } catch (CourierException ce) {
+      Assert.assertTrue(ce.getCause() instanceof freemarker.template.TemplateException, String.valueOf(ce.getCause()));
+    }
+  }
+
+  private MessageHandlerFile createHandler(long thresholdMicros) {
+    MessageHandlerFile handler = new MessageHandlerFile(outputDirectory);
+    handler.replaceStage(PipelineMessageHandler.STAGE_RENDER, new ParallelTemplateRenderingStage(executor, thresholdMicros));
+    return handler;
+  }
+
+  private Map<String, Object> createParameters(int items) {
+    List<Map<String, Object>> itemList = new ArrayList<Map<String, Object>>();
+    for (int i = 0; i < items; i++) {
+      Map<String, Object> item = new HashMap<String, Object>();
+      item.put("name", "Article <" + i + ">");
+      item.put("quantity", i % 7 + 1);
+      item.put("price", 9.99 + i);
+      itemList.add(item);
+    }
+
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH, "/report_templates/");
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_NAME, "report");
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.BOTH);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_RECIPIENT, "peter@some-domain.tld");
+    mappedParameters.put("probe", new ThreadProbe());
+    mappedParameters.put("items", itemList);
+    return mappedParameters;
+  }
+
+  /**
+   * Tells the templates which thread renders them.
+   */
+  public static class ThreadProbe {
+    public String getThreadName() {
+      return Thread.currentThread().getName();
+    }
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.file.MessageHandlerFile;
+import de.jaide.courier.pipeline.CachingTemplateRenderingStage;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.ModelDigest;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+import de.jaide.courier.pipeline.TemplatePart;
+
+/**
+ * Tests the cache of rendered template parts and the digest of the models it relies on.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestRenderedMessageCache {
+  private File directory;
+
+  @BeforeClass
+  public void init() {
+    directory = new File("target/test-render-cache-" + System.currentTimeMillis());
+  }
+
+  @AfterClass
+  public void cleanup() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  /**
+   * Equal models have equal digests, no matter how their hash maps were filled. Objects that can't be digested are reported.
+   */
+  @Test
+  public void testModelDigest() {
+    Map<String, Object> a = new HashMap<String, Object>();
+    Map<String, Object> b = new HashMap<String, Object>(1024);
+    for (int i = 0; i < 100; i++) {
+      a.put("key" + i, listOf(i, "value" + i, null));
+      b.put("key" + (99 - i), listOf(99 - i, "value" + (99 - i), null));
+    }
+    Assert.assertEquals(ModelDigest.digest(a), ModelDigest.digest(b));
+
+    b.put("key0", listOf(0L, "value0", null));
+    Assert.assertFalse(Arrays.equals(ModelDigest.digest(a), ModelDigest.digest(b)), "Integer and Long must differ");
+
+    Map<String, Object> ordered = new LinkedHashMap<String, Object>();
+    ordered.put("b", 1);
+    ordered.put("a", 2);
+    Map<String, Object> reversed = new LinkedHashMap<String, Object>();
+    reversed.put("a", 2);
+    reversed.put("b", 1);
+    Assert.assertFalse(Arrays.equals(ModelDigest.digest(ordered), ModelDigest.digest(reversed)), "Listing order must count");
+
+    a.put("bean", new Object());
+    Assert.assertNull(ModelDigest.digest(a));
+
+    List<Object> cyclic = new ArrayList<Object>();
+    cyclic.add(cyclic);
+    Assert.assertNull(ModelDigest.digest(cyclic));
+  }
+
+  /**
+   * The same template with the same model is rendered once, a different model is rendered again.
+   */
+  @Test
+  public void testRepeatedMessageIsCacheHit() {
+    MessageHandlerFile handler = new MessageHandlerFile(new File(directory, "outbox"));
+    CachingTemplateRenderingStage cache = installCache(handler, 100, 1024 * 1024);
+
+    MessageContext first = handler.process(createParameters("Sarah"));
+    MessageContext second = handler.process(createParameters("Sarah"));
+    Assert.assertEquals(cache.getMisses(), 1);
+    Assert.assertEquals(cache.getHits(), 1);
+    for (TemplatePart part : TemplatePart.values())
+      Assert.assertEquals(second.getRenderedPart(part), first.getRenderedPart(part));
+    Assert.assertTrue(second.getRenderedPart(TemplatePart.BODY_TEXT).contains("Sarah"));
+
+    MessageContext other = handler.process(createParameters("Fatima"));
+    Assert.assertEquals(cache.getMisses(), 2);
+    Assert.assertTrue(other.getRenderedPart(TemplatePart.BODY_TEXT).contains("Fatima"));
+
+    Map<String, Object> withBean = createParameters("Sarah");
+    withBean.put("memberCompany", new Object());
+    handler.process(withBean);
+    Assert.assertEquals(cache.getUncacheable(), 1);
+
+    withBean = createParameters("Sarah");
+    withBean.put("bean", new Object());
+    handler.process(withBean);
+    Assert.assertEquals(cache.getUncacheable(), 1, "Parameters the templates don't read don't count");
+    Assert.assertEquals(cache.getHits(), 2);
+  }
+
+  /**
+   * The same alert sent to everyone on a distribution list is rendered once, since the templates don't read the recipient's address or
+   * the copies. A parameter the templates do read still tells the messages apart, unless the templates read parameters dynamically.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testDistributionListIsCacheHit() throws IOException {
+    MessageHandlerFile handler = new MessageHandlerFile(new File(directory, "outbox"));
+    CachingTemplateRenderingStage cache = installCache(handler, 100, 1024 * 1024);
+
+    MessageContext first = null;
+    for (int i = 0; i < 10; i++) {
+      Map<String, Object> mappedParameters = createParameters("Sarah");
+      mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_RECIPIENT, "member" + i + "@some-domain.tld");
+      mappedParameters.put("recipientCC", "assistant" + i + "@some-domain.tld");
+      MessageContext context = handler.process(mappedParameters);
+      if (first == null)
+        first = context;
+      for (TemplatePart part : TemplatePart.values())
+        Assert.assertEquals(context.getRenderedPart(part), first.getRenderedPart(part));
+    }
+    Assert.assertEquals(cache.getMisses(), 1);
+    Assert.assertEquals(cache.getHits(), 9);
+
+    Map<String, Object> mappedParameters = createParameters("Sarah");
+    mappedParameters.put("recipientFirstname", "Paul");
+    Assert.assertTrue(handler.process(mappedParameters).getRenderedPart(TemplatePart.BODY_TEXT).startsWith("Dear Paul,"));
+    Assert.assertEquals(cache.getMisses(), 2);
+
+    cache.setKeyedByAllParameters(true);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_RECIPIENT, "paul@some-domain.tld");
+    handler.process(mappedParameters);
+    Assert.assertEquals(cache.getMisses(), 3);
+    cache.setKeyedByAllParameters(false);
+
+    File templates = new File(directory, "dynamic");
+    FileUtils.writeStringToFile(new File(templates, "note_subject.ftl"), "Note for ${.data_model[\"recipient\"]}", "UTF-8");
+    FileUtils.writeStringToFile(new File(templates, "note_body.ftl.txt"), "Something happened.", "UTF-8");
+    mappedParameters.remove(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH_FILE, templates);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_NAME, "note");
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.TEXT);
+    Assert.assertEquals(handler.process(mappedParameters).getRenderedPart(TemplatePart.SUBJECT), "Note for paul@some-domain.tld");
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_RECIPIENT, "mary@some-domain.tld");
+    Assert.assertEquals(handler.process(mappedParameters).getRenderedPart(TemplatePart.SUBJECT), "Note for mary@some-domain.tld");
+  }
+
+  /**
+   * The cache stays within its limits, dropping the least recently used messages.
+   */
+  @Test
+  public void testEviction() {
+    MessageHandlerFile handler = new MessageHandlerFile(new File(directory, "outbox"));
+    CachingTemplateRenderingStage cache = installCache(handler, 5, 1024 * 1024);
+    for (int i = 0; i < 20; i++)
+      handler.process(createParameters("Member " + i));
+    Assert.assertEquals(cache.size(), 5);
+    Assert.assertEquals(cache.getEvictions(), 15);
+
+    handler.process(createParameters("Member 19"));
+    Assert.assertEquals(cache.getHits(), 1);
+    handler.process(createParameters("Member 0"));
+    Assert.assertEquals(cache.getMisses(), 21);
+
+    cache = installCache(handler, 1000, 20 * 1024);
+    for (int i = 0; i < 50; i++)
+      handler.process(createParameters("Member " + i));
+    Assert.assertTrue(cache.getBytes() <= 20 * 1024, "Cache grew to " + cache.getBytes() + " bytes");
+    Assert.assertTrue(cache.size() < 50);
+  }
+
+  /**
+   * Changed templates aren't served from the cache once Freemarker reloads them.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testChangedTemplate() throws IOException {
+    File templates = new File(directory, "templates");
+    File subject = new File(templates, "alert_subject.ftl");
+    FileUtils.writeStringToFile(subject, "Alert for ${memberFirstname}", "UTF-8");
+    FileUtils.writeStringToFile(new File(templates, "alert_body.ftl.txt"), "Something happened.", "UTF-8");
+
+    MessageHandlerFile handler = new MessageHandlerFile(new File(directory, "outbox"));
+    handler.getTemplateEngine().getConfiguration(templates).setTemplateUpdateDelay(0);
+    CachingTemplateRenderingStage cache = installCache(handler, 100, 1024 * 1024);
+
+    Map<String, Object> mappedParameters = createParameters("Sarah");
+    mappedParameters.remove(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH_FILE, templates);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_NAME, "alert");
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.TEXT);
+    Assert.assertEquals(handler.process(mappedParameters).getRenderedPart(TemplatePart.SUBJECT), "Alert for Sarah");
+    Assert.assertEquals(handler.process(mappedParameters).getRenderedPart(TemplatePart.SUBJECT), "Alert for Sarah");
+    Assert.assertEquals(cache.getHits(), 1);
+
+    FileUtils.writeStringToFile(subject, "Warning for ${memberFirstname}", "UTF-8");
+    subject.setLastModified(subject.lastModified() + 10000);
+    Assert.assertEquals(handler.process(mappedParameters).getRenderedPart(TemplatePart.SUBJECT), "Warning for Sarah");
+    Assert.assertEquals(cache.getHits(), 1);
+  }
+
+  private CachingTemplateRenderingStage installCache(PipelineMessageHandler handler, int maximumEntries, long maximumBytes) {
+    CachingTemplateRenderingStage cache = new CachingTemplateRenderingStage(handler.getStage(PipelineMessageHandler.STAGE_RENDER),
+        maximumEntries, maximumBytes);
+    handler.replaceStage(PipelineMessageHandler.STAGE_RENDER, cache);
+    return cache;
+  }
+
+  private static List<Object> listOf(Object... values) {
+    return Arrays.asList(values);
+  }
+
+  private Map<String, Object> createParameters(String memberFirstname) {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH, "/email_templates/en/");
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_NAME, "contact_accept");
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.BOTH);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_RECIPIENT, "peter@some-domain.tld");
+    mappedParameters.put("recipientFirstname", "Peter");
+    mappedParameters.put("memberFirstname", memberFirstname);
+    mappedParameters.put("memberLastname", "Smith");
+    mappedParameters.put("memberTitle", "Developer");
+    mappedParameters.put("memberCompany", "JAIDE GmbH");
+    mappedParameters.put("memberProfileLink", "http://www.salambc.com/members?id=12345");
+    mappedParameters.put("memberCompanyLink", "http://www.salambc.com/companies?id=4711");
+    mappedParameters.put("recipientProfileLink", "http://www.salambc.com/companies?id=54321");
+    mappedParameters.put("unsubscribeLink", "http://www.salambc.com/preferences/notifications/unsubscribe?id=54321");
+    return mappedParameters;
+  }
+}
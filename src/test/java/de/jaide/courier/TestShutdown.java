@@ -0,0 +1,440 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.mail.EmailAttachment;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.benchmark.FakeSmtpServer;
+import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationSource;
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.email.smtp.SmtpClientTransportStage;
+import de.jaide.courier.exception.HandlerShutdownException;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageJournal;
+import de.jaide.courier.pipeline.MessageStage;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+import de.jaide.courier.pipeline.ShutdownReport;
+
+/**
+ * Tests shutting down a message handler: draining the queued messages, journaling the ones not sent by the deadline and resuming them,
+ * and the journal's file format.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestShutdown {
+  /**
+   * Messages queued before the shutdown are all sent within the deadline, the pooled connections are closed with QUIT and no messages are
+   * accepted afterwards.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testDrain() throws Exception {
+    FakeSmtpServer server = new FakeSmtpServer();
+    File journalFile = new File(FileUtils.getTempDirectory(), "courier-drain-" + System.nanoTime() + ".journal");
+    try {
+      MessageHandlerEMail handler = createHandler(server);
+      SmtpClientTransportStage smtpClient = handler.enableSmtpClient();
+      List<Future<MessageContext>> futures = new ArrayList<Future<MessageContext>>();
+      for (int i = 0; i < 20; i++)
+        futures.add(handler.submitMessage(createParameters(i)));
+
+      ShutdownReport report = handler.shutdown(30, TimeUnit.SECONDS, journalFile);
+      Assert.assertFalse(report.isDeadlineExceeded());
+      Assert.assertTrue(report.getUnsent().isEmpty());
+      Assert.assertFalse(journalFile.exists(), "Wrote an empty journal");
+      Assert.assertEquals(server.getMessages(), 20);
+      for (Future<MessageContext> future : futures)
+        Assert.assertTrue(future.isDone());
+      Assert.assertEquals(smtpClient.getPool().getIdleConnections(), 0);
+      Assert.assertTrue(server.getQuits() > 0, "No QUIT");
+      Assert.assertTrue(handler.isShutdown());
+
+      try {
+        handler.process(createParameters(20));
+        Assert.fail("Accepted a message after the shutdown");
+      } catch (HandlerShutdownException hse) {
+        // Expected
+      }
+      try {
+        handler.submitMessage(createParameters(20));
+        Assert.fail("Accepted a message after the shutdown");
+      } catch (HandlerShutdownException hse) {
+        // Expected
+      }
+      Assert.assertEquals(server.getMessages(), 20);
+    } finally {
+      server.stop();
+      FileUtils.deleteQuietly(journalFile);
+    }
+  }
+
+  /**
+   * Messages that haven't reached the transport stage by the deadline are journaled instead of sent, the others are sent. Resuming the
+   * journal sends the journaled ones, so every message is sent exactly once.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testDeadlineAndResume() throws Exception {
+    FakeSmtpServer server = new FakeSmtpServer();
+    File journalFile = new File(FileUtils.getTempDirectory(), "courier-deadline-" + System.nanoTime() + ".journal");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      MessageHandlerEMail handler = createHandler(server);
+      handler.setAsyncExecutor(executor);
+      handler.addStageBefore(PipelineMessageHandler.STAGE_TRANSPORT, new MessageStage() {
+        public String getName() {
+          return "slow";
+        }
+
+        public void process(MessageContext context) {
+          try {
+            Thread.sleep(100);
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+
+      List<Future<MessageContext>> futures = new ArrayList<Future<MessageContext>>();
+      for (int i = 0; i < 50; i++)
+        futures.add(handler.submitMessage(createParameters(i)));
+
+      ShutdownReport report = handler.shutdown(150, TimeUnit.MILLISECONDS, journalFile);
+      Assert.assertTrue(report.isDeadlineExceeded());
+      Assert.assertTrue(report.getUnjournaled().isEmpty());
+      int unsent = report.getUnsent().size();
+      Assert.assertTrue(unsent > 0, "Nothing unsent");
+      Assert.assertEquals(server.getMessages() + unsent, 50);
+
+      int aborted = 0;
+      for (Future<MessageContext> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException ee) {
+          Assert.assertTrue(ee.getCause() instanceof HandlerShutdownException, ee.getCause().toString());
+          aborted++;
+        }
+      }
+      Assert.assertEquals(aborted, unsent);
+
+      List<Map<String, Object>> journaled = new MessageJournal(journalFile).read();
+      Assert.assertEquals(journaled.size(), unsent);
+      Assert.assertEquals(journaled.get(0).get(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_TYPE), TemplateTypeEnum.HTML);
+      Assert.assertEquals(journaled.get(0).get(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS), getClass());
+
+      MessageHandlerEMail restarted = createHandler(server);
+      for (Future<MessageContext> future : restarted.resume(journalFile))
+        future.get();
+      Assert.assertFalse(journalFile.exists(), "Kept the journal");
+      Assert.assertEquals(server.getMessages(), 50);
+      restarted.shutdown(10, TimeUnit.SECONDS, null);
+    } finally {
+      executor.shutdown();
+      server.stop();
+      FileUtils.deleteQuietly(journalFile);
+    }
+  }
+
+  /**
+   * A transport that hangs doesn't hold up the shutdown beyond the grace period: its message is reported as in doubt and not journaled,
+   * the messages queued behind it are journaled.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testStuckTransport() throws Exception {
+    FakeSmtpServer server = new FakeSmtpServer();
+    File journalFile = new File(FileUtils.getTempDirectory(), "courier-stuck-" + System.nanoTime() + ".journal");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    final CountDownLatch transporting = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    try {
+      MessageHandlerEMail handler = createHandler(server);
+      handler.setAsyncExecutor(executor);
+      handler.setShutdownGraceMillis(200);
+      handler.replaceStage(PipelineMessageHandler.STAGE_TRANSPORT, new MessageStage() {
+        public String getName() {
+          return PipelineMessageHandler.STAGE_TRANSPORT;
+        }
+
+        public void process(MessageContext context) {
+          transporting.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+
+      Map<String, Object> stuck = createParameters(0);
+      handler.submitMessage(stuck);
+      Assert.assertTrue(transporting.await(10, TimeUnit.SECONDS));
+      handler.submitMessage(createParameters(1));
+      handler.submitMessage(createParameters(2));
+
+      long start = System.nanoTime();
+      ShutdownReport report = handler.shutdown(100, TimeUnit.MILLISECONDS, journalFile);
+      Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), "Waited for the stuck transport");
+      Assert.assertTrue(report.isDeadlineExceeded());
+      Assert.assertEquals(report.getInDoubt().size(), 1);
+      Assert.assertSame(report.getInDoubt().get(0), stuck);
+      Assert.assertEquals(report.getUnsent().size(), 2);
+      Assert.assertEquals(new MessageJournal(journalFile).read().size(), 2);
+    } finally {
+      release.countDown();
+      executor.shutdown();
+      server.stop();
+      FileUtils.deleteQuietly(journalFile);
+    }
+  }
+
+  /**
+   * The journal is only deleted once every resumed message is done, so messages still queued when the application stops again aren't
+   * lost.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testJournalKeptUntilResumed() throws Exception {
+    FakeSmtpServer server = new FakeSmtpServer();
+    File journalFile = new File(FileUtils.getTempDirectory(), "courier-resume-" + System.nanoTime() + ".journal");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<Map<String, Object>> messages = new ArrayList<Map<String, Object>>();
+      for (int i = 0; i < 5; i++)
+        messages.add(createParameters(i));
+      new MessageJournal(journalFile).write(messages);
+
+      final CountDownLatch release = new CountDownLatch(1);
+      MessageHandlerEMail handler = createHandler(server);
+      handler.setAsyncExecutor(executor);
+      handler.addStageBefore(PipelineMessageHandler.STAGE_TRANSPORT, new MessageStage() {
+        public String getName() {
+          return "blocked";
+        }
+
+        public void process(MessageContext context) {
+          try {
+            release.await();
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+
+      List<Future<MessageContext>> futures = handler.resume(journalFile);
+      Assert.assertEquals(futures.size(), 5);
+      Assert.assertTrue(journalFile.exists(), "Deleted the journal before the messages were sent");
+      Assert.assertEquals(new MessageJournal(journalFile).read().size(), 5);
+
+      release.countDown();
+      for (Future<MessageContext> future : futures)
+        future.get();
+      Assert.assertFalse(journalFile.exists(), "Kept the journal");
+      Assert.assertEquals(server.getMessages(), 5);
+      handler.shutdown(10, TimeUnit.SECONDS, null);
+    } finally {
+      executor.shutdown();
+      server.stop();
+      FileUtils.deleteQuietly(journalFile);
+    }
+  }
+
+  /**
+   * The journal keeps the types of the usual parameter values, and leaves out messages with values that can't be written.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testJournal() throws Exception {
+    File journalFile = new File(FileUtils.getTempDirectory(), "courier-journal-" + System.nanoTime() + ".journal");
+    try {
+      MessageJournal journal = new MessageJournal(journalFile);
+      Assert.assertTrue(journal.read().isEmpty());
+
+      EmailAttachment attachment = new EmailAttachment();
+      attachment.setPath("/tmp/invoice.pdf");
+      attachment.setName("Invoice.pdf");
+      attachment.setDisposition(EmailAttachment.ATTACHMENT);
+
+      Map<String, Object> nested = new LinkedHashMap<String, Object>();
+      nested.put("total", new BigDecimal("12.50"));
+      nested.put("items", Arrays.asList(new Object[] { "a", 1, 2L, 3.5d, null }));
+
+      Map<String, Object> parameters = createParameters(1);
+      parameters.put(MessageHandlerEMail.MAPPING_PARAM_LOCALE, Locale.GERMANY);
+      parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_FILE, new File("/templates"));
+      parameters.put(MessageHandlerEMail.MAPPING_PARAM_ATTACHMENTS, Arrays.asList(attachment));
+      parameters.put("sent", new Date(1234567890L));
+      parameters.put("confirmed", Boolean.TRUE);
+      parameters.put("order", nested);
+      parameters.put("long", repeat("\u00e4", 70000));
+
+      Map<String, Object> unwritable = createParameters(2);
+      unwritable.put("lock", new Object());
+
+      List<Map<String, Object>> messages = new ArrayList<Map<String, Object>>();
+      messages.add(parameters);
+      messages.add(unwritable);
+      messages.add(createParameters(3));
+      List<Map<String, Object>> rejected = journal.write(messages);
+      Assert.assertEquals(rejected.size(), 1);
+      Assert.assertSame(rejected.get(0), unwritable);
+
+      messages = journal.read();
+      Assert.assertEquals(messages.size(), 2);
+      Map<String, Object> read = messages.get(0);
+      Assert.assertEquals(read.keySet(), parameters.keySet());
+      for (String key : parameters.keySet()) {
+        if (!key.equals(MessageHandlerEMail.MAPPING_PARAM_ATTACHMENTS))
+          Assert.assertEquals(read.get(key), parameters.get(key), key);
+      }
+      EmailAttachment readAttachment = (EmailAttachment) ((List<?>) read.get(MessageHandlerEMail.MAPPING_PARAM_ATTACHMENTS)).get(0);
+      Assert.assertEquals(readAttachment.getPath(), "/tmp/invoice.pdf");
+      Assert.assertEquals(readAttachment.getName(), "Invoice.pdf");
+      Assert.assertEquals(readAttachment.getDisposition(), EmailAttachment.ATTACHMENT);
+      Assert.assertNull(readAttachment.getURL());
+      Assert.assertEquals(messages.get(1).get(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL), "member3@some-domain.tld");
+
+      /*
+       * A damaged journal is rejected.
+       */
+      byte[] content = FileUtils.readFileToByteArray(journalFile);
+      content[content.length / 2] ^= 1;
+      FileUtils.writeByteArrayToFile(journalFile, content);
+      try {
+        journal.read();
+        Assert.fail("Read a damaged journal");
+      } catch (IOException ioe) {
+        // Expected
+      }
+
+      journal.delete();
+      Assert.assertFalse(journalFile.exists());
+    } finally {
+      FileUtils.deleteQuietly(journalFile);
+    }
+  }
+
+  /**
+   * A cut off journal, or one whose lengths exceed the file even though its checksum matches, is rejected as damaged before any of its
+   * lengths is allocated.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testDamagedJournal() throws Exception {
+    File journalFile = new File(FileUtils.getTempDirectory(), "courier-damaged-" + System.nanoTime() + ".journal");
+    try {
+      MessageJournal journal = new MessageJournal(journalFile);
+      List<Map<String, Object>> messages = new ArrayList<Map<String, Object>>();
+      messages.add(createParameters(1));
+      journal.write(messages);
+
+      byte[] content = FileUtils.readFileToByteArray(journalFile);
+      for (int length : new int[] { 6, 19, content.length / 2, content.length - 1 }) {
+        FileUtils.writeByteArrayToFile(journalFile, Arrays.copyOf(content, length));
+        assertDamaged(journal);
+      }
+
+      /*
+       * A single message of 2 GB, with the right checksum.
+       */
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.write(content, 0, 8);
+      out.writeInt(1);
+      out.writeInt(Integer.MAX_VALUE);
+      out.writeInt(0);
+      CRC32 crc = new CRC32();
+      crc.update(bytes.toByteArray());
+      out.writeLong(crc.getValue());
+      FileUtils.writeByteArrayToFile(journalFile, bytes.toByteArray());
+      assertDamaged(journal);
+    } finally {
+      FileUtils.deleteQuietly(journalFile);
+    }
+  }
+
+  private void assertDamaged(MessageJournal journal) {
+    try {
+      journal.read();
+      Assert.fail("Read a damaged journal");
+    } catch (IOException ioe) {
+      Assert.assertTrue(ioe.getMessage().contains("damaged"), ioe.getMessage());
+    }
+  }
+
+  private MessageHandlerEMail createHandler(FakeSmtpServer server) {
+    final SmtpConfiguration smtpConfiguration = new SmtpConfiguration("fake", "127.0.0.1", server.getPort(), false, false, null, null,
+        "courier@some-domain.tld", "Courier");
+    return new MessageHandlerEMail(new SmtpConfigurationSource() {
+      public SmtpConfiguration getSmtpConfiguration(String configurationName) {
+        return smtpConfiguration;
+      }
+    });
+  }
+
+  private Map<String, Object> createParameters(int member) {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_CONFIGURATION_NAME, "fake");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH, "/email_templates/en/");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_NAME, "signup");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.HTML);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME, "Peter");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_LASTNAME, "Miller");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL, "member" + member + "@some-domain.tld");
+    mappedParameters.put("link", "http://www.jaide.de/projects/notify/confirm?id=" + member);
+    return mappedParameters;
+  }
+
+  private static String repeat(String text, int times) {
+    StringBuilder repeated = new StringBuilder();
+    for (int i = 0; i < times; i++)
+      repeated.append(text);
+    return repeated.toString();
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.benchmark.FakeSmtpServer;
+import de.jaide.courier.delivery.DeliveryEvent;
+import de.jaide.courier.delivery.DeliveryStatus;
+import de.jaide.courier.delivery.DeliveryTracker;
+import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.SmtpAdmissionControlStage;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationSource;
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.email.smtp.SmtpClientTransportStage;
+import de.jaide.courier.email.smtp.SmtpConnection;
+import de.jaide.courier.email.smtp.SmtpConnectionPool;
+import de.jaide.courier.email.smtp.SmtpReplyException;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+
+/**
+ * Tests the SMTP client against the fake SMTP server: the round trips with and without PIPELINING and CHUNKING, 8BITMIME, dot-stuffing and
+ * rejected messages.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestSmtpClient {
+  /**
+   * PIPELINING takes a message down to two round trips, and all messages share one connection.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testRoundTrips() throws IOException {
+    assertRoundTrips(2, "PIPELINING", "CHUNKING");
+    assertRoundTrips(2, "PIPELINING");
+    assertRoundTrips(3, "CHUNKING");
+    assertRoundTrips(4);
+  }
+
+  private void assertRoundTrips(int roundTripsPerMessage, String... extensions) throws IOException {
+    FakeSmtpServer server = new FakeSmtpServer();
+    server.setExtensions(extensions);
+    try {
+      MessageHandlerEMail handler = createHandler(server);
+      SmtpClientTransportStage stage = handler.enableSmtpClient();
+      for (int i = 0; i < 3; i++)
+        handler.process(createParameters());
+
+      Assert.assertEquals(server.getMessages(), 3);
+      Assert.assertEquals(stage.getMessages(), 3);
+      Assert.assertEquals(stage.getRoundTrips(), 3 * roundTripsPerMessage, "Round trips with " + extensions.length + " extensions");
+      Assert.assertEquals(stage.getPool().getCreatedConnections(), 1);
+      Assert.assertEquals(stage.getPool().getReusedConnections(), 2);
+      stage.close();
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * With 8BITMIME, UTF-8 text is sent as it is instead of as quoted-printable, which takes fewer bytes.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void test8BitMime() throws IOException {
+    Map<String, Object> parameters = createParameters();
+    parameters.put("memberFirstname", "J\u00f6rg");
+    String utf8 = new String("J\u00f6rg".getBytes("UTF-8"), "ISO-8859-1");
+
+    FakeSmtpServer server = new FakeSmtpServer();
+    server.setExtensions("PIPELINING", "CHUNKING", "8BITMIME");
+    try {
+      MessageHandlerEMail handler = createHandler(server);
+      SmtpClientTransportStage eightBit = handler.enableSmtpClient();
+      handler.process(parameters);
+      Assert.assertTrue(server.getLastMailCommand().endsWith(" BODY=8BITMIME"));
+      Assert.assertTrue(server.getLastMessage().contains("Content-Transfer-Encoding: 8bit"));
+      Assert.assertTrue(server.getLastMessage().contains(utf8 + " has accepted your contact request."));
+      Assert.assertFalse(server.getLastMessage().contains("quoted-printable"));
+      Assert.assertEquals(eightBit.getEightBitMessages(), 1);
+
+      server.setExtensions("PIPELINING", "CHUNKING");
+      handler = createHandler(server);
+      SmtpClientTransportStage sevenBit = handler.enableSmtpClient();
+      handler.process(parameters);
+      Assert.assertFalse(server.getLastMailCommand().contains("BODY="));
+      Assert.assertTrue(server.getLastMessage().contains("Content-Transfer-Encoding: quoted-printable"));
+      Assert.assertFalse(server.getLastMessage().contains(utf8));
+      Assert.assertEquals(sevenBit.getEightBitMessages(), 0);
+
+      Assert.assertTrue(eightBit.getBytesWritten() < sevenBit.getBytesWritten(), eightBit.getBytesWritten() + " bytes with 8BITMIME, "
+          + sevenBit.getBytesWritten() + " bytes without");
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Lines starting with a dot arrive unchanged, whether they are sent with DATA, which needs dot-stuffing, or with BDAT.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testDotStuffing() throws IOException {
+    Map<String, Object> parameters = createParameters();
+    parameters.put("memberTitle", "Developer\n.NET\n.");
+
+    FakeSmtpServer server = new FakeSmtpServer();
+    try {
+      server.setExtensions("PIPELINING");
+      MessageHandlerEMail handler = createHandler(server);
+      handler.enableSmtpClient();
+      handler.process(parameters);
+      Assert.assertTrue(server.getLastMessage().contains("\r\nDeveloper\r\n.NET\r\n.\r\n"));
+
+      server.setExtensions("PIPELINING", "CHUNKING");
+      handler = createHandler(server);
+      handler.enableSmtpClient();
+      handler.process(parameters);
+      Assert.assertTrue(server.getLastMessage().contains("\r\nDeveloper\r\n.NET\r\n.\r\n"));
+      Assert.assertEquals(server.getMessages(), 2);
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * A rejected message fails with the server's reply, which is recorded for the delivery events, and the connection is reset and reused
+   * for the next message.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testRejection() throws IOException {
+    assertRejection("PIPELINING", "CHUNKING");
+    assertRejection("PIPELINING");
+    assertRejection();
+  }
+
+  private void assertRejection(String... extensions) throws IOException {
+    FakeSmtpServer server = new FakeSmtpServer();
+    server.setExtensions(extensions);
+    try {
+      MessageHandlerEMail handler = createHandler(server);
+      SmtpClientTransportStage stage = handler.enableSmtpClient();
+      DeliveryTracker tracker = handler.enableDeliveryTracking(100);
+
+      server.setDataReply("451 4.3.0 Try again later");
+      try {
+        handler.process(createParameters());
+        Assert.fail("The server didn't accept the message");
+      } catch (CourierException ce) {
+        // Expected.
+      }
+      DeliveryEvent deferred = tracker.getIndex().find(null, null, DeliveryStatus.DEFERRED, 0, Long.MAX_VALUE, 1).get(0);
+      Assert.assertEquals(deferred.getServerReply(), "451 4.3.0 Try again later");
+
+      server.setDataReply("250 2.0.0 Ok: queued as 4F1A2B3C");
+      handler.process(createParameters());
+      DeliveryEvent accepted = tracker.getIndex().find(null, null, DeliveryStatus.ACCEPTED, 0, Long.MAX_VALUE, 1).get(0);
+      Assert.assertEquals(accepted.getQueueId(), "4F1A2B3C");
+      Assert.assertNotNull(accepted.getMessageId());
+
+      Assert.assertEquals(server.getMessages(), 1);
+      Assert.assertEquals(stage.getPool().getCreatedConnections(), 1, "The connection survives the rejection");
+      stage.close();
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * A message with a rejected recipient isn't sent to the recipients the server accepted either, so sending it again doesn't deliver it
+   * twice.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testRejectedRecipient() throws IOException {
+    assertRejectedRecipient("PIPELINING", "CHUNKING");
+    assertRejectedRecipient("PIPELINING");
+    assertRejectedRecipient("CHUNKING");
+    assertRejectedRecipient();
+  }
+
+  private void assertRejectedRecipient(String... extensions) throws IOException {
+    FakeSmtpServer server = new FakeSmtpServer();
+    server.setExtensions(extensions);
+    server.setRejectedRecipient("unknown@some-domain.tld");
+    SmtpConnectionPool pool = new SmtpConnectionPool();
+    try {
+      SmtpConfiguration smtpConfiguration = new SmtpConfiguration("fake", "127.0.0.1", server.getPort(), false, false, null, null,
+          "courier@some-domain.tld", "Courier");
+      byte[] content = "Subject: Test\r\n\r\nHello\r\n".getBytes("US-ASCII");
+      List<String> recipients = new ArrayList<String>();
+      recipients.add("peter@some-domain.tld");
+      recipients.add("unknown@some-domain.tld");
+
+      SmtpConnection connection = pool.borrow(smtpConfiguration);
+      try {
+        connection.send("courier@some-domain.tld", recipients, content, content.length, false);
+        Assert.fail("The server didn't accept all recipients");
+      } catch (SmtpReplyException sre) {
+        Assert.assertEquals(sre.getReply().getCode(), 550);
+      }
+      Assert.assertEquals(server.getMessages(), 0, "Sent with " + extensions.length + " extensions");
+      pool.release(connection);
+
+      recipients.remove(1);
+      connection = pool.borrow(smtpConfiguration);
+      connection.send("courier@some-domain.tld", recipients, content, content.length, false);
+      Assert.assertEquals(server.getMessages(), 1, "Sent with " + extensions.length + " extensions");
+      pool.release(connection);
+    } finally {
+      pool.close();
+      server.stop();
+    }
+  }
+
+  /**
+   * Admission control enabled before the SMTP client keeps its limits and limits the SMTP client from then on.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testAdmissionControlEnabledFirst() throws IOException {
+    FakeSmtpServer server = new FakeSmtpServer();
+    try {
+      MessageHandlerEMail handler = createHandler(server);
+      SmtpAdmissionControlStage admissionControl = handler.enableAdmissionControl(3, 10);
+      SmtpClientTransportStage stage = handler.enableSmtpClient();
+      Assert.assertSame(handler.getStage(PipelineMessageHandler.STAGE_TRANSPORT), admissionControl);
+      Assert.assertSame(admissionControl.getDelegate(), stage);
+
+      handler.process(createParameters());
+      Assert.assertEquals(stage.getMessages(), 1);
+      Assert.assertEquals(admissionControl.getLimiter("fake").getInFlight(), 0);
+      Assert.assertTrue(admissionControl.getLimiter("fake").getBaselineNanos() < Long.MAX_VALUE);
+      stage.close();
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * A connection is only reused for a configuration with the same password and security settings.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testPoolKey() throws IOException {
+    FakeSmtpServer server = new FakeSmtpServer();
+    SmtpConnectionPool pool = new SmtpConnectionPool();
+    try {
+      SmtpConfiguration first = new SmtpConfiguration("fake", "127.0.0.1", server.getPort(), false, false, null, "secret",
+          "courier@some-domain.tld", "Courier");
+      SmtpConfiguration changedPassword = new SmtpConfiguration("fake", "127.0.0.1", server.getPort(), false, false, null, "changed",
+          "courier@some-domain.tld", "Courier");
+      pool.release(pool.borrow(first));
+      pool.release(pool.borrow(changedPassword));
+      Assert.assertEquals(pool.getReusedConnections(), 0);
+      Assert.assertEquals(pool.getCreatedConnections(), 2);
+
+      pool.release(pool.borrow(first));
+      Assert.assertEquals(pool.getReusedConnections(), 1);
+    } finally {
+      pool.close();
+      server.stop();
+    }
+  }
+
+  private MessageHandlerEMail createHandler(FakeSmtpServer server) {
+    final SmtpConfiguration smtpConfiguration = new SmtpConfiguration("fake", "127.0.0.1", server.getPort(), false, false, null, null,
+        "courier@some-domain.tld", "Courier");
+    return new MessageHandlerEMail(new SmtpConfigurationSource() {
+      public SmtpConfiguration getSmtpConfiguration(String configurationName) {
+        return smtpConfiguration;
+      }
+    });
+  }
+
+  private Map<String, Object> createParameters() {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_CONFIGURATION_NAME, "fake");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH, "/email_templates/en/");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_NAME, "contact_accept");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.BOTH);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME, "Peter");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_LASTNAME, "Miller");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL, "peter@some-domain.tld");
+    mappedParameters.put("recipientFirstname", "Peter");
+    mappedParameters.put("memberFirstname", "Sarah");
+    mappedParameters.put("memberLastname", "Smith");
+    mappedParameters.put("memberTitle", "Developer");
+    mappedParameters.put("memberCompany", "JAIDE GmbH");
+    mappedParameters.put("memberProfileLink", "http://www.salambc.com/members?id=12345");
+    mappedParameters.put("memberCompanyLink", "http://www.salambc.com/companies?id=4711");
+    mappedParameters.put("recipientProfileLink", "http://www.salambc.com/companies?id=54321");
+    mappedParameters.put("unsubscribeLink", "http://www.salambc.com/preferences/notifications/unsubscribe?id=54321");
+    return mappedParameters;
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationReader;
+import de.jaide.courier.email.SmtpConfigurationWriter;
+import de.jaide.courier.json.JsonTokenizer;
+import de.jaide.courier.json.JsonTokenizer.Token;
+
+/**
+ * Tests the streaming JSON tokenizer and the SMTP configuration reader and writer built upon it.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestSmtpConfigurationReader {
+
+  /**
+   * The tokens of a document using all kinds of values, escapes included.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testTokenizer() throws IOException {
+    JsonTokenizer tokenizer = new JsonTokenizer(new StringReader(
+        "{\"a\" : [1, -2.5e3, true, false, null], \"b\\\"\": \"x\\u00e4\\n\\/\", \"c\": {}, \"d\": []}"));
+    Assert.assertEquals(tokenizer.next(), Token.BEGIN_OBJECT);
+    Assert.assertEquals(tokenizer.next(), Token.NAME);
+    Assert.assertEquals(tokenizer.getString(), "a");
+    Assert.assertEquals(tokenizer.next(), Token.BEGIN_ARRAY);
+    Assert.assertEquals(tokenizer.next(), Token.NUMBER);
+    Assert.assertEquals(tokenizer.getLong(), 1);
+    Assert.assertEquals(tokenizer.next(), Token.NUMBER);
+    Assert.assertEquals(tokenizer.getString(), "-2.5e3");
+    Assert.assertEquals(tokenizer.next(), Token.BOOLEAN);
+    Assert.assertTrue(tokenizer.getBoolean());
+    Assert.assertEquals(tokenizer.next(), Token.BOOLEAN);
+    Assert.assertFalse(tokenizer.getBoolean());
+    Assert.assertEquals(tokenizer.next(), Token.NULL);
+    Assert.assertEquals(tokenizer.next(), Token.END_ARRAY);
+    Assert.assertEquals(tokenizer.next(), Token.NAME);
+    Assert.assertEquals(tokenizer.getString(), "b\"");
+    Assert.assertEquals(tokenizer.next(), Token.STRING);
+    Assert.assertEquals(tokenizer.getString(), "xä\n/");
+    Assert.assertEquals(tokenizer.next(), Token.NAME);
+    tokenizer.skipValue();
+    Assert.assertEquals(tokenizer.next(), Token.NAME);
+    Assert.assertEquals(tokenizer.getString(), "d");
+    Assert.assertEquals(tokenizer.next(), Token.BEGIN_ARRAY);
+    Assert.assertEquals(tokenizer.next(), Token.END_ARRAY);
+    Assert.assertEquals(tokenizer.next(), Token.END_OBJECT);
+    Assert.assertEquals(tokenizer.next(), Token.END_DOCUMENT);
+  }
+
+  /**
+   * Syntax errors are reported with their position.
+   */
+  @Test
+  public void testTokenizerSyntaxErrors() {
+    assertSyntaxError("[1 2]", "line 1, column 4");
+    assertSyntaxError("{\n  \"a\" 1}", "line 2, column 7");
+    assertSyntaxError("[\"unterminated", "Unterminated string");
+    assertSyntaxError("{} []", "after the end");
+    assertSyntaxError("[tru]", "Invalid literal");
+  }
+
+  /**
+   * The reader yields the same configurations as the json-simple based parsing did, for the template shipped with Courier.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testReaderMatchesJsonSimple() throws Exception {
+    String json = readTemplate();
+    Map<String, SmtpConfiguration> smtpConfigurations = new SmtpConfigurationReader(new StringReader(json)).readAll();
+
+    JSONArray keyArray = (JSONArray) new JSONParser().parse(json);
+    int count = 0;
+    for (Object group : keyArray) {
+      for (Object entry : ((JSONObject) group).entrySet()) {
+        @SuppressWarnings("unchecked")
+        Map.Entry<String, JSONObject> configuration = (Map.Entry<String, JSONObject>) entry;
+        SmtpConfiguration smtpConfiguration = smtpConfigurations.get(configuration.getKey());
+        Assert.assertNotNull(smtpConfiguration, configuration.getKey());
+        Assert.assertEquals(smtpConfiguration.getSmtpHostname(), configuration.getValue().get("smtpHostname"));
+        Assert.assertEquals(smtpConfiguration.getSmtpPort().longValue(), ((Long) configuration.getValue().get("smtpPort")).longValue());
+        Assert.assertEquals(Boolean.valueOf(smtpConfiguration.isTls()), configuration.getValue().get("tls"));
+        Assert.assertEquals(smtpConfiguration.getFromSenderName(), configuration.getValue().get("fromSenderName"));
+        count++;
+      }
+    }
+    Assert.assertEquals(smtpConfigurations.size(), count);
+  }
+
+  /**
+   * toJSONString() keeps the layout of the JSONWriter it used to rely on, and what the writer writes is read back unchanged.
+   * 
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testWriterRoundTrip() throws Exception {
+    SmtpConfiguration smtpConfiguration = new SmtpConfiguration("info", "smtp.mydomain.com", 587, true, false, "info@mydomain.com",
+        "pa\"ss{word}", "info@mydomain.com", "Peter Sendername");
+
+    com.tonian.director.dm.json.JSONWriter legacyWriter = new com.tonian.director.dm.json.JSONWriter();
+    for (char c : ("{\"info\":{\"smtpHostname\":\"smtp.mydomain.com\",\"smtpPort\":587,\"tls\":true,\"ssl\":false,"
+        + "\"username\":\"info@mydomain.com\",\"password\":\"PASSWORD\",\"fromEMail\":\"info@mydomain.com\","
+        + "\"fromSenderName\":\"Peter Sendername\"}}").toCharArray())
+      legacyWriter.write(c);
+    Assert.assertEquals(smtpConfiguration.toJSONString(), legacyWriter.toString().replace("PASSWORD", "pa\\\"ss{word}"));
+
+    smtpConfiguration.setDkimDomain("mydomain.com");
+    smtpConfiguration.setDkimSelector("courier");
+    smtpConfiguration.setDkimPrivateKeyFile("/etc/courier/dkim.pk8");
+    smtpConfiguration.setTimeoutMillis(15000);
+    StringWriter exported = new StringWriter();
+    SmtpConfigurationWriter writer = new SmtpConfigurationWriter(exported);
+    writer.write(smtpConfiguration);
+    writer.write(new SmtpConfiguration("bounce", "localhost", null, false, true, null, null, "bounce@mydomain.com", "Böunce"));
+    writer.finish();
+
+    Map<String, SmtpConfiguration> readBack = new SmtpConfigurationReader(new StringReader(exported.toString())).readAll();
+    Assert.assertEquals(readBack.keySet().toString(), "[info, bounce]");
+    Assert.assertEquals(readBack.get("info").toJSONString(), smtpConfiguration.toJSONString());
+    Assert.assertEquals(readBack.get("bounce").getFromSenderName(), "Böunce");
+    Assert.assertNull(readBack.get("bounce").getSmtpPort());
+    Assert.assertEquals(readBack.get("info").getTimeoutMillis(), Integer.valueOf(15000));
+    Assert.assertNull(readBack.get("bounce").getTimeoutMillis());
+    Assert.assertTrue(readBack.get("bounce").isSsl());
+
+    Assert.assertEquals(new SmtpConfigurationReader(new StringReader(smtpConfiguration.toJSONString())).readAll().get("info")
+        .getDkimPrivateKeyFile(), "/etc/courier/dkim.pk8");
+  }
+
+  private static void assertSyntaxError(String json, String expectedMessage) {
+    JsonTokenizer tokenizer = new JsonTokenizer(new StringReader(json));
+    try {
+      while (tokenizer.next() != Token.END_DOCUMENT)
+        ;
+      Assert.fail("No syntax error in " + json);
+    } catch (IOException ioe) {
+      Assert.assertTrue(ioe.getMessage().contains(expectedMessage), ioe.getMessage());
+    }
+  }
+
+  private static String readTemplate() throws IOException {
+    InputStream in = TestSmtpConfigurationReader.class.getResourceAsStream("/smtp.json.template");
+    try {
+      return IOUtils.toString(in, "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationSnapshot;
+import de.jaide.courier.pipeline.TemplateIndex;
+
+/**
+ * Tests the binary snapshot of the SMTP configurations and the template index.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestSmtpConfigurationSnapshot {
+  private static final String SMTP_CONFIGURATION = "/smtp-snapshot-test.json";
+
+  private File directory;
+
+  @BeforeClass
+  public void init() {
+    directory = new File("target/test-snapshot-" + System.currentTimeMillis());
+    directory.mkdirs();
+  }
+
+  @AfterClass
+  public void cleanup() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  /**
+   * The first start writes the snapshot, the next one loads the very same configurations from it.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testSnapshotWrittenAndLoaded() throws IOException {
+    File snapshotFile = new File(directory, "written.snapshot");
+    MessageHandlerEMail handler = new MessageHandlerEMail(SMTP_CONFIGURATION, snapshotFile);
+    Assert.assertTrue(snapshotFile.isFile());
+
+    SmtpConfigurationSnapshot snapshot = SmtpConfigurationSnapshot.read(snapshotFile);
+    Assert.assertEquals(snapshot.getSmtpConfigurations().keySet(), handler.getSmtpConfigurations().keySet());
+    for (SmtpConfiguration smtpConfiguration : snapshot.getSmtpConfigurations().values())
+      Assert.assertEquals(smtpConfiguration.toJSONString(), handler.getSmtpConfiguration(smtpConfiguration.getConfigurationName())
+          .toJSONString());
+
+    SmtpConfiguration support = new MessageHandlerEMail(SMTP_CONFIGURATION, snapshotFile).getSmtpConfiguration("support");
+    Assert.assertEquals(support.getSmtpPort(), Integer.valueOf(2525));
+    Assert.assertTrue(support.isTls());
+    Assert.assertEquals(support.getDkimSelector(), "courier");
+    Assert.assertEquals(support.getTimeoutMillis(), Integer.valueOf(15000));
+  }
+
+  /**
+   * A snapshot made from a different smtp.json is ignored and replaced.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testOutdatedSnapshotReplaced() throws IOException {
+    File snapshotFile = new File(directory, "outdated.snapshot");
+    Map<String, SmtpConfiguration> outdated = new HashMap<String, SmtpConfiguration>();
+    outdated.put("outdated", new SmtpConfiguration("outdated", "smtp.mydomain.com", 25, false, false, null, null, null, null));
+    new SmtpConfigurationSnapshot(42, outdated, Collections.<String, TemplateIndex.Entry> emptyMap()).write(snapshotFile);
+
+    MessageHandlerEMail handler = new MessageHandlerEMail(SMTP_CONFIGURATION, snapshotFile);
+    Assert.assertNull(handler.getSmtpConfiguration("outdated"));
+    Assert.assertNotNull(handler.getSmtpConfiguration("noreply"));
+    Assert.assertNull(SmtpConfigurationSnapshot.read(snapshotFile).getSmtpConfigurations().get("outdated"));
+  }
+
+  /**
+   * A damaged snapshot is rejected.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testDamagedSnapshotRejected() throws IOException {
+    File snapshotFile = new File(directory, "damaged.snapshot");
+    new MessageHandlerEMail(SMTP_CONFIGURATION, snapshotFile);
+
+    byte[] content = FileUtils.readFileToByteArray(snapshotFile);
+    content[content.length / 2] ^= 0x20;
+    FileUtils.writeByteArrayToFile(snapshotFile, content);
+
+    try {
+      SmtpConfigurationSnapshot.read(snapshotFile);
+      Assert.fail("The damaged snapshot was accepted.");
+    } catch (IOException ioe) {
+      // Expected
+    }
+    Assert.assertNotNull(new MessageHandlerEMail(SMTP_CONFIGURATION, snapshotFile).getSmtpConfiguration("support"));
+  }
+
+  /**
+   * Template index entries are only taken over as long as their template directory didn't change.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testTemplateIndexInvalidated() throws IOException {
+    File templateDirectory = new File(directory, "templates");
+    templateDirectory.mkdirs();
+    FileUtils.writeStringToFile(new File(templateDirectory, "welcome_subject.ftl"), "Welcome", "UTF-8");
+
+    TemplateIndex.Entry entry = new TemplateIndex().lookup(templateDirectory);
+    Assert.assertTrue(entry.contains("welcome_subject.ftl"));
+    Assert.assertFalse(entry.contains("welcome_headers.ftl"));
+    Assert.assertTrue(new TemplateIndex().put(TemplateIndex.fileLocation(templateDirectory), entry));
+
+    FileUtils.writeStringToFile(new File(templateDirectory, "welcome_headers.ftl"), "X-Campaign: welcome", "UTF-8");
+    Assert.assertFalse(new TemplateIndex().put(TemplateIndex.fileLocation(templateDirectory), entry));
+    Assert.assertTrue(new TemplateIndex().lookup(templateDirectory).contains("welcome_headers.ftl"));
+  }
+
+  /**
+   * A snapshot that can't be written doesn't keep the handler from starting, and a missing directory is created.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testUnwritableSnapshotIgnored() throws IOException {
+    File snapshotFile = new File(directory, "missing/parent/written.snapshot");
+    new MessageHandlerEMail(SMTP_CONFIGURATION, snapshotFile);
+    Assert.assertTrue(snapshotFile.isFile());
+
+    File blocked = new File(directory, "blocked");
+    FileUtils.writeStringToFile(blocked, "not a directory", "UTF-8");
+    MessageHandlerEMail handler = new MessageHandlerEMail(SMTP_CONFIGURATION, new File(blocked, "written.snapshot"));
+    Assert.assertNotNull(handler.getSmtpConfiguration("support"));
+  }
+
+  /**
+   * A classpath location held by more than one classpath root isn't indexed, since templates may come from either of them.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testClasspathLocationInSeveralRoots() throws IOException {
+    File first = new File(directory, "root1");
+    File second = new File(directory, "root2");
+    FileUtils.writeStringToFile(new File(first, "mails/welcome_subject.ftl"), "Welcome", "UTF-8");
+    FileUtils.writeStringToFile(new File(second, "mails/welcome_headers.ftl"), "X-Campaign: welcome", "UTF-8");
+
+    URLClassLoader single = new URLClassLoader(new URL[] { first.toURI().toURL() }, null);
+    Assert.assertEquals(TemplateIndex.resolveClasspathSource(single, "/mails/"), new File(first, "mails").getAbsoluteFile());
+
+    URLClassLoader both = new URLClassLoader(new URL[] { first.toURI().toURL(), second.toURI().toURL() }, null);
+    Assert.assertNull(TemplateIndex.resolveClasspathSource(both, "/mails/"));
+  }
+}
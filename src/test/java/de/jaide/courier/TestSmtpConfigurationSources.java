@@ -0,0 +1,176 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.email.CachingSmtpConfigurationSource;
+import de.jaide.courier.email.DirectorySmtpConfigurationSource;
+import de.jaide.courier.email.IndexedFileSmtpConfigurationSource;
+import de.jaide.courier.email.JsonSmtpConfigurationSource;
+import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationSource;
+
+/**
+ * Tests the different sources of SMTP configurations and the cache on top of them.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestSmtpConfigurationSources {
+  private File directory;
+
+  @BeforeClass
+  public void init() {
+    directory = new File("target/test-sources-" + System.currentTimeMillis());
+    directory.mkdirs();
+  }
+
+  @AfterClass
+  public void cleanup() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  /**
+   * The smtp.json on the classpath.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testJsonSource() throws IOException {
+    JsonSmtpConfigurationSource source = new JsonSmtpConfigurationSource("/smtp-snapshot-test.json");
+    Assert.assertEquals(source.getSmtpConfiguration("support").getDkimDomain(), "mydomain.com");
+    Assert.assertNull(source.getSmtpConfiguration("unknown"));
+  }
+
+  /**
+   * A file per configuration, names that would leave the directory are rejected.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testDirectorySource() throws IOException {
+    File tenants = new File(directory, "tenants");
+    tenants.mkdirs();
+    DirectorySmtpConfigurationSource source = new DirectorySmtpConfigurationSource(tenants);
+    source.putSmtpConfiguration(createConfiguration(1));
+    source.putSmtpConfiguration(createConfiguration(2));
+
+    Assert.assertEquals(source.getSmtpConfiguration("customer-2").getFromEMail(), "info@customer-2.com");
+    Assert.assertNull(source.getSmtpConfiguration("customer-3"));
+    Assert.assertNull(source.getSmtpConfiguration("../tenants/customer-1"));
+  }
+
+  /**
+   * A configuration whose name would leave the directory isn't written.
+   * 
+   * @throws IOException
+   */
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testDirectorySourceRejectsInvalidName() throws IOException {
+    File tenants = new File(directory, "tenants-invalid");
+    tenants.mkdirs();
+    SmtpConfiguration smtpConfiguration = createConfiguration(1);
+    smtpConfiguration.setConfigurationName("../customer-1");
+    new DirectorySmtpConfigurationSource(tenants).putSmtpConfiguration(smtpConfiguration);
+  }
+
+  /**
+   * Every configuration of a large index file is found, unknown names aren't.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testIndexedFileSource() throws IOException {
+    List<SmtpConfiguration> smtpConfigurations = new ArrayList<SmtpConfiguration>();
+    for (int i = 0; i < 10000; i++)
+      smtpConfigurations.add(createConfiguration(i));
+    File indexFile = new File(directory, "tenants.idx");
+    IndexedFileSmtpConfigurationSource.write(indexFile, smtpConfigurations);
+
+    IndexedFileSmtpConfigurationSource source = new IndexedFileSmtpConfigurationSource(indexFile);
+    try {
+      Assert.assertEquals(source.size(), 10000);
+      for (int i = 0; i < 10000; i++)
+        Assert.assertEquals(source.getSmtpConfiguration("customer-" + i).getSmtpPort(), Integer.valueOf(1000 + i));
+      Assert.assertNull(source.getSmtpConfiguration("customer-10000"));
+      Assert.assertNull(source.getSmtpConfiguration(""));
+    } finally {
+      source.close();
+    }
+  }
+
+  /**
+   * The cache keeps no more than the given number of configurations, remembers unknown names and drops invalidated configurations.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testCachingSource() throws IOException {
+    final AtomicInteger loads = new AtomicInteger();
+    SmtpConfigurationSource counting = new SmtpConfigurationSource() {
+      public SmtpConfiguration getSmtpConfiguration(String configurationName) {
+        loads.incrementAndGet();
+        return configurationName.startsWith("customer-") ? createConfiguration(Integer.parseInt(configurationName.substring(9))) : null;
+      }
+    };
+
+    CachingSmtpConfigurationSource cache = new CachingSmtpConfigurationSource(counting, 100);
+    for (int round = 0; round < 3; round++)
+      for (int i = 0; i < 50; i++)
+        Assert.assertEquals(cache.getSmtpConfiguration("customer-" + i).getConfigurationName(), "customer-" + i);
+    Assert.assertEquals(loads.get(), 50);
+    Assert.assertEquals(cache.getHits(), 100);
+
+    Assert.assertNull(cache.getSmtpConfiguration("unknown"));
+    Assert.assertNull(cache.getSmtpConfiguration("unknown"));
+    Assert.assertEquals(loads.get(), 51);
+
+    cache.invalidate("customer-0");
+    cache.getSmtpConfiguration("customer-0");
+    Assert.assertEquals(loads.get(), 52);
+
+    for (int i = 0; i < 10000; i++)
+      cache.getSmtpConfiguration("customer-" + i);
+    Assert.assertTrue(cache.size() <= 100, "Cache grew to " + cache.size());
+  }
+
+  /**
+   * The e-mail handler looks up its configurations in the given source.
+   */
+  @Test
+  public void testHandlerWithSource() {
+    MessageHandlerEMail handler = new MessageHandlerEMail(new CachingSmtpConfigurationSource(new DirectorySmtpConfigurationSource(new File(
+        directory, "missing")), 10));
+    Assert.assertNull(handler.getSmtpConfiguration("customer-1"));
+    Assert.assertTrue(handler.getSmtpConfigurations().isEmpty());
+  }
+
+  private static SmtpConfiguration createConfiguration(int i) {
+    return new SmtpConfiguration("customer-" + i, "smtp.customer-" + i + ".com", 1000 + i, true, false, "info@customer-" + i + ".com",
+        "secret", "info@customer-" + i + ".com", "Customer " + i);
+  }
+}
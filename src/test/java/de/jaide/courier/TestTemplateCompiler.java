@@ -0,0 +1,243 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.file.MessageHandlerFile;
+import de.jaide.courier.pipeline.CompiledTemplate;
+import de.jaide.courier.pipeline.TemplateCompiler;
+import de.jaide.courier.pipeline.TemplateEngine;
+import de.jaide.courier.pipeline.TemplatePart;
+import freemarker.cache.StringTemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * Tests the template compiler: compiled templates render exactly what Freemarker renders or leave it to Freemarker, templates beyond the
+ * supported subset aren't compiled, and the rendering stage uses the compiled templates of the templates opted in.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestTemplateCompiler {
+  private static final String[] SUPPORTED = {
+      "Hello ${name}!",
+      "${name?html} ${name} ${name?html?html}",
+      "<#escape x as x?html>${name} <#if name??>${name?html}</#if></#escape> ${name}",
+      "${missing!} ${missing!\"n/a\"} ${(missing!\"<b>\")?html} ${(name!'x')?html}",
+      "${member.name}, ${member.company.name!\"no company\"}",
+      "Hello<#if name != \"\"> ${name}</#if>,",
+      "<#if !name??>Please<#else>${name}, please</#if> activate",
+      "<#if name == \"Peter\">P<#elseif name = 'Sarah'>S<#else>?</#if>",
+      "<#if flag>yes<#else>no</#if>",
+      "<#if name?? && (flag || !missing??)>a</#if><#if !(name??) || missing??>b</#if>",
+      "<#list items as item>${item}<#if item_has_next>, </#if></#list>",
+      "<#list members as member>${member.name}: <#list member.tags as tag>${tag}/${member.name}<#if tag_has_next>+</#if></#list>\n</#list>",
+      "<ul>\n  <#list items as item>\n  <li>${item?html}</li>\n  </#list>\n</ul>\n",
+      "  <#-- comment -->\nText\r\n\t<#if flag>  \r\nyes\r\n  </#if>\r\nend  <#-- trailing -->  \nlast <#if flag>x</#if>\n",
+      "<#if flag>\n  a\n<#else>\n  b\n</#if>",
+      "<ul>\n  <#if flag>\n  <li>${name}</li>\n  <#else>\n  <li>-</li>\n  </#if>\n</ul>\n  <#list items as item>\n  ${item}\n  </#list>\n",
+      "a\n  <#-- c -->\nb\n\t<#if name??\n  >\tc\r\r</#if>\n<#-- a\nb -->", "Price: 5$ {not} $name < 3 > 2 & \"quoted\"", "" };
+
+  private static final String[] UNSUPPORTED = { "${count?string}", "<#assign x = 1>${x}", "#{count}", "<@macro/>", "${name + \"!\"}",
+      "${items[0]}", "<#list items as item>${item_index}</#list>", "<#if (count > 1)>many</#if>", "<#if !name == \"x\">x</#if>",
+      "${\"a\\n\"}", "<#if true>x</#if>", "<#if name??>x", "</#if>" };
+
+  private File directory;
+
+  @BeforeClass
+  public void init() throws IOException {
+    directory = new File("target/test-template-compiler-" + System.currentTimeMillis());
+    FileUtils.writeStringToFile(new File(directory, "welcome_subject.ftl"), "Welcome<#if name??>, ${name}</#if>!", "UTF-8");
+    FileUtils.writeStringToFile(new File(directory, "welcome_body.ftl.txt"), "<#list items as item>\n- ${item}\n</#list>\n${count!}",
+        "UTF-8");
+  }
+
+  @AfterClass
+  public void cleanup() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  /**
+   * For each template and set of parameters, the compiled template renders what Freemarker renders, or returns null where Freemarker
+   * fails or gets numbers or JavaBeans.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testSameOutput() throws Exception {
+    Configuration configuration = createConfiguration(SUPPORTED);
+    TemplateCompiler compiler = new TemplateCompiler();
+    int compiled = 0;
+    int fallbacks = 0;
+    for (int i = 0; i < SUPPORTED.length; i++) {
+      Template template = configuration.getTemplate("template" + i);
+      CompiledTemplate compiledTemplate = compiler.compile(template);
+      Assert.assertNotNull(compiledTemplate, SUPPORTED[i]);
+
+      for (Map<String, Object> parameters : createParameters()) {
+        String expected;
+        try {
+          StringWriter writer = new StringWriter();
+          template.process(parameters, writer);
+          expected = writer.toString();
+        } catch (Exception e) {
+          expected = null;
+        }
+
+        String actual = compiledTemplate.render(parameters);
+        if (actual == null) {
+          fallbacks++;
+          Assert.assertTrue((expected == null) || parameters.containsKey("lenient"), SUPPORTED[i] + " with " + parameters
+              + " fell back, but Freemarker rendered '" + expected + "'");
+        } else {
+          compiled++;
+          Assert.assertEquals(actual, expected, SUPPORTED[i] + " with " + parameters);
+        }
+      }
+    }
+    Assert.assertTrue(compiled > fallbacks, compiled + " compiled, " + fallbacks + " fell back");
+  }
+
+  /**
+   * Templates beyond the supported subset aren't compiled.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testUnsupported() throws Exception {
+    Configuration configuration = createConfiguration(UNSUPPORTED);
+    TemplateCompiler compiler = new TemplateCompiler();
+    for (int i = 0; i < UNSUPPORTED.length; i++) {
+      Template template;
+      try {
+        template = configuration.getTemplate("template" + i);
+      } catch (IOException ioe) {
+        continue; // Not even Freemarker understands it.
+      }
+      Assert.assertNull(compiler.compile(template), UNSUPPORTED[i]);
+    }
+  }
+
+  /**
+   * The rendering stage uses the compiled templates with hot reloading turned off, and Freemarker for the other templates and where the
+   * parameters need it.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testRenderingStage() throws Exception {
+    MessageHandlerFile handler = new MessageHandlerFile(new File(directory, "outbox"));
+    TemplateEngine engine = handler.getTemplateEngine();
+    TemplateCompiler compiler = engine.getTemplateCompiler();
+    compiler.addTemplate("welcome");
+
+    Map<String, Object> parameters = createMessageParameters();
+    Assert.assertEquals(handler.process(parameters).getRenderedPart(TemplatePart.SUBJECT), "Welcome, Peter!");
+    Assert.assertEquals(compiler.getCompiledRenders(), 0, "Not compiled with hot reloading");
+
+    engine.setHotReload(false);
+    Assert.assertEquals(handler.process(parameters).getRenderedPart(TemplatePart.SUBJECT), "Welcome, Peter!");
+    Assert.assertEquals(handler.process(parameters).getRenderedPart(TemplatePart.BODY_TEXT), "- a\n- b\n");
+    Assert.assertEquals(compiler.getCompiledRenders(), 4);
+
+    parameters.put("count", 3);
+    Assert.assertEquals(handler.process(parameters).getRenderedPart(TemplatePart.BODY_TEXT), "- a\n- b\n3");
+    Assert.assertEquals(compiler.getFallbacks(), 1);
+
+    compiler.removeTemplate("welcome");
+    handler.process(parameters);
+    Assert.assertEquals(compiler.getCompiledRenders(), 5);
+  }
+
+  private Configuration createConfiguration(String[] sources) {
+    StringTemplateLoader loader = new StringTemplateLoader();
+    for (int i = 0; i < sources.length; i++)
+      loader.putTemplate("template" + i, sources[i]);
+
+    Configuration configuration = new Configuration();
+    configuration.setIncompatibleEnhancements(TemplateEngine.FREEMARKER_VERSION);
+    configuration.setLocalizedLookup(false);
+    configuration.setTemplateLoader(loader);
+    return configuration;
+  }
+
+  private List<Map<String, Object>> createParameters() {
+    Map<String, Object> company = new HashMap<String, Object>();
+    company.put("name", "JAIDE \"GmbH\"");
+    Map<String, Object> sarah = new HashMap<String, Object>();
+    sarah.put("name", "Sarah");
+    sarah.put("company", company);
+    sarah.put("tags", Arrays.asList("a", "b"));
+    Map<String, Object> peter = new HashMap<String, Object>();
+    peter.put("name", "<Peter & Paul>");
+    peter.put("company", Collections.emptyMap());
+    peter.put("tags", new String[0]);
+
+    List<Map<String, Object>> parameters = new ArrayList<Map<String, Object>>();
+    parameters.add(createParameters("Peter", true, Arrays.asList("x", "<y>"), sarah, Arrays.asList(new Object[] { sarah, peter })));
+    parameters.add(createParameters("Sarah", false, Collections.emptyList(), peter, Collections.singletonList(peter)));
+    parameters.add(createParameters("", false, new String[] { "1", "2", "3" }, sarah, new Object[] { peter, sarah }));
+    parameters.add(createParameters("<b>J\u00f6rg</b>", true, Collections.singleton("&"), peter, Collections.emptyList()));
+    parameters.add(createParameters("peter", true, Arrays.asList("x", null), sarah, Collections.singletonList(peter)));
+    parameters.add(createParameters(null, null, null, null, null));
+    parameters.add(createParameters("Peter", "true", "items", "member", "members"));
+    parameters.add(createParameters(42, 1, Arrays.asList(1, 2), Collections.singletonMap("name", 3), Collections.singletonList(sarah)));
+
+    /*
+     * Numbers and null items are left to Freemarker, even where it would render them.
+     */
+    parameters.get(4).put("lenient", Boolean.TRUE);
+    parameters.get(7).put("lenient", Boolean.TRUE);
+    return parameters;
+  }
+
+  private Map<String, Object> createParameters(Object name, Object flag, Object items, Object member, Object members) {
+    Map<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put("name", name);
+    parameters.put("flag", flag);
+    parameters.put("items", items);
+    parameters.put("member", member);
+    parameters.put("members", members);
+    return parameters;
+  }
+
+  private Map<String, Object> createMessageParameters() {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH_FILE, directory);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_NAME, "welcome");
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.TEXT);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_RECIPIENT, "peter@some-domain.tld");
+    mappedParameters.put("name", "Peter");
+    mappedParameters.put("items", Arrays.asList("a", "b"));
+    return mappedParameters;
+  }
+}
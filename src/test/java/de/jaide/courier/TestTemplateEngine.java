@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.file.MessageHandlerFile;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.ParameterModel;
+import de.jaide.courier.pipeline.TemplateEngine;
+import de.jaide.courier.pipeline.TemplatePart;
+import freemarker.template.Configuration;
+
+/**
+ * Tests the production profile of the template engine: turning hot reloading off and the model shared by the parts of a message.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestTemplateEngine {
+  private File directory;
+  private File templates;
+
+  @BeforeClass
+  public void init() throws IOException {
+    directory = new File("target/test-template-engine-" + System.currentTimeMillis());
+    templates = new File(directory, "templates");
+    FileUtils.writeStringToFile(new File(templates, "alert_subject.ftl"), "Alert for ${member.name}", "UTF-8");
+    FileUtils.writeStringToFile(new File(templates, "alert_body.ftl.txt"), "${count} times, ${missing!\"nothing\"} missing.", "UTF-8");
+  }
+
+  @AfterClass
+  public void cleanup() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  /**
+   * With hot reloading turned off changed templates aren't picked up, turning it on again picks them up.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testHotReload() throws IOException {
+    File subject = new File(templates, "reload_subject.ftl");
+    FileUtils.writeStringToFile(subject, "Alert for ${member.name}", "UTF-8");
+    FileUtils.writeStringToFile(new File(templates, "reload_body.ftl.txt"), "Something happened.", "UTF-8");
+
+    MessageHandlerFile handler = new MessageHandlerFile(new File(directory, "outbox"));
+    TemplateEngine engine = handler.getTemplateEngine();
+    Assert.assertTrue(engine.isHotReload());
+    Configuration configuration = engine.getConfiguration(templates);
+    Assert.assertTrue(configuration.getLocalizedLookup());
+    Assert.assertSame(configuration.getObjectWrapper(), engine.getObjectWrapper());
+
+    engine.setHotReload(false);
+    Assert.assertFalse(configuration.getLocalizedLookup(), "Existing configurations must be switched, too");
+    Map<String, Object> mappedParameters = createParameters("reload");
+    Assert.assertEquals(handler.process(mappedParameters).getRenderedPart(TemplatePart.SUBJECT), "Alert for Sarah");
+
+    FileUtils.writeStringToFile(subject, "Warning for ${member.name}", "UTF-8");
+    subject.setLastModified(subject.lastModified() + 10000);
+    Assert.assertEquals(handler.process(mappedParameters).getRenderedPart(TemplatePart.SUBJECT), "Alert for Sarah");
+
+    engine.setHotReload(true);
+    Assert.assertTrue(configuration.getLocalizedLookup());
+    configuration.setTemplateUpdateDelay(0);
+    Assert.assertEquals(handler.process(mappedParameters).getRenderedPart(TemplatePart.SUBJECT), "Warning for Sarah");
+  }
+
+  /**
+   * All parts of a message are rendered with the same model, which wraps JavaBeans and tells missing parameters apart.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testParameterModel() throws Exception {
+    MessageHandlerFile handler = new MessageHandlerFile(new File(directory, "outbox"));
+    handler.getTemplateEngine().setHotReload(false);
+
+    MessageContext context = handler.process(createParameters("alert"));
+    Assert.assertEquals(context.getRenderedPart(TemplatePart.SUBJECT), "Alert for Sarah");
+    Assert.assertEquals(context.getRenderedPart(TemplatePart.BODY_TEXT), "3 times, nothing missing.");
+
+    ParameterModel model = (ParameterModel) context.getAttribute(ParameterModel.ATTRIBUTE_PARAMETER_MODEL);
+    Assert.assertSame(ParameterModel.get(context), model);
+    Assert.assertEquals(model.size(), context.getParameters().size());
+    Assert.assertNull(model.get("missing"));
+    Assert.assertNotNull(model.get("member"));
+  }
+
+  private Map<String, Object> createParameters(String templateName) {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH_FILE, templates);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_NAME, templateName);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.TEXT);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_RECIPIENT, "peter@some-domain.tld");
+    mappedParameters.put("member", new Member("Sarah"));
+    mappedParameters.put("count", 3);
+    return mappedParameters;
+  }
+
+  /**
+   * A JavaBean passed as a parameter.
+   */
+  public static class Member {
+    private final String name;
+
+    Member(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+}
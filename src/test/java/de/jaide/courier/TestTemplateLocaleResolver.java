@@ -0,0 +1,178 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.exception.CourierException;
+import de.jaide.courier.file.MessageHandlerFile;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.TemplateLocaleResolver;
+import de.jaide.courier.pipeline.TemplateIndex;
+import de.jaide.courier.pipeline.TemplatePart;
+import freemarker.template.Configuration;
+
+/**
+ * Tests picking the template parts of the best matching locale, falling back to less specific locales and the default locale.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestTemplateLocaleResolver {
+  private File directory;
+  private MessageHandlerFile handler;
+
+  @BeforeClass
+  public void init() {
+    directory = new File("target/test-locales-" + System.currentTimeMillis());
+    handler = new MessageHandlerFile(new File(directory, "outbox"));
+  }
+
+  @AfterClass
+  public void cleanup() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  /**
+   * The Austrian subject is combined with the German body, the HTML body only exists in English.
+   */
+  @Test
+  public void testFallbackPerPart() {
+    MessageContext context = handler.process(createParameters("de_AT", TemplateTypeEnum.BOTH));
+    Assert.assertEquals(context.getLocale(), new Locale("de", "AT"));
+    Assert.assertEquals(context.getRenderedPart(TemplatePart.SUBJECT), "Servus, Peter!");
+    Assert.assertTrue(context.getRenderedPart(TemplatePart.BODY_TEXT).startsWith("Hallo Peter,"));
+    Assert.assertTrue(context.getRenderedPart(TemplatePart.BODY_HTML).startsWith("<p>Dear Peter,"));
+
+    context = handler.process(createParameters(new Locale("de", "CH"), TemplateTypeEnum.TEXT));
+    Assert.assertEquals(context.getRenderedPart(TemplatePart.SUBJECT), "Willkommen, Peter!");
+
+    context = handler.process(createParameters("fr-FR", TemplateTypeEnum.ANY));
+    Assert.assertEquals(context.getRenderedPart(TemplatePart.SUBJECT), "Welcome, Peter!");
+    Assert.assertTrue(context.getRenderedPart(TemplatePart.BODY_TEXT).startsWith("Dear Peter,"));
+  }
+
+  /**
+   * The directories are probed once per template and locale.
+   */
+  @Test
+  public void testResolutionIsRemembered() {
+    TemplateLocaleResolver resolver = handler.getTemplateEngine().getLocaleResolver();
+    resolver.invalidateAll();
+
+    for (int i = 0; i < 10; i++)
+      handler.process(createParameters("de_AT", TemplateTypeEnum.TEXT));
+    handler.process(createParameters("de_AT", TemplateTypeEnum.HTML));
+    Assert.assertEquals(resolver.size(), 1);
+
+    handler.process(createParameters("en", TemplateTypeEnum.TEXT));
+    Assert.assertEquals(resolver.size(), 2);
+  }
+
+  /**
+   * Locales made up by callers don't pile up, only the most recently used resolutions are kept.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testResolutionsAreBounded() throws IOException {
+    File templates = new File(directory, "bounded");
+    FileUtils.writeStringToFile(new File(templates, "en/note_subject.ftl"), "Note", "UTF-8");
+    Configuration configuration = new Configuration();
+    configuration.setDirectoryForTemplateLoading(templates);
+
+    TemplateLocaleResolver resolver = new TemplateLocaleResolver(new TemplateIndex(), 4);
+    for (int i = 0; i < 100; i++) {
+      TemplateLocaleResolver.Resolution resolution = resolver.resolve(configuration, templates, "note", new Locale("x" + i));
+      Assert.assertEquals(resolution.getFilename(TemplatePart.SUBJECT), "en/note_subject.ftl");
+    }
+    Assert.assertEquals(resolver.size(), 4);
+
+    TemplateLocaleResolver.Resolution recent = resolver.resolve(configuration, templates, "note", new Locale("x99"));
+    Assert.assertSame(resolver.resolve(configuration, templates, "note", new Locale("x99")), recent);
+    Assert.assertEquals(resolver.size(), 4);
+  }
+
+  /**
+   * The fallback chain ends with the default locale and the template location itself.
+   */
+  @Test
+  public void testCandidates() {
+    TemplateLocaleResolver resolver = new TemplateLocaleResolver(null);
+    Assert.assertEquals(resolver.getCandidates(TemplateLocaleResolver.toLocale("de_AT")), Arrays.asList("de_AT", "de", "en", ""));
+    Assert.assertEquals(resolver.getCandidates(Locale.US), Arrays.asList("en_US", "en", ""));
+
+    resolver.setDefaultLocale(Locale.GERMANY);
+    Assert.assertEquals(resolver.getCandidates(Locale.ENGLISH), Arrays.asList("en", "de_DE", "de", ""));
+  }
+
+  /**
+   * A subject that doesn't exist in any of the locale directories fails the message.
+   */
+  @Test(expectedExceptions = CourierException.class, expectedExceptionsMessageRegExp = ".*missing_subject.ftl.*de_AT.*")
+  public void testMissingPart() {
+    Map<String, Object> mappedParameters = createParameters("de_AT", TemplateTypeEnum.TEXT);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_NAME, "missing");
+    handler.process(mappedParameters);
+  }
+
+  /**
+   * Templates loaded from a directory, a translation added later on is used once the remembered resolution was dropped.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testTemplateDirectory() throws IOException {
+    File templates = new File(directory, "templates");
+    FileUtils.writeStringToFile(new File(templates, "en/news_subject.ftl"), "News for ${name}", "UTF-8");
+    FileUtils.writeStringToFile(new File(templates, "en/news_body.ftl.txt"), "Hi ${name}", "UTF-8");
+
+    Map<String, Object> mappedParameters = createParameters("de", TemplateTypeEnum.TEXT);
+    mappedParameters.remove(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH_FILE, templates);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_NAME, "news");
+    Assert.assertEquals(handler.process(mappedParameters).getRenderedPart(TemplatePart.SUBJECT), "News for Peter");
+
+    FileUtils.writeStringToFile(new File(templates, "de/news_subject.ftl"), "Neuigkeiten, ${name}", "UTF-8");
+    handler.getTemplateEngine().getLocaleResolver().invalidateAll();
+    MessageContext context = handler.process(mappedParameters);
+    Assert.assertEquals(context.getRenderedPart(TemplatePart.SUBJECT), "Neuigkeiten, Peter");
+    Assert.assertEquals(context.getRenderedPart(TemplatePart.BODY_TEXT), "Hi Peter");
+  }
+
+  private Map<String, Object> createParameters(Object locale, TemplateTypeEnum templateType) {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH, "/i18n_templates/");
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_NAME, "greeting");
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_TEMPLATE_TYPE, templateType);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_LOCALE, locale);
+    mappedParameters.put(MessageHandlerFile.MAPPING_PARAM_RECIPIENT, "peter@some-domain.tld");
+    mappedParameters.put("name", "Peter");
+    return mappedParameters;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import de.jaide.courier.benchmark.FakeSmtpServer;
+import de.jaide.courier.email.EMailWarmUp;
+import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationSource;
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.email.WarmUpReport;
+import de.jaide.courier.email.smtp.SmtpClientTransportStage;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+import de.jaide.courier.pipeline.TemplatePart;
+
+/**
+ * Tests the warm-up: every template is run through the stages before the transport stage without sending anything, the SMTP client's
+ * connections are opened ahead of the first e-mail, and the service is ready afterwards.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TestWarmUp {
+  /**
+   * The templates are rendered and assembled with the synthetic model, the connections are opened and reused by the first e-mail.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testWarmUp() throws Exception {
+    FakeSmtpServer server = new FakeSmtpServer();
+    try {
+      MessageHandlerEMail handler = createHandler(server);
+      SmtpClientTransportStage smtpClient = handler.enableSmtpClient();
+
+      EMailWarmUp warmUp = new EMailWarmUp(handler);
+      warmUp.addTemplatePath(getClass(), "/email_templates/en/");
+      warmUp.addTemplatePath(getClass(), "/no_templates/");
+      warmUp.addConfiguration("fake");
+      warmUp.setIterations(5);
+      warmUp.setConnections(3);
+
+      WarmUpReport report = CourierService.getInstance().warmUp(warmUp);
+      Assert.assertTrue(CourierService.getInstance().isReady());
+      Assert.assertTrue(CourierService.getInstance().awaitReady(0, TimeUnit.SECONDS));
+
+      Assert.assertEquals(report.getTemplates(), 2);
+      Assert.assertEquals(report.getRenders(), 10, report.getFailures().toString());
+      Assert.assertEquals(report.getFailures().size(), 1, report.getFailures().toString());
+      Assert.assertTrue(report.getFailures().keySet().iterator().next().contains("/no_templates/"), report.getFailures().toString());
+      Assert.assertEquals(report.getConnections(), 3);
+      Assert.assertEquals(smtpClient.getPool().getIdleConnections(), 3);
+      Assert.assertEquals(server.getMessages(), 0);
+      Assert.assertNull(handler.getMetrics().getStageMetrics(PipelineMessageHandler.STAGE_RENDER), "Counted the warm-up");
+
+      handler.process(createParameters());
+      Assert.assertEquals(server.getMessages(), 1);
+      Assert.assertEquals(smtpClient.getPool().getReusedConnections(), 1);
+      Assert.assertEquals(smtpClient.getPool().getCreatedConnections(), 3);
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * A dry run stops before the transport stage, with the e-mail assembled.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testDryRun() throws Exception {
+    FakeSmtpServer server = new FakeSmtpServer();
+    try {
+      MessageHandlerEMail handler = createHandler(server);
+      MessageContext context = handler.dryRun(createParameters());
+      Assert.assertNotNull(context.getEncodedMessage());
+      Assert.assertNotNull(context.getRenderedPart(TemplatePart.SUBJECT));
+      Assert.assertEquals(server.getMessages(), 0);
+    } finally {
+      server.stop();
+    }
+  }
+
+  private MessageHandlerEMail createHandler(FakeSmtpServer server) {
+    final SmtpConfiguration smtpConfiguration = new SmtpConfiguration("fake", "127.0.0.1", server.getPort(), false, false, null, null,
+        "courier@some-domain.tld", "Courier");
+    return new MessageHandlerEMail(new SmtpConfigurationSource() {
+      public SmtpConfiguration getSmtpConfiguration(String configurationName) {
+        return smtpConfiguration;
+      }
+    });
+  }
+
+  private Map<String, Object> createParameters() {
+    Map<String, Object> mappedParameters = new HashMap<String, Object>();
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_CONFIGURATION_NAME, "fake");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH, "/email_templates/en/");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS, this.getClass());
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_NAME, "signup");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.HTML);
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME, "Peter");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_LASTNAME, "Miller");
+    mappedParameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL, "peter.miller@some-domain.tld");
+    mappedParameters.put("link", "http://www.jaide.de/projects/notify/confirm?id=123");
+    return mappedParameters;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.mail.internet.InternetAddress;
+
+import de.jaide.courier.email.AddressNormalizer;
+import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationSource;
+import de.jaide.courier.email.SuppressionList;
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.exception.CourierException;
+
+/**
+ * Measures what a malformed recipient costs: through a handler without address validation, where it fails while the e-mail is assembled
+ * after rendering, or at the server, and through one with address validation, where it is rejected before rendering. Then compares
+ * checking valid addresses with the address normalizer and a suppression list with parsing them as JavaMail's InternetAddress.<br/>
+ * Usage: AddressValidationBenchmark [number of suppressed addresses, defaults to 1000000]
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class AddressValidationBenchmark {
+  private static final String[] DOMAINS = { "some-domain.tld", "Other-Domain.TLD", "mail.some-domain.tld", "example.org", "example.com" };
+
+  public static void main(String[] args) throws Exception {
+    int suppressed = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+    FakeSmtpServer server = new FakeSmtpServer();
+    try {
+      Benchmark benchmark = new Benchmark(5, 5, 1000);
+      MessageHandlerEMail handler = createHandler(server);
+      double before = benchmark.run("reject: without address validation", process(handler, "peter miller@some-domain.tld"));
+      handler.enableAddressValidation();
+      double after = benchmark.run("reject: address validation", process(handler, "peter miller@some-domain.tld"));
+      System.out.println(String.format("speedup: %.2fx", before / after));
+    } finally {
+      server.stop();
+    }
+
+    final String[] addresses = new String[10000];
+    for (int i = 0; i < addresses.length; i++)
+      addresses[i] = "member." + i + "@" + DOMAINS[i % DOMAINS.length];
+
+    final AddressNormalizer normalizer = new AddressNormalizer();
+    final SuppressionList suppressionList = new SuppressionList();
+    for (int i = 0; i < suppressed; i++)
+      suppressionList.add(normalizer.normalize("member." + (i * 20) + "@" + DOMAINS[(i * 20) % DOMAINS.length]));
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    System.out.println(String.format("%d suppressed addresses, heap used %d MB", suppressionList.size(), (runtime.totalMemory() - runtime
+        .freeMemory()) / 1024 / 1024));
+
+    Benchmark benchmark = new Benchmark(10, 10, addresses.length);
+    double before = benchmark.run("check: InternetAddress", new Callable<Object>() {
+      private int i;
+
+      public Object call() throws Exception {
+        return new InternetAddress(addresses[i++ % addresses.length], true);
+      }
+    });
+    double after = benchmark.run("check: normalizer", new Callable<Object>() {
+      private int i;
+
+      public Object call() {
+        return normalizer.normalize(addresses[i++ % addresses.length]);
+      }
+    });
+    benchmark.run("check: normalizer and suppression list", new Callable<Object>() {
+      private int i;
+
+      public Object call() {
+        String address = normalizer.normalize(addresses[i++ % addresses.length]);
+        return suppressionList.contains(address) ? null : address;
+      }
+    });
+    System.out.println(String.format("speedup: %.2fx", before / after));
+  }
+
+  private static Callable<Object> process(final MessageHandlerEMail handler, String recipient) {
+    final Map<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_CONFIGURATION_NAME, "fake");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH, "/email_templates/en/");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS, AddressValidationBenchmark.class);
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_NAME, "signup");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.HTML);
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME, "Peter");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_LASTNAME, "Miller");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL, recipient);
+    parameters.put("link", "http://www.jaide.de/projects/notify/confirm?id=123");
+    return new Callable<Object>() {
+      public Object call() {
+        try {
+          return handler.process(parameters);
+        } catch (CourierException ce) {
+          return ce;
+        }
+      }
+    };
+  }
+
+  private static MessageHandlerEMail createHandler(FakeSmtpServer server) {
+    final SmtpConfiguration smtpConfiguration = new SmtpConfiguration("fake", "127.0.0.1", server.getPort(), false, false, null, null,
+        "courier@some-domain.tld", "Courier");
+    MessageHandlerEMail handler = new MessageHandlerEMail(new SmtpConfigurationSource() {
+      public SmtpConfiguration getSmtpConfiguration(String configurationName) {
+        return smtpConfiguration;
+      }
+    });
+    handler.getTemplateEngine().setHotReload(false);
+    return handler;
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.benchmark;
+
+import java.util.concurrent.Callable;
+
+/**
+ * A minimal benchmark harness: runs a task for a number of warm-up rounds, so the JIT compiler settles, then measures the average time
+ * per call over the measured rounds. The results of the task are consumed so the JIT compiler can't drop the work.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class Benchmark {
+  private final int warmupRounds;
+  private final int measuredRounds;
+  private final int callsPerRound;
+
+  /**
+   * Keeps the results alive.
+   */
+  private volatile int sink;
+
+  /**
+   * Creates a new harness.
+   * 
+   * @param warmupRounds The number of rounds that are run but not measured.
+   * @param measuredRounds The number of rounds that are measured.
+   * @param callsPerRound The number of calls of the task per round.
+   */
+  public Benchmark(int warmupRounds, int measuredRounds, int callsPerRound) {
+    this.warmupRounds = warmupRounds;
+    this.measuredRounds = measuredRounds;
+    this.callsPerRound = callsPerRound;
+  }
+
+  /**
+   * Runs the task and prints the time per call.
+   * 
+   * @param name The name of the task.
+   * @param task The task.
+   * @return The average time per call, in nanoseconds, of the fastest round.
+   * @throws Exception Thrown if the task failed.
+   */
+  public double run(String name, Callable<?> task) throws Exception {
+    for (int round = 0; round < warmupRounds; round++)
+      round(task);
+
+    long best = Long.MAX_VALUE;
+    long total = 0;
+    for (int round = 0; round < measuredRounds; round++) {
+      long nanos = round(task);
+      best = Math.min(best, nanos);
+      total += nanos;
+    }
+
+    double bestPerCall = (double) best / callsPerRound;
+    System.out.println(String.format("%-50s %12.1f ns/call (best) %12.1f ns/call (mean)", name, bestPerCall, (double) total
+        / measuredRounds / callsPerRound));
+    return bestPerCall;
+  }
+
+  private long round(Callable<?> task) throws Exception {
+    long start = System.nanoTime();
+    for (int i = 0; i < callsPerRound; i++)
+      sink += System.identityHashCode(task.call());
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import de.jaide.courier.delivery.DeliveryEvent;
+import de.jaide.courier.delivery.DeliveryEventSink;
+import de.jaide.courier.delivery.DeliveryTracker;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+
+/**
+ * Measures what recording a delivery event adds to sending a message, with and without a sink, and how long queries on a full index
+ * take.<br/>
+ * Usage: DeliveryTrackingBenchmark [capacity of the index, defaults to 100000]
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class DeliveryTrackingBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+    Map<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put(PipelineMessageHandler.MAPPING_PARAM_TEMPLATE_NAME, "signup");
+    final MessageContext context = new MessageContext(parameters);
+    context.setAttribute(DeliveryEvent.ATTRIBUTE_SERVER_REPLY, "250 2.0.0 Ok: queued as 4F1A2B3C");
+    context.setAttribute(DeliveryEvent.ATTRIBUTE_QUEUE_ID, "4F1A2B3C");
+
+    final DeliveryTracker tracker = new DeliveryTracker(capacity);
+    final DeliveryTracker trackerWithSink = new DeliveryTracker(capacity);
+    trackerWithSink.addSink(new DeliveryEventSink() {
+      public void onEvent(DeliveryEvent event) {
+      }
+    });
+
+    System.out.println("index capacity " + capacity);
+    Benchmark benchmark = new Benchmark(20, 10, 100000);
+    benchmark.run("record", record(tracker, context));
+    benchmark.run("record, with sink", record(trackerWithSink, context));
+    System.out.println("dropped by the sink queue: " + trackerWithSink.getDroppedEvents());
+
+    Benchmark queries = new Benchmark(20, 10, 100);
+    queries.run("query: recipient, whole index", new Callable<Object>() {
+      public Object call() {
+        return tracker.getIndex().findByRecipient("member4711@some-domain.tld", 0, Long.MAX_VALUE);
+      }
+    });
+    queries.run("query: template, last 1000 events", new Callable<Object>() {
+      public Object call() {
+        return tracker.getIndex().find(null, "signup", null, 0, Long.MAX_VALUE, 1000);
+      }
+    });
+  }
+
+  private static Callable<Object> record(final DeliveryTracker tracker, final MessageContext context) {
+    return new Callable<Object>() {
+      private int count;
+
+      public Object call() {
+        return tracker.record(context, "member" + (count++ % 10000) + "@some-domain.tld", 1000, null);
+      }
+    };
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An SMTP server on the loopback interface that accepts every message and throws it away, so the e-mail handler can be loaded without
+ * sending any e-mails. Speaks just enough SMTP for JavaMail and the SMTP client: no TLS, no authentication, but PIPELINING, CHUNKING and
+ * 8BITMIME if told to advertise them. Optionally waits before accepting each message, to play a slow server.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class FakeSmtpServer {
+  private final ServerSocket serverSocket;
+  private final ExecutorService sessions;
+  private volatile long latencyMillis;
+  private volatile String dataReply = "250 OK queued";
+  private volatile String[] extensions = { "8BITMIME" };
+  private volatile String rejectedRecipient;
+  private volatile boolean running = true;
+  private volatile String lastMailCommand;
+  private volatile String lastMessage;
+
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong quits = new AtomicLong();
+
+  /**
+   * Starts a new server on a free port of the loopback interface.
+   * 
+   * @throws IOException Thrown if the server socket couldn't be opened.
+   */
+  public FakeSmtpServer() throws IOException {
+    serverSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+    sessions = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "fake-smtp-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    sessions.execute(new Runnable() {
+      public void run() {
+        accept();
+      }
+    });
+  }
+
+  /**
+   * The port the server listens on.
+   * 
+   * @return The port.
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Sets how long the server waits before accepting a message.
+   * 
+   * @param latencyMillis The latency in milliseconds.
+   */
+  public void setLatencyMillis(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
+  /**
+   * Sets what the server replies once it received a message, e.g. "451 4.3.0 Try again later" to play a server that defers messages.
+   * Messages are only counted as accepted if the reply starts with "2".
+   * 
+   * @param dataReply The reply, including the reply code.
+   */
+  public void setDataReply(String dataReply) {
+    this.dataReply = dataReply;
+  }
+
+  /**
+   * Sets a recipient the server rejects with "550 5.1.1 User unknown".
+   * 
+   * @param rejectedRecipient The address, or null to accept all recipients.
+   */
+  public void setRejectedRecipient(String rejectedRecipient) {
+    this.rejectedRecipient = rejectedRecipient;
+  }
+
+  /**
+   * Sets the ESMTP extensions the server advertises in its reply to EHLO, e.g. "PIPELINING", "CHUNKING", "8BITMIME" and "SIZE 10240000".
+   * BDAT is understood whether CHUNKING is advertised or not.
+   * 
+   * @param extensions The extensions.
+   */
+  public void setExtensions(String... extensions) {
+    this.extensions = extensions;
+  }
+
+  /**
+   * The MAIL FROM command of the last message, e.g. to check its BODY parameter.
+   * 
+   * @return The command.
+   */
+  public String getLastMailCommand() {
+    return lastMailCommand;
+  }
+
+  /**
+   * The last message accepted, as received with BDAT or with DATA after undoing the dot-stuffing, read as ISO-8859-1.
+   * 
+   * @return The message, including the headers.
+   */
+  public String getLastMessage() {
+    return lastMessage;
+  }
+
+  /**
+   * The number of messages accepted so far.
+   * 
+   * @return The number of messages.
+   */
+  public long getMessages() {
+    return messages.get();
+  }
+
+  /**
+   * The number of bytes of message data accepted so far, not counting line breaks.
+   * 
+   * @return The number of bytes.
+   */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  /**
+   * The number of sessions the clients ended with QUIT.
+   * 
+   * @return The number of sessions.
+   */
+  public long getQuits() {
+    return quits.get();
+  }
+
+  /**
+   * Stops the server.
+   */
+  public void stop() {
+    running = false;
+    try {
+      serverSocket.close();
+    } catch (IOException ioe) {
+      // Nothing left to do.
+    }
+    sessions.shutdownNow();
+  }
+
+  private void accept() {
+    while (running) {
+      try {
+        final Socket socket = serverSocket.accept();
+        sessions.execute(new Runnable() {
+          public void run() {
+            serve(socket);
+          }
+        });
+      } catch (SocketException se) {
+        // Closed by stop().
+      } catch (IOException ioe) {
+        if (running)
+          ioe.printStackTrace();
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+      Writer out = new OutputStreamWriter(socket.getOutputStream(), "ISO-8859-1");
+      reply(in, out, "220 localhost fake ESMTP");
+
+      String line;
+      StringBuilder chunks = new StringBuilder();
+      while ((line = in.readLine()) != null) {
+        String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+        if (command.equals("EHLO")) {
+          reply(in, out, ehloReply());
+        } else if (command.equals("MAIL")) {
+          lastMailCommand = line;
+          chunks.setLength(0);
+          reply(in, out, "250 OK");
+        } else if (command.equals("RCPT")) {
+          String rejectedRecipient = this.rejectedRecipient;
+          reply(in, out, (rejectedRecipient != null) && line.contains("<" + rejectedRecipient + ">") ? "550 5.1.1 User unknown" : "250 OK");
+        } else if (command.equals("BDAT")) {
+          String[] arguments = line.split(" ");
+          char[] chunk = new char[Integer.parseInt(arguments[1])];
+          for (int read = 0; read < chunk.length;) {
+            int count = in.read(chunk, read, chunk.length - read);
+            if (count < 0)
+              return;
+            read += count;
+          }
+          chunks.append(chunk);
+          if ((arguments.length > 2) && arguments[2].equalsIgnoreCase("LAST")) {
+            reply(in, out, accept(chunks.toString()));
+            chunks.setLength(0);
+          } else {
+            reply(in, out, "250 OK " + chunk.length + " octets received");
+          }
+        } else if (command.equals("DATA")) {
+          reply(in, out, "354 End data with <CR><LF>.<CR><LF>");
+          StringBuilder message = new StringBuilder();
+          while (((line = in.readLine()) != null) && !line.equals("."))
+            message.append(line.startsWith(".") ? line.substring(1) : line).append("\r\n");
+          if (line == null)
+            return;
+          reply(in, out, accept(message.toString()));
+        } else if (command.equals("QUIT")) {
+          quits.incrementAndGet();
+          reply(in, out, "221 Bye");
+          break;
+        } else {
+          reply(in, out, "250 OK");
+        }
+      }
+    } catch (IOException ioe) {
+      // The client went away.
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException ioe) {
+        // Nothing left to do.
+      }
+    }
+  }
+
+  private String ehloReply() {
+    String[] extensions = this.extensions;
+    StringBuilder reply = new StringBuilder(extensions.length == 0 ? "250 localhost" : "250-localhost");
+    for (int i = 0; i < extensions.length; i++)
+      reply.append("\r\n250").append(i == extensions.length - 1 ? ' ' : '-').append(extensions[i]);
+    return reply.toString();
+  }
+
+  /**
+   * Waits, if told to, and decides on the message.
+   */
+  private String accept(String message) throws InterruptedException {
+    if (latencyMillis > 0)
+      Thread.sleep(latencyMillis);
+
+    String reply = dataReply;
+    if (reply.startsWith("2")) {
+      messages.incrementAndGet();
+      bytes.addAndGet(message.replace("\r\n", "").length());
+      lastMessage = message;
+    }
+    return reply;
+  }
+
+  /**
+   * Like real servers, replies to pipelined commands are only flushed once there are no more commands waiting, so they arrive at the
+   * client together.
+   */
+  private void reply(BufferedReader in, Writer out, String reply) throws IOException {
+    out.write(reply);
+    out.write("\r\n");
+    if (!in.ready())
+      out.flush();
+  }
+}
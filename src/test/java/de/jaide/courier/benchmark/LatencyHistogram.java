@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in logarithmic buckets, so any number of them can be recorded concurrently in constant memory. Latencies below 128
+ * microseconds are counted exactly, all others in buckets of 64 per power of two, i.e. with an error below 1.6%, up to about 12 days.
+ * Percentiles report the upper end of their bucket.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class LatencyHistogram {
+  private static final int EXACT = 128;
+  private static final int SUB_BUCKETS = 64;
+  private static final int MAXIMUM_MAGNITUDE = 40;
+
+  private final AtomicLongArray counts = new AtomicLongArray(EXACT + (MAXIMUM_MAGNITUDE - 7) * SUB_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong maximum = new AtomicLong();
+
+  /**
+   * Records a latency.
+   * 
+   * @param nanos The latency in nanoseconds.
+   */
+  public void record(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    counts.incrementAndGet(indexOf(Math.min(micros, (1L << MAXIMUM_MAGNITUDE) - 1)));
+    count.incrementAndGet();
+    total.addAndGet(micros);
+
+    long current;
+    while (micros > (current = maximum.get()))
+      if (maximum.compareAndSet(current, micros))
+        break;
+  }
+
+  /**
+   * The number of recorded latencies.
+   * 
+   * @return The number of latencies.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * The mean of the recorded latencies.
+   * 
+   * @return The mean in microseconds.
+   */
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) total.get() / n;
+  }
+
+  /**
+   * The highest recorded latency.
+   * 
+   * @return The maximum in microseconds.
+   */
+  public long getMaximum() {
+    return maximum.get();
+  }
+
+  /**
+   * The latency the given percentage of the recorded latencies didn't exceed.
+   * 
+   * @param percentile The percentile, e.g. 99.9.
+   * @return The latency in microseconds.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long n = count.get();
+    if (n == 0)
+      return 0;
+
+    long wanted = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= wanted)
+        return Math.min(highestValueAt(i), maximum.get());
+    }
+    return maximum.get();
+  }
+
+  private static int indexOf(long micros) {
+    if (micros < EXACT)
+      return (int) micros;
+
+    int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+    int subBucket = (int) (micros >>> (magnitude - 6)) - SUB_BUCKETS;
+    return EXACT + (magnitude - 7) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long highestValueAt(int index) {
+    if (index < EXACT)
+      return index;
+
+    int magnitude = 7 + (index - EXACT) / SUB_BUCKETS;
+    long subBucket = SUB_BUCKETS + (index - EXACT) % SUB_BUCKETS;
+    return ((subBucket + 1) << (magnitude - 6)) - 1;
+  }
+}
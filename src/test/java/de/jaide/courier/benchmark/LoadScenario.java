@@ -0,0 +1,257 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import de.jaide.courier.email.TemplateTypeEnum;
+
+/**
+ * A workload for the LoadTest, read from a JSON file so releases can be compared on the very same workload:
+ * 
+ * <pre>
+ * {
+ *   "name": "mixed",
+ *   "threads": 8,
+ *   "warmupMessages": 500,
+ *   "messages": 5000,
+ *   "seed": 42,
+ *   "smtpLatencyMillis": 2,
+ *   "mix": [
+ *     { "weight": 3, "templatePath": "/email_templates/en/", "templateName": "contact_accept", "templateType": "BOTH",
+ *       "attachmentBytes": 0, "parameters": { "memberFirstname": "Peter" } }
+ *   ]
+ * }
+ * </pre>
+ * 
+ * Each message is one of the mix entries, picked at random by weight; the sequence of picks only depends on the seed. The parameters of
+ * an entry are passed to the templates as they are, the recipient and the SMTP configuration are added by the LoadTest.
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class LoadScenario {
+  private final String name;
+  private final int threads;
+  private final int warmupMessages;
+  private final int messages;
+  private final long seed;
+  private final long smtpLatencyMillis;
+  private final List<Entry> mix = new ArrayList<Entry>();
+  private int totalWeight;
+
+  /**
+   * Reads a scenario from the given file or, if there is no such file, from the classpath.
+   * 
+   * @param location The path of the file or the absolute name of the classpath resource, e.g. "/load_scenarios/mixed.json".
+   * @return The scenario.
+   * @throws IOException Thrown if the scenario couldn't be read or isn't valid.
+   */
+  public static LoadScenario load(String location) throws IOException {
+    InputStream in;
+    if (new File(location).isFile())
+      in = new FileInputStream(location);
+    else
+      in = LoadScenario.class.getResourceAsStream(location);
+    if (in == null)
+      throw new FileNotFoundException("There is no load scenario at " + location);
+
+    try {
+      return new LoadScenario((JSONObject) new JSONParser().parse(IOUtils.toString(in, "UTF-8")));
+    } catch (ParseException pe) {
+      throw new IOException("The load scenario at " + location + " isn't valid JSON: " + pe);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private LoadScenario(JSONObject json) throws IOException {
+    name = getString(json, "name", "unnamed");
+    threads = (int) getLong(json, "threads", 1);
+    warmupMessages = (int) getLong(json, "warmupMessages", 0);
+    messages = (int) getLong(json, "messages", 1000);
+    seed = getLong(json, "seed", 42);
+    smtpLatencyMillis = getLong(json, "smtpLatencyMillis", 0);
+
+    JSONArray entries = (JSONArray) json.get("mix");
+    if ((entries == null) || entries.isEmpty())
+      throw new IOException("The load scenario '" + name + "' has no message mix.");
+    for (Object object : entries) {
+      JSONObject entry = (JSONObject) object;
+      Map<String, Object> parameters = new HashMap<String, Object>();
+      if (entry.get("parameters") != null)
+        parameters.putAll((Map<String, Object>) entry.get("parameters"));
+
+      Entry mixEntry = new Entry((int) getLong(entry, "weight", 1), getString(entry, "templatePath", "/email_templates/en/"), getString(
+          entry, "templateName", null), TemplateTypeEnum.valueOf(getString(entry, "templateType", "BOTH")), (int) getLong(entry,
+          "attachmentBytes", 0), parameters);
+      if (mixEntry.templateName == null)
+        throw new IOException("A mix entry of the load scenario '" + name + "' has no templateName.");
+      mix.add(mixEntry);
+      totalWeight += mixEntry.weight;
+    }
+  }
+
+  /**
+   * Picks the mix entries of the given number of messages.
+   * 
+   * @param count The number of messages.
+   * @param offset Shifts the seed, so e.g. the warm-up and the measured messages differ.
+   * @return The mix entry of each message.
+   */
+  public List<Entry> pick(int count, int offset) {
+    Random random = new Random(seed + offset);
+    List<Entry> picks = new ArrayList<Entry>(count);
+    for (int i = 0; i < count; i++) {
+      int ticket = random.nextInt(totalWeight);
+      for (Entry entry : mix) {
+        ticket -= entry.weight;
+        if (ticket < 0) {
+          picks.add(entry);
+          break;
+        }
+      }
+    }
+    return picks;
+  }
+
+  /**
+   * The name of the scenario, printed with its results.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * The number of threads sending messages at the same time.
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * The number of messages sent before measuring, so the JIT compiler and the caches settle.
+   */
+  public int getWarmupMessages() {
+    return warmupMessages;
+  }
+
+  /**
+   * The number of messages measured.
+   */
+  public int getMessages() {
+    return messages;
+  }
+
+  /**
+   * How long the fake SMTP server waits before accepting a message, in milliseconds.
+   */
+  public long getSmtpLatencyMillis() {
+    return smtpLatencyMillis;
+  }
+
+  /**
+   * The kinds of messages sent.
+   */
+  public List<Entry> getMix() {
+    return Collections.unmodifiableList(mix);
+  }
+
+  private static String getString(JSONObject json, String key, String defaultValue) {
+    Object value = json.get(key);
+    return value == null ? defaultValue : value.toString();
+  }
+
+  private static long getLong(JSONObject json, String key, long defaultValue) {
+    Object value = json.get(key);
+    return value == null ? defaultValue : ((Number) value).longValue();
+  }
+
+  /**
+   * A kind of message of the mix.
+   */
+  public static class Entry {
+    private final int weight;
+    private final String templatePath;
+    private final String templateName;
+    private final TemplateTypeEnum templateType;
+    private final int attachmentBytes;
+    private final Map<String, Object> parameters;
+
+    Entry(int weight, String templatePath, String templateName, TemplateTypeEnum templateType, int attachmentBytes,
+        Map<String, Object> parameters) {
+      this.weight = weight;
+      this.templatePath = templatePath;
+      this.templateName = templateName;
+      this.templateType = templateType;
+      this.attachmentBytes = attachmentBytes;
+      this.parameters = parameters;
+    }
+
+    /**
+     * The path of the templates on the classpath.
+     */
+    public String getTemplatePath() {
+      return templatePath;
+    }
+
+    /**
+     * The name of the templates.
+     */
+    public String getTemplateName() {
+      return templateName;
+    }
+
+    /**
+     * Which bodies to render.
+     */
+    public TemplateTypeEnum getTemplateType() {
+      return templateType;
+    }
+
+    /**
+     * The size of the attachment, or 0 if nothing is attached.
+     */
+    public int getAttachmentBytes() {
+      return attachmentBytes;
+    }
+
+    public Map<String, Object> getParameters() {
+      return parameters;
+    }
+
+    @Override
+    public String toString() {
+      return templateName + " (" + templateType + (attachmentBytes > 0 ? ", " + attachmentBytes + " bytes attached" : "") + ")";
+    }
+  }
+}
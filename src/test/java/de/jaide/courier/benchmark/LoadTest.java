@@ -0,0 +1,302 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.mail.EmailAttachment;
+
+import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationSource;
+import de.jaide.courier.email.smtp.SmtpClientTransportStage;
+
+/**
+ * Sends the messages of a LoadScenario through a MessageHandlerEMail to a FakeSmtpServer and reports throughput, latency percentiles,
+ * allocation rate and garbage collections, so releases can be compared on the same workload. The messages are sent with JavaMail's
+ * transport or, with "smtp-client", with the SMTP client of the library, which uses the PIPELINING, CHUNKING and 8BITMIME the fake server
+ * advertises.<br/>
+ * Usage: LoadTest [scenario file or classpath resource, defaults to /load_scenarios/mixed.json] [javamail|smtp-client]
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class LoadTest {
+  private static final String CONFIGURATION_NAME = "load";
+
+  private final LoadScenario scenario;
+  private final MessageHandlerEMail handler;
+  private final Map<Integer, File> attachmentFiles = new HashMap<Integer, File>();
+
+  private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+  private final Method allocatedBytesMethod = findAllocatedBytesMethod();
+
+  /**
+   * Creates a new load test.
+   * 
+   * @param scenario The workload.
+   * @param smtpPort The port of the fake SMTP server on the loopback interface.
+   */
+  public LoadTest(LoadScenario scenario, int smtpPort) {
+    this.scenario = scenario;
+
+    final SmtpConfiguration smtpConfiguration = new SmtpConfiguration(CONFIGURATION_NAME, "127.0.0.1", smtpPort, false, false, null, null,
+        "load@some-domain.tld", "Load Test");
+    handler = new MessageHandlerEMail(new SmtpConfigurationSource() {
+      public SmtpConfiguration getSmtpConfiguration(String configurationName) {
+        return CONFIGURATION_NAME.equals(configurationName) ? smtpConfiguration : null;
+      }
+    });
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadScenario scenario = LoadScenario.load(args.length > 0 ? args[0] : "/load_scenarios/mixed.json");
+    boolean smtpClient = (args.length > 1) && args[1].equals("smtp-client");
+    FakeSmtpServer server = new FakeSmtpServer();
+    server.setLatencyMillis(scenario.getSmtpLatencyMillis());
+    server.setExtensions("PIPELINING", "CHUNKING", "8BITMIME", "SIZE 35882577");
+    try {
+      LoadTest loadTest = new LoadTest(scenario, server.getPort());
+      SmtpClientTransportStage transport = smtpClient ? loadTest.handler.enableSmtpClient() : null;
+      System.out.println("Scenario '" + scenario.getName() + "': " + scenario.getThreads() + " threads, " + scenario.getMessages()
+          + " messages after " + scenario.getWarmupMessages() + " warm-up messages, SMTP latency " + scenario.getSmtpLatencyMillis()
+          + " ms, " + Runtime.getRuntime().availableProcessors() + " processors");
+      for (LoadScenario.Entry entry : scenario.getMix())
+        System.out.println("  " + entry);
+      System.out.println("Transport: " + (smtpClient ? "SMTP client" : "JavaMail"));
+
+      loadTest.run(scenario.getWarmupMessages(), 1);
+      loadTest.run(scenario.getMessages(), 0).print(System.out);
+      System.out.println(String.format("%-20s %12d messages accepted by the fake SMTP server", "server", server.getMessages()));
+      System.out.println(String.format("%-20s %12d bytes of message data, not counting line breaks", "server", server.getBytes()));
+      if (transport != null) {
+        double roundTrips = (double) transport.getRoundTrips() / transport.getMessages();
+        System.out.println(String.format("%-20s %12.2f round trips per message, %d connections", "smtp client", roundTrips, transport
+            .getPool().getCreatedConnections()));
+        System.out.println(String.format("%-20s %12d bytes written per message", "smtp client", transport.getBytesWritten()
+            / transport.getMessages()));
+        transport.close();
+      }
+      System.out.println(loadTest.handler.getMetrics());
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Sends the given number of messages, spread over the threads of the scenario.
+   * 
+   * @param count The number of messages.
+   * @param offset Shifts the seed the messages are picked with.
+   * @return The results.
+   * @throws IOException Thrown if the attachments couldn't be created.
+   * @throws InterruptedException Thrown if interrupted while waiting for the threads.
+   */
+  public Result run(int count, int offset) throws IOException, InterruptedException {
+    final List<LoadScenario.Entry> picks = scenario.pick(count, offset);
+    final List<Map<String, Object>> messages = new ArrayList<Map<String, Object>>(count);
+    for (int i = 0; i < count; i++)
+      messages.add(createParameters(picks.get(i), i));
+
+    final Result result = new Result();
+    final AtomicInteger next = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(scenario.getThreads());
+    long[] gcBefore = getGarbageCollections();
+    long start = System.nanoTime();
+
+    for (int t = 0; t < scenario.getThreads(); t++) {
+      Thread thread = new Thread("load-" + t) {
+        @Override
+        public void run() {
+          long allocatedBefore = getAllocatedBytes();
+          try {
+            int index;
+            while ((index = next.getAndIncrement()) < messages.size()) {
+              long messageStart = System.nanoTime();
+              try {
+                handler.handleMessage(messages.get(index));
+                result.latencies.record(System.nanoTime() - messageStart);
+              } catch (RuntimeException re) {
+                result.recordFailure(re);
+              }
+            }
+          } finally {
+            long allocatedAfter = getAllocatedBytes();
+            if ((allocatedBefore >= 0) && (allocatedAfter >= 0))
+              result.allocatedBytes.addAndGet(allocatedAfter - allocatedBefore);
+            else
+              result.allocatedBytes.set(Long.MIN_VALUE);
+            done.countDown();
+          }
+        }
+      };
+      thread.start();
+    }
+
+    done.await();
+    result.elapsedNanos = System.nanoTime() - start;
+    long[] gcAfter = getGarbageCollections();
+    result.garbageCollections = gcAfter[0] - gcBefore[0];
+    result.garbageCollectionMillis = gcAfter[1] - gcBefore[1];
+    return result;
+  }
+
+  private Map<String, Object> createParameters(LoadScenario.Entry entry, int index) throws IOException {
+    Map<String, Object> parameters = new HashMap<String, Object>(entry.getParameters());
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_CONFIGURATION_NAME, CONFIGURATION_NAME);
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH, entry.getTemplatePath());
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS, LoadTest.class);
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_NAME, entry.getTemplateName());
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_TYPE, entry.getTemplateType());
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME, "Recipient");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_LASTNAME, String.valueOf(index));
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL, "recipient-" + index + "@some-domain.tld");
+
+    if (entry.getAttachmentBytes() > 0) {
+      EmailAttachment attachment = new EmailAttachment();
+      attachment.setPath(getAttachmentFile(entry.getAttachmentBytes()).getPath());
+      attachment.setDisposition(EmailAttachment.ATTACHMENT);
+      attachment.setName("attachment.bin");
+      List<EmailAttachment> attachments = new ArrayList<EmailAttachment>();
+      attachments.add(attachment);
+      parameters.put(MessageHandlerEMail.MAPPING_PARAM_ATTACHMENTS, attachments);
+    }
+    return parameters;
+  }
+
+  /**
+   * Returns a file of random bytes of the given size, shared by all messages attaching that size.
+   */
+  private File getAttachmentFile(int size) throws IOException {
+    File file = attachmentFiles.get(size);
+    if (file == null) {
+      byte[] content = new byte[size];
+      new Random(size).nextBytes(content);
+      file = File.createTempFile("courier-load-", ".bin");
+      file.deleteOnExit();
+      FileUtils.writeByteArrayToFile(file, content);
+      attachmentFiles.put(size, file);
+    }
+    return file;
+  }
+
+  /**
+   * The bytes allocated by the current thread so far, if the JVM tells, otherwise -1.
+   */
+  private long getAllocatedBytes() {
+    if (allocatedBytesMethod == null)
+      return -1;
+
+    try {
+      return (Long) allocatedBytesMethod.invoke(threadMXBean, Thread.currentThread().getId());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * The allocated bytes per thread are only known to HotSpot's extension of the ThreadMXBean.
+   */
+  private static Method findAllocatedBytesMethod() {
+    try {
+      return Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * The number of garbage collections and the time they took, in milliseconds, of all collectors.
+   */
+  private static long[] getGarbageCollections() {
+    long[] collections = new long[2];
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      collections[0] += Math.max(0, collector.getCollectionCount());
+      collections[1] += Math.max(0, collector.getCollectionTime());
+    }
+    return collections;
+  }
+
+  /**
+   * The results of a run.
+   */
+  public static class Result {
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+    private long elapsedNanos;
+    private long garbageCollections;
+    private long garbageCollectionMillis;
+
+    void recordFailure(RuntimeException exception) {
+      String name = exception.getClass().getSimpleName();
+      AtomicLong count = failures.get(name);
+      if (count == null) {
+        failures.putIfAbsent(name, new AtomicLong());
+        count = failures.get(name);
+      }
+      count.incrementAndGet();
+    }
+
+    /**
+     * The latencies of the messages sent successfully.
+     * 
+     * @return The latencies.
+     */
+    public LatencyHistogram getLatencies() {
+      return latencies;
+    }
+
+    /**
+     * Prints the results.
+     * 
+     * @param out Where to print them.
+     */
+    public void print(PrintStream out) {
+      long sent = latencies.getCount();
+      double seconds = elapsedNanos / 1e9;
+      out.println(String.format("%-20s %12.1f messages/s (%d sent in %.2f s)", "throughput", sent / seconds, sent, seconds));
+      out.println(String.format("%-20s %12d us p50 %10d us p90 %10d us p99 %10d us p99.9 %10d us max %10.0f us mean", "latency", latencies
+          .getValueAtPercentile(50), latencies.getValueAtPercentile(90), latencies.getValueAtPercentile(99), latencies
+          .getValueAtPercentile(99.9), latencies.getMaximum(), latencies.getMean()));
+      if (allocatedBytes.get() >= 0)
+        out.println(String.format("%-20s %12.1f MB/s %13.1f KB/message", "allocation", allocatedBytes.get() / seconds / (1024 * 1024),
+            sent == 0 ? 0.0 : allocatedBytes.get() / 1024.0 / sent));
+      else
+        out.println(String.format("%-20s %12s", "allocation", "unknown"));
+      out.println(String.format("%-20s %12d collections %6d ms paused", "gc", garbageCollections, garbageCollectionMillis));
+      if (!failures.isEmpty())
+        out.println(String.format("%-20s %12s", "failures", new TreeMap<String, AtomicLong>(failures)));
+    }
+  }
+}
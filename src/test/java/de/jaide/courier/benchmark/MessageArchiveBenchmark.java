@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.benchmark;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+
+import com.sun.mail.util.BASE64EncoderStream;
+
+import de.jaide.courier.archive.ArchiveEntry;
+import de.jaide.courier.archive.MessageArchive;
+
+/**
+ * Measures how fast messages are appended to the archive and read back, and how much disk space they take compared to their size. The
+ * messages are newsletters: a rendered body that differs per recipient, and one of a few attachments.<br/>
+ * Usage: MessageArchiveBenchmark [number of messages, defaults to 20000]
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class MessageArchiveBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+    Random random = new Random(4711);
+    String[] attachments = new String[4];
+    for (int i = 0; i < attachments.length; i++) {
+      byte[] bytes = new byte[30 * 1024];
+      random.nextBytes(bytes);
+      attachments[i] = new String(BASE64EncoderStream.encode(bytes), "US-ASCII").replaceAll("(.{76})", "$1\r\n") + "\r\n";
+    }
+
+    File directory = File.createTempFile("courier-archive", "");
+    directory.delete();
+    try {
+      final MessageArchive archive = new MessageArchive(directory);
+      long messageBytes = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        byte[] message = createMessage(i, attachments[i % attachments.length]);
+        archive.append(System.currentTimeMillis(), Collections.singletonList("member" + i + "@some-domain.tld"), "<" + i
+            + "@some-domain.tld>", message, message.length);
+        messageBytes += message.length;
+      }
+      archive.flush();
+      long nanos = System.nanoTime() - start;
+
+      System.out.println(String.format("appended %d messages in %d ms, %.0f messages/s", count, nanos / 1000000, count * 1e9 / nanos));
+      System.out.println(String.format("messages %d KB, on disk %d KB (%.1f%%), deduplicated %d KB", messageBytes / 1024, archive
+          .getStoredBytes() / 1024, 100.0 * archive.getStoredBytes() / messageBytes, archive.getDeduplicatedBytes() / 1024));
+
+      final List<ArchiveEntry> entries = archive.findByTime(0, Long.MAX_VALUE, Integer.MAX_VALUE);
+      Benchmark benchmark = new Benchmark(5, 5, 1000);
+      benchmark.run("query: recipient", new Callable<Object>() {
+        private int i;
+
+        public Object call() throws Exception {
+          return archive.findByRecipient("member" + (i++ % entries.size()) + "@some-domain.tld", 0, Long.MAX_VALUE);
+        }
+      });
+      benchmark.run("read: recent messages", new Callable<Object>() {
+        private int i;
+
+        public Object call() throws Exception {
+          return archive.read(entries.get(i++ % 100));
+        }
+      });
+      benchmark.run("read: random messages", new Callable<Object>() {
+        private final Random random = new Random();
+
+        public Object call() throws Exception {
+          return archive.read(entries.get(random.nextInt(entries.size())));
+        }
+      });
+      archive.close();
+    } finally {
+      FileUtils.deleteQuietly(directory);
+    }
+  }
+
+  private static byte[] createMessage(int number, String attachment) throws Exception {
+    String boundary = "----=_Part_" + number + "_" + (number * 7919);
+    StringBuilder message = new StringBuilder();
+    message.append("Message-ID: <").append(number).append("@some-domain.tld>\r\n");
+    message.append("To: member").append(number).append("@some-domain.tld\r\n");
+    message.append("Subject: Our newsletter\r\n");
+    message.append("Content-Type: multipart/mixed; boundary=\"").append(boundary).append("\"\r\n\r\n");
+    message.append("--").append(boundary).append("\r\n");
+    message.append("Content-Type: text/plain; charset=UTF-8\r\n\r\nDear member ").append(number).append(",\r\n\r\n");
+    for (int i = 0; i < 40; i++)
+      message.append("This is line ").append(i).append(" of this month's newsletter, the same for everybody.\r\n");
+    message.append("\r\nTo unsubscribe, visit http://www.some-domain.tld/unsubscribe?id=").append(number).append("\r\n");
+    message.append("--").append(boundary).append("\r\n");
+    message.append("Content-Type: application/pdf\r\nContent-Transfer-Encoding: base64\r\n\r\n");
+    message.append(attachment);
+    message.append("--").append(boundary).append("--\r\n");
+    return message.toString().getBytes("US-ASCII");
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.pipeline.CachingTemplateRenderingStage;
+import de.jaide.courier.pipeline.MessageContext;
+import de.jaide.courier.pipeline.MessageStage;
+import de.jaide.courier.pipeline.ParallelTemplateRenderingStage;
+import de.jaide.courier.pipeline.PipelineMessageHandler;
+import de.jaide.courier.pipeline.TemplateEngine;
+import de.jaide.courier.pipeline.TemplateRenderingStage;
+import de.jaide.courier.pipeline.TemplateResolutionStage;
+
+/**
+ * Compares rendering the text and the HTML body of the report template one after the other with rendering them concurrently, and with
+ * taking them from the cache of rendered messages.<br/>
+ * Usage: RenderingBenchmark [number of order items, defaults to 2000]
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class RenderingBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int items = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+    List<Map<String, Object>> itemList = new ArrayList<Map<String, Object>>();
+    for (int i = 0; i < items; i++) {
+      Map<String, Object> item = new HashMap<String, Object>();
+      item.put("name", "Article <" + i + ">");
+      item.put("quantity", i % 7 + 1);
+      item.put("price", 9.99 + i);
+      itemList.add(item);
+    }
+
+    Map<String, String> probe = new HashMap<String, String>();
+    probe.put("threadName", "benchmark");
+
+    final Map<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put(PipelineMessageHandler.MAPPING_PARAM_TEMPLATE_PATH, "/report_templates/");
+    parameters.put(PipelineMessageHandler.MAPPING_PARAM_TEMPLATE_NAME, "report");
+    parameters.put(PipelineMessageHandler.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.BOTH);
+    parameters.put("probe", probe);
+    parameters.put("items", itemList);
+
+    final MessageStage resolution = new TemplateResolutionStage(new TemplateEngine(), RenderingBenchmark.class);
+    System.out.println(items + " order items, " + Runtime.getRuntime().availableProcessors() + " processors");
+
+    Benchmark benchmark = new Benchmark(20, 10, 20);
+    benchmark.run("render: sequential", render(resolution, new TemplateRenderingStage(), parameters));
+    benchmark.run("render: parallel", render(resolution, new ParallelTemplateRenderingStage(ParallelTemplateRenderingStage
+        .getSharedExecutor(), ParallelTemplateRenderingStage.DEFAULT_THRESHOLD_MICROS), parameters));
+    benchmark.run("render: cached", render(resolution, new CachingTemplateRenderingStage(new TemplateRenderingStage(), 100,
+        16 * 1024 * 1024), parameters));
+  }
+
+  private static Callable<Object> render(final MessageStage resolution, final MessageStage rendering, final Map<String, Object> parameters) {
+    return new Callable<Object>() {
+      public Object call() throws Exception {
+        MessageContext context = new MessageContext(parameters);
+        resolution.process(context);
+        rendering.process(context);
+        return context;
+      }
+    };
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.IOUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationReader;
+import de.jaide.courier.email.SmtpConfigurationWriter;
+
+/**
+ * Compares loading and writing a large smtp.json the way Courier used to (buffered into a String, parsed into json-simple maps,
+ * pretty-printed by JSONWriter character by character) with the streaming SmtpConfigurationReader and SmtpConfigurationWriter.<br/>
+ * Usage: SmtpConfigurationBenchmark [number of configurations, defaults to 5000]
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class SmtpConfigurationBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+
+    final List<SmtpConfiguration> smtpConfigurations = new ArrayList<SmtpConfiguration>();
+    for (int i = 0; i < count; i++) {
+      SmtpConfiguration smtpConfiguration = new SmtpConfiguration("tenant-" + i, "smtp" + (i % 10) + ".mydomain.com", 587, true, false,
+          "sender" + i + "@tenant" + i + ".com", "secret-" + i, "sender" + i + "@tenant" + i + ".com", "Sender " + i);
+      if (i % 3 == 0) {
+        smtpConfiguration.setDkimDomain("tenant" + i + ".com");
+        smtpConfiguration.setDkimSelector("courier");
+        smtpConfiguration.setDkimPrivateKeyFile("/etc/courier/tenant" + i + ".pk8");
+      }
+      smtpConfigurations.add(smtpConfiguration);
+    }
+
+    StringWriter exported = new StringWriter();
+    SmtpConfigurationWriter exporter = new SmtpConfigurationWriter(exported);
+    exporter.writeAll(smtpConfigurations);
+    exporter.finish();
+    final byte[] json = exported.toString().getBytes("UTF-8");
+    System.out.println(count + " configurations, " + json.length + " bytes");
+
+    Benchmark benchmark = new Benchmark(10, 10, 5);
+
+    benchmark.run("load: String + json-simple", new Callable<Object>() {
+      public Object call() throws Exception {
+        return loadWithJsonSimple(new ByteArrayInputStream(json));
+      }
+    });
+    benchmark.run("load: SmtpConfigurationReader", new Callable<Object>() {
+      public Object call() throws Exception {
+        return new SmtpConfigurationReader(new ByteArrayInputStream(json)).readAll();
+      }
+    });
+
+    benchmark.run("write: json-simple + JSONWriter", new Callable<Object>() {
+      public Object call() throws Exception {
+        StringBuilder all = new StringBuilder();
+        for (SmtpConfiguration smtpConfiguration : smtpConfigurations)
+          all.append(toJSONStringWithJsonSimple(smtpConfiguration));
+        return all;
+      }
+    });
+    benchmark.run("write: toJSONString()", new Callable<Object>() {
+      public Object call() throws Exception {
+        StringBuilder all = new StringBuilder();
+        for (SmtpConfiguration smtpConfiguration : smtpConfigurations)
+          all.append(smtpConfiguration.toJSONString());
+        return all;
+      }
+    });
+    benchmark.run("export: SmtpConfigurationWriter", new Callable<Object>() {
+      public Object call() throws Exception {
+        StringWriter out = new StringWriter(json.length);
+        SmtpConfigurationWriter writer = new SmtpConfigurationWriter(out);
+        writer.writeAll(smtpConfigurations);
+        writer.finish();
+        return out;
+      }
+    });
+  }
+
+  /**
+   * The way MessageHandlerEMail used to load the smtp.json.
+   */
+  private static Map<String, SmtpConfiguration> loadWithJsonSimple(InputStream in) throws Exception {
+    Map<String, SmtpConfiguration> smtpConfigurations = new HashMap<String, SmtpConfiguration>();
+    JSONArray keyArray = (JSONArray) new JSONParser().parse(IOUtils.toString(in));
+    for (int i = 0; i < keyArray.size(); i++) {
+      JSONObject keysArray = (JSONObject) keyArray.get(i);
+      for (Object keyObject : keysArray.keySet()) {
+        String key = (String) keyObject;
+        JSONObject configArray = (JSONObject) keysArray.get(key);
+        SmtpConfiguration smtpConfiguration = new SmtpConfiguration(key, (String) configArray.get("smtpHostname"), ((Long) configArray
+            .get("smtpPort")).intValue(), (Boolean) configArray.get("tls"), (Boolean) configArray.get("ssl"), (String) configArray
+            .get("username"), (String) configArray.get("password"), (String) configArray.get("fromEMail"), (String) configArray
+            .get("fromSenderName"));
+        smtpConfiguration.setDkimDomain((String) configArray.get("dkimDomain"));
+        smtpConfiguration.setDkimSelector((String) configArray.get("dkimSelector"));
+        smtpConfiguration.setDkimPrivateKeyFile((String) configArray.get("dkimPrivateKeyFile"));
+        smtpConfigurations.put(key, smtpConfiguration);
+      }
+    }
+    return smtpConfigurations;
+  }
+
+  /**
+   * The way SmtpConfiguration.toJSONString() used to work.
+   */
+  @SuppressWarnings( { "unchecked", "deprecation" })
+  private static String toJSONStringWithJsonSimple(SmtpConfiguration smtpConfiguration) throws IOException {
+    JSONObject entry = new JSONObject();
+    Map<String, Object> configuration = new LinkedHashMap<String, Object>();
+    configuration.put("smtpHostname", smtpConfiguration.getSmtpHostname());
+    configuration.put("smtpPort", smtpConfiguration.getSmtpPort());
+    configuration.put("tls", smtpConfiguration.isTls());
+    configuration.put("ssl", smtpConfiguration.isSsl());
+    configuration.put("username", smtpConfiguration.getUsername());
+    configuration.put("password", smtpConfiguration.getPassword());
+    configuration.put("fromEMail", smtpConfiguration.getFromEMail());
+    configuration.put("fromSenderName", smtpConfiguration.getFromSenderName());
+    if (smtpConfiguration.getDkimDomain() != null) {
+      configuration.put("dkimDomain", smtpConfiguration.getDkimDomain());
+      configuration.put("dkimSelector", smtpConfiguration.getDkimSelector());
+      configuration.put("dkimPrivateKeyFile", smtpConfiguration.getDkimPrivateKeyFile());
+    }
+    entry.put(smtpConfiguration.getConfigurationName(), configuration);
+
+    Writer jsonWriter = new com.tonian.director.dm.json.JSONWriter();
+    entry.writeJSONString(jsonWriter);
+    return jsonWriter.toString();
+  }
+}
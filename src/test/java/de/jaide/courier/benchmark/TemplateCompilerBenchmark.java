@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.benchmark;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import de.jaide.courier.pipeline.ParameterModel;
+import de.jaide.courier.pipeline.TemplateCompiler;
+import de.jaide.courier.pipeline.TemplateEngine;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * Compares rendering the parts of the signup and contact_accept e-mails with Freemarker, the way the rendering stage does with hot
+ * reloading turned off, with rendering them with their compiled templates. Prints the time per call and, where the JVM can tell, the bytes
+ * allocated per call.<br/>
+ * Usage: TemplateCompilerBenchmark
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TemplateCompilerBenchmark {
+  private static final String[] PARTS = { "signup_subject.ftl", "signup_body.ftl.html", "contact_accept_subject.ftl",
+      "contact_accept_body.ftl.txt", "contact_accept_body.ftl.html" };
+
+  private static final int CALLS = 20000;
+
+  public static void main(String[] args) throws Exception {
+    Map<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put("recipientFirstname", "Peter");
+    parameters.put("link", "http://www.salambc.com/activate?id=12345");
+    parameters.put("memberFirstname", "Sarah");
+    parameters.put("memberLastname", "Smith");
+    parameters.put("memberTitle", "Developer");
+    parameters.put("memberCompany", "JAIDE GmbH");
+    parameters.put("memberProfileLink", "http://www.salambc.com/members?id=12345");
+    parameters.put("memberCompanyLink", "http://www.salambc.com/companies?id=4711");
+    parameters.put("recipientProfileLink", "http://www.salambc.com/companies?id=54321");
+    parameters.put("unsubscribeLink", "http://www.salambc.com/preferences/notifications/unsubscribe?id=54321");
+
+    TemplateEngine engine = new TemplateEngine();
+    engine.setHotReload(false);
+    Configuration configuration = engine.getConfiguration(TemplateCompilerBenchmark.class, "/email_templates/en/");
+    TemplateCompiler compiler = engine.getTemplateCompiler();
+    compiler.addTemplate("signup");
+    compiler.addTemplate("contact_accept");
+
+    Callable<Object> freemarker = render(configuration, parameters, false);
+    Callable<Object> compiled = render(configuration, parameters, true);
+    if (!freemarker.call().equals(compiled.call()))
+      throw new IllegalStateException("The compiled templates render differently.");
+    System.out.println(PARTS.length + " parts, " + compiler.getUnsupportedTemplates() + " of them not compiled");
+
+    Benchmark benchmark = new Benchmark(20, 10, CALLS);
+    double before = benchmark.run("render: Freemarker", freemarker);
+    double after = benchmark.run("render: compiled", compiled);
+    System.out.println(String.format("speedup: %.2fx", before / after));
+
+    long freemarkerBytes = allocatedBytes(freemarker);
+    long compiledBytes = allocatedBytes(compiled);
+    if ((freemarkerBytes >= 0) && (compiledBytes >= 0))
+      System.out.println(String.format("allocated: Freemarker %d bytes/call, compiled %d bytes/call", freemarkerBytes, compiledBytes));
+  }
+
+  private static Callable<Object> render(final Configuration configuration, final Map<String, Object> parameters, final boolean compiled) {
+    final TemplateCompiler compiler = TemplateCompiler.get(configuration);
+    return new Callable<Object>() {
+      public Object call() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (String part : PARTS) {
+          Template template = configuration.getTemplate(part);
+          String rendered = compiled ? compiler.render(template, parameters) : null;
+          if (rendered == null) {
+            StringWriter writer = new StringWriter();
+            template.process(new ParameterModel(parameters, configuration.getObjectWrapper()), writer);
+            rendered = writer.toString();
+          }
+          content.append(rendered);
+        }
+        return content.toString();
+      }
+    };
+  }
+
+  /**
+   * Returns the bytes the current thread allocates per call, or -1 if the JVM doesn't count them.
+   */
+  private static long allocatedBytes(Callable<Object> task) throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean))
+      return -1;
+
+    com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+    long threadId = Thread.currentThread().getId();
+    long start = sunThreads.getThreadAllocatedBytes(threadId);
+    if (start < 0)
+      return -1;
+    for (int i = 0; i < CALLS; i++)
+      task.call();
+    return (sunThreads.getThreadAllocatedBytes(threadId) - start) / CALLS;
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.benchmark;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import de.jaide.courier.pipeline.ParameterModel;
+import de.jaide.courier.pipeline.TemplateEngine;
+import freemarker.template.Configuration;
+import freemarker.template.DefaultObjectWrapper;
+
+/**
+ * Compares rendering the three parts of the report template with a Freemarker configuration left at its defaults, handing Freemarker the
+ * parameter map, with rendering them the way the template engine does with hot reloading turned off.<br/>
+ * The order items are passed as JavaBeans, so the object wrapper has some work to do. With a template update delay of 0 each part is
+ * checked for changes on every call, showing what the staleness checks cost whenever the delay elapses.<br/>
+ * Usage: TemplateEngineBenchmark [number of order items, defaults to 20]
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class TemplateEngineBenchmark {
+  private static final String[] PARTS = { "report_subject.ftl", "report_body.ftl.txt", "report_body.ftl.html" };
+
+  public static void main(String[] args) throws Exception {
+    int items = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+    List<Item> itemList = new ArrayList<Item>();
+    for (int i = 0; i < items; i++)
+      itemList.add(new Item("Article <" + i + ">", i % 7 + 1, 9.99 + i));
+
+    Map<String, String> probe = new HashMap<String, String>();
+    probe.put("threadName", "benchmark");
+
+    Map<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put("probe", probe);
+    parameters.put("items", itemList);
+    for (int i = 0; i < 10; i++)
+      parameters.put("parameter" + i, "value" + i);
+
+    Configuration defaults = new Configuration();
+    defaults.setObjectWrapper(new DefaultObjectWrapper());
+    defaults.setClassForTemplateLoading(TemplateEngineBenchmark.class, "/report_templates/");
+
+    Configuration uncached = new Configuration();
+    uncached.setObjectWrapper(new DefaultObjectWrapper());
+    uncached.setClassForTemplateLoading(TemplateEngineBenchmark.class, "/report_templates/");
+    uncached.setTemplateUpdateDelay(0);
+
+    TemplateEngine engine = new TemplateEngine();
+    engine.setHotReload(false);
+    Configuration production = engine.getConfiguration(TemplateEngineBenchmark.class, "/report_templates/");
+
+    System.out.println(items + " order items, Freemarker " + Configuration.getVersionNumber());
+    Benchmark benchmark = new Benchmark(20, 10, 2000);
+    benchmark.run("render: defaults, update delay 0", render(uncached, parameters, false));
+    double before = benchmark.run("render: defaults", render(defaults, parameters, false));
+    double after = benchmark.run("render: production profile", render(production, parameters, true));
+    System.out.println(String.format("speedup: %.2fx", before / after));
+  }
+
+  private static Callable<Object> render(final Configuration configuration, final Map<String, Object> parameters, final boolean model) {
+    return new Callable<Object>() {
+      public Object call() throws Exception {
+        Object root = model ? new ParameterModel(parameters, configuration.getObjectWrapper()) : parameters;
+        StringWriter writer = new StringWriter();
+        for (String part : PARTS)
+          configuration.getTemplate(part).process(root, writer);
+        return writer.toString();
+      }
+    };
+  }
+
+  /**
+   * An order item, a JavaBean.
+   */
+  public static class Item {
+    private final String name;
+    private final int quantity;
+    private final double price;
+
+    Item(String name, int quantity, double price) {
+      this.name = name;
+      this.quantity = quantity;
+      this.price = price;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getQuantity() {
+      return quantity;
+    }
+
+    public double getPrice() {
+      return price;
+    }
+  }
+}
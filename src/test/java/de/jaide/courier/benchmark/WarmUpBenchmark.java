@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011-2013 JAIDE GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.jaide.courier.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.jaide.courier.email.EMailWarmUp;
+import de.jaide.courier.email.MessageHandlerEMail;
+import de.jaide.courier.email.SmtpConfiguration;
+import de.jaide.courier.email.SmtpConfigurationSource;
+import de.jaide.courier.email.TemplateTypeEnum;
+import de.jaide.courier.email.WarmUpReport;
+
+/**
+ * Measures the first e-mails sent after a start, with and without warming the handler up first. Since most of the difference is class
+ * loading, run it once per mode, each in a JVM of its own.<br/>
+ * Usage: WarmUpBenchmark cold|warm [number of e-mails, defaults to 200]
+ * 
+ * @author Rias A. Sherzad, JAIDE GmbH // http://www.jaide.de
+ */
+public class WarmUpBenchmark {
+  public static void main(String[] args) throws Exception {
+    boolean warm = (args.length > 0) && args[0].equals("warm");
+    int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+    FakeSmtpServer server = new FakeSmtpServer();
+    try {
+      final SmtpConfiguration smtpConfiguration = new SmtpConfiguration("fake", "127.0.0.1", server.getPort(), false, false, null, null,
+          "courier@some-domain.tld", "Courier");
+      MessageHandlerEMail handler = new MessageHandlerEMail(new SmtpConfigurationSource() {
+        public SmtpConfiguration getSmtpConfiguration(String configurationName) {
+          return smtpConfiguration;
+        }
+      });
+      handler.enableSmtpClient();
+
+      if (warm) {
+        EMailWarmUp warmUp = new EMailWarmUp(handler);
+        warmUp.addTemplatePath(WarmUpBenchmark.class, "/email_templates/en/");
+        warmUp.addConfiguration("fake");
+        WarmUpReport report = warmUp.run();
+        System.out.println(String.format("warm-up: %d templates, %d renders, %d connections in %d ms, failures %s", report.getTemplates(),
+            report.getRenders(), report.getConnections(), report.getElapsedMillis(), report.getFailures()));
+      }
+
+      long first = 0;
+      long total = 0;
+      for (int i = 0; i < messages; i++) {
+        long start = System.nanoTime();
+        handler.process(createParameters(i));
+        long elapsed = System.nanoTime() - start;
+        if (i == 0)
+          first = elapsed;
+        total += elapsed;
+      }
+      System.out.println(String.format("%s: first e-mail %.2f ms, first %d e-mails %.2f ms on average", warm ? "warm" : "cold",
+          first / 1e6, messages, total / 1e6 / messages));
+    } finally {
+      server.stop();
+    }
+  }
+
+  private static Map<String, Object> createParameters(int member) {
+    Map<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_CONFIGURATION_NAME, "fake");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH, "/email_templates/en/");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_PATH_CLASS, WarmUpBenchmark.class);
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_NAME, member % 2 == 0 ? "signup" : "contact_accept");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_TEMPLATE_TYPE, TemplateTypeEnum.ANY);
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_FIRSTNAME, "Peter");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_LASTNAME, "Miller");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_RECIPIENT_EMAIL, "member" + member + "@some-domain.tld");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_SENDER_FIRSTNAME, "Sarah");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_SENDER_LASTNAME, "Connor");
+    parameters.put(MessageHandlerEMail.MAPPING_PARAM_SENDER_EMAIL, "sarah@some-domain.tld");
+    parameters.put("link", "http://www.jaide.de/projects/notify/confirm?id=" + member);
+    for (String name : new String[] { "memberFirstname", "memberLastname", "memberTitle", "memberCompany" })
+      parameters.put(name, "Sarah");
+    for (String name : new String[] { "memberProfileLink", "memberCompanyLink", "recipientProfileLink", "unsubscribeLink" })
+      parameters.put(name, "http://www.jaide.de/" + member);
+    return parameters;
+  }
+}
@@ -0,0 +1 @@
+Servus, ${name}!
\ No newline at end of file
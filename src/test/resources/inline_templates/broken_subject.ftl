@@ -0,0 +1 @@
+Broken
\ No newline at end of file
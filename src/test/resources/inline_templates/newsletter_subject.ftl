@@ -0,0 +1 @@
+Newsletter for ${recipientFirstname}
\ No newline at end of file
@@ -0,0 +1 @@
+Report ${probe.threadName}
\ No newline at end of file